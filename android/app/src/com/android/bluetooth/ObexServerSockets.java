@@ -19,23 +19,35 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.obex.ResponseCodes;
 import com.android.obex.ServerSession;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
 
 /**
  * Wraps multiple BluetoothServerSocket objects to make it possible to accept connections on
  * both a RFCOMM and L2CAP channel in parallel.<br>
+ * The accept loops of all the OBEX servers run on a single pool of threads shared by the
+ * instances, so that restarting the listeners reuses the idle threads instead of spawning new
+ * ones. It does not lower the number of threads while listening: accept() blocks, so each
+ * listening socket keeps one thread of the pool busy.<br>
  * Create an instance using {@link #create()}, which will block until the sockets have been created
  * and channel numbers have been assigned.<br>
  * Use {@link #getRfcommChannel()} and {@link #getL2capPsm()} to get the channel numbers to
  * put into the SDP record.<br>
- * Call {@link #shutdown(boolean)} to terminate the accept threads created by the call to
- * {@link #create(IObexConnectionHandler)}.<br>
+ * Call {@link #shutdown(boolean)} to terminate the accept loops started by the call to
+ * {@link #create(IObexConnectionHandler, String)}.<br>
  * A reference to an object of this type cannot be reused, and the {@link BluetoothServerSocket}
  * object references passed to this object will be closed by this object, hence cannot be reused
  * either (This is needed, as the only way to interrupt an accept call is to close the socket...)
@@ -55,30 +67,42 @@ public class ObexServerSockets {
     /* The wrapped sockets */
     private final BluetoothServerSocket mRfcommSocket;
     private final BluetoothServerSocket mL2capSocket;
-    /* Handles to the accept threads. Needed for shutdown. */
-    private SocketAcceptThread mRfcommThread;
-    private SocketAcceptThread mL2capThread;
+    /* Handles to the accept loops. Needed for shutdown. */
+    private SocketAcceptor mRfcommAcceptor;
+    private SocketAcceptor mL2capAcceptor;
 
     private static volatile AtomicInteger sInstanceCounter = new AtomicInteger(0);
 
+    /* Runs the accept loops of all the instances. Idle threads are released after a minute. */
+    private static final ExecutorService sAcceptExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mThreadCounter = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ObexAccept-" + mThreadCounter.getAndIncrement());
+                }
+            });
+
     private ObexServerSockets(IObexConnectionHandler conHandler, BluetoothServerSocket rfcommSocket,
-            BluetoothServerSocket l2capSocket) {
+            BluetoothServerSocket l2capSocket, String name) {
         mConHandler = conHandler;
         mRfcommSocket = rfcommSocket;
         mL2capSocket = l2capSocket;
-        mTag = "ObexServerSockets" + sInstanceCounter.getAndIncrement();
+        mTag = "ObexServerSockets" + sInstanceCounter.getAndIncrement() + "/" + name;
     }
 
     /**
      * Creates an RFCOMM {@link BluetoothServerSocket} and a L2CAP {@link BluetoothServerSocket}
      * @param validator a reference to the {@link IObexConnectionHandler} object to call
      *                  to validate an incoming connection.
+     * @param name the name of the OBEX server, used in the logs.
      * @return a reference to a {@link ObexServerSockets} object instance.
      */
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
-    public static ObexServerSockets create(IObexConnectionHandler validator) {
+    public static ObexServerSockets create(IObexConnectionHandler validator, String name) {
         return create(validator, BluetoothAdapter.SOCKET_CHANNEL_AUTO_STATIC_NO_SDP,
-                BluetoothAdapter.SOCKET_CHANNEL_AUTO_STATIC_NO_SDP, true);
+                BluetoothAdapter.SOCKET_CHANNEL_AUTO_STATIC_NO_SDP, true, name);
     }
 
     /**
@@ -86,15 +110,30 @@ public class ObexServerSockets {
      *                  {@link BluetoothServerSocket}
      * @param validator a reference to the {@link IObexConnectionHandler} object to call
      *                  to validate an incoming connection.
+     * @param name the name of the OBEX server, used in the logs.
      * @return a reference to a {@link ObexServerSockets} object instance.
      */
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
-    public static ObexServerSockets createInsecure(IObexConnectionHandler validator) {
+    public static ObexServerSockets createInsecure(IObexConnectionHandler validator,
+            String name) {
         return create(validator, BluetoothAdapter.SOCKET_CHANNEL_AUTO_STATIC_NO_SDP,
-                BluetoothAdapter.SOCKET_CHANNEL_AUTO_STATIC_NO_SDP, false);
+                BluetoothAdapter.SOCKET_CHANNEL_AUTO_STATIC_NO_SDP, false, name);
     }
 
-    private static final int CREATE_RETRY_TIME = 10;
+    // Socket creation is retried until the waits between the attempts add up to this time
+    @VisibleForTesting
+    static final long CREATE_RETRY_TIMEOUT_MS = 3000;
+    // The wait between two attempts doubles from the initial delay up to the max delay
+    @VisibleForTesting
+    static final long CREATE_RETRY_INITIAL_DELAY_MS = 20;
+    @VisibleForTesting
+    static final long CREATE_RETRY_MAX_DELAY_MS = 300;
+
+    /** Opens the listening sockets not opened yet */
+    @VisibleForTesting
+    interface SocketOpener {
+        void open() throws IOException;
+    }
 
     /**
      * Creates an RFCOMM {@link BluetoothServerSocket} and a L2CAP {@link BluetoothServerSocket}
@@ -104,6 +143,7 @@ public class ObexServerSockets {
      * @param validator a reference to the {@link IObexConnectionHandler} object to call
      *                  to validate an incoming connection.
      * @param isSecure boolean flag to determine whther socket would be secured or inseucure.
+     * @param name the name of the OBEX server, used in the logs.
      * @return a reference to a {@link ObexServerSockets} object instance.
      *
      * TODO: Make public when it becomes possible to determine that the listen-call
@@ -111,75 +151,93 @@ public class ObexServerSockets {
      */
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
     private static ObexServerSockets create(IObexConnectionHandler validator, int rfcommChannel,
-            int l2capPsm, boolean isSecure) {
+            int l2capPsm, boolean isSecure, String name) {
         if (D) {
-            Log.d(STAG, "create(rfcomm = " + rfcommChannel + ", l2capPsm = " + l2capPsm + ")");
+            Log.d(STAG, "create(" + name + ", rfcomm = " + rfcommChannel + ", l2capPsm = "
+                    + l2capPsm + ")");
         }
         BluetoothAdapter bt = BluetoothAdapter.getDefaultAdapter();
         if (bt == null) {
             throw new RuntimeException("No bluetooth adapter...");
         }
-        BluetoothServerSocket rfcommSocket = null;
-        BluetoothServerSocket l2capSocket = null;
-        boolean initSocketOK = false;
+        // Sockets opened so far: RFCOMM, then L2CAP
+        BluetoothServerSocket[] sockets = new BluetoothServerSocket[2];
+        SocketOpener opener = () -> {
+            if (sockets[0] == null) {
+                sockets[0] = isSecure ? bt.listenUsingRfcommOn(rfcommChannel)
+                        : bt.listenUsingInsecureRfcommOn(rfcommChannel);
+            }
+            if (sockets[1] == null) {
+                sockets[1] = isSecure ? bt.listenUsingL2capOn(l2capPsm)
+                        : bt.listenUsingInsecureL2capOn(l2capPsm);
+            }
+        };
+        // Need to stop retrying if BT is being turned off
+        BooleanSupplier isAdapterOn = () -> {
+            int state = bt.getState();
+            return state == BluetoothAdapter.STATE_TURNING_ON
+                    || state == BluetoothAdapter.STATE_ON;
+        };
+        boolean initSocketOK = openWithRetry(opener, isAdapterOn, delayMs -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Log.e(STAG, "create() was interrupted");
+            }
+        });
+
+        if (initSocketOK) {
+            if (D) {
+                Log.d(STAG, "Succeed to create listening sockets ");
+            }
+            ObexServerSockets serverSockets =
+                    new ObexServerSockets(validator, sockets[0], sockets[1], name);
+            serverSockets.startAccept();
+            return serverSockets;
+        } else {
+            Log.e(STAG, "Error to create listening socket after " + CREATE_RETRY_TIMEOUT_MS
+                    + " ms");
+            return null;
+        }
+    }
 
-        // It's possible that create will fail in some cases. retry for 10 times
-        for (int i = 0; i < CREATE_RETRY_TIME; i++) {
-            initSocketOK = true;
+    /**
+     * Opens the listening sockets, retrying with a growing delay while the adapter is on. It can
+     * fail in some cases, e.g. while the stack is still setting up after the adapter is turned on.
+     *
+     * @param opener opens the sockets not opened by the previous attempts
+     * @param isAdapterOn tells whether the adapter is on or turning on
+     * @param sleeper waits between two attempts
+     * @return true if the sockets are open
+     */
+    @VisibleForTesting
+    static boolean openWithRetry(SocketOpener opener, BooleanSupplier isAdapterOn,
+            LongConsumer sleeper) {
+        long waitedMs = 0;
+        long delayMs = CREATE_RETRY_INITIAL_DELAY_MS;
+        while (true) {
             try {
-                if (rfcommSocket == null) {
-                    if (isSecure) {
-                        rfcommSocket = bt.listenUsingRfcommOn(rfcommChannel);
-                    } else {
-                        rfcommSocket = bt.listenUsingInsecureRfcommOn(rfcommChannel);
-                    }
-                }
-                if (l2capSocket == null) {
-                    if (isSecure) {
-                        l2capSocket = bt.listenUsingL2capOn(l2capPsm);
-                    } else {
-                        l2capSocket = bt.listenUsingInsecureL2capOn(l2capPsm);
-                    }
-                }
+                opener.open();
+                return true;
             } catch (IOException e) {
                 Log.e(STAG, "Error create ServerSockets ", e);
-                initSocketOK = false;
             } catch (SecurityException e) {
                 Log.e(STAG, "Error create ServerSockets ", e);
-                initSocketOK = false;
-                break;
+                return false;
             }
-            if (!initSocketOK) {
-                // Need to break out of this loop if BT is being turned off.
-                int state = bt.getState();
-                if ((state != BluetoothAdapter.STATE_TURNING_ON) && (state
-                        != BluetoothAdapter.STATE_ON)) {
-                    Log.w(STAG, "initServerSockets failed as BT is (being) turned off");
-                    break;
-                }
-                try {
-                    if (D) {
-                        Log.v(STAG, "waiting 300 ms...");
-                    }
-                    Thread.sleep(300);
-                } catch (InterruptedException e) {
-                    Log.e(STAG, "create() was interrupted");
-                }
-            } else {
-                break;
+            if (!isAdapterOn.getAsBoolean()) {
+                Log.w(STAG, "initServerSockets failed as BT is (being) turned off");
+                return false;
+            }
+            if (waitedMs >= CREATE_RETRY_TIMEOUT_MS) {
+                return false;
             }
-        }
-
-        if (initSocketOK) {
             if (D) {
-                Log.d(STAG, "Succeed to create listening sockets ");
+                Log.v(STAG, "waiting " + delayMs + " ms...");
             }
-            ObexServerSockets sockets = new ObexServerSockets(validator, rfcommSocket, l2capSocket);
-            sockets.startAccept();
-            return sockets;
-        } else {
-            Log.e(STAG, "Error to create listening socket after " + CREATE_RETRY_TIME + " try");
-            return null;
+            sleeper.accept(delayMs);
+            waitedMs += delayMs;
+            delayMs = Math.min(delayMs * 2, CREATE_RETRY_MAX_DELAY_MS);
         }
     }
 
@@ -202,24 +260,25 @@ public class ObexServerSockets {
     }
 
     /**
-     * Initiate the accept threads.
-     * Will create a thread for each socket type. an incoming connection will be signaled to
-     * the {@link IObexConnectionValidator#onConnect()}, at which point both threads will exit.
+     * Initiate the accept loops.
+     * Will run a loop for each socket type on the shared accept threads. An incoming connection
+     * will be signaled to the {@link IObexConnectionHandler#onConnect}, and the loops keep
+     * accepting connections until {@link #shutdown(boolean)} is called.
      */
     private void startAccept() {
         if (D) {
             Log.d(mTag, "startAccept()");
         }
 
-        mRfcommThread = new SocketAcceptThread(mRfcommSocket);
-        mRfcommThread.start();
+        mRfcommAcceptor = new SocketAcceptor(mRfcommSocket);
+        sAcceptExecutor.execute(mRfcommAcceptor);
 
-        mL2capThread = new SocketAcceptThread(mL2capSocket);
-        mL2capThread.start();
+        mL2capAcceptor = new SocketAcceptor(mL2capSocket);
+        sAcceptExecutor.execute(mL2capAcceptor);
     }
 
     /**
-     * Called from the AcceptThreads to signal an incoming connection.
+     * Called from the accept loops to signal an incoming connection.
      * @param device the connecting device.
      * @param conSocket the socket associated with the connection.
      * @return true if the connection is accepted, false otherwise.
@@ -244,58 +303,60 @@ public class ObexServerSockets {
     }
 
     /**
-     * Terminate any running accept threads
-     * @param block Set true to block the calling thread until the AcceptThreads
+     * Terminate any running accept loops
+     * @param block Set true to block the calling thread until the accept loops
      * has ended execution
      */
     public synchronized void shutdown(boolean block) {
         if (D) {
             Log.d(mTag, "shutdown(block = " + block + ")");
         }
-        if (mRfcommThread != null) {
-            mRfcommThread.shutdown();
+        if (mRfcommAcceptor != null) {
+            mRfcommAcceptor.shutdown();
         }
-        if (mL2capThread != null) {
-            mL2capThread.shutdown();
+        if (mL2capAcceptor != null) {
+            mL2capAcceptor.shutdown();
         }
         if (block) {
-            while (mRfcommThread != null || mL2capThread != null) {
+            while (mRfcommAcceptor != null || mL2capAcceptor != null) {
                 try {
-                    if (mRfcommThread != null) {
-                        mRfcommThread.join();
-                        mRfcommThread = null;
+                    if (mRfcommAcceptor != null) {
+                        mRfcommAcceptor.awaitTermination();
+                        mRfcommAcceptor = null;
                     }
-                    if (mL2capThread != null) {
-                        mL2capThread.join();
-                        mL2capThread = null;
+                    if (mL2capAcceptor != null) {
+                        mL2capAcceptor.awaitTermination();
+                        mL2capAcceptor = null;
                     }
                 } catch (InterruptedException e) {
                     Log.i(mTag, "shutdown() interrupted, continue waiting...", e);
                 }
             }
         } else {
-            mRfcommThread = null;
-            mL2capThread = null;
+            mRfcommAcceptor = null;
+            mL2capAcceptor = null;
         }
     }
 
     /**
-     * A thread that runs in the background waiting for remote an incoming
-     * connect. Once a remote socket connects, this thread will be
-     * shutdown. When the remote disconnect, this thread shall be restarted to
-     * accept a new connection.
+     * An accept loop that runs on the shared accept threads waiting for remote incoming
+     * connects. Each accepted connection is handed to the {@link IObexConnectionHandler}, and the
+     * loop keeps accepting connections until it is shutdown or the accept call fails.
      */
-    private class SocketAcceptThread extends Thread {
+    private class SocketAcceptor implements Runnable {
 
-        private boolean mStopped = false;
+        private volatile boolean mStopped = false;
         private final BluetoothServerSocket mServerSocket;
+        private final CountDownLatch mTerminated = new CountDownLatch(1);
+        // The pool thread running the accept loop, null when it is not running
+        private Thread mThread;
 
         /**
-         * Create a SocketAcceptThread
+         * Create a SocketAcceptor
          * @param serverSocket shall never be null.
          * @throws IllegalArgumentException if {@code serverSocket} is null
          */
-        SocketAcceptThread(BluetoothServerSocket serverSocket) {
+        SocketAcceptor(BluetoothServerSocket serverSocket) {
             if (serverSocket == null) {
                 throw new IllegalArgumentException("serverSocket cannot be null");
             }
@@ -308,7 +369,11 @@ public class ObexServerSockets {
          */
         @Override
         public void run() {
+            synchronized (this) {
+                mThread = Thread.currentThread();
+            }
             try {
+                long listenStartMs = SystemClock.elapsedRealtime();
                 while (!mStopped) {
                     BluetoothSocket connSocket;
                     BluetoothDevice device;
@@ -319,9 +384,12 @@ public class ObexServerSockets {
                         }
 
                         connSocket = mServerSocket.accept();
+                        long acceptedMs = SystemClock.elapsedRealtime();
                         if (D) {
-                            Log.d(mTag, "Accepted socket connection from: " + mServerSocket);
+                            Log.d(mTag, "Accepted socket connection from: " + mServerSocket
+                                    + " after listening " + (acceptedMs - listenStartMs) + " ms");
                         }
+                        listenStartMs = acceptedMs;
 
                         if (connSocket == null) {
                             // TODO: Do we need a max error count, to avoid spinning?
@@ -343,6 +411,11 @@ public class ObexServerSockets {
                         /* Signal to the service that we have received an incoming connection.
                          */
                         boolean isValid = ObexServerSockets.this.onConnect(device, connSocket);
+                        if (D) {
+                            Log.d(mTag, "Connection " + (isValid ? "accepted" : "rejected")
+                                    + " in " + (SystemClock.elapsedRealtime() - acceptedMs)
+                                    + " ms");
+                        }
 
                         if (!isValid) {
                             /* Close connection if we already have a connection with another device
@@ -372,39 +445,51 @@ public class ObexServerSockets {
                 } // End while()
             } finally {
                 if (D) {
-                    Log.d(mTag, "AcceptThread ended for: " + mServerSocket);
+                    Log.d(mTag, "Accept loop ended for: " + mServerSocket);
+                }
+                synchronized (this) {
+                    mThread = null;
                 }
+                // Do not leave an interrupt from shutdown() to the next task of the pool thread
+                Thread.interrupted();
+                mTerminated.countDown();
             }
         }
 
         /**
-         * Shuts down the accept threads, and closes the ServerSockets, causing all related
+         * Shuts down the accept loop, and closes the ServerSocket, causing all related
          * BluetoothSockets to disconnect, hence do not call until all all accepted connections
          * are ready to be disconnected.
          */
-        public void shutdown() {
+        void shutdown() {
             if (!mStopped) {
                 mStopped = true;
                 // TODO: According to the documentation, this should not close the accepted
                 //       sockets - and that is true, but it closes the l2cap connections, and
                 //       therefore it implicitly also closes the accepted sockets...
+                // Closing the socket is what unblocks a pending accept call.
                 try {
                     mServerSocket.close();
                 } catch (IOException e) {
                     if (D) {
-                        Log.d(mTag, "Exception while thread shutdown:", e);
+                        Log.d(mTag, "Exception while acceptor shutdown:", e);
                     }
                 }
-            }
-            // If called from another thread, interrupt the thread
-            if (!Thread.currentThread().equals(this)) {
-                // TODO: Will this interrupt the thread if it is blocked in synchronized?
-                // Else: change to use InterruptableLock
-                if (D) {
-                    Log.d(mTag, "shutdown called from another thread - interrupt().");
+                // If running on another thread, interrupt it in case it is not blocked in accept
+                synchronized (this) {
+                    if (mThread != null && mThread != Thread.currentThread()) {
+                        if (D) {
+                            Log.d(mTag, "shutdown called from another thread - interrupt().");
+                        }
+                        mThread.interrupt();
+                    }
                 }
-                interrupt();
             }
         }
+
+        /** Blocks until the accept loop has ended */
+        void awaitTermination() throws InterruptedException {
+            mTerminated.await();
+        }
     }
 }
@@ -56,6 +56,8 @@ import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.MetricsLogger;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
+import com.android.bluetooth.btservice.ProfileDeviceRegistry;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
@@ -67,8 +69,6 @@ import com.android.modules.utils.SynchronousResultReceiver;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * Provides Bluetooth A2DP profile, as a service in the Bluetooth application.
@@ -96,10 +96,13 @@ public class A2dpService extends ProfileService {
     private A2dpCodecConfig mA2dpCodecConfig;
     private CompanionDeviceManager mCompanionDeviceManager;
 
-    @GuardedBy("mStateMachines")
+    // Guards the active device only, the state machines are created and removed under the
+    // lock of their device in mStateMachines
+    private final Object mActiveDeviceLock = new Object();
+    @GuardedBy("mActiveDeviceLock")
     private BluetoothDevice mActiveDevice;
-    private final ConcurrentMap<BluetoothDevice, A2dpStateMachine> mStateMachines =
-            new ConcurrentHashMap<>();
+    private final ProfileDeviceRegistry<A2dpStateMachine> mStateMachines =
+            new ProfileDeviceRegistry<>();
 
     // Protect setActiveDevice()/removeActiveDevice() so all invoked is handled sequentially
     private final Object mActiveSwitchingGuard = new Object();
@@ -155,7 +158,7 @@ public class A2dpService extends ProfileService {
         Log.i(TAG, "Max connected audio devices set to " + mMaxConnectedAudioDevices);
 
         // Step 3: Start handler thread for state machines
-        mStateMachines.clear();
+        mStateMachines.clear(sm -> {});
         mStateMachinesThread = new HandlerThread("A2dpService.StateMachines");
         mStateMachinesThread.start();
 
@@ -225,13 +228,10 @@ public class A2dpService extends ProfileService {
         mA2dpCodecConfig = null;
 
         // Step 4: Destroy state machines and stop handler thread
-        synchronized (mStateMachines) {
-            for (A2dpStateMachine sm : mStateMachines.values()) {
-                sm.doQuit();
-                sm.cleanup();
-            }
-            mStateMachines.clear();
-        }
+        mStateMachines.clear(sm -> {
+            sm.doQuit();
+            sm.cleanup();
+        });
 
         if (mStateMachinesThread != null) {
             try {
@@ -292,26 +292,27 @@ public class A2dpService extends ProfileService {
             return false;
         }
 
-        synchronized (mStateMachines) {
-            if (!connectionAllowedCheckMaxDevices(device)) {
-                // when mMaxConnectedAudioDevices is one, disconnect current device first.
-                if (mMaxConnectedAudioDevices == 1) {
-                    List<BluetoothDevice> sinks = getDevicesMatchingConnectionStates(
-                            new int[] {BluetoothProfile.STATE_CONNECTED,
-                                    BluetoothProfile.STATE_CONNECTING,
-                                    BluetoothProfile.STATE_DISCONNECTING});
-                    for (BluetoothDevice sink : sinks) {
-                        if (sink.equals(device)) {
-                            Log.w(TAG, "Connecting to device " + device + " : disconnect skipped");
-                            continue;
-                        }
-                        disconnect(sink);
+        if (!connectionAllowedCheckMaxDevices(device)) {
+            // when mMaxConnectedAudioDevices is one, disconnect current device first.
+            if (mMaxConnectedAudioDevices == 1) {
+                List<BluetoothDevice> sinks = getDevicesMatchingConnectionStates(
+                        new int[] {BluetoothProfile.STATE_CONNECTED,
+                                BluetoothProfile.STATE_CONNECTING,
+                                BluetoothProfile.STATE_DISCONNECTING});
+                for (BluetoothDevice sink : sinks) {
+                    if (sink.equals(device)) {
+                        Log.w(TAG, "Connecting to device " + device + " : disconnect skipped");
+                        continue;
                     }
-                } else {
-                    Log.e(TAG, "Cannot connect to " + device + " : too many connected devices");
-                    return false;
+                    disconnect(sink);
                 }
+            } else {
+                Log.e(TAG, "Cannot connect to " + device + " : too many connected devices");
+                return false;
             }
+        }
+        // Under the device lock, so that the state machine is not removed before it is told
+        return mStateMachines.withDeviceLock(device, () -> {
             A2dpStateMachine smConnect = getOrCreateStateMachine(device);
             if (smConnect == null) {
                 Log.e(TAG, "Cannot connect to " + device + " : no state machine");
@@ -319,7 +320,7 @@ public class A2dpService extends ProfileService {
             }
             smConnect.sendMessage(A2dpStateMachine.CONNECT);
             return true;
-        }
+        });
     }
 
     /**
@@ -333,7 +334,7 @@ public class A2dpService extends ProfileService {
             Log.d(TAG, "disconnect(): " + device);
         }
 
-        synchronized (mStateMachines) {
+        return mStateMachines.withDeviceLock(device, () -> {
             A2dpStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
                 Log.e(TAG, "Ignored disconnect request for " + device + " : no state machine");
@@ -341,19 +342,17 @@ public class A2dpService extends ProfileService {
             }
             sm.sendMessage(A2dpStateMachine.DISCONNECT);
             return true;
-        }
+        });
     }
 
     public List<BluetoothDevice> getConnectedDevices() {
-        synchronized (mStateMachines) {
-            List<BluetoothDevice> devices = new ArrayList<>();
-            for (A2dpStateMachine sm : mStateMachines.values()) {
-                if (sm.isConnected()) {
-                    devices.add(sm.getDevice());
-                }
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (A2dpStateMachine sm : mStateMachines.values()) {
+            if (sm.isConnected()) {
+                devices.add(sm.getDevice());
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -366,19 +365,17 @@ public class A2dpService extends ProfileService {
     private boolean connectionAllowedCheckMaxDevices(BluetoothDevice device) {
         int connected = 0;
         // Count devices that are in the process of connecting or already connected
-        synchronized (mStateMachines) {
-            for (A2dpStateMachine sm : mStateMachines.values()) {
-                switch (sm.getConnectionState()) {
-                    case BluetoothProfile.STATE_CONNECTING:
-                    case BluetoothProfile.STATE_CONNECTED:
-                        if (Objects.equals(device, sm.getDevice())) {
-                            return true;    // Already connected or accounted for
-                        }
-                        connected++;
-                        break;
-                    default:
-                        break;
-                }
+        for (A2dpStateMachine sm : mStateMachines.values()) {
+            switch (sm.getConnectionState()) {
+                case BluetoothProfile.STATE_CONNECTING:
+                case BluetoothProfile.STATE_CONNECTED:
+                    if (Objects.equals(device, sm.getDevice())) {
+                        return true;    // Already connected or accounted for
+                    }
+                    connected++;
+                    break;
+                default:
+                    break;
             }
         }
         return (connected < mMaxConnectedAudioDevices);
@@ -442,26 +439,24 @@ public class A2dpService extends ProfileService {
         if (bondedDevices == null) {
             return devices;
         }
-        synchronized (mStateMachines) {
-            for (BluetoothDevice device : bondedDevices) {
-                if (!Utils.arrayContains(mAdapterService.getRemoteUuids(device),
-                                                 BluetoothUuid.A2DP_SINK)) {
-                    continue;
-                }
-                int connectionState = BluetoothProfile.STATE_DISCONNECTED;
-                A2dpStateMachine sm = mStateMachines.get(device);
-                if (sm != null) {
-                    connectionState = sm.getConnectionState();
-                }
-                for (int state : states) {
-                    if (connectionState == state) {
-                        devices.add(device);
-                        break;
-                    }
+        for (BluetoothDevice device : bondedDevices) {
+            if (!Utils.arrayContains(mAdapterService.getRemoteUuids(device),
+                                             BluetoothUuid.A2DP_SINK)) {
+                continue;
+            }
+            int connectionState = BluetoothProfile.STATE_DISCONNECTED;
+            A2dpStateMachine sm = mStateMachines.get(device);
+            if (sm != null) {
+                connectionState = sm.getConnectionState();
+            }
+            for (int state : states) {
+                if (connectionState == state) {
+                    devices.add(device);
+                    break;
                 }
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -472,22 +467,18 @@ public class A2dpService extends ProfileService {
     @VisibleForTesting
     List<BluetoothDevice> getDevices() {
         List<BluetoothDevice> devices = new ArrayList<>();
-        synchronized (mStateMachines) {
-            for (A2dpStateMachine sm : mStateMachines.values()) {
-                devices.add(sm.getDevice());
-            }
-            return devices;
+        for (A2dpStateMachine sm : mStateMachines.values()) {
+            devices.add(sm.getDevice());
         }
+        return devices;
     }
 
     public int getConnectionState(BluetoothDevice device) {
-        synchronized (mStateMachines) {
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return BluetoothProfile.STATE_DISCONNECTED;
-            }
-            return sm.getConnectionState();
+        A2dpStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
         }
+        return sm.getConnectionState();
     }
 
     /**
@@ -499,7 +490,7 @@ public class A2dpService extends ProfileService {
     public boolean removeActiveDevice(boolean stopAudio) {
         synchronized (mActiveSwitchingGuard) {
             BluetoothDevice previousActiveDevice = null;
-            synchronized (mStateMachines) {
+            synchronized (mActiveDeviceLock) {
                 if (mActiveDevice == null) return true;
                 previousActiveDevice = mActiveDevice;
             }
@@ -512,7 +503,7 @@ public class A2dpService extends ProfileService {
             mAudioManager.handleBluetoothActiveDeviceChanged(null, previousActiveDevice,
                     BluetoothProfileConnectionInfo.createA2dpInfo(!stopAudio, -1));
 
-            synchronized (mStateMachines) {
+            synchronized (mActiveDeviceLock) {
                 // Make sure the Active device in native layer is set to null and audio is off
                 if (!mA2dpNativeInterface.setActiveDevice(null)) {
                     Log.w(TAG, "setActiveDevice(null): Cannot remove active device in native "
@@ -536,9 +527,10 @@ public class A2dpService extends ProfileService {
         if (DBG) {
             Log.d(TAG, "setSilenceMode(" + device + "): " + silence);
         }
-        if (silence && Objects.equals(mActiveDevice, device)) {
+        BluetoothDevice activeDevice = getActiveDevice();
+        if (silence && Objects.equals(activeDevice, device)) {
             removeActiveDevice(true);
-        } else if (!silence && mActiveDevice == null) {
+        } else if (!silence && activeDevice == null) {
             // Set the device as the active device if currently no active device.
             setActiveDevice(device);
         }
@@ -564,7 +556,7 @@ public class A2dpService extends ProfileService {
         synchronized (mActiveSwitchingGuard) {
             A2dpStateMachine sm = null;
             BluetoothDevice previousActiveDevice = null;
-            synchronized (mStateMachines) {
+            synchronized (mActiveDeviceLock) {
                 if (Objects.equals(device, mActiveDevice)) {
                     Log.i(TAG, "setActiveDevice(" + device + "): current is " + mActiveDevice
                             + " no changed");
@@ -598,7 +590,7 @@ public class A2dpService extends ProfileService {
             updateLowLatencyAudioSupport(device);
 
             BluetoothDevice newActiveDevice = null;
-            synchronized (mStateMachines) {
+            synchronized (mActiveDeviceLock) {
                 if (!mA2dpNativeInterface.setActiveDevice(device)) {
                     Log.e(TAG, "setActiveDevice(" + device + "): Cannot set as active in native "
                             + "layer");
@@ -637,13 +629,13 @@ public class A2dpService extends ProfileService {
      * @return the active device or null if no device is active
      */
     public BluetoothDevice getActiveDevice() {
-        synchronized (mStateMachines) {
+        synchronized (mActiveDeviceLock) {
             return mActiveDevice;
         }
     }
 
     private boolean isActiveDevice(BluetoothDevice device) {
-        synchronized (mStateMachines) {
+        synchronized (mActiveDeviceLock) {
             return (device != null) && Objects.equals(device, mActiveDevice);
         }
     }
@@ -719,13 +711,11 @@ public class A2dpService extends ProfileService {
         if (DBG) {
             Log.d(TAG, "isA2dpPlaying(" + device + ")");
         }
-        synchronized (mStateMachines) {
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return false;
-            }
-            return sm.isPlaying();
+        A2dpStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return false;
         }
+        return sm.isPlaying();
     }
 
     /**
@@ -740,19 +730,17 @@ public class A2dpService extends ProfileService {
         if (DBG) {
             Log.d(TAG, "getCodecStatus(" + device + ")");
         }
-        synchronized (mStateMachines) {
-            if (device == null) {
-                device = mActiveDevice;
-            }
-            if (device == null) {
-                return null;
-            }
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm != null) {
-                return sm.getCodecStatus();
-            }
+        if (device == null) {
+            device = getActiveDevice();
+        }
+        if (device == null) {
             return null;
         }
+        A2dpStateMachine sm = mStateMachines.get(device);
+        if (sm != null) {
+            return sm.getCodecStatus();
+        }
+        return null;
     }
 
     /**
@@ -947,8 +935,8 @@ public class A2dpService extends ProfileService {
     void messageFromNative(A2dpStackEvent stackEvent) {
         Objects.requireNonNull(stackEvent.device,
                                "Device should never be null, event: " + stackEvent);
-        synchronized (mStateMachines) {
-            BluetoothDevice device = stackEvent.device;
+        BluetoothDevice device = stackEvent.device;
+        mStateMachines.runWithDeviceLock(device, () -> {
             A2dpStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
                 if (stackEvent.type == A2dpStackEvent.EVENT_TYPE_CONNECTION_STATE_CHANGED) {
@@ -973,7 +961,7 @@ public class A2dpService extends ProfileService {
                 return;
             }
             sm.sendMessage(A2dpStateMachine.STACK_EVENT, stackEvent);
-        }
+        });
     }
 
     /**
@@ -1027,11 +1015,7 @@ public class A2dpService extends ProfileService {
             Log.e(TAG, "getOrCreateStateMachine failed: device cannot be null");
             return null;
         }
-        synchronized (mStateMachines) {
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm != null) {
-                return sm;
-            }
+        return mStateMachines.getOrCreate(device, d -> {
             // Limit the maximum number of state machines to avoid DoS attack
             if (mStateMachines.size() >= MAX_A2DP_STATE_MACHINES) {
                 Log.e(TAG, "Maximum number of A2DP state machines reached: "
@@ -1039,13 +1023,11 @@ public class A2dpService extends ProfileService {
                 return null;
             }
             if (DBG) {
-                Log.d(TAG, "Creating a new state machine for " + device);
+                Log.d(TAG, "Creating a new state machine for " + d);
             }
-            sm = A2dpStateMachine.make(device, this, mA2dpNativeInterface,
-                                       mStateMachinesThread.getLooper());
-            mStateMachines.put(device, sm);
-            return sm;
-        }
+            return A2dpStateMachine.make(d, this, mA2dpNativeInterface,
+                                         mStateMachinesThread.getLooper());
+        });
     }
 
     // This needs to run before any of the Audio Manager connection functions since
@@ -1060,7 +1042,7 @@ public class A2dpService extends ProfileService {
         if (mFactory.getAvrcpTargetService() != null) {
             mFactory.getAvrcpTargetService().volumeDeviceSwitched(device);
         }
-        synchronized (mStateMachines) {
+        synchronized (mActiveDeviceLock) {
             mActiveDevice = device;
         }
 
@@ -1071,8 +1053,9 @@ public class A2dpService extends ProfileService {
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
                         | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-        Utils.sendBroadcast(this, intent, BLUETOOTH_CONNECT,
-                Utils.getTempAllowlistBroadcastOptions());
+        ProfileBroadcastDispatcher.getInstance().dispatch(device, intent,
+                i -> Utils.sendBroadcast(this, i, BLUETOOTH_CONNECT,
+                        Utils.getTempAllowlistBroadcastOptions()));
     }
 
     private void broadcastCodecConfig(BluetoothDevice device, BluetoothCodecStatus codecStatus) {
@@ -1084,8 +1067,9 @@ public class A2dpService extends ProfileService {
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
                         | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-        Utils.sendBroadcast(this, intent, BLUETOOTH_CONNECT,
-                Utils.getTempAllowlistBroadcastOptions());
+        ProfileBroadcastDispatcher.getInstance().dispatch(device, intent,
+                i -> Utils.sendBroadcast(this, i, BLUETOOTH_CONNECT,
+                        Utils.getTempAllowlistBroadcastOptions()));
     }
 
     private class BondStateChangedReceiver extends BroadcastReceiver {
@@ -1120,7 +1104,7 @@ public class A2dpService extends ProfileService {
         if (bondState != BluetoothDevice.BOND_NONE) {
             return;
         }
-        synchronized (mStateMachines) {
+        mStateMachines.runWithDeviceLock(device, () -> {
             A2dpStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
                 return;
@@ -1128,25 +1112,22 @@ public class A2dpService extends ProfileService {
             if (sm.getConnectionState() != BluetoothProfile.STATE_DISCONNECTED) {
                 return;
             }
-        }
-        if (mFactory.getAvrcpTargetService() != null) {
-            mFactory.getAvrcpTargetService().removeStoredVolumeForDevice(device);
-        }
-        removeStateMachine(device);
+            if (mFactory.getAvrcpTargetService() != null) {
+                mFactory.getAvrcpTargetService().removeStoredVolumeForDevice(device);
+            }
+            removeStateMachine(device);
+        });
     }
 
     private void removeStateMachine(BluetoothDevice device) {
-        synchronized (mStateMachines) {
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                Log.w(TAG, "removeStateMachine: device " + device
-                        + " does not have a state machine");
-                return;
-            }
+        boolean removed = mStateMachines.remove(device, sm -> {
             Log.i(TAG, "removeStateMachine: removing state machine for device: " + device);
             sm.doQuit();
             sm.cleanup();
-            mStateMachines.remove(device);
+        });
+        if (!removed) {
+            Log.w(TAG, "removeStateMachine: device " + device
+                    + " does not have a state machine");
         }
     }
 
@@ -1162,19 +1143,17 @@ public class A2dpService extends ProfileService {
         boolean supportsOptional = false;
         boolean hasMandatoryCodec = false;
 
-        synchronized (mStateMachines) {
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return;
-            }
-            BluetoothCodecStatus codecStatus = sm.getCodecStatus();
-            if (codecStatus != null) {
-                for (BluetoothCodecConfig config : codecStatus.getCodecsSelectableCapabilities()) {
-                    if (config.isMandatoryCodec()) {
-                        hasMandatoryCodec = true;
-                    } else {
-                        supportsOptional = true;
-                    }
+        A2dpStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return;
+        }
+        BluetoothCodecStatus codecStatus = sm.getCodecStatus();
+        if (codecStatus != null) {
+            for (BluetoothCodecConfig config : codecStatus.getCodecsSelectableCapabilities()) {
+                if (config.isMandatoryCodec()) {
+                    hasMandatoryCodec = true;
+                } else {
+                    supportsOptional = true;
                 }
             }
         }
@@ -1215,25 +1194,23 @@ public class A2dpService extends ProfileService {
      */
     @VisibleForTesting
     public void updateLowLatencyAudioSupport(BluetoothDevice device) {
-        synchronized (mStateMachines) {
-            A2dpStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return;
-            }
-            BluetoothCodecStatus codecStatus = sm.getCodecStatus();
-            boolean lowLatencyAudioAllow = false;
-            BluetoothCodecConfig lowLatencyCodec = new BluetoothCodecConfig.Builder()
-                    .setCodecType(SOURCE_CODEC_TYPE_OPUS) // remove in U
-                    .build();
-
-            if (codecStatus != null
-                    && codecStatus.isCodecConfigSelectable(lowLatencyCodec)
-                    && getOptionalCodecsEnabled(device)
-                            == BluetoothA2dp.OPTIONAL_CODECS_PREF_ENABLED) {
-                lowLatencyAudioAllow = true;
-            }
-            mAdapterService.allowLowLatencyAudio(lowLatencyAudioAllow, device);
+        A2dpStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return;
+        }
+        BluetoothCodecStatus codecStatus = sm.getCodecStatus();
+        boolean lowLatencyAudioAllow = false;
+        BluetoothCodecConfig lowLatencyCodec = new BluetoothCodecConfig.Builder()
+                .setCodecType(SOURCE_CODEC_TYPE_OPUS) // remove in U
+                .build();
+
+        if (codecStatus != null
+                && codecStatus.isCodecConfigSelectable(lowLatencyCodec)
+                && getOptionalCodecsEnabled(device)
+                        == BluetoothA2dp.OPTIONAL_CODECS_PREF_ENABLED) {
+            lowLatencyAudioAllow = true;
         }
+        mAdapterService.allowLowLatencyAudio(lowLatencyAudioAllow, device);
     }
 
     void connectionStateChanged(BluetoothDevice device, int fromState, int toState) {
@@ -1645,6 +1622,7 @@ public class A2dpService extends ProfileService {
         } else {
             ProfileService.println(sb, "mA2dpCodecConfig: null");
         }
+        mStateMachines.dump(sb);
         for (A2dpStateMachine sm : mStateMachines.values()) {
             sm.dump(sb);
         }
@@ -1668,7 +1646,7 @@ public class A2dpService extends ProfileService {
      * @return the number of requests sent to the audio framework
      */
     public int sendPreferredAudioProfileChangeToAudioFramework() {
-        synchronized (mStateMachines) {
+        synchronized (mActiveDeviceLock) {
             if (mActiveDevice == null) {
                 Log.e(TAG, "sendPreferredAudioProfileChangeToAudioFramework: no active device");
                 return 0;
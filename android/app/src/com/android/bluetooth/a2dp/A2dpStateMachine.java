@@ -61,6 +61,7 @@ import android.util.Log;
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.MetricsLogger;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
@@ -736,8 +737,9 @@ final class A2dpStateMachine extends StateMachine {
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
                         | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
         mA2dpService.connectionStateChanged(mDevice, prevState, newState);
-        Utils.sendBroadcast(mA2dpService, intent, BLUETOOTH_CONNECT,
-                Utils.getTempAllowlistBroadcastOptions());
+        ProfileBroadcastDispatcher.getInstance().dispatchConnectionState(mDevice, intent,
+                i -> Utils.sendBroadcast(mA2dpService, i, BLUETOOTH_CONNECT,
+                        Utils.getTempAllowlistBroadcastOptions()));
     }
 
     private void broadcastAudioState(int newState, int prevState) {
@@ -748,8 +750,9 @@ final class A2dpStateMachine extends StateMachine {
         intent.putExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, prevState);
         intent.putExtra(BluetoothProfile.EXTRA_STATE, newState);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
-        Utils.sendBroadcast(mA2dpService, intent, BLUETOOTH_CONNECT,
-                Utils.getTempAllowlistBroadcastOptions());
+        ProfileBroadcastDispatcher.getInstance().dispatch(mDevice, intent,
+                i -> Utils.sendBroadcast(mA2dpService, i, BLUETOOTH_CONNECT,
+                        Utils.getTempAllowlistBroadcastOptions()));
     }
 
     @Override
@@ -110,7 +110,7 @@ public class AvrcpCoverArtService {
     private boolean startBipServer() {
         debug("Starting BIP OBEX server");
         synchronized (mServerLock) {
-            mServerSockets = ObexServerSockets.create(mAcceptThread);
+            mServerSockets = ObexServerSockets.create(mAcceptThread, "BIP");
             if (mServerSockets == null) {
                 error("Failed to get a server socket. Can't setup cover art service");
                 return false;
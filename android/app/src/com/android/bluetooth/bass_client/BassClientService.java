@@ -46,6 +46,7 @@ import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.sysprop.BluetoothProperties;
 import android.util.Log;
 import android.util.Pair;
@@ -60,6 +61,7 @@ import com.android.bluetooth.le_audio.LeAudioService;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -80,7 +82,10 @@ public class BassClientService extends ProfileService {
 
     private final Map<BluetoothDevice, BassClientStateMachine> mStateMachines = new HashMap<>();
     private final Object mSearchScanCallbackLock = new Object();
-    private final Map<Integer, ScanResult> mScanBroadcasts = new HashMap<>();
+    private final BroadcastSourceCache mScanBroadcasts = new BroadcastSourceCache(
+            BassConstants.MAX_SCANNED_BROADCAST_SOURCES,
+            BassConstants.SCANNED_BROADCAST_SOURCE_TIMEOUT_MS,
+            this::onScannedSourceEvicted);
 
     private final Map<BluetoothDevice, List<Pair<Integer, Object>>> mPendingGroupOp =
             new ConcurrentHashMap<>();
@@ -88,6 +93,7 @@ public class BassClientService extends ProfileService {
             new ConcurrentHashMap<>();
 
     private HandlerThread mStateMachinesThread;
+    private Handler mStateMachinesHandler;
     private HandlerThread mCallbackHandlerThread;
     private AdapterService mAdapterService;
     private DatabaseManager mDatabaseManager;
@@ -101,6 +107,8 @@ public class BassClientService extends ProfileService {
     private Map<BluetoothDevice, Integer> mDeviceToSyncHandleMap;
     /*syncHandle, parsed BaseData data*/
     private Map<Integer, BaseData> mSyncHandleToBaseDataMap;
+    /*syncHandle, raw BASE the cached BaseData was parsed from*/
+    private Map<Integer, byte[]> mSyncHandleToRawBaseMap;
     /*bcastSrcDevice, corresponding PeriodicAdvertisementResult*/
     private Map<BluetoothDevice, PeriodicAdvertisementResult> mPeriodicAdvertisementResultMap;
     private ScanCallback mSearchScanCallback;
@@ -194,12 +202,72 @@ public class BassClientService extends ProfileService {
     }
 
     void updateBase(int syncHandlemap, BaseData base) {
+        updateBase(syncHandlemap, base, null);
+    }
+
+    void updateBase(int syncHandlemap, BaseData base, byte[] rawBase) {
         if (mSyncHandleToBaseDataMap == null) {
             Log.e(TAG, "updateBase: mSyncHandleToBaseDataMap is null");
             return;
         }
         log("updateBase : mSyncHandleToBaseDataMap>>");
         mSyncHandleToBaseDataMap.put(syncHandlemap, base);
+        if (rawBase != null) {
+            mSyncHandleToRawBaseMap.put(syncHandlemap, rawBase);
+        } else {
+            mSyncHandleToRawBaseMap.remove(syncHandlemap);
+        }
+    }
+
+    /**
+     * Returns the BaseData already parsed for this sync handle if it was parsed from the same
+     * raw BASE, so that all sinks synced to one source share a single parsed copy.
+     */
+    BaseData getBaseIfUnchanged(int syncHandlemap, byte[] rawBase) {
+        if (mSyncHandleToBaseDataMap == null || rawBase == null) {
+            return null;
+        }
+        if (!Arrays.equals(mSyncHandleToRawBaseMap.get(syncHandlemap), rawBase)) {
+            return null;
+        }
+        return mSyncHandleToBaseDataMap.get(syncHandlemap);
+    }
+
+    private void onScannedSourceEvicted(int broadcastId, ScanResult result) {
+        // Called on the scan callback thread, while the periodic advertising data is updated
+        // by the state machines: drop it on their thread.
+        Handler handler = mStateMachinesHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.post(() -> removeScannedSource(broadcastId, result.getDevice()));
+    }
+
+    private void removeScannedSource(int broadcastId, BluetoothDevice srcDevice) {
+        log("removeScannedSource: broadcastId " + broadcastId + ", device " + srcDevice);
+        if (mActiveSourceMap == null || mPeriodicAdvertisementResultMap == null) {
+            return;
+        }
+        if (mActiveSourceMap.containsValue(srcDevice)) {
+            // Still synced by a sink, keep its periodic advertising data
+            return;
+        }
+        PeriodicAdvertisementResult paRes = mPeriodicAdvertisementResultMap.get(srcDevice);
+        if (paRes == null || paRes.getBroadcastId() != broadcastId) {
+            return;
+        }
+        // Do not leave a sync requested to this source behind once its handle is forgotten
+        synchronized (mStateMachines) {
+            for (BassClientStateMachine sm : mStateMachines.values()) {
+                sm.cancelPendingSync(srcDevice);
+            }
+        }
+        mPeriodicAdvertisementResultMap.remove(srcDevice);
+        Integer syncHandle = mDeviceToSyncHandleMap.remove(srcDevice);
+        if (syncHandle != null) {
+            mSyncHandleToBaseDataMap.remove(syncHandle);
+            mSyncHandleToRawBaseMap.remove(syncHandle);
+        }
     }
 
     BaseData getBase(int syncHandlemap) {
@@ -254,6 +322,7 @@ public class BassClientService extends ProfileService {
         mStateMachines.clear();
         mStateMachinesThread = new HandlerThread("BassClientService.StateMachines");
         mStateMachinesThread.start();
+        mStateMachinesHandler = new Handler(mStateMachinesThread.getLooper());
         mCallbackHandlerThread = new HandlerThread(TAG);
         mCallbackHandlerThread.start();
         mCallbacks = new Callbacks(mCallbackHandlerThread.getLooper());
@@ -294,6 +363,7 @@ public class BassClientService extends ProfileService {
         mPeriodicAdvertisementResultMap = new HashMap<BluetoothDevice,
                 PeriodicAdvertisementResult>();
         mSyncHandleToBaseDataMap = new HashMap<Integer, BaseData>();
+        mSyncHandleToRawBaseMap = new HashMap<Integer, byte[]>();
         mActiveSourceMap = new HashMap<BluetoothDevice, BluetoothDevice>();
         mSearchScanCallback = null;
         return true;
@@ -314,6 +384,10 @@ public class BassClientService extends ProfileService {
             mCallbackHandlerThread.quitSafely();
             mCallbackHandlerThread = null;
         }
+        if (mStateMachinesHandler != null) {
+            mStateMachinesHandler.removeCallbacksAndMessages(null);
+            mStateMachinesHandler = null;
+        }
         if (mStateMachinesThread != null) {
             mStateMachinesThread.quitSafely();
             mStateMachinesThread = null;
@@ -333,10 +407,19 @@ public class BassClientService extends ProfileService {
             mPeriodicAdvertisementResultMap.clear();
             mPeriodicAdvertisementResultMap = null;
         }
+        if (mSyncHandleToBaseDataMap != null) {
+            mSyncHandleToBaseDataMap.clear();
+            mSyncHandleToBaseDataMap = null;
+        }
+        if (mSyncHandleToRawBaseMap != null) {
+            mSyncHandleToRawBaseMap.clear();
+            mSyncHandleToRawBaseMap = null;
+        }
         if (mActiveSourceMap != null) {
             mActiveSourceMap.clear();
             mActiveSourceMap = null;
         }
+        mScanBroadcasts.clear();
         if (mPendingGroupOp != null) {
             mPendingGroupOp.clear();
         }
@@ -930,12 +1013,10 @@ public class BassClientService extends ProfileService {
                     }
                     log( "Broadcast Source Found:" + result.getDevice());
                     byte[] broadcastIdArray = listOfUuids.get(BassConstants.BAAS_UUID);
-                    int broadcastId = (int)(((broadcastIdArray[2] & 0xff) << 16)
-                            | ((broadcastIdArray[1] & 0xff) << 8)
-                            | (broadcastIdArray[0] & 0xff));
-                    if (mScanBroadcasts.get(broadcastId) == null) {
+                    int broadcastId = BassUtils.parseBroadcastId(broadcastIdArray);
+                    if (mScanBroadcasts.update(
+                            broadcastId, result, SystemClock.elapsedRealtime())) {
                         log("selectBroadcastSource: broadcastId " + broadcastId);
-                        mScanBroadcasts.put(broadcastId, result);
                         synchronized (mStateMachines) {
                             for (BassClientStateMachine sm : mStateMachines.values()) {
                                 if (sm.isConnected()) {
@@ -298,10 +298,16 @@ public class BassClientStateMachine extends StateMachine {
 
     void parseBaseData(BluetoothDevice device, int syncHandle, byte[] serviceData) {
         log("parseBaseData" + Arrays.toString(serviceData));
-        BaseData base = BaseData.parseBaseData(serviceData);
+        // The same BASE is reported to every sink synced to this source, parse it once
+        BaseData base = mService.getBaseIfUnchanged(syncHandle, serviceData);
+        if (base == null) {
+            base = BaseData.parseBaseData(serviceData);
+            if (base != null) {
+                mService.updateBase(syncHandle, base, serviceData);
+                base.print();
+            }
+        }
         if (base != null) {
-            mService.updateBase(syncHandle, base);
-            base.print();
             if (mAutoTriggered) {
                 // successful auto periodic synchrnization with source
                 log("auto triggered assist");
@@ -457,6 +463,25 @@ public class BassClientStateMachine extends StateMachine {
         mNoStopScanOffload = false;
     }
 
+    /**
+     * Terminates the periodic advertising sync requested to the given source if it is not
+     * established yet. An established sync is tracked as the active synced source instead.
+     */
+    void cancelPendingSync(BluetoothDevice srcDevice) {
+        if (mScanRes == null || !mScanRes.getDevice().equals(srcDevice)
+                || mService.getActiveSyncedSource(mDevice) != null) {
+            return;
+        }
+        log("cancelPendingSync: sourceDev = " + srcDevice);
+        removeMessages(PSYNC_ACTIVE_TIMEOUT);
+        try {
+            mPeriodicAdvManager.unregisterSync(mPeriodicAdvCallback);
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "unregisterSync:IllegalArgumentException");
+        }
+        mScanRes = null;
+    }
+
     private BluetoothLeBroadcastMetadata getBroadcastMetadataFromBaseData(BaseData baseData,
             BluetoothDevice device) {
         return getBroadcastMetadataFromBaseData(baseData, device, false);
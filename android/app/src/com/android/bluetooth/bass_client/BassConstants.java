@@ -77,4 +77,8 @@ public class BassConstants {
     public static final int BCAST_NAME_AD_TYPE = 0x30;
     public static final int BCAST_NAME_LEN_MIN = 4;
     public static final int BCAST_NAME_LEN_MAX = 32;
+    // Maximum number of Broadcast Sources remembered while searching
+    public static final int MAX_SCANNED_BROADCAST_SOURCES = 64;
+    // Broadcast Sources not seen for 30 secs are dropped from the search results
+    public static final long SCANNED_BROADCAST_SOURCE_TIMEOUT_MS = 30000;
 }
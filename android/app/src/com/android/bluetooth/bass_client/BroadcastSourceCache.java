@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.bass_client;
+
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded table of the Broadcast Sources found while searching, keyed by Broadcast ID.
+ *
+ * <p>Sources that have not been seen for longer than the stale timeout are dropped first. When
+ * the table is still full, the source with the weakest RSSI is dropped, the least recently seen
+ * one winning ties, so that the strongest nearby sources are retained.
+ */
+class BroadcastSourceCache {
+    /** Notified for every source removed from the table because of eviction */
+    interface OnEvictedListener {
+        void onEvicted(int broadcastId, ScanResult result);
+    }
+
+    private final int mCapacity;
+    private final long mStaleTimeoutMs;
+    private final OnEvictedListener mListener;
+    /* broadcastId, last ScanResult; iteration order is least recently seen first */
+    private final LinkedHashMap<Integer, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static class Entry {
+        ScanResult mResult;
+        long mLastSeenMs;
+
+        Entry(ScanResult result, long lastSeenMs) {
+            mResult = result;
+            mLastSeenMs = lastSeenMs;
+        }
+    }
+
+    BroadcastSourceCache(int capacity, long staleTimeoutMs, OnEvictedListener listener) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mStaleTimeoutMs = staleTimeoutMs;
+        mListener = listener;
+    }
+
+    /**
+     * Records a sighting of a Broadcast Source.
+     *
+     * @param broadcastId Broadcast ID of the source
+     * @param result latest scan result for the source
+     * @param nowMs current time, in elapsed realtime milliseconds
+     * @return true if the source was not in the table and has been added
+     */
+    boolean update(int broadcastId, ScanResult result, long nowMs) {
+        List<Map.Entry<Integer, ScanResult>> evicted = new ArrayList<>();
+        boolean added;
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(broadcastId);
+            if (entry != null) {
+                entry.mResult = result;
+                entry.mLastSeenMs = nowMs;
+                return false;
+            }
+            removeStaleLocked(nowMs, evicted);
+            if (mEntries.size() >= mCapacity) {
+                Map.Entry<Integer, Entry> weakest = null;
+                for (Map.Entry<Integer, Entry> e : mEntries.entrySet()) {
+                    if (weakest == null
+                            || e.getValue().mResult.getRssi()
+                                    < weakest.getValue().mResult.getRssi()) {
+                        weakest = e;
+                    }
+                }
+                if (weakest.getValue().mResult.getRssi() > result.getRssi()) {
+                    // Weaker than everything we already track, keep the table as is
+                    added = false;
+                } else {
+                    mEntries.remove(weakest.getKey());
+                    evicted.add(Map.entry(weakest.getKey(), weakest.getValue().mResult));
+                    added = true;
+                }
+            } else {
+                added = true;
+            }
+            if (added) {
+                mEntries.put(broadcastId, new Entry(result, nowMs));
+            }
+        }
+        notifyEvicted(evicted);
+        return added;
+    }
+
+    /** Returns the latest scan result for the given Broadcast ID, or null if unknown */
+    ScanResult get(int broadcastId) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(broadcastId);
+            return entry == null ? null : entry.mResult;
+        }
+    }
+
+    /** Drops every source without notifying the eviction listener */
+    void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    private void removeStaleLocked(long nowMs, List<Map.Entry<Integer, ScanResult>> evicted) {
+        Iterator<Map.Entry<Integer, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Entry> e = it.next();
+            if (nowMs - e.getValue().mLastSeenMs > mStaleTimeoutMs) {
+                evicted.add(Map.entry(e.getKey(), e.getValue().mResult));
+                it.remove();
+            }
+        }
+    }
+
+    private void notifyEvicted(List<Map.Entry<Integer, ScanResult>> evicted) {
+        if (mListener == null) {
+            return;
+        }
+        for (Map.Entry<Integer, ScanResult> e : evicted) {
+            mListener.onEvicted(e.getKey(), e.getValue());
+        }
+    }
+}
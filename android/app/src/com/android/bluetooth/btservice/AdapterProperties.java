@@ -1156,6 +1156,10 @@ class AdapterProperties {
             Intent intent;
             if (state == AbstractionLayer.BT_DISCOVERY_STOPPED) {
                 mDiscovering = false;
+                if (mRemoteDevices != null) {
+                    // Deliver the devices found before the end of the discovery
+                    mRemoteDevices.discoveryStoppedCallback();
+                }
                 mService.clearDiscoveringPackages();
                 mDiscoveryEndMs = System.currentTimeMillis();
                 intent = new Intent(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
@@ -194,6 +194,7 @@ public class AdapterService extends Service {
     private final ArrayList<String> mStartedProfiles = new ArrayList<>();
     private final ArrayList<ProfileService> mRegisteredProfiles = new ArrayList<>();
     private final ArrayList<ProfileService> mRunningProfiles = new ArrayList<>();
+    private final ProfileStartupTrace mProfileStartupTrace = new ProfileStartupTrace();
     private HashSet<String> mLeAudioAllowDevices = new HashSet<>();
     private boolean mLeAudioAllowListEnabled = false;
 
@@ -478,6 +479,8 @@ public class AdapterService extends Service {
                         return;
                     }
                     mRunningProfiles.add(profile);
+                    mProfileStartupTrace.onProfileStarted(profile.getClass(),
+                            SystemClock.elapsedRealtime());
                     // TODO(b/228875190): GATT is assumed supported. GATT starting triggers hardware
                     // initializtion. Configuring a device without GATT causes start up failures.
                     if (GattService.class.getSimpleName().equals(profile.getName())) {
@@ -873,6 +876,7 @@ public class AdapterService extends Service {
             updateUuids();
             mAdapterStateMachine.sendMessage(AdapterState.BREDR_STARTED);
         } else {
+            mProfileStartupTrace.begin(SystemClock.elapsedRealtime());
             setAllProfileServiceStates(supportedProfileServices, BluetoothAdapter.STATE_ON);
         }
     }
@@ -1246,6 +1250,7 @@ public class AdapterService extends Service {
     private void setProfileServiceState(Class service, int state) {
         if (state == BluetoothAdapter.STATE_ON) {
             mStartedProfiles.add(service.getSimpleName());
+            mProfileStartupTrace.onProfileRequested(service, SystemClock.elapsedRealtime());
         } else if (state == BluetoothAdapter.STATE_OFF) {
             mStartedProfiles.remove(service.getSimpleName());
         }
@@ -2304,6 +2309,36 @@ public class AdapterService extends Service {
             return service.startDiscovery(attributionSource);
         }
 
+        @Override
+        public void startBatchedDiscovery(AttributionSource source,
+                SynchronousResultReceiver receiver) {
+            try {
+                receiver.send(startBatchedDiscovery(source));
+            } catch (RuntimeException e) {
+                receiver.propagateException(e);
+            }
+        }
+        @RequiresPermission(allOf = {
+                android.Manifest.permission.BLUETOOTH_SCAN,
+                android.Manifest.permission.BLUETOOTH_PRIVILEGED,
+        })
+        private boolean startBatchedDiscovery(AttributionSource attributionSource) {
+            AdapterService service = getService();
+            if (service == null || !callerIsSystemOrActiveOrManagedUser(service, TAG,
+                    "startBatchedDiscovery")) {
+                return false;
+            }
+
+            if (!Utils.checkScanPermissionForDataDelivery(
+                    service, attributionSource, "Starting batched discovery.")) {
+                return false;
+            }
+
+            enforceBluetoothPrivilegedPermission(service);
+
+            return service.startDiscovery(attributionSource, true);
+        }
+
         @Override
         public void cancelDiscovery(AttributionSource source, SynchronousResultReceiver receiver) {
             try {
@@ -5184,6 +5219,16 @@ public class AdapterService extends Service {
     }
 
     boolean startDiscovery(AttributionSource attributionSource) {
+        return startDiscovery(attributionSource, false);
+    }
+
+    /**
+     * Starts discovery for the calling package
+     *
+     * @param isBatched whether the devices found are delivered to the package in
+     * {@link BluetoothDevice#ACTION_FOUND_BATCH} intents
+     */
+    boolean startDiscovery(AttributionSource attributionSource, boolean isBatched) {
         UserHandle callingUser = Binder.getCallingUserHandle();
         debugLog("startDiscovery");
         String callingPackage = attributionSource.getPackageName();
@@ -5211,8 +5256,11 @@ public class AdapterService extends Service {
         }
 
         synchronized (mDiscoveringPackages) {
-            mDiscoveringPackages.add(
-                    new DiscoveringPackage(callingPackage, permission, hasDisavowedLocation));
+            mDiscoveringPackages.add(new DiscoveringPackage(
+                    callingPackage, permission, hasDisavowedLocation, isBatched));
+        }
+        if (mRemoteDevices != null) {
+            mRemoteDevices.discoveryStartedCallback();
         }
         return startDiscoveryNative();
     }
@@ -6535,11 +6583,17 @@ public class AdapterService extends Service {
         mAdapterStateMachine.dump(fd, writer, args);
 
         StringBuilder sb = new StringBuilder();
+        mProfileStartupTrace.dump(sb);
+        ProfileBroadcastDispatcher.getInstance().dump(sb);
+        if (mBluetoothKeystoreService != null) {
+            mBluetoothKeystoreService.dump(sb);
+        }
         for (ProfileService profile : mRegisteredProfiles) {
             profile.dump(sb);
         }
         mSilenceDeviceManager.dump(fd, writer, args);
         mDatabaseManager.dump(writer);
+        mRemoteDevices.dump(writer);
 
         writer.write(sb.toString());
         writer.flush();
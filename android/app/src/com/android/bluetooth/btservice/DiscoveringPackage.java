@@ -23,12 +23,19 @@ final class DiscoveringPackage {
     private @NonNull String mPackageName;
     private @Nullable String mPermission;
     private boolean mHasDisavowedLocation;
+    private boolean mIsBatched;
 
     DiscoveringPackage(@NonNull String packageName, @Nullable String permission,
             boolean hasDisavowedLocation) {
+        this(packageName, permission, hasDisavowedLocation, false);
+    }
+
+    DiscoveringPackage(@NonNull String packageName, @Nullable String permission,
+            boolean hasDisavowedLocation, boolean isBatched) {
         mPackageName = packageName;
         mPermission = permission;
         mHasDisavowedLocation = hasDisavowedLocation;
+        mIsBatched = isBatched;
     }
 
     public @NonNull String getPackageName() {
@@ -42,4 +49,11 @@ final class DiscoveringPackage {
     public boolean hasDisavowedLocation() {
         return mHasDisavowedLocation;
     }
+
+    /**
+     * @return true if the devices found are delivered in {@code ACTION_FOUND_BATCH} intents
+     */
+    public boolean isBatched() {
+        return mIsBatched;
+    }
 }
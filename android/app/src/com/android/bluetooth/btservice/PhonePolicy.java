@@ -37,6 +37,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.DeviceConfig;
 import android.util.Log;
@@ -57,8 +58,11 @@ import com.android.bluetooth.pan.PanService;
 import com.android.bluetooth.vc.VolumeControlService;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 // Describes the phone policy
@@ -107,6 +111,26 @@ class PhonePolicy {
     // Timeouts
     @VisibleForTesting static int sConnectOtherProfilesTimeoutMillis = 6000; // 6s
 
+    // Order in which the other profiles of a device are connected
+    private static final int[] CONNECT_OTHER_PROFILES_ORDER = {
+            BluetoothProfile.HEADSET,
+            BluetoothProfile.A2DP,
+            BluetoothProfile.PAN,
+            BluetoothProfile.LE_AUDIO,
+            BluetoothProfile.CSIP_SET_COORDINATOR,
+            BluetoothProfile.VOLUME_CONTROL,
+            BluetoothProfile.BATTERY,
+            BluetoothProfile.HID_HOST,
+            BluetoothProfile.LE_AUDIO_BROADCAST_ASSISTANT,
+    };
+
+    // Profiles connected since the first profile of a device connected
+    private static final class ConnectionSession {
+        final long mStartTimeMillis = SystemClock.elapsedRealtime();
+        // Profile id to delay since mStartTimeMillis, in connection order
+        final Map<Integer, Long> mConnectedProfiles = new LinkedHashMap<>();
+    }
+
     private DatabaseManager mDatabaseManager;
     private final AdapterService mAdapterService;
     private final ServiceFactory mFactory;
@@ -114,6 +138,8 @@ class PhonePolicy {
     private final HashSet<BluetoothDevice> mHeadsetRetrySet = new HashSet<>();
     private final HashSet<BluetoothDevice> mA2dpRetrySet = new HashSet<>();
     private final HashSet<BluetoothDevice> mConnectOtherProfilesDeviceSet = new HashSet<>();
+    private final HashMap<BluetoothDevice, ConnectionSession> mConnectionSessions =
+            new HashMap<>();
     @VisibleForTesting boolean mAutoConnectProfilesSupported;
 
     // Broadcast receiver for all changes to states of various profiles
@@ -232,6 +258,7 @@ class PhonePolicy {
                 case MESSAGE_ADAPTER_STATE_TURNED_ON:
                     // Call auto connect when adapter switches state to ON
                     resetStates();
+                    mConnectionSessions.clear();
                     autoConnect();
                     break;
                 case MESSAGE_DEVICE_CONNECTED:
@@ -266,6 +293,7 @@ class PhonePolicy {
     protected void cleanup() {
         mAdapterService.unregisterReceiver(mReceiver);
         resetStates();
+        mConnectionSessions.clear();
     }
 
     PhonePolicy(AdapterService service, ServiceFactory factory) {
@@ -503,7 +531,10 @@ class PhonePolicy {
         }
     }
 
-    @RequiresPermission(android.Manifest.permission.BLUETOOTH_PRIVILEGED)
+    @RequiresPermission(allOf = {
+            android.Manifest.permission.BLUETOOTH_PRIVILEGED,
+            android.Manifest.permission.MODIFY_PHONE_STATE,
+    })
     private void processProfileStateChanged(BluetoothDevice device, int profileId, int nextState,
             int prevState) {
         debugLog("processProfileStateChanged, device=" + device + ", profile=" + profileId + ", "
@@ -522,6 +553,7 @@ class PhonePolicy {
                         mHeadsetRetrySet.remove(device);
                         break;
                 }
+                recordProfileConnected(device, profileId);
                 connectOtherProfile(device);
             }
             if (nextState == BluetoothProfile.STATE_DISCONNECTED) {
@@ -530,7 +562,9 @@ class PhonePolicy {
                         || prevState == BluetoothProfile.STATE_DISCONNECTING)) {
                     mDatabaseManager.setDisconnection(device);
                 }
-                handleAllProfilesDisconnected(device);
+                if (handleAllProfilesDisconnected(device)) {
+                    recordAllProfilesDisconnected(device);
+                }
             }
         }
     }
@@ -753,112 +787,215 @@ class PhonePolicy {
             return;
         }
 
-        HeadsetService hsService = mFactory.getHeadsetService();
-        A2dpService a2dpService = mFactory.getA2dpService();
-        PanService panService = mFactory.getPanService();
-        LeAudioService leAudioService = mFactory.getLeAudioService();
-        CsipSetCoordinatorService csipSetCooridnatorService =
-            mFactory.getCsipSetCoordinatorService();
-        VolumeControlService volumeControlService =
-            mFactory.getVolumeControlService();
-        BatteryService batteryService = mFactory.getBatteryService();
-        HidHostService hidHostService = mFactory.getHidHostService();
-        BassClientService bcService = mFactory.getBassClientService();
+        for (int profileId : CONNECT_OTHER_PROFILES_ORDER) {
+            connectProfileIfDisconnected(device, profileId);
+        }
+    }
 
-        if (hsService != null) {
-            if (!mHeadsetRetrySet.contains(device) && (hsService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (hsService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to Headset with device " + device);
-                mHeadsetRetrySet.add(device);
-                hsService.connect(device);
+    /**
+     * Connects the profile if it is allowed and disconnected for the device, and was not already
+     * retried for HFP and A2DP.
+     */
+    @RequiresPermission(allOf = {
+            android.Manifest.permission.BLUETOOTH_PRIVILEGED,
+            android.Manifest.permission.MODIFY_PHONE_STATE,
+    })
+    private void connectProfileIfDisconnected(BluetoothDevice device, int profileId) {
+        switch (profileId) {
+            case BluetoothProfile.HEADSET: {
+                HeadsetService hsService = mFactory.getHeadsetService();
+                if (hsService != null && !mHeadsetRetrySet.contains(device)
+                        && (hsService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (hsService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)) {
+                    debugLog("Retrying connection to Headset with device " + device);
+                    mHeadsetRetrySet.add(device);
+                    hsService.connect(device);
+                }
+                break;
             }
-        }
-        if (a2dpService != null) {
-            if (!mA2dpRetrySet.contains(device) && (a2dpService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (a2dpService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to A2DP with device " + device);
-                mA2dpRetrySet.add(device);
-                a2dpService.connect(device);
+            case BluetoothProfile.A2DP: {
+                A2dpService a2dpService = mFactory.getA2dpService();
+                if (a2dpService != null && !mA2dpRetrySet.contains(device)
+                        && (a2dpService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (a2dpService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)) {
+                    debugLog("Retrying connection to A2DP with device " + device);
+                    mA2dpRetrySet.add(device);
+                    a2dpService.connect(device);
+                }
+                break;
             }
-        }
-        if (panService != null) {
-            List<BluetoothDevice> panConnDevList = panService.getConnectedDevices();
-            // TODO: the panConnDevList.isEmpty() check below should be removed once
-            // Multi-PAN is supported.
-            if (panConnDevList.isEmpty() && (panService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (panService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to PAN with device " + device);
-                panService.connect(device);
+            case BluetoothProfile.PAN: {
+                PanService panService = mFactory.getPanService();
+                if (panService == null) {
+                    break;
+                }
+                List<BluetoothDevice> panConnDevList = panService.getConnectedDevices();
+                // TODO: the panConnDevList.isEmpty() check below should be removed once
+                // Multi-PAN is supported.
+                if (panConnDevList.isEmpty() && (panService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (panService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)) {
+                    debugLog("Retrying connection to PAN with device " + device);
+                    panService.connect(device);
+                }
+                break;
             }
-        }
-        if (leAudioService != null) {
-            List<BluetoothDevice> leAudioConnDevList = leAudioService.getConnectedDevices();
-            if (!leAudioConnDevList.contains(device) && (leAudioService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (leAudioService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)
-                    && mAdapterService.isLeAudioAllowed(device)) {
-                debugLog("Retrying connection to LEAudio with device " + device);
-                leAudioService.connect(device);
+            case BluetoothProfile.LE_AUDIO: {
+                LeAudioService leAudioService = mFactory.getLeAudioService();
+                if (leAudioService == null) {
+                    break;
+                }
+                List<BluetoothDevice> leAudioConnDevList = leAudioService.getConnectedDevices();
+                if (!leAudioConnDevList.contains(device)
+                        && (leAudioService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (leAudioService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)
+                        && mAdapterService.isLeAudioAllowed(device)) {
+                    debugLog("Retrying connection to LEAudio with device " + device);
+                    leAudioService.connect(device);
+                }
+                break;
             }
-        }
-        if (csipSetCooridnatorService != null) {
-            List<BluetoothDevice> csipConnDevList = csipSetCooridnatorService.getConnectedDevices();
-            if (!csipConnDevList.contains(device) && (csipSetCooridnatorService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (csipSetCooridnatorService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to CSIP with device " + device);
-                csipSetCooridnatorService.connect(device);
+            case BluetoothProfile.CSIP_SET_COORDINATOR: {
+                CsipSetCoordinatorService csipSetCooridnatorService =
+                        mFactory.getCsipSetCoordinatorService();
+                if (csipSetCooridnatorService == null) {
+                    break;
+                }
+                List<BluetoothDevice> csipConnDevList =
+                        csipSetCooridnatorService.getConnectedDevices();
+                if (!csipConnDevList.contains(device)
+                        && (csipSetCooridnatorService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (csipSetCooridnatorService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)) {
+                    debugLog("Retrying connection to CSIP with device " + device);
+                    csipSetCooridnatorService.connect(device);
+                }
+                break;
             }
-        }
-        if (volumeControlService != null) {
-            List<BluetoothDevice> vcConnDevList = volumeControlService.getConnectedDevices();
-            if (!vcConnDevList.contains(device) && (volumeControlService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (volumeControlService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to VCP with device " + device);
-                volumeControlService.connect(device);
+            case BluetoothProfile.VOLUME_CONTROL: {
+                VolumeControlService volumeControlService = mFactory.getVolumeControlService();
+                if (volumeControlService == null) {
+                    break;
+                }
+                List<BluetoothDevice> vcConnDevList = volumeControlService.getConnectedDevices();
+                if (!vcConnDevList.contains(device)
+                        && (volumeControlService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (volumeControlService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)) {
+                    debugLog("Retrying connection to VCP with device " + device);
+                    volumeControlService.connect(device);
+                }
+                break;
             }
-        }
-        if (batteryService != null) {
-            List<BluetoothDevice> connectedDevices = batteryService.getConnectedDevices();
-            if (!connectedDevices.contains(device) && (batteryService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (batteryService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to BAS with device " + device);
-                batteryService.connect(device);
+            case BluetoothProfile.BATTERY: {
+                BatteryService batteryService = mFactory.getBatteryService();
+                if (batteryService == null) {
+                    break;
+                }
+                List<BluetoothDevice> connectedDevices = batteryService.getConnectedDevices();
+                if (!connectedDevices.contains(device)
+                        && (batteryService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (batteryService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)) {
+                    debugLog("Retrying connection to BAS with device " + device);
+                    batteryService.connect(device);
+                }
+                break;
             }
-        }
-        if (hidHostService != null) {
-            if ((hidHostService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (hidHostService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to HID with device " + device);
-                hidHostService.connect(device);
+            case BluetoothProfile.HID_HOST: {
+                HidHostService hidHostService = mFactory.getHidHostService();
+                if (hidHostService != null && (hidHostService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (hidHostService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)) {
+                    debugLog("Retrying connection to HID with device " + device);
+                    hidHostService.connect(device);
+                }
+                break;
+            }
+            case BluetoothProfile.LE_AUDIO_BROADCAST_ASSISTANT: {
+                BassClientService bcService = mFactory.getBassClientService();
+                if (bcService == null) {
+                    break;
+                }
+                List<BluetoothDevice> connectedDevices = bcService.getConnectedDevices();
+                if (!connectedDevices.contains(device) && (bcService.getConnectionPolicy(device)
+                        == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
+                        && (bcService.getConnectionState(device)
+                        == BluetoothProfile.STATE_DISCONNECTED)) {
+                    debugLog("Retrying connection to BASS with device " + device);
+                    bcService.connect(device);
+                }
+                break;
             }
+            default:
+                break;
+        }
+    }
+
+    // Called when the first profile of a device connects. Profiles that connected in the previous
+    // connections of the device are connected right away instead of after
+    // sConnectOtherProfilesTimeoutMillis, the delayed message still connects any other profile.
+    @RequiresPermission(allOf = {
+            android.Manifest.permission.BLUETOOTH_PRIVILEGED,
+            android.Manifest.permission.MODIFY_PHONE_STATE,
+    })
+    private void connectTrustedProfiles(BluetoothDevice device, int connectedProfileId) {
+        if (mAdapterService.isQuietModeEnabled()
+                || mAdapterService.getState() != BluetoothAdapter.STATE_ON) {
+            return;
         }
-        if (bcService != null) {
-            List<BluetoothDevice> connectedDevices = bcService.getConnectedDevices();
-            if (!connectedDevices.contains(device) && (bcService.getConnectionPolicy(device)
-                    == BluetoothProfile.CONNECTION_POLICY_ALLOWED)
-                    && (bcService.getConnectionState(device)
-                    == BluetoothProfile.STATE_DISCONNECTED)) {
-                debugLog("Retrying connection to BASS with device " + device);
-                bcService.connect(device);
+        ProfileConnectionHistory history = ProfileConnectionHistory.fromString(
+                mDatabaseManager.getProfileConnectionHistory(device));
+        for (int profileId : history.getTrustedProfiles()) {
+            if (profileId != connectedProfileId) {
+                debugLog("connectTrustedProfiles: profile " + profileId
+                        + " connected previously for " + device);
+                connectProfileIfDisconnected(device, profileId);
             }
         }
     }
 
+    @RequiresPermission(allOf = {
+            android.Manifest.permission.BLUETOOTH_PRIVILEGED,
+            android.Manifest.permission.MODIFY_PHONE_STATE,
+    })
+    private void recordProfileConnected(BluetoothDevice device, int profileId) {
+        ConnectionSession session = mConnectionSessions.get(device);
+        if (session == null) {
+            session = new ConnectionSession();
+            mConnectionSessions.put(device, session);
+            session.mConnectedProfiles.put(profileId, 0L);
+            connectTrustedProfiles(device, profileId);
+            return;
+        }
+        session.mConnectedProfiles.putIfAbsent(profileId,
+                SystemClock.elapsedRealtime() - session.mStartTimeMillis);
+    }
+
+    private void recordAllProfilesDisconnected(BluetoothDevice device) {
+        ConnectionSession session = mConnectionSessions.remove(device);
+        if (session == null) {
+            return;
+        }
+        ProfileConnectionHistory history = ProfileConnectionHistory.fromString(
+                mDatabaseManager.getProfileConnectionHistory(device));
+        history.update(session.mConnectedProfiles);
+        String serialized = history.toString();
+        mDatabaseManager.setProfileConnectionHistory(device,
+                serialized.isEmpty() ? null : serialized);
+    }
+
     /**
      * Direct call prior to sending out {@link BluetoothDevice#ACTION_UUID}. This indicates that
      * service discovery is complete and passes the UUIDs directly to PhonePolicy.
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.Utils;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * Sends the broadcasts of the profiles from a dedicated thread.
+ *
+ * <p>Profile state machines and services hand their per-device broadcasts, such as connection
+ * state, audio state, active device and codec changes, over to the dispatcher instead of sending
+ * them, so that they do not wait on the activity manager while the next connection step is
+ * pending. Broadcasts of a device are sent in the order they are dispatched.
+ *
+ * <p>A connection state change dispatched while the previous one of the same profile and device
+ * is still pending, and left a transitional state, is merged into it: a pending
+ * {@code DISCONNECTED -> CONNECTING} followed by {@code CONNECTING -> CONNECTED} is sent as a
+ * single {@code DISCONNECTED -> CONNECTED} broadcast.
+ */
+public final class ProfileBroadcastDispatcher {
+    private static final String TAG = "BluetoothProfileBroadcastDispatcher";
+    private static final boolean DBG = false;
+
+    // Broadcasts that waited longer than this to be sent are logged
+    private static final long SLOW_BROADCAST_DELAY_MS = 100;
+
+    private static volatile ProfileBroadcastDispatcher sInstance = null;
+    private static final Object INSTANCE_LOCK = new Object();
+
+    private static final class Broadcast {
+        final Intent mIntent;
+        final Consumer<Intent> mSender;
+        final boolean mIsConnectionState;
+        final long mDispatchTimeMs;
+
+        Broadcast(Intent intent, Consumer<Intent> sender, boolean isConnectionState) {
+            mIntent = intent;
+            mSender = sender;
+            mIsConnectionState = isConnectionState;
+            mDispatchTimeMs = SystemClock.uptimeMillis();
+        }
+    }
+
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    // Broadcasts not sent yet, by device. Each of them has a pending call to sendNext().
+    @GuardedBy("mLock")
+    private final HashMap<BluetoothDevice, ArrayDeque<Broadcast>> mPendingBroadcasts =
+            new HashMap<>();
+    @GuardedBy("mLock")
+    private long mSentCount;
+    @GuardedBy("mLock")
+    private long mMergedCount;
+    @GuardedBy("mLock")
+    private long mTotalDelayMs;
+    @GuardedBy("mLock")
+    private long mMaxDelayMs;
+
+    /**
+     * Creates a dispatcher sending the broadcasts from the given looper. Only tests create their
+     * own dispatcher, the profiles use {@link #getInstance()}.
+     */
+    @VisibleForTesting
+    public ProfileBroadcastDispatcher(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Get the singleton instance of the dispatcher
+     */
+    public static ProfileBroadcastDispatcher getInstance() {
+        if (sInstance == null) {
+            synchronized (INSTANCE_LOCK) {
+                if (sInstance == null) {
+                    HandlerThread thread = new HandlerThread(TAG);
+                    thread.start();
+                    sInstance = new ProfileBroadcastDispatcher(thread.getLooper());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Allow unit tests to substitute the dispatcher with a test instance
+     *
+     * @param instance a test instance of the dispatcher
+     */
+    @VisibleForTesting
+    public static void setInstanceForTesting(ProfileBroadcastDispatcher instance) {
+        Utils.enforceInstrumentationTestMode();
+        synchronized (INSTANCE_LOCK) {
+            Log.d(TAG, "setInstanceForTesting(), set to " + instance);
+            sInstance = instance;
+        }
+    }
+
+    /**
+     * Sends a connection state change broadcast of a profile, merged into the pending one of the
+     * same profile and device when possible
+     *
+     * @param device the device whose connection state changed
+     * @param intent the broadcast, with {@link BluetoothProfile#EXTRA_STATE} and
+     * {@link BluetoothProfile#EXTRA_PREVIOUS_STATE}
+     * @param sender sends the broadcast
+     */
+    public void dispatchConnectionState(BluetoothDevice device, Intent intent,
+            Consumer<Intent> sender) {
+        synchronized (mLock) {
+            ArrayDeque<Broadcast> pending = mPendingBroadcasts.get(device);
+            Broadcast last = pending == null ? null : pending.peekLast();
+            if (last != null && canMerge(last, intent)) {
+                int state = intent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1);
+                if (DBG) {
+                    Log.d(TAG, "Merging " + intent.getAction() + " of " + device + ": "
+                            + last.mIntent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1) + "->"
+                            + state);
+                }
+                last.mIntent.putExtra(BluetoothProfile.EXTRA_STATE, state);
+                mMergedCount++;
+                return;
+            }
+            enqueue(device, new Broadcast(intent, sender, true));
+        }
+    }
+
+    /**
+     * Sends a broadcast about a device after the ones already dispatched
+     *
+     * @param device the device the broadcast is about, can be null
+     * @param intent the broadcast
+     * @param sender sends the broadcast
+     */
+    public void dispatch(BluetoothDevice device, Intent intent, Consumer<Intent> sender) {
+        synchronized (mLock) {
+            enqueue(device, new Broadcast(intent, sender, false));
+        }
+    }
+
+    private static boolean canMerge(Broadcast last, Intent intent) {
+        if (!last.mIsConnectionState || !last.mIntent.getAction().equals(intent.getAction())) {
+            return false;
+        }
+        int lastState = last.mIntent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1);
+        if (lastState != BluetoothProfile.STATE_CONNECTING
+                && lastState != BluetoothProfile.STATE_DISCONNECTING) {
+            return false;
+        }
+        // The merged broadcast must still be a change of state
+        return intent.getIntExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, -1) == lastState
+                && intent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1)
+                        != last.mIntent.getIntExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, -1);
+    }
+
+    @GuardedBy("mLock")
+    private void enqueue(BluetoothDevice device, Broadcast broadcast) {
+        mPendingBroadcasts.computeIfAbsent(device, d -> new ArrayDeque<>()).addLast(broadcast);
+        mHandler.post(() -> sendNext(device));
+    }
+
+    private void sendNext(BluetoothDevice device) {
+        Broadcast broadcast;
+        long delayMs;
+        synchronized (mLock) {
+            ArrayDeque<Broadcast> pending = mPendingBroadcasts.get(device);
+            if (pending == null) {
+                return;
+            }
+            broadcast = pending.pollFirst();
+            if (pending.isEmpty()) {
+                mPendingBroadcasts.remove(device);
+            }
+            if (broadcast == null) {
+                return;
+            }
+            delayMs = SystemClock.uptimeMillis() - broadcast.mDispatchTimeMs;
+            mSentCount++;
+            mTotalDelayMs += delayMs;
+            mMaxDelayMs = Math.max(mMaxDelayMs, delayMs);
+        }
+        if (delayMs > SLOW_BROADCAST_DELAY_MS) {
+            Log.w(TAG, broadcast.mIntent.getAction() + " of " + device + " waited " + delayMs
+                    + "ms to be sent");
+        }
+        broadcast.mSender.accept(broadcast.mIntent);
+    }
+
+    void dump(StringBuilder sb) {
+        synchronized (mLock) {
+            sb.append("Profile broadcasts:\n");
+            sb.append("  sent=").append(mSentCount)
+                    .append(", merged=").append(mMergedCount)
+                    .append(", average delay=")
+                    .append(mSentCount == 0 ? 0 : mTotalDelayMs / mSentCount)
+                    .append("ms, max delay=").append(mMaxDelayMs).append("ms\n");
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profiles that connected during the previous connections of a device.
+ *
+ * <p>For each profile, it keeps how many connections in a row the profile connected in, and how
+ * long after the first profile of the device it connected the last time. A profile that did not
+ * connect during a connection is forgotten, so that only the profiles that keep connecting are
+ * trusted to connect again.
+ *
+ * <p>The history is stored with the device metadata as a list of
+ * {@code profile:connections:delayMillis} entries separated by {@code ;}.
+ */
+final class ProfileConnectionHistory {
+    private static final String TAG = "BluetoothProfileConnectionHistory";
+
+    // Number of connections in a row after which a profile is expected to connect again
+    @VisibleForTesting static final int TRUSTED_CONNECTION_COUNT = 2;
+    private static final int MAX_CONNECTION_COUNT = 16;
+
+    private static final class Record {
+        int mConnectionCount;
+        long mDelayMillis;
+
+        Record(int connectionCount, long delayMillis) {
+            mConnectionCount = connectionCount;
+            mDelayMillis = delayMillis;
+        }
+    }
+
+    private final Map<Integer, Record> mRecords = new HashMap<>();
+
+    /** Parses a history, malformed entries are ignored */
+    static ProfileConnectionHistory fromString(String history) {
+        ProfileConnectionHistory result = new ProfileConnectionHistory();
+        if (history == null || history.isEmpty()) {
+            return result;
+        }
+        for (String entry : history.split(";")) {
+            String[] fields = entry.split(":");
+            try {
+                if (fields.length != 3) {
+                    throw new NumberFormatException("expected 3 fields");
+                }
+                int profile = Integer.parseInt(fields[0]);
+                int connectionCount = Integer.parseInt(fields[1]);
+                long delayMillis = Long.parseLong(fields[2]);
+                if (connectionCount > 0 && delayMillis >= 0) {
+                    result.mRecords.put(profile, new Record(
+                            Math.min(connectionCount, MAX_CONNECTION_COUNT), delayMillis));
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring malformed entry " + entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Folds a connection of the device into the history.
+     *
+     * @param connectedProfiles the profiles that connected, with how long after the first profile
+     * each of them connected
+     */
+    void update(Map<Integer, Long> connectedProfiles) {
+        mRecords.keySet().retainAll(connectedProfiles.keySet());
+        for (Map.Entry<Integer, Long> connected : connectedProfiles.entrySet()) {
+            Record record = mRecords.get(connected.getKey());
+            if (record == null) {
+                mRecords.put(connected.getKey(), new Record(1, connected.getValue()));
+            } else {
+                record.mConnectionCount =
+                        Math.min(record.mConnectionCount + 1, MAX_CONNECTION_COUNT);
+                record.mDelayMillis = connected.getValue();
+            }
+        }
+    }
+
+    /**
+     * Returns the profiles that connected in the last {@link #TRUSTED_CONNECTION_COUNT}
+     * connections, the fastest ones first.
+     */
+    List<Integer> getTrustedProfiles() {
+        List<Integer> profiles = new ArrayList<>();
+        for (Map.Entry<Integer, Record> entry : mRecords.entrySet()) {
+            if (entry.getValue().mConnectionCount >= TRUSTED_CONNECTION_COUNT) {
+                profiles.add(entry.getKey());
+            }
+        }
+        profiles.sort(Comparator.comparingLong(profile -> mRecords.get(profile).mDelayMillis));
+        return profiles;
+    }
+
+    @Override
+    public String toString() {
+        List<Integer> profiles = new ArrayList<>(mRecords.keySet());
+        profiles.sort(Comparator.comparingLong(profile -> mRecords.get(profile).mDelayMillis));
+        StringBuilder sb = new StringBuilder();
+        for (int profile : profiles) {
+            Record record = mRecords.get(profile);
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(profile).append(':').append(record.mConnectionCount)
+                    .append(':').append(record.mDelayMillis);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.annotation.Nullable;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Per device state of a profile service, such as its state machines.
+ *
+ * <p>Reads do not lock. Changes to the state of a device are made holding a lock shared with a
+ * few other devices only, so that a device being connected does not block the calls about other
+ * devices. Changes spanning the devices of a group, such as the two sides of hearing aids, are
+ * made holding the lock of the group first. How long the device locks are held is reported in
+ * {@link #dump(StringBuilder)}.
+ *
+ * @param <T> the state of a device
+ */
+public final class ProfileDeviceRegistry<T> {
+    // Number of locks the devices are spread over
+    private static final int LOCK_STRIPES = 16;
+
+    private final ConcurrentHashMap<BluetoothDevice, T> mStates = new ConcurrentHashMap<>();
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+    private final Object[] mGroupLocks = new Object[LOCK_STRIPES];
+    private final AtomicLong mLockCount = new AtomicLong();
+    private final AtomicLong mTotalHoldNanos = new AtomicLong();
+    private final AtomicLong mMaxHoldNanos = new AtomicLong();
+
+    public ProfileDeviceRegistry() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new Object();
+            mGroupLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the state of the device, or null if it has none
+     */
+    public @Nullable T get(BluetoothDevice device) {
+        return device == null ? null : mStates.get(device);
+    }
+
+    /**
+     * @return the states of all the devices, changes made afterwards may not be reflected
+     */
+    public Collection<T> values() {
+        return Collections.unmodifiableCollection(mStates.values());
+    }
+
+    /**
+     * Returns the states of a set of devices, such as the members of a CSIP group, without
+     * locking.
+     *
+     * @return the states of the devices which have one, in the order of the devices
+     */
+    public List<T> getAll(Collection<BluetoothDevice> devices) {
+        List<T> states = new ArrayList<>(devices.size());
+        for (BluetoothDevice device : devices) {
+            T state = get(device);
+            if (state != null) {
+                states.add(state);
+            }
+        }
+        return states;
+    }
+
+    /**
+     * @return the number of devices with a state
+     */
+    public int size() {
+        return mStates.size();
+    }
+
+    /**
+     * Runs an action holding the lock of a device. Calls for the same device wait for each
+     * other, while calls for most other devices do not.
+     *
+     * <p>The action must not take the lock of another device.
+     */
+    public <R> R withDeviceLock(BluetoothDevice device, Supplier<R> action) {
+        Object lock = getLock(device);
+        if (Thread.holdsLock(lock)) {
+            // Nested in an action already holding the lock, such as getOrCreate() called while
+            // connecting: only the outermost hold is counted in the statistics
+            return action.get();
+        }
+        synchronized (lock) {
+            long start = System.nanoTime();
+            try {
+                return action.get();
+            } finally {
+                long holdNanos = System.nanoTime() - start;
+                mLockCount.incrementAndGet();
+                mTotalHoldNanos.addAndGet(holdNanos);
+                mMaxHoldNanos.accumulateAndGet(holdNanos, Math::max);
+            }
+        }
+    }
+
+    /**
+     * Runs an action holding the lock of a device.
+     *
+     * @see #withDeviceLock(BluetoothDevice, Supplier)
+     */
+    public void runWithDeviceLock(BluetoothDevice device, Runnable action) {
+        withDeviceLock(device, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs an action holding the lock of a group of devices, so that changes to several devices
+     * of the group do not interleave with each other.
+     *
+     * <p>The action can take the locks of the devices of the group, one at a time. The lock of a
+     * group must not be taken while holding the lock of a device or of another group.
+     *
+     * @param groupKey identifies the group, such as a CSIP group id or a HiSyncId
+     */
+    public <R> R withGroupLock(Object groupKey, Supplier<R> action) {
+        synchronized (mGroupLocks[Math.floorMod(groupKey.hashCode(), LOCK_STRIPES)]) {
+            return action.get();
+        }
+    }
+
+    /**
+     * Runs an action holding the lock of a group of devices.
+     *
+     * @see #withGroupLock(Object, Supplier)
+     */
+    public void runWithGroupLock(Object groupKey, Runnable action) {
+        withGroupLock(groupKey, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Returns the state of a device, creating it if the device has none.
+     *
+     * @param factory creates the state, holding the lock of the device. It can return null to
+     * not create any.
+     * @return the state of the device, or null if none was created
+     */
+    public @Nullable T getOrCreate(BluetoothDevice device, Function<BluetoothDevice, T> factory) {
+        T state = get(device);
+        if (state != null) {
+            return state;
+        }
+        return withDeviceLock(device, () -> {
+            T current = mStates.get(device);
+            if (current == null) {
+                current = factory.apply(device);
+                if (current != null) {
+                    mStates.put(device, current);
+                }
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Removes the state of a device.
+     *
+     * @param onRemoved called with the removed state, holding the lock of the device
+     * @return false if the device had no state
+     */
+    public boolean remove(BluetoothDevice device, Consumer<T> onRemoved) {
+        return withDeviceLock(device, () -> {
+            T state = mStates.remove(device);
+            if (state == null) {
+                return false;
+            }
+            onRemoved.accept(state);
+            return true;
+        });
+    }
+
+    /**
+     * Removes the states of all the devices.
+     *
+     * @param onRemoved called with each removed state, holding the lock of its device
+     */
+    public void clear(Consumer<T> onRemoved) {
+        for (BluetoothDevice device : new ArrayList<>(mStates.keySet())) {
+            remove(device, onRemoved);
+        }
+    }
+
+    private Object getLock(BluetoothDevice device) {
+        return mLocks[Math.floorMod(device.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Dumps the lock statistics of the registry
+     */
+    public void dump(StringBuilder sb) {
+        long count = mLockCount.get();
+        ProfileService.println(sb, "  Device registry: " + mStates.size() + " devices, locked "
+                + count + " times, average hold "
+                + (count == 0 ? 0 : mTotalHoldNanos.get() / count / 1000) + "us, max hold "
+                + mMaxHoldNanos.get() / 1000 + "us");
+    }
+}
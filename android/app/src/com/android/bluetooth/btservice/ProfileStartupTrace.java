@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Startup trace of the profile services, printed in dumpsys.
+ *
+ * <p>Keeps the time at which each profile was requested to start and the time it reported
+ * {@link android.bluetooth.BluetoothAdapter#STATE_ON}, relative to the last adapter enable. All
+ * the methods must be called from the {@link AdapterService} main thread.
+ */
+class ProfileStartupTrace {
+    private static class ProfileTrace {
+        long mRequestedMs = -1;
+        long mStartedMs = -1;
+    }
+
+    private final Map<Class, ProfileTrace> mTraces = new LinkedHashMap<>();
+    private long mStartupBeginMs = -1;
+
+    /**
+     * Starts a new trace, dropping the one of the previous adapter enable.
+     *
+     * @param nowMs current time, from {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    void begin(long nowMs) {
+        mTraces.clear();
+        mStartupBeginMs = nowMs;
+    }
+
+    /**
+     * Records that a profile was requested to start.
+     *
+     * @param nowMs current time, from {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    void onProfileRequested(Class profile, long nowMs) {
+        ProfileTrace trace = new ProfileTrace();
+        trace.mRequestedMs = nowMs;
+        mTraces.put(profile, trace);
+    }
+
+    /**
+     * Records that a profile reported it is running.
+     *
+     * @param nowMs current time, from {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    void onProfileStarted(Class profile, long nowMs) {
+        ProfileTrace trace = mTraces.get(profile);
+        if (trace == null || trace.mStartedMs >= 0) {
+            return;
+        }
+        trace.mStartedMs = nowMs;
+    }
+
+    /** Dumps the startup trace of the last adapter enable */
+    void dump(StringBuilder sb) {
+        sb.append("Profile startup trace (ms since startProfileServices):\n");
+        if (mStartupBeginMs < 0) {
+            sb.append("  Profiles never started\n");
+            return;
+        }
+        for (Map.Entry<Class, ProfileTrace> entry : mTraces.entrySet()) {
+            ProfileTrace trace = entry.getValue();
+            sb.append("  ").append(entry.getKey().getSimpleName())
+                    .append(": requested=+").append(trace.mRequestedMs - mStartupBeginMs);
+            if (trace.mStartedMs < 0) {
+                sb.append(", not started\n");
+                continue;
+            }
+            sb.append(", started=+").append(trace.mStartedMs - mStartupBeginMs)
+                    .append(" (took ").append(trace.mStartedMs - trace.mRequestedMs)
+                    .append(")\n");
+        }
+    }
+}
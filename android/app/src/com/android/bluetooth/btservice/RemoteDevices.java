@@ -17,6 +17,7 @@
 package com.android.bluetooth.btservice;
 
 import static android.Manifest.permission.BLUETOOTH_CONNECT;
+import static android.Manifest.permission.BLUETOOTH_PRIVILEGED;
 import static android.Manifest.permission.BLUETOOTH_SCAN;
 
 import android.annotation.RequiresPermission;
@@ -37,11 +38,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.MacAddress;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 
@@ -50,12 +53,19 @@ import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.bas.BatteryService;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.ArrayDeque;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -64,8 +74,13 @@ final class RemoteDevices {
     private static final boolean DBG = false;
     private static final String TAG = "BluetoothRemoteDevices";
 
-    // Maximum number of device properties to remember
-    private static final int MAX_DEVICE_QUEUE_SIZE = 200;
+    // Maximum number of device properties to remember, bonded and connected devices are always
+    // remembered on top of it
+    private static final String MAX_DEVICE_CACHE_SIZE_PROPERTY =
+            "bluetooth.device.cache_size.max";
+    @VisibleForTesting static final int MAX_DEVICE_CACHE_SIZE_DEFAULT = 200;
+    // Devices not seen for this long are removed first when the cache is full
+    @VisibleForTesting static final long DEVICE_IDLE_TIMEOUT_MS = 30000;
 
     private BluetoothAdapter mAdapter;
     private AdapterService mAdapterService;
@@ -74,11 +89,34 @@ final class RemoteDevices {
 
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
+    private static final int MESSAGE_FOUND_DEVICES = 2;
+    // Devices found during this period are delivered together
+    @VisibleForTesting static final int FOUND_DEVICES_DELAY_MS = 100;
+    // Found devices with an RSSI in the same bucket are reported once per discovery
+    private static final int FOUND_DEVICE_RSSI_BUCKET = 10;
     private static final String LOG_SOURCE_DIS = "DIS";
 
-    private final HashMap<String, DeviceProperties> mDevices;
+    // Ordered from the least to the most recently used device
+    @GuardedBy("mDevices")
+    private final LinkedHashMap<String, DeviceProperties> mDevices;
     private final HashMap<String, String> mDualDevicesMap;
-    private ArrayDeque<String> mDeviceQueue;
+    private final int mMaxDeviceCacheSize;
+    @GuardedBy("mDevices")
+    private long mDeviceCacheHits;
+    @GuardedBy("mDevices")
+    private long mDeviceCacheMisses;
+    @GuardedBy("mDevices")
+    private long mDeviceCacheEvictions;
+
+    // Devices found and not delivered yet
+    @GuardedBy("mFoundDevices")
+    private final LinkedHashSet<BluetoothDevice> mFoundDevices = new LinkedHashSet<>();
+    // What was last reported for each device found during the discovery
+    @GuardedBy("mFoundDevices")
+    private final HashMap<String, List<Object>> mFoundDeviceReports = new HashMap<>();
+    // Held while sending the devices found, so that the flush at the end of the discovery
+    // cannot interleave with a send of the handler
+    private final Object mSendFoundDevicesLock = new Object();
 
     /**
      * Bluetooth HFP v1.8 specifies the Battery Charge indicator of AG can take values from
@@ -126,6 +164,9 @@ final class RemoteDevices {
                                 BluetoothProtoEnums.SDP_NOT_SENDING_DELAYED_UUID, 1);
                     }
                     break;
+                case MESSAGE_FOUND_DEVICES:
+                    sendFoundDevices();
+                    break;
             }
         }
     }
@@ -179,9 +220,10 @@ final class RemoteDevices {
         mAdapter = ((Context) service).getSystemService(BluetoothManager.class).getAdapter();
         mAdapterService = service;
         mSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
+        mDevices = new LinkedHashMap<String, DeviceProperties>(16, 0.75f, true);
         mDualDevicesMap = new HashMap<String, String>();
-        mDeviceQueue = new ArrayDeque<>();
+        mMaxDeviceCacheSize = Math.max(1, SystemProperties.getInt(
+                MAX_DEVICE_CACHE_SIZE_PROPERTY, MAX_DEVICE_CACHE_SIZE_DEFAULT));
         mHandler = new RemoteDevicesHandler(looper);
     }
 
@@ -249,8 +291,10 @@ final class RemoteDevices {
             mDualDevicesMap.clear();
         }
 
-        if (mDeviceQueue != null) {
-            mDeviceQueue.clear();
+        mHandler.removeMessages(MESSAGE_FOUND_DEVICES);
+        synchronized (mFoundDevices) {
+            mFoundDevices.clear();
+            mFoundDeviceReports.clear();
         }
     }
 
@@ -263,26 +307,40 @@ final class RemoteDevices {
         synchronized (mDevices) {
             String address = mDualDevicesMap.get(device.getAddress());
             // If the device is not in the dual map, use its original address
-            if (address == null || mDevices.get(address) == null) {
+            if (address == null || !mDevices.containsKey(address)) {
                 address = device.getAddress();
             }
-            return mDevices.get(address);
+            return getCachedDeviceProperties(address);
         }
     }
 
     BluetoothDevice getDevice(byte[] address) {
-        String addressString = Utils.getAddressStringFromByte(address);
-        String deviceAddress = mDualDevicesMap.get(addressString);
-        // If the device is not in the dual map, use its original address
-        if (deviceAddress == null || mDevices.get(deviceAddress) == null) {
-            deviceAddress = addressString;
+        synchronized (mDevices) {
+            String addressString = Utils.getAddressStringFromByte(address);
+            String deviceAddress = mDualDevicesMap.get(addressString);
+            // If the device is not in the dual map, use its original address
+            if (deviceAddress == null || !mDevices.containsKey(deviceAddress)) {
+                deviceAddress = addressString;
+            }
+
+            DeviceProperties prop = getCachedDeviceProperties(deviceAddress);
+            if (prop != null) {
+                return prop.getDevice();
+            }
+            return null;
         }
+    }
 
-        DeviceProperties prop = mDevices.get(deviceAddress);
+    @GuardedBy("mDevices")
+    private DeviceProperties getCachedDeviceProperties(String address) {
+        // Marks the device as the most recently used one
+        DeviceProperties prop = mDevices.get(address);
         if (prop != null) {
-            return prop.getDevice();
+            mDeviceCacheHits++;
+        } else {
+            mDeviceCacheMisses++;
         }
-        return null;
+        return prop;
     }
 
     @VisibleForTesting
@@ -295,22 +353,57 @@ final class RemoteDevices {
             DeviceProperties pv = mDevices.put(key, prop);
 
             if (pv == null) {
-                mDeviceQueue.offer(key);
-                if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
-                    for (BluetoothDevice device : mAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) {
-                            return prop;
-                        }
-                    }
-                    debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
-                }
+                evictDevicePropertiesIfNeeded();
             }
             return prop;
         }
     }
 
+    /**
+     * Removes devices until the cache holds at most its maximum number of devices that are not
+     * bonded or connected. Devices not seen for {@link #DEVICE_IDLE_TIMEOUT_MS} are removed
+     * first, then the least recently used ones.
+     */
+    @GuardedBy("mDevices")
+    private void evictDevicePropertiesIfNeeded() {
+        int evictableCount = 0;
+        for (DeviceProperties prop : mDevices.values()) {
+            if (!prop.isPinned()) {
+                evictableCount++;
+            }
+        }
+        if (evictableCount <= mMaxDeviceCacheSize) {
+            return;
+        }
+
+        long idleSince = SystemClock.elapsedRealtime() - DEVICE_IDLE_TIMEOUT_MS;
+        String leastRecentlyUsed = null;
+        String idle = null;
+        for (Map.Entry<String, DeviceProperties> entry : mDevices.entrySet()) {
+            DeviceProperties prop = entry.getValue();
+            if (prop.isPinned()) {
+                continue;
+            }
+            if (leastRecentlyUsed == null) {
+                leastRecentlyUsed = entry.getKey();
+            }
+            if (prop.getLastSeenTime() < idleSince) {
+                idle = entry.getKey();
+                break;
+            }
+        }
+        String deleteKey = idle != null ? idle : leastRecentlyUsed;
+        debugLog("Removing device " + deleteKey + " from property map");
+        mDevices.remove(deleteKey);
+        mDeviceCacheEvictions++;
+        Iterator<String> it = mDualDevicesMap.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().equals(deleteKey)) {
+                it.remove();
+            }
+        }
+    }
+
     class DeviceProperties {
         private String mName;
         private byte[] mAddress;
@@ -332,9 +425,41 @@ final class RemoteDevices {
         @VisibleForTesting int mDeviceType;
         @VisibleForTesting ParcelUuid[] mUuids;
         private BluetoothSinkAudioPolicy mAudioPolicy;
+        private long mLastSeenTime;
 
         DeviceProperties() {
             mBondState = BluetoothDevice.BOND_NONE;
+            mLastSeenTime = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * @return the time, in {@link SystemClock#elapsedRealtime()}, the device was last heard
+         * from
+         */
+        long getLastSeenTime() {
+            synchronized (mObject) {
+                return mLastSeenTime;
+            }
+        }
+
+        /**
+         * Records that the device was heard from
+         */
+        void updateLastSeenTime() {
+            synchronized (mObject) {
+                mLastSeenTime = SystemClock.elapsedRealtime();
+            }
+        }
+
+        /**
+         * @return true if the device is bonded, bonding or connected, so must stay remembered
+         */
+        boolean isPinned() {
+            synchronized (mObject) {
+                return mBondState != BluetoothDevice.BOND_NONE
+                        || mBredrConnectionHandle != BluetoothDevice.ERROR
+                        || mLeConnectionHandle != BluetoothDevice.ERROR;
+            }
         }
 
         /**
@@ -857,6 +982,7 @@ final class RemoteDevices {
             bdDevice = getDevice(address);
         } else {
             deviceProperties = getDeviceProperties(bdDevice);
+            deviceProperties.updateLastSeenTime();
         }
 
         if (types.length <= 0) {
@@ -988,6 +1114,7 @@ final class RemoteDevices {
             errorLog("Device Properties is null for Device:" + device);
             return;
         }
+        deviceProp.updateLastSeenTime();
         boolean restrict_device_found =
                 SystemProperties.getBoolean("bluetooth.restrict_discovered_device.enabled", false);
         if (restrict_device_found && (deviceProp.mName == null || deviceProp.mName.isEmpty())) {
@@ -995,34 +1122,129 @@ final class RemoteDevices {
             return;
         }
 
-        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
-        intent.putExtra(BluetoothDevice.EXTRA_CLASS,
-                new BluetoothClass(deviceProp.getBluetoothClass()));
-        intent.putExtra(BluetoothDevice.EXTRA_RSSI, deviceProp.getRssi());
-        intent.putExtra(BluetoothDevice.EXTRA_NAME, deviceProp.getName());
-        intent.putExtra(BluetoothDevice.EXTRA_IS_COORDINATED_SET_MEMBER,
-                deviceProp.isCoordinatedSetMember());
+        List<Object> report = Arrays.asList(deviceProp.getName(),
+                deviceProp.getBluetoothClass(), deviceProp.isCoordinatedSetMember(),
+                Math.floorDiv(deviceProp.getRssi(), FOUND_DEVICE_RSSI_BUCKET));
+        synchronized (mFoundDevices) {
+            if (report.equals(mFoundDeviceReports.put(device.getAddress(), report))) {
+                debugLog("deviceFoundCallback: Skipping unchanged device " + device);
+                return;
+            }
+            mFoundDevices.add(device);
+            if (!mHandler.hasMessages(MESSAGE_FOUND_DEVICES)) {
+                mHandler.sendEmptyMessageDelayed(MESSAGE_FOUND_DEVICES, FOUND_DEVICES_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Forgets what was reported of the devices found, so that a package joining a discovery
+     * already running is delivered the devices found before it joined
+     */
+    void discoveryStartedCallback() {
+        synchronized (mFoundDevices) {
+            mFoundDeviceReports.clear();
+        }
+    }
+
+    /**
+     * Delivers the devices found that are not delivered yet, and forgets what was reported, as
+     * the discovery is over
+     */
+    void discoveryStoppedCallback() {
+        synchronized (mSendFoundDevicesLock) {
+            mHandler.removeMessages(MESSAGE_FOUND_DEVICES);
+            sendFoundDevices();
+            synchronized (mFoundDevices) {
+                mFoundDeviceReports.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends the devices found since the last call to the discovering packages, in an
+     * {@link BluetoothDevice#ACTION_FOUND} intent per device, or in a single
+     * {@link BluetoothDevice#ACTION_FOUND_BATCH} intent for the packages that asked for it
+     */
+    private void sendFoundDevices() {
+        synchronized (mSendFoundDevicesLock) {
+            sendFoundDevicesLocked();
+        }
+    }
+
+    @GuardedBy("mSendFoundDevicesLock")
+    private void sendFoundDevicesLocked() {
+        List<BluetoothDevice> devices;
+        synchronized (mFoundDevices) {
+            devices = new ArrayList<>(mFoundDevices);
+            mFoundDevices.clear();
+        }
+        if (devices.isEmpty()) {
+            return;
+        }
+
+        Map<BluetoothDevice, Intent> intents = new LinkedHashMap<>();
+        for (BluetoothDevice device : devices) {
+            DeviceProperties deviceProp = getDeviceProperties(device);
+            if (deviceProp == null) {
+                debugLog("sendFoundDevices: Device " + device + " was removed");
+                continue;
+            }
+            Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+            intent.putExtra(BluetoothDevice.EXTRA_CLASS,
+                    new BluetoothClass(deviceProp.getBluetoothClass()));
+            intent.putExtra(BluetoothDevice.EXTRA_RSSI, deviceProp.getRssi());
+            intent.putExtra(BluetoothDevice.EXTRA_NAME, deviceProp.getName());
+            intent.putExtra(BluetoothDevice.EXTRA_IS_COORDINATED_SET_MEMBER,
+                    deviceProp.isCoordinatedSetMember());
+            intents.put(device, intent);
+        }
 
         final ArrayList<DiscoveringPackage> packages = mAdapterService.getDiscoveringPackages();
         synchronized (packages) {
             for (DiscoveringPackage pkg : packages) {
-                if (pkg.hasDisavowedLocation()) {
-                    if (mLocationDenylistPredicate.test(device)) {
+                ArrayList<Bundle> batch = new ArrayList<>();
+                for (Map.Entry<BluetoothDevice, Intent> entry : intents.entrySet()) {
+                    if (pkg.hasDisavowedLocation()) {
+                        if (mLocationDenylistPredicate.test(entry.getKey())) {
+                            continue;
+                        }
+                    }
+
+                    Intent intent = entry.getValue();
+                    if (pkg.isBatched()) {
+                        batch.add(intent.getExtras());
                         continue;
                     }
-                }
+                    intent.setPackage(pkg.getPackageName());
 
-                intent.setPackage(pkg.getPackageName());
+                    if (pkg.getPermission() != null) {
+                        mAdapterService.sendBroadcastMultiplePermissions(intent,
+                                new String[] { BLUETOOTH_SCAN, pkg.getPermission() },
+                                Utils.getTempBroadcastOptions());
+                    } else {
+                        mAdapterService.sendBroadcastMultiplePermissions(intent,
+                                new String[] { BLUETOOTH_SCAN },
+                                Utils.getTempBroadcastOptions());
+                    }
+                }
 
-                if (pkg.getPermission() != null) {
-                    mAdapterService.sendBroadcastMultiplePermissions(intent,
-                            new String[] { BLUETOOTH_SCAN, pkg.getPermission() },
-                            Utils.getTempBroadcastOptions());
-                } else {
-                    mAdapterService.sendBroadcastMultiplePermissions(intent,
-                            new String[] { BLUETOOTH_SCAN },
-                            Utils.getTempBroadcastOptions());
+                if (!batch.isEmpty()) {
+                    Intent intent = new Intent(BluetoothDevice.ACTION_FOUND_BATCH);
+                    intent.putParcelableArrayListExtra(BluetoothDevice.EXTRA_FOUND_DEVICES, batch);
+                    intent.setPackage(pkg.getPackageName());
+                    if (pkg.getPermission() != null) {
+                        mAdapterService.sendBroadcastMultiplePermissions(intent,
+                                new String[] {
+                                        BLUETOOTH_SCAN, BLUETOOTH_PRIVILEGED, pkg.getPermission()
+                                },
+                                Utils.getTempBroadcastOptions());
+                    } else {
+                        mAdapterService.sendBroadcastMultiplePermissions(intent,
+                                new String[] { BLUETOOTH_SCAN, BLUETOOTH_PRIVILEGED },
+                                Utils.getTempBroadcastOptions());
+                    }
                 }
             }
         }
@@ -1091,6 +1313,7 @@ final class RemoteDevices {
         }
 
         DeviceProperties deviceProperties = getDeviceProperties(device);
+        deviceProperties.updateLastSeenTime();
 
         int state = mAdapterService.getState();
 
@@ -1127,7 +1350,9 @@ final class RemoteDevices {
                         Utils.getTempAllowlistBroadcastOptions());
             } else if (device.getBondState() == BluetoothDevice.BOND_NONE) {
                 String key = Utils.getAddressStringFromByte(address);
-                mDevices.remove(key);
+                synchronized (mDevices) {
+                    mDevices.remove(key);
+                }
             }
             if (state == BluetoothAdapter.STATE_ON || state == BluetoothAdapter.STATE_TURNING_OFF) {
                 intent = new Intent(BluetoothDevice.ACTION_ACL_DISCONNECTED);
@@ -1464,6 +1689,16 @@ final class RemoteDevices {
         }
     }
 
+    void dump(PrintWriter writer) {
+        synchronized (mDevices) {
+            writer.println("\nRemoteDevices:");
+            writer.println("  Cached devices: " + mDevices.size() + " (max "
+                    + mMaxDeviceCacheSize + " not bonded or connected)");
+            writer.println("  Cache hits: " + mDeviceCacheHits + ", misses: "
+                    + mDeviceCacheMisses + ", evictions: " + mDeviceCacheEvictions);
+        }
+    }
+
     private static void errorLog(String msg) {
         Log.e(TAG, msg);
     }
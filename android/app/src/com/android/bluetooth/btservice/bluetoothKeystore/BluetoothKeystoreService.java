@@ -17,6 +17,7 @@
 package com.android.bluetooth.btservice.bluetoothkeystore;
 
 import android.annotation.Nullable;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
@@ -42,12 +43,17 @@ import java.security.ProviderException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.crypto.BadPaddingException;
@@ -94,6 +100,12 @@ public class BluetoothKeystoreService {
 
     private static final int BUFFER_SIZE = 400 * 10;
 
+    // Number of threads decrypting the encryption file when loading it
+    private static final int DECRYPT_THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // Number of the slowest decryptions to keep for dumpsys
+    private static final int SLOWEST_DECRYPT_COUNT = 5;
+
     private static final int CONFIG_COMPARE_INIT = 0b00;
     private static final int CONFIG_FILE_COMPARE_PASS = 0b01;
     private static final int CONFIG_BACKUP_COMPARE_PASS = 0b10;
@@ -102,10 +114,8 @@ public class BluetoothKeystoreService {
     BluetoothKeystoreNativeInterface mBluetoothKeystoreNativeInterface;
 
     private ComputeDataThread mEncryptDataThread;
-    private ComputeDataThread mDecryptDataThread;
     private Map<String, String> mNameEncryptKey = new HashMap<>();
     private Map<String, String> mNameDecryptKey = new HashMap<>();
-    private BlockingQueue<String> mPendingDecryptKey = new LinkedBlockingQueue<>();
     private BlockingQueue<String> mPendingEncryptKey = new LinkedBlockingQueue<>();
     private final List<String> mEncryptKeyNameList = List.of("LinkKey", "LE_KEY_PENC", "LE_KEY_PID",
             "LE_KEY_LID", "LE_KEY_PCSRK", "LE_KEY_LENC", "LE_KEY_LCSRK");
@@ -113,6 +123,18 @@ public class BluetoothKeystoreService {
     private Base64.Decoder mDecoder = Base64.getDecoder();
     private Base64.Encoder mEncoder = Base64.getEncoder();
 
+    // The key never changes once created, keep it instead of looking it up for every operation
+    private volatile SecretKey mSecretKey;
+    // Cipher instances are not thread safe, one per thread
+    private final ThreadLocal<Cipher> mCipher = new ThreadLocal<>();
+
+    // Timings of the last encryption file loaded with decryption
+    private final Object mDecryptStatsLock = new Object();
+    private int mDecryptCount;
+    private long mDecryptTotalMs;
+    private long mDecryptEntriesNanos;
+    private final List<String> mSlowestDecrypts = new ArrayList<>();
+
     public BluetoothKeystoreService(boolean isCommonCriteriaMode) {
         debugLog("new BluetoothKeystoreService isCommonCriteriaMode: " + isCommonCriteriaMode);
         mIsCommonCriteriaMode = isCommonCriteriaMode;
@@ -401,7 +423,7 @@ public class BluetoothKeystoreService {
     }
 
     /**
-     * Stop encrypt/decrypt thread.
+     * Stop encrypt thread.
      */
     @VisibleForTesting
     public void stopThread() {
@@ -410,20 +432,14 @@ public class BluetoothKeystoreService {
                 mEncryptDataThread.setWaitQueueEmptyForStop();
                 mEncryptDataThread.join();
             }
-            if (mDecryptDataThread != null) {
-                mDecryptDataThread.setWaitQueueEmptyForStop();
-                mDecryptDataThread.join();
-            }
         } catch (InterruptedException e) {
             reportBluetoothKeystoreException(e, "Interrupted while operating.");
         }
     }
 
     private void startThread() {
-        mEncryptDataThread = new ComputeDataThread(true);
-        mDecryptDataThread = new ComputeDataThread(false);
+        mEncryptDataThread = new ComputeDataThread();
         mEncryptDataThread.start();
-        mDecryptDataThread.start();
     }
 
     /**
@@ -616,7 +632,7 @@ public class BluetoothKeystoreService {
     }
 
     /**
-     * Load encryption file and push into mNameEncryptKey and pendingDecryptKey.
+     * Load encryption file into mNameEncryptKey, and decrypt it into mNameDecryptKey if asked.
      */
     @VisibleForTesting
     public void loadEncryptionFile(String filePathString, boolean doDecrypt)
@@ -626,6 +642,7 @@ public class BluetoothKeystoreService {
                 return;
             }
             List<String> allLinesString = Files.readAllLines(Paths.get(filePathString));
+            List<String> prefixStrings = new ArrayList<>();
             for (String line : allLinesString) {
                 int index = line.lastIndexOf("-");
                 if (index < 0) {
@@ -635,15 +652,103 @@ public class BluetoothKeystoreService {
                 String encryptedString = line.substring(index + 1);
 
                 mNameEncryptKey.put(prefixString, encryptedString);
-                if (doDecrypt) {
-                    mPendingDecryptKey.put(prefixString);
-                }
+                prefixStrings.add(prefixString);
+            }
+            if (doDecrypt) {
+                decryptAll(prefixStrings);
             }
         } catch (IOException e) {
             throw new RuntimeException("read encryption file all line fail");
         }
     }
 
+    /**
+     * Decrypts the given entries of mNameEncryptKey into mNameDecryptKey, spread over a few
+     * threads. Returns once all of them are decrypted, and stores them in the given order so that
+     * the result does not depend on the scheduling.
+     */
+    private void decryptAll(List<String> prefixStrings) throws InterruptedException {
+        if (prefixStrings.isEmpty()) {
+            return;
+        }
+        long startMs = SystemClock.elapsedRealtime();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(DECRYPT_THREAD_COUNT, prefixStrings.size()));
+        List<Future<String>> results = new ArrayList<>(prefixStrings.size());
+        long[] entryNanos = new long[prefixStrings.size()];
+        try {
+            for (int i = 0; i < prefixStrings.size(); i++) {
+                final int entry = i;
+                final String encryptedData = mNameEncryptKey.get(prefixStrings.get(i));
+                results.add(executor.submit(() -> {
+                    long startNanos = System.nanoTime();
+                    String decryptedData = tryCompute(encryptedData, false);
+                    entryNanos[entry] = System.nanoTime() - startNanos;
+                    return decryptedData;
+                }));
+            }
+            for (int i = 0; i < prefixStrings.size(); i++) {
+                String prefixString = prefixStrings.get(i);
+                String decryptedData;
+                try {
+                    decryptedData = results.get(i).get();
+                } catch (ExecutionException e) {
+                    reportBluetoothKeystoreException(e, "decrypt failed for " + prefixString);
+                    decryptedData = null;
+                }
+                if (decryptedData != null) {
+                    mNameDecryptKey.put(prefixString, decryptedData);
+                } else {
+                    errorLog("Computing of Data failed with prefixString: " + prefixString
+                            + ", doEncrypt: false");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        recordDecryptStats(prefixStrings, entryNanos, SystemClock.elapsedRealtime() - startMs);
+    }
+
+    private void recordDecryptStats(List<String> prefixStrings, long[] entryNanos, long totalMs) {
+        Integer[] order = new Integer[entryNanos.length];
+        long entriesNanos = 0;
+        for (int i = 0; i < entryNanos.length; i++) {
+            order[i] = i;
+            entriesNanos += entryNanos[i];
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(entryNanos[b], entryNanos[a]));
+        synchronized (mDecryptStatsLock) {
+            mDecryptCount = entryNanos.length;
+            mDecryptTotalMs = totalMs;
+            mDecryptEntriesNanos = entriesNanos;
+            mSlowestDecrypts.clear();
+            for (int i = 0; i < Math.min(SLOWEST_DECRYPT_COUNT, order.length); i++) {
+                mSlowestDecrypts.add(prefixStrings.get(order[i]) + ": "
+                        + (entryNanos[order[i]] / 1000) + " us");
+            }
+        }
+        debugLog("decrypted " + entryNanos.length + " entries in " + totalMs + " ms");
+    }
+
+    /**
+     * Dumps the timings of the last decryption of the encryption file.
+     *
+     * @param sb StringBuilder to append to
+     */
+    public void dump(StringBuilder sb) {
+        synchronized (mDecryptStatsLock) {
+            sb.append("BluetoothKeystoreService:\n");
+            sb.append("  Common Criteria mode: ").append(mIsCommonCriteriaMode).append("\n");
+            sb.append("  Last load: ").append(mDecryptCount).append(" entries decrypted in ")
+                    .append(mDecryptTotalMs).append(" ms on ").append(DECRYPT_THREAD_COUNT)
+                    .append(" threads, ").append(mDecryptEntriesNanos / 1000000)
+                    .append(" ms total decrypt time\n");
+            for (String slowest : mSlowestDecrypts) {
+                sb.append("    ").append(slowest).append("\n");
+            }
+        }
+    }
+
     // will retry TRY_MAX times.
     private String tryCompute(String sourceData, boolean doEncrypt) {
         int counter = 0;
@@ -680,7 +785,7 @@ public class BluetoothKeystoreService {
                 errorLog("encrypt: data is null");
                 return outputBase64;
             }
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            Cipher cipher = getCipher();
             SecretKey secretKeyReference = getOrCreateSecretKey();
 
             if (secretKeyReference != null) {
@@ -703,6 +808,7 @@ public class BluetoothKeystoreService {
         } catch (NoSuchPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding exception");
         } catch (InvalidKeyException e) {
+            mSecretKey = null;
             reportKeystoreException(e, "encrypt received an invalid key");
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "encrypt had a padding problem");
@@ -731,7 +837,7 @@ public class BluetoothKeystoreService {
             }
             encryptedDataBytes = mDecoder.decode(encryptedDataBase64);
             protobuf = BluetoothKeystoreProto.EncryptedData.parser().parseFrom(encryptedDataBytes);
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            Cipher cipher = getCipher();
             GCMParameterSpec spec =
                     new GCMParameterSpec(GCM_TAG_LENGTH, protobuf.getInitVector().toByteArray());
             SecretKey secretKeyReference = getOrCreateSecretKey();
@@ -755,6 +861,7 @@ public class BluetoothKeystoreService {
         } catch (BadPaddingException e) {
             reportKeystoreException(e, "decrypt had bad padding");
         } catch (InvalidKeyException e) {
+            mSecretKey = null;
             reportKeystoreException(e, "decrypt had an invalid key");
         } catch (InvalidAlgorithmParameterException e) {
             reportKeystoreException(e, "decrypt had an invalid algorithm parameter");
@@ -779,8 +886,31 @@ public class BluetoothKeystoreService {
         return keyStore;
     }
 
+    private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = mCipher.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            mCipher.set(cipher);
+        }
+        return cipher;
+    }
+
     // The getOrGenerate semantic on keystore is not thread safe, need to synchronized it.
-    private synchronized SecretKey getOrCreateSecretKey() {
+    // The key is cached once found, it is dropped again if it turns out to be invalid.
+    private SecretKey getOrCreateSecretKey() {
+        SecretKey secretKey = mSecretKey;
+        if (secretKey != null) {
+            return secretKey;
+        }
+        synchronized (this) {
+            if (mSecretKey == null) {
+                mSecretKey = loadOrCreateSecretKey();
+            }
+            return mSecretKey;
+        }
+    }
+
+    private SecretKey loadOrCreateSecretKey() {
         SecretKey secretKey = null;
         try {
             KeyStore keyStore = getKeyStore();
@@ -848,56 +978,41 @@ public class BluetoothKeystoreService {
     }
 
     /**
-     * A thread that decrypt data if the queue has new decrypt task.
+     * A thread that encrypts data if the queue has new encrypt task. Decryption only happens when
+     * loading the encryption file, see {@link #loadEncryptionFile}.
      */
     private class ComputeDataThread extends Thread {
-        private Map<String, String> mSourceDataMap;
-        private Map<String, String> mTargetDataMap;
-        private BlockingQueue<String> mSourceQueue;
-        private boolean mDoEncrypt;
-
         private boolean mWaitQueueEmptyForStop;
 
-        ComputeDataThread(boolean doEncrypt) {
-            infoLog("ComputeDataThread: create, doEncrypt: " + doEncrypt);
+        ComputeDataThread() {
+            infoLog("ComputeDataThread: create");
             mWaitQueueEmptyForStop = false;
-            mDoEncrypt = doEncrypt;
-
-            if (mDoEncrypt) {
-                mSourceDataMap = mNameDecryptKey;
-                mTargetDataMap = mNameEncryptKey;
-                mSourceQueue = mPendingEncryptKey;
-            } else {
-                mSourceDataMap = mNameEncryptKey;
-                mTargetDataMap = mNameDecryptKey;
-                mSourceQueue = mPendingDecryptKey;
-            }
         }
 
         @Override
         public void run() {
-            infoLog("ComputeDataThread: run, doEncrypt: " + mDoEncrypt);
+            infoLog("ComputeDataThread: run");
             String prefixString;
             String sourceData;
             String targetData;
-            while (!mSourceQueue.isEmpty() || !mWaitQueueEmptyForStop) {
+            while (!mPendingEncryptKey.isEmpty() || !mWaitQueueEmptyForStop) {
                 try {
-                    prefixString = mSourceQueue.take();
-                    if (mSourceDataMap.containsKey(prefixString)) {
-                        sourceData = mSourceDataMap.get(prefixString);
-                        targetData = tryCompute(sourceData, mDoEncrypt);
+                    prefixString = mPendingEncryptKey.take();
+                    if (mNameDecryptKey.containsKey(prefixString)) {
+                        sourceData = mNameDecryptKey.get(prefixString);
+                        targetData = tryCompute(sourceData, true);
                         if (targetData != null) {
-                            mTargetDataMap.put(prefixString, targetData);
+                            mNameEncryptKey.put(prefixString, targetData);
                         } else {
-                            errorLog("Computing of Data failed with prefixString: " + prefixString
-                                    + ", doEncrypt: " + mDoEncrypt);
+                            errorLog("Computing of Data failed with prefixString: "
+                                    + prefixString);
                         }
                     }
                 } catch (InterruptedException e) {
                     infoLog("Interrupted while operating.");
                 }
             }
-            infoLog("ComputeDataThread: Stop, doEncrypt: " + mDoEncrypt);
+            infoLog("ComputeDataThread: Stop");
         }
 
         public void setWaitQueueEmptyForStop() {
@@ -587,6 +587,62 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Set the serialized profile connection history of the device
+     *
+     * @param device {@link BluetoothDevice} wish to set
+     * @param history the serialized history, or null to forget it
+     */
+    public void setProfileConnectionHistory(BluetoothDevice device, String history) {
+        synchronized (mMetadataCache) {
+            if (device == null) {
+                Log.e(TAG, "setProfileConnectionHistory: device is null");
+                return;
+            }
+
+            String address = device.getAddress();
+
+            if (!mMetadataCache.containsKey(address)) {
+                return;
+            }
+            Metadata data = mMetadataCache.get(address);
+            String oldValue = data.profile_connection_history;
+            if (Objects.equals(oldValue, history)) {
+                return;
+            }
+            logMetadataChange(data, "Profile connection history changed: "
+                                    + oldValue + " -> " + history);
+
+            data.profile_connection_history = history;
+            updateDatabase(data);
+        }
+    }
+
+    /**
+     * Get the serialized profile connection history of the device
+     *
+     * @param device {@link BluetoothDevice} wish to get
+     * @return the serialized history, or null if the device has none
+     */
+    public String getProfileConnectionHistory(BluetoothDevice device) {
+        synchronized (mMetadataCache) {
+            if (device == null) {
+                Log.e(TAG, "getProfileConnectionHistory: device is null");
+                return null;
+            }
+
+            String address = device.getAddress();
+
+            if (!mMetadataCache.containsKey(address)) {
+                Log.d(TAG, "getProfileConnectionHistory: device " + device + " is not in cache");
+                return null;
+            }
+
+            Metadata data = mMetadataCache.get(address);
+            return data.profile_connection_history;
+        }
+    }
+
     /**
      * Updates the time this device was last connected
      *
@@ -77,6 +77,14 @@ public class Metadata {
      */
     public int preferred_duplex_profile;
 
+    /**
+     * The profiles connected during the previous connections of the device, with how long after
+     * the first profile each of them connected. Serialized by
+     * {@link com.android.bluetooth.btservice.ProfileConnectionHistory}, or null if the device has
+     * no history yet.
+     */
+    public String profile_connection_history;
+
     Metadata(String address) {
         this.address = address;
         migrated = false;
@@ -443,6 +451,8 @@ public class Metadata {
             .append(publicMetadata)
             .append("), hfp client audio policy(")
             .append(audioPolicyMetadata)
+            .append("), profile connection history(")
+            .append(profile_connection_history)
             .append(")}");
 
         return builder.toString();
@@ -46,6 +46,7 @@ import android.util.Pair;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileDeviceRegistry;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
@@ -90,8 +91,8 @@ public class CsipSetCoordinatorService extends ProfileService {
 
     @VisibleForTesting CsipSetCoordinatorNativeInterface mCsipSetCoordinatorNativeInterface;
 
-    private final Map<BluetoothDevice, CsipSetCoordinatorStateMachine> mStateMachines =
-            new HashMap<>();
+    private final ProfileDeviceRegistry<CsipSetCoordinatorStateMachine> mStateMachines =
+            new ProfileDeviceRegistry<>();
 
     private final Map<Integer, ParcelUuid> mGroupIdToUuidMap = new HashMap<>();
     private final Map<BluetoothDevice, Map<Integer, Integer>> mDeviceGroupIdRankMap =
@@ -149,7 +150,7 @@ public class CsipSetCoordinatorService extends ProfileService {
         mLeAudioService = mServiceFactory.getLeAudioService();
 
         // Start handler thread for state machines
-        mStateMachines.clear();
+        mStateMachines.clear(sm -> {});
         mStateMachinesThread = new HandlerThread("CsipSetCoordinatorService.StateMachines");
         mStateMachinesThread.start();
 
@@ -202,13 +203,10 @@ public class CsipSetCoordinatorService extends ProfileService {
         mConnectionStateChangedReceiver = null;
 
         // Destroy state machines and stop handler thread
-        synchronized (mStateMachines) {
-            for (CsipSetCoordinatorStateMachine sm : mStateMachines.values()) {
-                sm.doQuit();
-                sm.cleanup();
-            }
-            mStateMachines.clear();
-        }
+        mStateMachines.clear(sm -> {
+            sm.doQuit();
+            sm.cleanup();
+        });
 
         if (mStateMachinesThread != null) {
             try {
@@ -291,16 +289,16 @@ public class CsipSetCoordinatorService extends ProfileService {
             return false;
         }
 
-        synchronized (mStateMachines) {
+        // Under the device lock, so that the state machine is not removed before it is told
+        return mStateMachines.withDeviceLock(device, () -> {
             CsipSetCoordinatorStateMachine smConnect = getOrCreateStateMachine(device);
             if (smConnect == null) {
                 Log.e(TAG, "Cannot connect to " + device + " : no state machine");
                 return false;
             }
             smConnect.sendMessage(CsipSetCoordinatorStateMachine.CONNECT);
-        }
-
-        return true;
+            return true;
+        });
     }
 
     /**
@@ -316,27 +314,25 @@ public class CsipSetCoordinatorService extends ProfileService {
         if (device == null) {
             return false;
         }
-        synchronized (mStateMachines) {
+        mStateMachines.runWithDeviceLock(device, () -> {
             CsipSetCoordinatorStateMachine sm = getOrCreateStateMachine(device);
             if (sm != null) {
                 sm.sendMessage(CsipSetCoordinatorStateMachine.DISCONNECT);
             }
-        }
+        });
 
         return true;
     }
 
     public List<BluetoothDevice> getConnectedDevices() {
         enforceCallingOrSelfPermission(BLUETOOTH_CONNECT, "Need BLUETOOTH_CONNECT permission");
-        synchronized (mStateMachines) {
-            List<BluetoothDevice> devices = new ArrayList<>();
-            for (CsipSetCoordinatorStateMachine sm : mStateMachines.values()) {
-                if (sm.isConnected()) {
-                    devices.add(sm.getDevice());
-                }
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (CsipSetCoordinatorStateMachine sm : mStateMachines.values()) {
+            if (sm.isConnected()) {
+                devices.add(sm.getDevice());
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -380,26 +376,24 @@ public class CsipSetCoordinatorService extends ProfileService {
         if (bondedDevices == null) {
             return devices;
         }
-        synchronized (mStateMachines) {
-            for (BluetoothDevice device : bondedDevices) {
-                final ParcelUuid[] featureUuids = device.getUuids();
-                if (!Utils.arrayContains(featureUuids, BluetoothUuid.COORDINATED_SET)) {
-                    continue;
-                }
-                int connectionState = BluetoothProfile.STATE_DISCONNECTED;
-                CsipSetCoordinatorStateMachine sm = mStateMachines.get(device);
-                if (sm != null) {
-                    connectionState = sm.getConnectionState();
-                }
-                for (int state : states) {
-                    if (connectionState == state) {
-                        devices.add(device);
-                        break;
-                    }
+        for (BluetoothDevice device : bondedDevices) {
+            final ParcelUuid[] featureUuids = device.getUuids();
+            if (!Utils.arrayContains(featureUuids, BluetoothUuid.COORDINATED_SET)) {
+                continue;
+            }
+            int connectionState = BluetoothProfile.STATE_DISCONNECTED;
+            CsipSetCoordinatorStateMachine sm = mStateMachines.get(device);
+            if (sm != null) {
+                connectionState = sm.getConnectionState();
+            }
+            for (int state : states) {
+                if (connectionState == state) {
+                    devices.add(device);
+                    break;
                 }
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -436,12 +430,10 @@ public class CsipSetCoordinatorService extends ProfileService {
     @VisibleForTesting
     List<BluetoothDevice> getDevices() {
         List<BluetoothDevice> devices = new ArrayList<>();
-        synchronized (mStateMachines) {
-            for (CsipSetCoordinatorStateMachine sm : mStateMachines.values()) {
-                devices.add(sm.getDevice());
-            }
-            return devices;
+        for (CsipSetCoordinatorStateMachine sm : mStateMachines.values()) {
+            devices.add(sm.getDevice());
         }
+        return devices;
     }
 
     /**
@@ -455,13 +447,11 @@ public class CsipSetCoordinatorService extends ProfileService {
      */
     public int getConnectionState(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_CONNECT, "Need BLUETOOTH_CONNECT permission");
-        synchronized (mStateMachines) {
-            CsipSetCoordinatorStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return BluetoothProfile.STATE_DISCONNECTED;
-            }
-            return sm.getConnectionState();
+        CsipSetCoordinatorStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
         }
+        return sm.getConnectionState();
     }
 
     /**
@@ -893,29 +883,29 @@ public class CsipSetCoordinatorService extends ProfileService {
             sendBroadcast(intent, BLUETOOTH_PRIVILEGED);
         }
 
-        synchronized (mStateMachines) {
+        if (stackEvent.type
+                != CsipSetCoordinatorStackEvent.EVENT_TYPE_CONNECTION_STATE_CHANGED) {
+            return;
+        }
+        mStateMachines.runWithDeviceLock(device, () -> {
             CsipSetCoordinatorStateMachine sm = mStateMachines.get(device);
-
-            if (stackEvent.type
-                    == CsipSetCoordinatorStackEvent.EVENT_TYPE_CONNECTION_STATE_CHANGED) {
-                if (sm == null) {
-                    switch (stackEvent.valueInt1) {
-                        case CsipSetCoordinatorStackEvent.CONNECTION_STATE_CONNECTED:
-                        case CsipSetCoordinatorStackEvent.CONNECTION_STATE_CONNECTING:
-                            sm = getOrCreateStateMachine(device);
-                            break;
-                        default:
-                            break;
-                    }
+            if (sm == null) {
+                switch (stackEvent.valueInt1) {
+                    case CsipSetCoordinatorStackEvent.CONNECTION_STATE_CONNECTED:
+                    case CsipSetCoordinatorStackEvent.CONNECTION_STATE_CONNECTING:
+                        sm = getOrCreateStateMachine(device);
+                        break;
+                    default:
+                        break;
                 }
+            }
 
-                if (sm == null) {
-                    Log.e(TAG, "Cannot process stack event: no state machine: " + stackEvent);
-                    return;
-                }
-                sm.sendMessage(CsipSetCoordinatorStateMachine.STACK_EVENT, stackEvent);
+            if (sm == null) {
+                Log.e(TAG, "Cannot process stack event: no state machine: " + stackEvent);
+                return;
             }
-        }
+            sm.sendMessage(CsipSetCoordinatorStateMachine.STACK_EVENT, stackEvent);
+        });
     }
 
     private CsipSetCoordinatorStateMachine getOrCreateStateMachine(BluetoothDevice device) {
@@ -923,11 +913,7 @@ public class CsipSetCoordinatorService extends ProfileService {
             Log.e(TAG, "getOrCreateStateMachine failed: device cannot be null");
             return null;
         }
-        synchronized (mStateMachines) {
-            CsipSetCoordinatorStateMachine sm = mStateMachines.get(device);
-            if (sm != null) {
-                return sm;
-            }
+        return mStateMachines.getOrCreate(device, d -> {
             // Limit the maximum number of state machines to avoid DoS attack
             if (mStateMachines.size() >= MAX_CSIS_STATE_MACHINES) {
                 Log.e(TAG,
@@ -936,13 +922,11 @@ public class CsipSetCoordinatorService extends ProfileService {
                 return null;
             }
             if (DBG) {
-                Log.d(TAG, "Creating a new state machine for " + device);
+                Log.d(TAG, "Creating a new state machine for " + d);
             }
-            sm = CsipSetCoordinatorStateMachine.make(device, this,
+            return CsipSetCoordinatorStateMachine.make(d, this,
                     mCsipSetCoordinatorNativeInterface, mStateMachinesThread.getLooper());
-            mStateMachines.put(device, sm);
-            return sm;
-        }
+        });
     }
 
     // Remove state machine if the bonding for a device is removed
@@ -986,10 +970,11 @@ public class CsipSetCoordinatorService extends ProfileService {
         mDeviceGroupIdRankMap.remove(device);
         for (Map.Entry<Integer, Set<BluetoothDevice>> entry:
                 mGroupIdToConnectedDevices.entrySet()) {
-            entry.getValue().remove(device);
+            mStateMachines.runWithGroupLock(entry.getKey(),
+                    () -> entry.getValue().remove(device));
         }
 
-        synchronized (mStateMachines) {
+        mStateMachines.runWithDeviceLock(device, () -> {
             CsipSetCoordinatorStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
                 return;
@@ -1000,21 +985,18 @@ public class CsipSetCoordinatorService extends ProfileService {
                 return;
             }
             removeStateMachine(device);
-        }
+        });
     }
 
     private void removeStateMachine(BluetoothDevice device) {
-        synchronized (mStateMachines) {
-            CsipSetCoordinatorStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                Log.w(TAG,
-                        "removeStateMachine: device " + device + " does not have a state machine");
-                return;
-            }
+        boolean removed = mStateMachines.remove(device, sm -> {
             Log.i(TAG, "removeStateMachine: removing state machine for device: " + device);
             sm.doQuit();
             sm.cleanup();
-            mStateMachines.remove(device);
+        });
+        if (!removed) {
+            Log.w(TAG,
+                    "removeStateMachine: device " + device + " does not have a state machine");
         }
     }
 
@@ -1038,16 +1020,20 @@ public class CsipSetCoordinatorService extends ProfileService {
             }
         } else if (toState == BluetoothProfile.STATE_CONNECTED) {
             int groupId = getGroupId(device, BluetoothUuid.CAP);
-            if (!mGroupIdToConnectedDevices.containsKey(groupId)) {
-                mGroupIdToConnectedDevices.put(groupId, new HashSet<>());
-            }
-            for (Map.Entry<BluetoothDevice, Integer> entry : mFoundSetMemberToGroupId.entrySet()) {
-                if (entry.getValue() == groupId) {
-                    notifySetMemberAvailable(entry.getKey(), groupId);
+            // Under the lock of the group, as the connection policy of all its members can change
+            mStateMachines.runWithGroupLock(groupId, () -> {
+                if (!mGroupIdToConnectedDevices.containsKey(groupId)) {
+                    mGroupIdToConnectedDevices.put(groupId, new HashSet<>());
                 }
-            }
-            mGroupIdToConnectedDevices.get(groupId).add(device);
-            disableCsipIfNeeded(groupId);
+                for (Map.Entry<BluetoothDevice, Integer> entry
+                        : mFoundSetMemberToGroupId.entrySet()) {
+                    if (entry.getValue() == groupId) {
+                        notifySetMemberAvailable(entry.getKey(), groupId);
+                    }
+                }
+                mGroupIdToConnectedDevices.get(groupId).add(device);
+                disableCsipIfNeeded(groupId);
+            });
         }
     }
 
@@ -1363,6 +1349,7 @@ public class CsipSetCoordinatorService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        mStateMachines.dump(sb);
         for (CsipSetCoordinatorStateMachine sm : mStateMachines.values()) {
             sm.dump(sb);
         }
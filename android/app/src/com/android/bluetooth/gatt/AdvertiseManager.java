@@ -20,6 +20,8 @@ import static android.bluetooth.BluetoothProtoEnums.LE_ADV_ERROR_ON_START_COUNT;
 
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
 import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.IAdvertisingSetCallback;
 import android.bluetooth.le.PeriodicAdvertisingParameters;
@@ -35,8 +37,11 @@ import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.gatt.GattService.AdvertiserMap;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -52,8 +57,14 @@ public class AdvertiseManager {
     private final GattService mService;
     private final AdapterService mAdapterService;
     private final AdvertiserMap mAdvertiserMap;
-    private Handler mHandler;
+    @VisibleForTesting
+    Handler mHandler;
     Map<IBinder, AdvertiserInfo> mAdvertisers = Collections.synchronizedMap(new HashMap<>());
+    Map<Integer, DataRotation> mDataRotations = Collections.synchronizedMap(new HashMap<>());
+    /* Origin of the advertising data updates waiting for their result, per advertiser, in the
+     * order they were sent: the rotation which sent it, or null for a setAdvertisingData() call.
+     * Guarded by mDataRotations. */
+    private final Map<Integer, LinkedList<DataRotation>> mPendingDataSets = new HashMap<>();
     static int sTempRegistrationId = -1;
 
     /**
@@ -85,6 +96,10 @@ public class AdvertiseManager {
         }
         cleanupNative();
         mAdvertisers.clear();
+        synchronized (mDataRotations) {
+            mDataRotations.clear();
+            mPendingDataSets.clear();
+        }
         sTempRegistrationId = -1;
 
         if (mHandler != null) {
@@ -113,6 +128,45 @@ public class AdvertiseManager {
         }
     }
 
+    /**
+     * Advertising data of an advertising set, rotated through pre-serialized payloads on the
+     * advertising handler thread, without waking up the app for each update.
+     */
+    class DataRotation implements Runnable {
+        final int mAdvertiserId;
+        final List<AdvertiseData> mData;
+        final byte[][] mPayloads;
+        final long mIntervalMillis;
+        private int mNext = 0;
+        /* Only the result of the first update is reported to the app, like for a single
+         * setAdvertisingData() call. Failures are always reported and stop the rotation. */
+        volatile boolean mReportResult = true;
+
+        DataRotation(int advertiserId, List<AdvertiseData> data, byte[][] payloads,
+                long intervalMillis) {
+            mAdvertiserId = advertiserId;
+            mData = data;
+            mPayloads = payloads;
+            mIntervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void run() {
+            /* Checked and pushed under the lock taken by stopDataRotation(), so that a stopped
+             * rotation cannot overwrite the data set by the app right after. */
+            synchronized (mDataRotations) {
+                if (mDataRotations.get(mAdvertiserId) != this) {
+                    return;
+                }
+                addPendingDataSet(mAdvertiserId, this);
+                setAdvertisingDataNative(mAdvertiserId, mPayloads[mNext]);
+                mAdvertiserMap.setAdvertisingData(mAdvertiserId, mData.get(mNext));
+            }
+            mNext = (mNext + 1) % mPayloads.length;
+            mHandler.postDelayed(this, mIntervalMillis);
+        }
+    }
+
     IBinder toBinder(IAdvertisingSetCallback e) {
         return ((IInterface) e).asBinder();
     }
@@ -313,6 +367,10 @@ public class AdvertiseManager {
             return;
         }
 
+        stopDataRotation(advertiserId);
+        synchronized (mDataRotations) {
+            mPendingDataSets.remove(advertiserId);
+        }
         stopAdvertisingSetNative(advertiserId);
 
         try {
@@ -342,19 +400,105 @@ public class AdvertiseManager {
             Log.w(TAG, "setAdvertisingData() - bad advertiserId " + advertiserId);
             return;
         }
+        stopDataRotation(advertiserId);
         String deviceName = AdapterService.getAdapterService().getName();
         try {
-            setAdvertisingDataNative(advertiserId,
-                    AdvertiseHelper.advertiseDataToBytes(data, deviceName));
+            byte[] payload = AdvertiseHelper.advertiseDataToBytes(data, deviceName);
+            synchronized (mDataRotations) {
+                addPendingDataSet(advertiserId, null);
+                setAdvertisingDataNative(advertiserId, payload);
+            }
 
             mAdvertiserMap.setAdvertisingData(advertiserId, data);
         } catch (IllegalArgumentException e) {
             try {
-                onAdvertisingDataSet(advertiserId,
+                reportAdvertisingDataSet(advertiserId,
+                        AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE);
+            } catch (Exception exception) {
+                Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+            }
+        }
+    }
+
+    /**
+     * Rotates the advertising data through the given payloads, one every interval, until the
+     * advertising set is stopped, its advertising data is set or another rotation is requested.
+     * An empty list only stops the current rotation.
+     *
+     * <p>The interval runs on the uptime clock of {@link #mHandler}, so the rotation pauses while
+     * the device is suspended. Waking the device up for each payload would cost more than the
+     * rotation saves.
+     */
+    void setAdvertisingDataRotation(int advertiserId, List<AdvertiseData> data,
+            long intervalMillis) {
+        Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiserId);
+        if (entry == null) {
+            Log.w(TAG, "setAdvertisingDataRotation() - bad advertiserId " + advertiserId);
+            return;
+        }
+        stopDataRotation(advertiserId);
+        if (data == null || data.isEmpty()) {
+            return;
+        }
+        if (data.size() > AdvertisingSet.MAX_DATA_ROTATION_PAYLOADS) {
+            Log.w(TAG, "setAdvertisingDataRotation() - too many payloads: " + data.size());
+            try {
+                reportAdvertisingDataSet(advertiserId,
+                        AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE);
+            } catch (Exception exception) {
+                Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
+            }
+            return;
+        }
+        if (mHandler == null) {
+            Log.w(TAG, "setAdvertisingDataRotation() - not started");
+            return;
+        }
+
+        // Serialize once, the payloads are then only pushed to the controller
+        String deviceName = AdapterService.getAdapterService().getName();
+        byte[][] payloads = new byte[data.size()][];
+        try {
+            for (int i = 0; i < payloads.length; i++) {
+                payloads[i] = AdvertiseHelper.advertiseDataToBytes(data.get(i), deviceName);
+            }
+        } catch (IllegalArgumentException e) {
+            try {
+                reportAdvertisingDataSet(advertiserId,
                         AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE);
             } catch (Exception exception) {
                 Log.e(TAG, "Failed to callback:" + Log.getStackTraceString(exception));
             }
+            return;
+        }
+
+        if (DBG) {
+            Log.d(TAG, "setAdvertisingDataRotation() - advertiserId=" + advertiserId
+                    + ", payloads=" + payloads.length + ", interval=" + intervalMillis);
+        }
+        DataRotation rotation = new DataRotation(advertiserId, new ArrayList<>(data), payloads,
+                Math.max(intervalMillis, AdvertisingSet.MIN_DATA_ROTATION_INTERVAL_MILLIS));
+        mDataRotations.put(advertiserId, rotation);
+        mHandler.post(rotation);
+    }
+
+    // Called holding mDataRotations, right before an advertising data update is sent
+    private void addPendingDataSet(int advertiserId, DataRotation rotation) {
+        mPendingDataSets.computeIfAbsent(advertiserId, id -> new LinkedList<>()).add(rotation);
+    }
+
+    /**
+     * Stops the data rotation of the advertising set. Once this returns, the rotation can no
+     * longer push a payload to the controller.
+     */
+    private void stopDataRotation(int advertiserId) {
+        DataRotation rotation;
+        synchronized (mDataRotations) {
+            rotation = mDataRotations.remove(advertiserId);
+        }
+        Handler handler = mHandler;
+        if (rotation != null && handler != null) {
+            handler.removeCallbacks(rotation);
         }
     }
 
@@ -440,6 +584,37 @@ public class AdvertiseManager {
                     "onAdvertisingDataSet() advertiserId=" + advertiserId + ", status=" + status);
         }
 
+        // The controller answers the updates of an advertiser in the order they were sent
+        DataRotation rotation;
+        boolean current;
+        synchronized (mDataRotations) {
+            LinkedList<DataRotation> pending = mPendingDataSets.get(advertiserId);
+            DataRotation currentRotation = mDataRotations.get(advertiserId);
+            rotation = pending == null || pending.isEmpty() ? currentRotation : pending.poll();
+            current = rotation == currentRotation;
+        }
+        if (rotation != null) {
+            if (!current) {
+                // Stopped or replaced since, only its first result is still owed to the app
+                if (!rotation.mReportResult) {
+                    if (DBG) {
+                        Log.d(TAG, "onAdvertisingDataSet() - dropping result of a stopped "
+                                + "rotation, advertiserId=" + advertiserId);
+                    }
+                    return;
+                }
+            } else if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                stopDataRotation(advertiserId);
+            } else if (!rotation.mReportResult) {
+                return;
+            }
+            rotation.mReportResult = false;
+        }
+
+        reportAdvertisingDataSet(advertiserId, status);
+    }
+
+    private void reportAdvertisingDataSet(int advertiserId, int status) throws Exception {
         Map.Entry<IBinder, AdvertiserInfo> entry = findAdvertiser(advertiserId);
         if (entry == null) {
             Log.i(TAG, "onAdvertisingDataSet() - bad advertiserId " + advertiserId);
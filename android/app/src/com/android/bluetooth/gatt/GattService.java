@@ -1588,6 +1588,27 @@ public class GattService extends ProfileService {
             service.setAdvertisingData(advertiserId, data, attributionSource);
         }
 
+        @Override
+        public void setAdvertisingDataRotation(int advertiserId, List<AdvertiseData> data,
+                long intervalMillis, AttributionSource attributionSource,
+                SynchronousResultReceiver receiver) {
+            try {
+                setAdvertisingDataRotation(advertiserId, data, intervalMillis, attributionSource);
+                receiver.send(null);
+            } catch (RuntimeException e) {
+                receiver.propagateException(e);
+            }
+        }
+        private void setAdvertisingDataRotation(int advertiserId, List<AdvertiseData> data,
+                long intervalMillis, AttributionSource attributionSource) {
+            GattService service = getService();
+            if (service == null) {
+                return;
+            }
+            service.setAdvertisingDataRotation(advertiserId, data, intervalMillis,
+                    attributionSource);
+        }
+
         @Override
         public void setScanResponseData(int advertiserId, AdvertiseData data,
                 AttributionSource attributionSource, SynchronousResultReceiver receiver) {
@@ -3559,6 +3580,16 @@ public class GattService extends ProfileService {
         mAdvertiseManager.setAdvertisingData(advertiserId, data);
     }
 
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_ADVERTISE)
+    void setAdvertisingDataRotation(int advertiserId, List<AdvertiseData> data,
+            long intervalMillis, AttributionSource attributionSource) {
+        if (!Utils.checkAdvertisePermissionForDataDelivery(
+                this, attributionSource, "GattService setAdvertisingDataRotation")) {
+            return;
+        }
+        mAdvertiseManager.setAdvertisingDataRotation(advertiserId, data, intervalMillis);
+    }
+
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_ADVERTISE)
     void setScanResponseData(
             int advertiserId, AdvertiseData data, AttributionSource attributionSource) {
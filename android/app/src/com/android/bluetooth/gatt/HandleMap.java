@@ -16,11 +16,13 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseIntArray;
 
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 class HandleMap {
@@ -83,68 +85,85 @@ class HandleMap {
     }
 
     List<Entry> mEntries = null;
-    Map<Integer, Integer> mRequestMap = null;
+    @GuardedBy("mRequestMap")
+    SparseIntArray mRequestMap = null;
     int mLastCharacteristic = 0;
 
+    // Entries indexed by attribute handle. ATT handles are 16 bits and allocated contiguously, so
+    // a dense array is small. It is replaced rather than modified, so lookups don't need a lock.
+    private volatile Entry[] mHandleIndex = new Entry[0];
+
     HandleMap() {
         mEntries = new CopyOnWriteArrayList<Entry>();
-        mRequestMap = new ConcurrentHashMap<Integer, Integer>();
+        mRequestMap = new SparseIntArray();
     }
 
-    void clear() {
+    synchronized void clear() {
         mEntries.clear();
-        mRequestMap.clear();
+        mHandleIndex = new Entry[0];
+        synchronized (mRequestMap) {
+            mRequestMap.clear();
+        }
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
             boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        addEntry(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+        addEntry(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
                 mLastCharacteristic));
     }
 
-    void setStarted(int serverIf, int handle, boolean started) {
-        for (Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE || entry.serverIf != serverIf
-                    || entry.handle != handle) {
-                continue;
-            }
+    private synchronized void addEntry(Entry entry) {
+        mEntries.add(entry);
+        Entry[] index = mHandleIndex;
+        if (entry.handle < 0) {
+            return;
+        }
+        if (entry.handle >= index.length) {
+            index = Arrays.copyOf(index, entry.handle + 1);
+        } else if (index[entry.handle] == null) {
+            index = index.clone();
+        } else {
+            // The first entry added for a handle is the one looked up
+            return;
+        }
+        index[entry.handle] = entry;
+        mHandleIndex = index;
+    }
 
-            entry.started = started;
+    void setStarted(int serverIf, int handle, boolean started) {
+        Entry entry = lookup(handle);
+        if (entry == null || entry.type != TYPE_SERVICE || entry.serverIf != serverIf) {
             return;
         }
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.handle == handle) {
-                return entry;
-            }
+        Entry entry = lookup(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     boolean checkServiceExists(UUID uuid, int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE && entry.handle == handle && entry.uuid.equals(uuid)) {
-                return true;
-            }
-        }
-        return false;
+        Entry entry = lookup(handle);
+        return entry != null && entry.type == TYPE_SERVICE && entry.uuid.equals(uuid);
     }
 
-    void deleteService(int serverIf, int serviceHandle) {
+    synchronized void deleteService(int serverIf, int serviceHandle) {
         mEntries.removeIf(entry -> ((entry.serverIf == serverIf)
                 && (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle)));
+        rebuildHandleIndex();
     }
 
     List<Entry> getEntries() {
@@ -152,29 +171,58 @@ class HandleMap {
     }
 
     void addRequest(int requestId, int handle) {
-        mRequestMap.put(requestId, handle);
+        synchronized (mRequestMap) {
+            mRequestMap.put(requestId, handle);
+        }
     }
 
     void deleteRequest(int requestId) {
-        mRequestMap.remove(requestId);
+        synchronized (mRequestMap) {
+            mRequestMap.delete(requestId);
+        }
     }
 
     Entry getByRequestId(int requestId) {
-        Integer handle = mRequestMap.get(requestId);
-        if (handle == null) {
-            Log.e(TAG, "getByRequestId() - Request ID " + requestId + " not found!");
-            return null;
+        int handle;
+        synchronized (mRequestMap) {
+            int i = mRequestMap.indexOfKey(requestId);
+            if (i < 0) {
+                Log.e(TAG, "getByRequestId() - Request ID " + requestId + " not found!");
+                return null;
+            }
+            handle = mRequestMap.valueAt(i);
         }
         return getByHandle(handle);
     }
 
+    private Entry lookup(int handle) {
+        Entry[] index = mHandleIndex;
+        return handle >= 0 && handle < index.length ? index[handle] : null;
+    }
+
+    @GuardedBy("this")
+    private void rebuildHandleIndex() {
+        int maxHandle = -1;
+        for (Entry entry : mEntries) {
+            maxHandle = Math.max(maxHandle, entry.handle);
+        }
+        Entry[] index = new Entry[maxHandle + 1];
+        for (Entry entry : mEntries) {
+            if (entry.handle >= 0 && index[entry.handle] == null) {
+                index[entry.handle] = entry;
+            }
+        }
+        mHandleIndex = index;
+    }
 
     /**
      * Logs debug information.
      */
     void dump(StringBuilder sb) {
         sb.append("  Entries: " + mEntries.size() + "\n");
-        sb.append("  Requests: " + mRequestMap.size() + "\n");
+        synchronized (mRequestMap) {
+            sb.append("  Requests: " + mRequestMap.size() + "\n");
+        }
 
         for (Entry entry : mEntries) {
             sb.append("  " + entry.serverIf + ": [" + entry.handle + "] ");
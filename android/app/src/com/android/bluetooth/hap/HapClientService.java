@@ -47,6 +47,7 @@ import android.util.Log;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileDeviceRegistry;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
@@ -75,8 +76,8 @@ public class HapClientService extends ProfileService {
     private static final int MAX_HEARING_ACCESS_STATE_MACHINES = 10;
     private static final int SM_THREAD_JOIN_TIMEOUT_MS = 1000;
     private static HapClientService sHapClient;
-    private final Map<BluetoothDevice, HapClientStateMachine> mStateMachines =
-            new HashMap<>();
+    private final ProfileDeviceRegistry<HapClientStateMachine> mStateMachines =
+            new ProfileDeviceRegistry<>();
     @VisibleForTesting
     HapClientNativeInterface mHapClientNativeInterface;
     private AdapterService mAdapterService;
@@ -165,7 +166,7 @@ public class HapClientService extends ProfileService {
                 "HapClientNativeInterface cannot be null when HapClientService starts");
 
         // Start handler thread for state machines
-        mStateMachines.clear();
+        mStateMachines.clear(sm -> {});
         mStateMachinesThread = new HandlerThread("HapClientService.StateMachines");
         mStateMachinesThread.start();
 
@@ -212,13 +213,10 @@ public class HapClientService extends ProfileService {
         mConnectionStateChangedReceiver = null;
 
         // Destroy state machines and stop handler thread
-        synchronized (mStateMachines) {
-            for (HapClientStateMachine sm : mStateMachines.values()) {
-                sm.doQuit();
-                sm.cleanup();
-            }
-            mStateMachines.clear();
-        }
+        mStateMachines.clear(sm -> {
+            sm.doQuit();
+            sm.cleanup();
+        });
 
         if (mStateMachinesThread != null) {
             try {
@@ -264,7 +262,7 @@ public class HapClientService extends ProfileService {
         mDeviceFeaturesMap.remove(device);
         mPresetsMap.remove(device);
 
-        synchronized (mStateMachines) {
+        mStateMachines.runWithDeviceLock(device, () -> {
             HapClientStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
                 return;
@@ -275,21 +273,18 @@ public class HapClientService extends ProfileService {
                 return;
             }
             removeStateMachine(device);
-        }
+        });
     }
 
     private void removeStateMachine(BluetoothDevice device) {
-        synchronized (mStateMachines) {
-            HapClientStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                Log.w(TAG, "removeStateMachine: device " + device
-                        + " does not have a state machine");
-                return;
-            }
+        boolean removed = mStateMachines.remove(device, sm -> {
             Log.i(TAG, "removeStateMachine: removing state machine for device: " + device);
             sm.doQuit();
             sm.cleanup();
-            mStateMachines.remove(device);
+        });
+        if (!removed) {
+            Log.w(TAG, "removeStateMachine: device " + device
+                    + " does not have a state machine");
         }
     }
 
@@ -303,38 +298,34 @@ public class HapClientService extends ProfileService {
         if (bondedDevices == null) {
             return devices;
         }
-        synchronized (mStateMachines) {
-            for (BluetoothDevice device : bondedDevices) {
-                final ParcelUuid[] featureUuids = device.getUuids();
-                if (!Utils.arrayContains(featureUuids, BluetoothUuid.HAS)) {
-                    continue;
-                }
-                int connectionState = BluetoothProfile.STATE_DISCONNECTED;
-                HapClientStateMachine sm = mStateMachines.get(device);
-                if (sm != null) {
-                    connectionState = sm.getConnectionState();
-                }
-                for (int state : states) {
-                    if (connectionState == state) {
-                        devices.add(device);
-                        break;
-                    }
+        for (BluetoothDevice device : bondedDevices) {
+            final ParcelUuid[] featureUuids = device.getUuids();
+            if (!Utils.arrayContains(featureUuids, BluetoothUuid.HAS)) {
+                continue;
+            }
+            int connectionState = BluetoothProfile.STATE_DISCONNECTED;
+            HapClientStateMachine sm = mStateMachines.get(device);
+            if (sm != null) {
+                connectionState = sm.getConnectionState();
+            }
+            for (int state : states) {
+                if (connectionState == state) {
+                    devices.add(device);
+                    break;
                 }
             }
-            return devices;
         }
+        return devices;
     }
 
     List<BluetoothDevice> getConnectedDevices() {
-        synchronized (mStateMachines) {
-            List<BluetoothDevice> devices = new ArrayList<>();
-            for (HapClientStateMachine sm : mStateMachines.values()) {
-                if (sm.isConnected()) {
-                    devices.add(sm.getDevice());
-                }
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (HapClientStateMachine sm : mStateMachines.values()) {
+            if (sm.isConnected()) {
+                devices.add(sm.getDevice());
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -348,13 +339,11 @@ public class HapClientService extends ProfileService {
      */
     public int getConnectionState(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_CONNECT, "Need BLUETOOTH_CONNECT permission");
-        synchronized (mStateMachines) {
-            HapClientStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return BluetoothProfile.STATE_DISCONNECTED;
-            }
-            return sm.getConnectionState();
+        HapClientStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
         }
+        return sm.getConnectionState();
     }
 
     /**
@@ -479,15 +468,16 @@ public class HapClientService extends ProfileService {
                     + " : Remote does not have Hearing Access Service UUID");
             return false;
         }
-        synchronized (mStateMachines) {
+        // Under the device lock, so that the state machine is not removed before it is told
+        return mStateMachines.withDeviceLock(device, () -> {
             HapClientStateMachine smConnect = getOrCreateStateMachine(device);
             if (smConnect == null) {
                 Log.e(TAG, "Cannot connect to " + device + " : no state machine");
+                return false;
             }
             smConnect.sendMessage(HapClientStateMachine.CONNECT);
-        }
-
-        return true;
+            return true;
+        });
     }
 
     /**
@@ -505,12 +495,12 @@ public class HapClientService extends ProfileService {
         if (device == null) {
             return false;
         }
-        synchronized (mStateMachines) {
+        mStateMachines.runWithDeviceLock(device, () -> {
             HapClientStateMachine sm = mStateMachines.get(device);
             if (sm != null) {
                 sm.sendMessage(HapClientStateMachine.DISCONNECT);
             }
-        }
+        });
 
         return true;
     }
@@ -520,11 +510,7 @@ public class HapClientService extends ProfileService {
             Log.e(TAG, "getOrCreateStateMachine failed: device cannot be null");
             return null;
         }
-        synchronized (mStateMachines) {
-            HapClientStateMachine sm = mStateMachines.get(device);
-            if (sm != null) {
-                return sm;
-            }
+        return mStateMachines.getOrCreate(device, d -> {
             // Limit the maximum number of state machines to avoid DoS attack
             if (mStateMachines.size() >= MAX_HEARING_ACCESS_STATE_MACHINES) {
                 Log.e(TAG, "Maximum number of HearingAccess state machines reached: "
@@ -532,13 +518,11 @@ public class HapClientService extends ProfileService {
                 return null;
             }
             if (DBG) {
-                Log.d(TAG, "Creating a new state machine for " + device);
+                Log.d(TAG, "Creating a new state machine for " + d);
             }
-            sm = HapClientStateMachine.make(device, this,
+            return HapClientStateMachine.make(d, this,
                     mHapClientNativeInterface, mStateMachinesThread.getLooper());
-            mStateMachines.put(device, sm);
-            return sm;
-        }
+        });
     }
 
     /**
@@ -997,6 +981,7 @@ public class HapClientService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        mStateMachines.dump(sb);
         for (HapClientStateMachine sm : mStateMachines.values()) {
             sm.dump(sb);
         }
@@ -1184,8 +1169,8 @@ public class HapClientService extends ProfileService {
     }
 
     private void resendToStateMachine(HapClientStackEvent stackEvent) {
-        synchronized (mStateMachines) {
-            BluetoothDevice device = stackEvent.device;
+        BluetoothDevice device = stackEvent.device;
+        mStateMachines.runWithDeviceLock(device, () -> {
             HapClientStateMachine sm = mStateMachines.get(device);
 
             if (sm == null) {
@@ -1205,7 +1190,7 @@ public class HapClientService extends ProfileService {
                 return;
             }
             sm.sendMessage(HapClientStateMachine.STACK_EVENT, stackEvent);
-        }
+        });
     }
 
     /**
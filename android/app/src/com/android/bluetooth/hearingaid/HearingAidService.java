@@ -49,9 +49,12 @@ import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.MetricsLogger;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
+import com.android.bluetooth.btservice.ProfileDeviceRegistry;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.modules.utils.SynchronousResultReceiver;
 
@@ -80,6 +83,10 @@ public class HearingAidService extends ProfileService {
     private AdapterService mAdapterService;
     private DatabaseManager mDatabaseManager;
     private HandlerThread mStateMachinesThread;
+    // Guards the active device only, the state machines are created and removed under the
+    // lock of their device in mStateMachines, and of their HiSyncId for both sides at once
+    private final Object mActiveDeviceLock = new Object();
+    @GuardedBy("mActiveDeviceLock")
     private BluetoothDevice mActiveDevice;
 
     @VisibleForTesting
@@ -87,11 +94,12 @@ public class HearingAidService extends ProfileService {
     @VisibleForTesting
     AudioManager mAudioManager;
 
-    private final Map<BluetoothDevice, HearingAidStateMachine> mStateMachines =
-            new HashMap<>();
+    private final ProfileDeviceRegistry<HearingAidStateMachine> mStateMachines =
+            new ProfileDeviceRegistry<>();
     private final Map<BluetoothDevice, Long> mDeviceHiSyncIdMap = new ConcurrentHashMap<>();
     private final Map<BluetoothDevice, Integer> mDeviceCapabilitiesMap = new HashMap<>();
     private final Map<Long, Boolean> mHiSyncIdConnectedMap = new HashMap<>();
+    @GuardedBy("mActiveDeviceLock")
     private long mActiveDeviceHiSyncId = BluetoothHearingAid.HI_SYNC_ID_INVALID;
 
     private BroadcastReceiver mBondStateChangedReceiver;
@@ -140,7 +148,7 @@ public class HearingAidService extends ProfileService {
                 "AudioManager cannot be null when HearingAidService starts");
 
         // Start handler thread for state machines
-        mStateMachines.clear();
+        mStateMachines.clear(sm -> {});
         mStateMachinesThread = new HandlerThread("HearingAidService.StateMachines");
         mStateMachinesThread.start();
 
@@ -194,13 +202,10 @@ public class HearingAidService extends ProfileService {
         mBondStateChangedReceiver = null;
 
         // Destroy state machines and stop handler thread
-        synchronized (mStateMachines) {
-            for (HearingAidStateMachine sm : mStateMachines.values()) {
-                sm.doQuit();
-                sm.cleanup();
-            }
-            mStateMachines.clear();
-        }
+        mStateMachines.clear(sm -> {
+            sm.doQuit();
+            sm.cleanup();
+        });
 
         // Clear HiSyncId map, capabilities map and HiSyncId Connected map
         mDeviceHiSyncIdMap.clear();
@@ -289,43 +294,63 @@ public class HearingAidService extends ProfileService {
         long hiSyncId = mDeviceHiSyncIdMap.getOrDefault(device,
                 BluetoothHearingAid.HI_SYNC_ID_INVALID);
 
-        if (hiSyncId != mActiveDeviceHiSyncId
+        long activeDeviceHiSyncId;
+        synchronized (mActiveDeviceLock) {
+            activeDeviceHiSyncId = mActiveDeviceHiSyncId;
+        }
+        if (hiSyncId != activeDeviceHiSyncId
                 && hiSyncId != BluetoothHearingAid.HI_SYNC_ID_INVALID
-                && mActiveDeviceHiSyncId != BluetoothHearingAid.HI_SYNC_ID_INVALID) {
+                && activeDeviceHiSyncId != BluetoothHearingAid.HI_SYNC_ID_INVALID) {
             for (BluetoothDevice connectedDevice : getConnectedDevices()) {
                 disconnect(connectedDevice);
             }
         }
 
-        synchronized (mStateMachines) {
-            HearingAidStateMachine smConnect = getOrCreateStateMachine(device);
-            if (smConnect == null) {
+        // Both sides are connected under the lock of their HiSyncId, so that a disconnect of the
+        // pair cannot interleave
+        return mStateMachines.withGroupLock(hiSyncId, () -> {
+            if (!sendToStateMachine(device, HearingAidStateMachine.CONNECT, true)) {
                 Log.e(TAG, "Cannot connect to " + device + " : no state machine");
+                return false;
             }
-            smConnect.sendMessage(HearingAidStateMachine.CONNECT);
-        }
 
-        for (BluetoothDevice storedDevice : mDeviceHiSyncIdMap.keySet()) {
-            if (device.equals(storedDevice)) {
-                continue;
-            }
-            if (mDeviceHiSyncIdMap.getOrDefault(storedDevice,
-                    BluetoothHearingAid.HI_SYNC_ID_INVALID) == hiSyncId) {
-                synchronized (mStateMachines) {
-                    HearingAidStateMachine sm = getOrCreateStateMachine(storedDevice);
-                    if (sm == null) {
+            for (BluetoothDevice storedDevice : mDeviceHiSyncIdMap.keySet()) {
+                if (device.equals(storedDevice)) {
+                    continue;
+                }
+                if (mDeviceHiSyncIdMap.getOrDefault(storedDevice,
+                        BluetoothHearingAid.HI_SYNC_ID_INVALID) == hiSyncId) {
+                    if (!sendToStateMachine(storedDevice, HearingAidStateMachine.CONNECT, true)) {
                         Log.e(TAG, "Ignored connect request for " + device + " : no state machine");
                         continue;
                     }
-                    sm.sendMessage(HearingAidStateMachine.CONNECT);
-                }
-                if (hiSyncId == BluetoothHearingAid.HI_SYNC_ID_INVALID
-                        && !device.equals(storedDevice)) {
-                    break;
+                    if (hiSyncId == BluetoothHearingAid.HI_SYNC_ID_INVALID
+                            && !device.equals(storedDevice)) {
+                        break;
+                    }
                 }
             }
-        }
-        return true;
+            return true;
+        });
+    }
+
+    /**
+     * Sends a message to the state machine of a device, holding the lock of the device so that
+     * the state machine is not removed before it is told.
+     *
+     * @param create whether to create the state machine if the device has none
+     * @return false if the device has no state machine
+     */
+    private boolean sendToStateMachine(BluetoothDevice device, int what, boolean create) {
+        return mStateMachines.withDeviceLock(device, () -> {
+            HearingAidStateMachine sm = create
+                    ? getOrCreateStateMachine(device) : mStateMachines.get(device);
+            if (sm == null) {
+                return false;
+            }
+            sm.sendMessage(what);
+            return true;
+        });
     }
 
     /**
@@ -347,37 +372,34 @@ public class HearingAidService extends ProfileService {
         long hiSyncId = mDeviceHiSyncIdMap.getOrDefault(device,
                 BluetoothHearingAid.HI_SYNC_ID_INVALID);
 
-        for (BluetoothDevice storedDevice : mDeviceHiSyncIdMap.keySet()) {
-            if (mDeviceHiSyncIdMap.getOrDefault(storedDevice,
-                    BluetoothHearingAid.HI_SYNC_ID_INVALID) == hiSyncId) {
-                synchronized (mStateMachines) {
-                    HearingAidStateMachine sm = mStateMachines.get(storedDevice);
-                    if (sm == null) {
+        mStateMachines.runWithGroupLock(hiSyncId, () -> {
+            for (BluetoothDevice storedDevice : mDeviceHiSyncIdMap.keySet()) {
+                if (mDeviceHiSyncIdMap.getOrDefault(storedDevice,
+                        BluetoothHearingAid.HI_SYNC_ID_INVALID) == hiSyncId) {
+                    if (!sendToStateMachine(storedDevice, HearingAidStateMachine.DISCONNECT,
+                            false)) {
                         Log.e(TAG, "Ignored disconnect request for " + device
                                 + " : no state machine");
                         continue;
                     }
-                    sm.sendMessage(HearingAidStateMachine.DISCONNECT);
-                }
-                if (hiSyncId == BluetoothHearingAid.HI_SYNC_ID_INVALID
-                        && !device.equals(storedDevice)) {
-                    break;
+                    if (hiSyncId == BluetoothHearingAid.HI_SYNC_ID_INVALID
+                            && !device.equals(storedDevice)) {
+                        break;
+                    }
                 }
             }
-        }
+        });
         return true;
     }
 
     List<BluetoothDevice> getConnectedDevices() {
-        synchronized (mStateMachines) {
-            List<BluetoothDevice> devices = new ArrayList<>();
-            for (HearingAidStateMachine sm : mStateMachines.values()) {
-                if (sm.isConnected()) {
-                    devices.add(sm.getDevice());
-                }
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (HearingAidStateMachine sm : mStateMachines.values()) {
+            if (sm.isConnected()) {
+                devices.add(sm.getDevice());
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -437,26 +459,24 @@ public class HearingAidService extends ProfileService {
         if (bondedDevices == null) {
             return devices;
         }
-        synchronized (mStateMachines) {
-            for (BluetoothDevice device : bondedDevices) {
-                final ParcelUuid[] featureUuids = device.getUuids();
-                if (!Utils.arrayContains(featureUuids, BluetoothUuid.HEARING_AID)) {
-                    continue;
-                }
-                int connectionState = BluetoothProfile.STATE_DISCONNECTED;
-                HearingAidStateMachine sm = mStateMachines.get(device);
-                if (sm != null) {
-                    connectionState = sm.getConnectionState();
-                }
-                for (int state : states) {
-                    if (connectionState == state) {
-                        devices.add(device);
-                        break;
-                    }
+        for (BluetoothDevice device : bondedDevices) {
+            final ParcelUuid[] featureUuids = device.getUuids();
+            if (!Utils.arrayContains(featureUuids, BluetoothUuid.HEARING_AID)) {
+                continue;
+            }
+            int connectionState = BluetoothProfile.STATE_DISCONNECTED;
+            HearingAidStateMachine sm = mStateMachines.get(device);
+            if (sm != null) {
+                connectionState = sm.getConnectionState();
+            }
+            for (int state : states) {
+                if (connectionState == state) {
+                    devices.add(device);
+                    break;
                 }
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -467,12 +487,10 @@ public class HearingAidService extends ProfileService {
     @VisibleForTesting
     List<BluetoothDevice> getDevices() {
         List<BluetoothDevice> devices = new ArrayList<>();
-        synchronized (mStateMachines) {
-            for (HearingAidStateMachine sm : mStateMachines.values()) {
-                devices.add(sm.getDevice());
-            }
-            return devices;
+        for (HearingAidStateMachine sm : mStateMachines.values()) {
+            devices.add(sm.getDevice());
         }
+        return devices;
     }
 
     /**
@@ -495,13 +513,11 @@ public class HearingAidService extends ProfileService {
      * {@link BluetoothProfile#STATE_DISCONNECTING} if this profile is being disconnected
      */
     public int getConnectionState(BluetoothDevice device) {
-        synchronized (mStateMachines) {
-            HearingAidStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return BluetoothProfile.STATE_DISCONNECTED;
-            }
-            return sm.getConnectionState();
+        HearingAidStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
         }
+        return sm.getConnectionState();
     }
 
     /**
@@ -614,7 +630,7 @@ public class HearingAidService extends ProfileService {
         if (DBG) {
             Log.d(TAG, "removeActiveDevice: stopAudio=" + stopAudio);
         }
-        synchronized (mStateMachines) {
+        synchronized (mActiveDeviceLock) {
             if (mActiveDeviceHiSyncId != BluetoothHearingAid.HI_SYNC_ID_INVALID) {
                 reportActiveDevice(null, stopAudio);
                 mActiveDeviceHiSyncId = BluetoothHearingAid.HI_SYNC_ID_INVALID;
@@ -637,7 +653,7 @@ public class HearingAidService extends ProfileService {
         if (DBG) {
             Log.d(TAG, "setActiveDevice: " + device);
         }
-        synchronized (mStateMachines) {
+        synchronized (mActiveDeviceLock) {
             /* No action needed since this is the same device as previousely activated */
             if (device.equals(mActiveDevice)) {
                 if (DBG) {
@@ -671,7 +687,7 @@ public class HearingAidService extends ProfileService {
         ArrayList<BluetoothDevice> activeDevices = new ArrayList<>();
         activeDevices.add(null);
         activeDevices.add(null);
-        synchronized (mStateMachines) {
+        synchronized (mActiveDeviceLock) {
             if (mActiveDeviceHiSyncId == BluetoothHearingAid.HI_SYNC_ID_INVALID) {
                 return activeDevices;
             }
@@ -709,8 +725,8 @@ public class HearingAidService extends ProfileService {
             return;
         }
 
-        synchronized (mStateMachines) {
-            BluetoothDevice device = stackEvent.device;
+        BluetoothDevice device = stackEvent.device;
+        mStateMachines.runWithDeviceLock(device, () -> {
             HearingAidStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
                 if (stackEvent.type == HearingAidStackEvent.EVENT_TYPE_CONNECTION_STATE_CHANGED) {
@@ -729,15 +745,20 @@ public class HearingAidService extends ProfileService {
                 return;
             }
             sm.sendMessage(HearingAidStateMachine.STACK_EVENT, stackEvent);
-        }
+        });
     }
 
     private void notifyActiveDeviceChanged() {
+        BluetoothDevice activeDevice;
+        synchronized (mActiveDeviceLock) {
+            activeDevice = mActiveDevice;
+        }
         Intent intent = new Intent(BluetoothHearingAid.ACTION_ACTIVE_DEVICE_CHANGED);
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mActiveDevice);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, activeDevice);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
                 | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-        sendBroadcast(intent, BLUETOOTH_CONNECT);
+        ProfileBroadcastDispatcher.getInstance().dispatch(activeDevice, intent,
+                i -> sendBroadcast(i, BLUETOOTH_CONNECT));
     }
 
     /* Notifications of audio device disconnection events. */
@@ -785,11 +806,7 @@ public class HearingAidService extends ProfileService {
             Log.e(TAG, "getOrCreateStateMachine failed: device cannot be null");
             return null;
         }
-        synchronized (mStateMachines) {
-            HearingAidStateMachine sm = mStateMachines.get(device);
-            if (sm != null) {
-                return sm;
-            }
+        return mStateMachines.getOrCreate(device, d -> {
             // Limit the maximum number of state machines to avoid DoS attack
             if (mStateMachines.size() >= MAX_HEARING_AID_STATE_MACHINES) {
                 Log.e(TAG, "Maximum number of HearingAid state machines reached: "
@@ -797,13 +814,11 @@ public class HearingAidService extends ProfileService {
                 return null;
             }
             if (DBG) {
-                Log.d(TAG, "Creating a new state machine for " + device);
+                Log.d(TAG, "Creating a new state machine for " + d);
             }
-            sm = HearingAidStateMachine.make(device, this,
+            return HearingAidStateMachine.make(d, this,
                     mHearingAidNativeInterface, mStateMachinesThread.getLooper());
-            mStateMachines.put(device, sm);
-            return sm;
-        }
+        });
     }
 
     /**
@@ -812,6 +827,7 @@ public class HearingAidService extends ProfileService {
      * @param device the new active device; or null if no active device
      * @param stopAudio whether to stop audio when device is null.
      */
+    @GuardedBy("mActiveDeviceLock")
     private void reportActiveDevice(BluetoothDevice device, boolean stopAudio) {
         if (DBG) {
             Log.d(TAG, "reportActiveDevice: device=" + device + " stopAudio=" + stopAudio);
@@ -889,32 +905,33 @@ public class HearingAidService extends ProfileService {
             return;
         }
         mDeviceHiSyncIdMap.remove(device);
-        synchronized (mStateMachines) {
+        boolean connected = mStateMachines.withDeviceLock(device, () -> {
             HearingAidStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
-                return;
+                return false;
             }
             if (sm.getConnectionState() != BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "Disconnecting device because it was unbonded.");
-                disconnect(device);
-                return;
+                return true;
             }
             removeStateMachine(device);
+            return false;
+        });
+        // Outside of the device lock, disconnect() takes the lock of the HiSyncId first
+        if (connected) {
+            Log.i(TAG, "Disconnecting device because it was unbonded.");
+            disconnect(device);
         }
     }
 
     private void removeStateMachine(BluetoothDevice device) {
-        synchronized (mStateMachines) {
-            HearingAidStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                Log.w(TAG, "removeStateMachine: device " + device
-                        + " does not have a state machine");
-                return;
-            }
+        boolean removed = mStateMachines.remove(device, sm -> {
             Log.i(TAG, "removeStateMachine: removing state machine for device: " + device);
             sm.doQuit();
             sm.cleanup();
-            mStateMachines.remove(device);
+        });
+        if (!removed) {
+            Log.w(TAG, "removeStateMachine: device " + device
+                    + " does not have a state machine");
         }
     }
 
@@ -1229,6 +1246,7 @@ public class HearingAidService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        mStateMachines.dump(sb);
         for (HearingAidStateMachine sm : mStateMachines.values()) {
             sm.dump(sb);
         }
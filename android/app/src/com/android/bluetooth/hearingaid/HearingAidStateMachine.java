@@ -56,6 +56,7 @@ import android.os.Message;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
@@ -528,8 +529,9 @@ final class HearingAidStateMachine extends StateMachine {
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mDevice);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
                         | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-        Utils.sendBroadcast(mService, intent, BLUETOOTH_CONNECT,
-                Utils.getTempAllowlistBroadcastOptions());
+        ProfileBroadcastDispatcher.getInstance().dispatchConnectionState(mDevice, intent,
+                i -> Utils.sendBroadcast(mService, i, BLUETOOTH_CONNECT,
+                        Utils.getTempAllowlistBroadcastOptions()));
     }
 
     private static String messageWhatToString(int what) {
@@ -23,11 +23,15 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemProperties;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
@@ -40,7 +44,10 @@ import com.android.bluetooth.util.DevicePolicyUtils;
 import com.android.bluetooth.util.GsmAlphabet;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * Helper for managing phonebook presentation over AT commands
@@ -73,6 +80,27 @@ public class AtPhonebook {
     private static final String INCOMING_CALL_WHERE = Calls.TYPE + "=" + Calls.INCOMING_TYPE;
     private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
 
+    /** The projection to use when resolving call log numbers against the contacts database */
+    private static final String[] CALLER_ID_PROJECTION = new String[]{
+            Phone.NUMBER, Phone.NORMALIZED_NUMBER, Phone.DISPLAY_NAME, Phone.TYPE
+    };
+
+    /** Numbers resolved per batched query, each one takes two selection arguments */
+    @VisibleForTesting
+    static final int CALLER_ID_BATCH_SIZE = 100;
+
+    /** Caller ID of a call log number, name is null if the number is not in the contacts */
+    @VisibleForTesting
+    static class CallerId {
+        final String name;
+        final int type;
+
+        CallerId(String name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
     @VisibleForTesting
     class PhonebookResult {
         public Cursor cursor; // result set of last query
@@ -80,6 +108,8 @@ public class AtPhonebook {
         public int numberPresentationColumn;
         public int typeColumn;
         public int nameColumn;
+        // caller IDs of the call log numbers, valid until the contacts change
+        public final HashMap<String, CallerId> callerIds = new HashMap<>();
     }
 
     private Context mContext;
@@ -106,7 +136,23 @@ public class AtPhonebook {
     static final int TYPE_SET = 1;
     static final int TYPE_TEST = 2;
 
-    public AtPhonebook(Context context, HeadsetNativeInterface nativeInterface) {
+    // Reused to assemble the +CPBR responses
+    private final StringBuilder mCpbrResponse = new StringBuilder();
+
+    // Called on the looper of the phonebook, as the caller IDs are not locked
+    @VisibleForTesting
+    final ContentObserver mContactsObserver;
+
+    /**
+     * @param looper the looper the AT commands are processed on
+     */
+    public AtPhonebook(Context context, HeadsetNativeInterface nativeInterface, Looper looper) {
+        mContactsObserver = new ContentObserver(new Handler(looper)) {
+            @Override
+            public void onChange(boolean selfChange) {
+                clearCallerIds();
+            }
+        };
         mContext = context;
         mPairingPackage = SystemProperties.get(
             Utils.PAIRING_UI_PROPERTY,
@@ -119,12 +165,22 @@ public class AtPhonebook {
         mPhonebooks.put("ME", new PhonebookResult());  // mobile phonebook
         mCurrentPhonebook = "ME";  // default to mobile phonebook
         mCpbrIndex1 = mCpbrIndex2 = -1;
+        mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
     }
 
     public void cleanup() {
+        mContentResolver.unregisterContentObserver(mContactsObserver);
         mPhonebooks.clear();
     }
 
+    private void clearCallerIds() {
+        log("Contacts changed, clearing cached caller IDs");
+        for (PhonebookResult pbr : mPhonebooks.values()) {
+            pbr.callerIds.clear();
+        }
+    }
+
     /** Returns the last dialled number, or null if no numbers have been called */
     public String getLastDialledNumber() {
         String[] projection = {Calls.NUMBER};
@@ -508,9 +564,6 @@ public class AtPhonebook {
         log("processCpbrCommand");
         int atCommandResult = HeadsetHalConstants.AT_RESPONSE_ERROR;
         int atCommandErrorCode = -1;
-        String atCommandResponse = null;
-        StringBuilder response = new StringBuilder();
-        String record;
 
         // Shortcut SM phonebook
         if ("SM".equals(mCurrentPhonebook)) {
@@ -544,7 +597,9 @@ public class AtPhonebook {
         }
         // Process
         atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
-        int errorDetected = -1; // no error
+        if (pbr.nameColumn == -1) {
+            resolveCallerIds(pbr, mCpbrIndex1, mCpbrIndex2);
+        }
         pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
         log("mCpbrIndex1 = " + mCpbrIndex1 + " and mCpbrIndex2 = " + mCpbrIndex2);
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
@@ -552,20 +607,11 @@ public class AtPhonebook {
             String name = null;
             int type = -1;
             if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mContentResolver,
-                        Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
-                        new String[]{
-                                PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
-                        }, null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
+                // caller ID resolved above for the whole range
+                CallerId callerId = pbr.callerIds.get(number);
+                if (callerId != null) {
+                    name = callerId.name;
+                    type = callerId.type;
                 }
                 if (DBG && name == null) {
                     log("Caller ID lookup failed for " + number);
@@ -621,10 +667,11 @@ public class AtPhonebook {
                 }
             }
 
-            record = "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\"";
-            record = record + "\r\n\r\n";
-            atCommandResponse = record;
-            mNativeInterface.atResponseString(device, atCommandResponse);
+            mCpbrResponse.setLength(0);
+            mCpbrResponse.append("+CPBR: ").append(index).append(",\"").append(number)
+                    .append("\",").append(regionType).append(",\"").append(name)
+                    .append("\"\r\n\r\n");
+            mNativeInterface.atResponseString(device, mCpbrResponse.toString());
             if (!pbr.cursor.moveToNext()) {
                 break;
             }
@@ -636,6 +683,93 @@ public class AtPhonebook {
         return atCommandResult;
     }
 
+    /**
+     * Resolves the caller ID of the call log numbers in the given range which are not cached yet.
+     *
+     * <p>The numbers are first matched in batches against the phone numbers of the contacts, as
+     * dialed or normalized. Only the numbers left unmatched, e.g. stored in a different format,
+     * go through an individual {@link PhoneLookup} query, which does a fuzzy match.
+     */
+    @VisibleForTesting
+    void resolveCallerIds(PhonebookResult pbr, int first, int last) {
+        LinkedHashSet<String> numbers = new LinkedHashSet<>();
+        pbr.cursor.moveToPosition(first - 1);
+        for (int index = first; index <= last; index++) {
+            String number = pbr.cursor.getString(pbr.numberColumn);
+            if (number != null && number.length() > 0 && !pbr.callerIds.containsKey(number)) {
+                numbers.add(number);
+            }
+            if (!pbr.cursor.moveToNext()) {
+                break;
+            }
+        }
+        List<String> unresolved = new ArrayList<>(numbers);
+        if (unresolved.isEmpty()) {
+            return;
+        }
+        log("resolveCallerIds: " + unresolved.size() + " numbers to resolve");
+
+        final Uri phoneContentUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
+        for (int start = 0; start < unresolved.size(); start += CALLER_ID_BATCH_SIZE) {
+            List<String> batch = unresolved.subList(start,
+                    Math.min(start + CALLER_ID_BATCH_SIZE, unresolved.size()));
+            HashMap<String, String> numberByKey = new HashMap<>();
+            StringBuilder placeholders = new StringBuilder();
+            String[] selectionArgs = new String[batch.size() * 2];
+            for (int i = 0; i < batch.size(); i++) {
+                String number = batch.get(i);
+                String normalized = PhoneNumberUtils.normalizeNumber(number);
+                numberByKey.put(number, number);
+                numberByKey.putIfAbsent(normalized, number);
+                placeholders.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = number;
+                selectionArgs[batch.size() + i] = normalized;
+            }
+            String selection = Phone.NUMBER + " IN (" + placeholders + ") OR "
+                    + Phone.NORMALIZED_NUMBER + " IN (" + placeholders + ")";
+            Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mContentResolver,
+                    phoneContentUri, CALLER_ID_PROJECTION, selection, selectionArgs, null);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    String number = numberByKey.get(c.getString(0));
+                    if (number == null) {
+                        number = numberByKey.get(c.getString(1));
+                    }
+                    if (number != null && !pbr.callerIds.containsKey(number)) {
+                        pbr.callerIds.put(number, new CallerId(c.getString(2), c.getInt(3)));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        for (String number : unresolved) {
+            if (pbr.callerIds.containsKey(number)) {
+                continue;
+            }
+            String name = null;
+            int type = -1;
+            Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mContentResolver,
+                    Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
+                    new String[]{
+                            PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
+                    }, null, null, null);
+            if (c != null) {
+                if (c.moveToFirst()) {
+                    name = c.getString(0);
+                    type = c.getInt(1);
+                }
+                c.close();
+            }
+            // Cache misses as well, so that unknown numbers are not looked up again
+            pbr.callerIds.put(number, new CallerId(name, type));
+        }
+    }
+
     /**
      * Checks if the remote device has premission to read our phone book.
      * If the return value is {@link BluetoothDevice#ACCESS_UNKNOWN}, it means this method has sent
@@ -43,6 +43,7 @@ import android.util.Log;
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
 import com.android.internal.annotations.VisibleForTesting;
@@ -104,10 +105,15 @@ public class HeadsetStateMachine extends StateMachine {
 
     static final int STACK_EVENT = 101;
     private static final int CLCC_RSP_TIMEOUT = 104;
+    private static final int SEND_DEVICE_STATE = 105;
 
     private static final int CONNECT_TIMEOUT = 201;
 
     private static final int CLCC_RSP_TIMEOUT_MS = 5000;
+    // Device state changes received within this window are merged into a single update
+    @VisibleForTesting static final int DEVICE_STATE_COALESCE_MS = 200;
+    // Minimum interval between two device state updates sent to the remote device
+    @VisibleForTesting static final int DEVICE_STATE_MIN_INTERVAL_MS = 1000;
     // NOTE: the value is not "final" - it is modified in the unit tests
     @VisibleForTesting static int sConnectTimeoutMs = 30000;
 
@@ -145,6 +151,13 @@ public class HeadsetStateMachine extends StateMachine {
     int mMicVolume;
     private boolean mDeviceSilenced;
     private HeadsetAgIndicatorEnableState mAgIndicatorEnableState;
+    // Latest device state not sent to the remote device yet
+    private HeadsetDeviceState mPendingDeviceState;
+    // Last device state sent to the remote device
+    private HeadsetDeviceState mLastSentDeviceState;
+    private long mLastDeviceStateSentMs = Long.MIN_VALUE;
+    private int mDeviceStateUpdatesSent;
+    private int mDeviceStateUpdatesSkipped;
     // The timestamp when the device entered connecting/connected state
     private long mConnectingTimestampMs = Long.MIN_VALUE;
     // Audio Parameters
@@ -210,7 +223,7 @@ public class HeadsetStateMachine extends StateMachine {
         }
 
         // Create phonebook helper
-        mPhonebook = new AtPhonebook(mHeadsetService, mNativeInterface);
+        mPhonebook = new AtPhonebook(mHeadsetService, mNativeInterface, looper);
         // Initialize state machine
         addState(mDisconnected);
         addState(mConnecting);
@@ -264,6 +277,9 @@ public class HeadsetStateMachine extends StateMachine {
         ProfileService.println(sb,
                 "  mConnectingTimestampMs(uptimeMillis): " + mConnectingTimestampMs);
         ProfileService.println(sb, "  mHsClientAudioPolicy: " + mHsClientAudioPolicy.toString());
+        ProfileService.println(sb, "  mLastSentDeviceState: " + mLastSentDeviceState);
+        ProfileService.println(sb, "  mDeviceStateUpdatesSent: " + mDeviceStateUpdatesSent
+                + ", mDeviceStateUpdatesSkipped: " + mDeviceStateUpdatesSkipped);
 
         ProfileService.println(sb, "  StateMachine: " + this);
         // Dump the state machine logs
@@ -336,8 +352,9 @@ public class HeadsetStateMachine extends StateMachine {
             intent.putExtra(BluetoothProfile.EXTRA_STATE, toState);
             intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
             intent.addFlags(Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-            mHeadsetService.sendBroadcastAsUser(intent, UserHandle.ALL,
-                    BLUETOOTH_CONNECT, Utils.getTempAllowlistBroadcastOptions());
+            ProfileBroadcastDispatcher.getInstance().dispatchConnectionState(device, intent,
+                    i -> mHeadsetService.sendBroadcastAsUser(i, UserHandle.ALL,
+                            BLUETOOTH_CONNECT, Utils.getTempAllowlistBroadcastOptions()));
         }
 
         // Should not be called from enter() method
@@ -355,8 +372,9 @@ public class HeadsetStateMachine extends StateMachine {
             intent.putExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, fromState);
             intent.putExtra(BluetoothProfile.EXTRA_STATE, toState);
             intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
-            mHeadsetService.sendBroadcastAsUser(intent, UserHandle.ALL,
-                    BLUETOOTH_CONNECT, Utils.getTempAllowlistBroadcastOptions());
+            ProfileBroadcastDispatcher.getInstance().dispatch(device, intent,
+                    i -> mHeadsetService.sendBroadcastAsUser(i, UserHandle.ALL,
+                            BLUETOOTH_CONNECT, Utils.getTempAllowlistBroadcastOptions()));
         }
 
         /**
@@ -479,6 +497,7 @@ public class HeadsetStateMachine extends StateMachine {
             mConnectingTimestampMs = Long.MIN_VALUE;
             mPhonebook.resetAtState();
             updateAgIndicatorEnableState(null);
+            resetDeviceStateUpdates();
             mNeedDialingOutReply = false;
             mHasWbsEnabled = false;
             mHasSwbEnabled = false;
@@ -785,6 +804,7 @@ public class HeadsetStateMachine extends StateMachine {
         @Override
         public void enter() {
             super.enter();
+            resetDeviceStateUpdates();
             sendMessageDelayed(CONNECT_TIMEOUT, mDevice, sConnectTimeoutMs);
             broadcastStateTransitions();
         }
@@ -922,7 +942,10 @@ public class HeadsetStateMachine extends StateMachine {
                                 + " is silenced, skip notify state changed.");
                         break;
                     }
-                    mNativeInterface.notifyDeviceStatus(mDevice, (HeadsetDeviceState) message.obj);
+                    scheduleDeviceStateUpdate((HeadsetDeviceState) message.obj);
+                    break;
+                case SEND_DEVICE_STATE:
+                    processSendDeviceState();
                     break;
                 case SEND_CLCC_RESPONSE:
                     processSendClccResponse((HeadsetClccResponse) message.obj);
@@ -1606,8 +1629,9 @@ public class HeadsetStateMachine extends StateMachine {
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
         intent.addCategory(BluetoothHeadset.VENDOR_SPECIFIC_HEADSET_EVENT_COMPANY_ID_CATEGORY + "."
                 + Integer.toString(companyId));
-        mHeadsetService.sendBroadcastAsUser(intent, UserHandle.ALL, BLUETOOTH_CONNECT,
-                Utils.getTempAllowlistBroadcastOptions());
+        ProfileBroadcastDispatcher.getInstance().dispatch(device, intent,
+                i -> mHeadsetService.sendBroadcastAsUser(i, UserHandle.ALL, BLUETOOTH_CONNECT,
+                        Utils.getTempAllowlistBroadcastOptions()));
     }
 
     private void setAudioParameters() {
@@ -2232,8 +2256,9 @@ public class HeadsetStateMachine extends StateMachine {
         intent.putExtra(BluetoothHeadset.EXTRA_HF_INDICATORS_IND_ID, indId);
         intent.putExtra(BluetoothHeadset.EXTRA_HF_INDICATORS_IND_VALUE, indValue);
 
-        Utils.sendBroadcast(mHeadsetService, intent, BLUETOOTH_CONNECT,
-                Utils.getTempAllowlistBroadcastOptions());
+        ProfileBroadcastDispatcher.getInstance().dispatch(device, intent,
+                i -> Utils.sendBroadcast(mHeadsetService, i, BLUETOOTH_CONNECT,
+                        Utils.getTempAllowlistBroadcastOptions()));
     }
 
     private void processAtBind(String atString, BluetoothDevice device) {
@@ -2284,6 +2309,65 @@ public class HeadsetStateMachine extends StateMachine {
                 clcc.mMode, clcc.mMpty, clcc.mNumber, clcc.mType);
     }
 
+    /**
+     * Queues a device state update. Updates received within {@link #DEVICE_STATE_COALESCE_MS} are
+     * merged, and no more than one update is sent every {@link #DEVICE_STATE_MIN_INTERVAL_MS}.
+     */
+    private void scheduleDeviceStateUpdate(HeadsetDeviceState deviceState) {
+        mPendingDeviceState = deviceState;
+        if (hasMessages(SEND_DEVICE_STATE)) {
+            return;
+        }
+        long delayMs = DEVICE_STATE_COALESCE_MS;
+        if (mLastDeviceStateSentMs != Long.MIN_VALUE) {
+            long nextAllowedMs = mLastDeviceStateSentMs + DEVICE_STATE_MIN_INTERVAL_MS;
+            delayMs = Math.max(delayMs, nextAllowedMs - SystemClock.uptimeMillis());
+        }
+        sendMessageDelayed(SEND_DEVICE_STATE, delayMs);
+    }
+
+    /**
+     * Sends the pending device state, unless none of the indicators enabled by the remote device
+     * changed since the last update.
+     */
+    @VisibleForTesting
+    void processSendDeviceState() {
+        HeadsetDeviceState deviceState = mPendingDeviceState;
+        mPendingDeviceState = null;
+        if (deviceState == null || mDeviceSilenced) {
+            return;
+        }
+        if (!hasEnabledIndicatorChanged(mLastSentDeviceState, deviceState)) {
+            log("processSendDeviceState: no enabled indicator changed, skip " + deviceState);
+            mDeviceStateUpdatesSkipped++;
+            return;
+        }
+        mNativeInterface.notifyDeviceStatus(mDevice, deviceState);
+        mLastSentDeviceState = deviceState;
+        mLastDeviceStateSentMs = SystemClock.uptimeMillis();
+        mDeviceStateUpdatesSent++;
+    }
+
+    private boolean hasEnabledIndicatorChanged(HeadsetDeviceState lastState,
+            HeadsetDeviceState newState) {
+        if (lastState == null) {
+            return true;
+        }
+        HeadsetAgIndicatorEnableState enabled = mAgIndicatorEnableState != null
+                ? mAgIndicatorEnableState : DEFAULT_AG_INDICATOR_ENABLE_STATE;
+        return (enabled.service && lastState.mService != newState.mService)
+                || (enabled.roam && lastState.mRoam != newState.mRoam)
+                || (enabled.signal && lastState.mSignal != newState.mSignal)
+                || (enabled.battery && lastState.mBatteryCharge != newState.mBatteryCharge);
+    }
+
+    private void resetDeviceStateUpdates() {
+        removeMessages(SEND_DEVICE_STATE);
+        mPendingDeviceState = null;
+        mLastSentDeviceState = null;
+        mLastDeviceStateSentMs = Long.MIN_VALUE;
+    }
+
     @VisibleForTesting
     void processSendVendorSpecificResultCode(HeadsetVendorSpecificResultCode resultCode) {
         String stringToSend = resultCode.mCommand + ": ";
@@ -2428,6 +2512,8 @@ public class HeadsetStateMachine extends StateMachine {
                 return "DIALING_OUT_RESULT";
             case CLCC_RSP_TIMEOUT:
                 return "CLCC_RSP_TIMEOUT";
+            case SEND_DEVICE_STATE:
+                return "SEND_DEVICE_STATE";
             case CONNECT_TIMEOUT:
                 return "CONNECT_TIMEOUT";
             default:
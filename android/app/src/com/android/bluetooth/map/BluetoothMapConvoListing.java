@@ -23,9 +23,10 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -89,10 +90,26 @@ public class BluetoothMapConvoListing {
      *             if UTF-8 encoding is unsupported on the platform.
      */
     public byte[] encode() throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapConvoListingElement(s) as UTF-8 XML, straight into the
+     * given stream.
+     *
+     * @param out the stream to write to, flushed once the listing is complete
+     * @throws IOException if writing to the stream failed
+     */
+    public void encode(OutputStream out) throws IOException {
         XmlSerializer xmlConvoElement = Xml.newSerializer();
         try {
-            xmlConvoElement.setOutput(sw);
+            xmlConvoElement.setOutput(out, "UTF-8");
             xmlConvoElement.startDocument("UTF-8", true);
             xmlConvoElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
                     true);
@@ -108,10 +125,8 @@ public class BluetoothMapConvoListing {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
             Log.w(TAG, e);
-        } catch (IOException e) {
-            Log.w(TAG, e);
         }
-        return sw.toString().getBytes("UTF-8");
+        out.flush();
     }
 
     public void sort() {
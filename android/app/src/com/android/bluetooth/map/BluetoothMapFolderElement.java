@@ -23,9 +23,10 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Locale;
@@ -264,7 +265,26 @@ public class BluetoothMapFolderElement implements Comparable<BluetoothMapFolderE
     }
 
     public byte[] encode(int offset, int count) throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out, offset, count);
+        } catch (IOException e) {
+            if (D) {
+                Log.w(TAG, e);
+            }
+            throw new IllegalArgumentException("error encoding folderElement");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes the folder listing of the subFolders as UTF-8 XML, straight into the given stream.
+     *
+     * @param out the stream to write to, flushed once the listing is complete
+     * @throws IllegalArgumentException if offset is past the subFolders, or on encoding errors
+     * @throws IOException if writing to the stream failed
+     */
+    public void encode(OutputStream out, int offset, int count) throws IOException {
         XmlSerializer xmlMsgElement = Xml.newSerializer();
         int i, stopIndex;
         // We need index based access to the subFolders
@@ -281,7 +301,7 @@ public class BluetoothMapFolderElement implements Comparable<BluetoothMapFolderE
         }
 
         try {
-            xmlMsgElement.setOutput(sw);
+            xmlMsgElement.setOutput(out, "UTF-8");
             xmlMsgElement.startDocument("UTF-8", true);
             xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
             xmlMsgElement.startTag(null, "folder-listing");
@@ -303,13 +323,8 @@ public class BluetoothMapFolderElement implements Comparable<BluetoothMapFolderE
                 Log.w(TAG, e);
             }
             throw new IllegalArgumentException("error encoding folderElement");
-        } catch (IOException e) {
-            if (D) {
-                Log.w(TAG, e);
-            }
-            throw new IllegalArgumentException("error encoding folderElement");
         }
-        return sw.toString().getBytes("UTF-8");
+        out.flush();
     }
 
     /* The functions below are useful for implementing a MAP client, reusing the object.
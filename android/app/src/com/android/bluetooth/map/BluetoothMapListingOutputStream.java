@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Writes a listing to the OBEX body stream while it is being encoded.
+ *
+ * <p>The encoded bytes are buffered up to the OBEX packet size, so that each write to the
+ * operation stream fills a packet, and the first packet goes out as soon as it is encoded rather
+ * than once the whole listing is. Writing fails with an {@link IOException} once the operation
+ * was aborted by the peer.
+ */
+class BluetoothMapListingOutputStream extends OutputStream {
+    private final OutputStream mOut;
+    private final BooleanSupplier mIsAborted;
+    private final byte[] mBuffer;
+    private int mCount = 0;
+    private long mBytesWritten = 0;
+
+    BluetoothMapListingOutputStream(OutputStream out, int packetSize, BooleanSupplier isAborted) {
+        mOut = out;
+        mIsAborted = isAborted;
+        mBuffer = new byte[packetSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCount == mBuffer.length) {
+            writeBuffer();
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (mCount == mBuffer.length) {
+                writeBuffer();
+            }
+            int count = Math.min(len, mBuffer.length - mCount);
+            System.arraycopy(b, off, mBuffer, mCount, count);
+            mCount += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /** Writes the bytes buffered, the OBEX body stream itself is left open */
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+    }
+
+    /** Returns the number of bytes written to the OBEX body stream so far */
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void writeBuffer() throws IOException {
+        if (mIsAborted.getAsBoolean()) {
+            throw new IOException("Operation aborted");
+        }
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mBytesWritten += mCount;
+            mCount = 0;
+        }
+    }
+}
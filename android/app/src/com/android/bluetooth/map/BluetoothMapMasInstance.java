@@ -298,7 +298,7 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
             mAcceptNewConnections = true;
         } else {
 
-            mServerSockets = ObexServerSockets.create(this);
+            mServerSockets = ObexServerSockets.create(this, "MAS" + mMasInstanceId);
             mAcceptNewConnections = true;
 
             if (mServerSockets == null) {
@@ -14,6 +14,7 @@
 */
 package com.android.bluetooth.map;
 
+import android.bluetooth.BluetoothDevice;
 import android.util.Log;
 import android.util.Xml;
 
@@ -22,9 +23,12 @@ import com.android.bluetooth.Utils;
 
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -34,6 +38,11 @@ public class BluetoothMapMessageListing {
     private static final String TAG = "BluetoothMapMessageListing";
     private static final boolean D = BluetoothMapService.DEBUG;
 
+    /** No XML declaration and ASCII only subjects */
+    static final int QUIRK_MERCEDES_BENZ = 1 << 0;
+    /** '&', '<' and '>' are not escaped in attribute values */
+    static final int QUIRK_UNESCAPED_ENTITIES = 1 << 1;
+
     private List<BluetoothMapMessageListingElement> mList;
 
     public BluetoothMapMessageListing() {
@@ -76,6 +85,29 @@ public class BluetoothMapMessageListing {
         return mList;
     }
 
+    /**
+     * Resolves the listing encoding quirks of the remote device, once per connection rather than
+     * for every listing or element encoded.
+     *
+     * @param device the remote device, or null if unknown
+     * @return a combination of the QUIRK_* flags
+     */
+    static int getQuirks(BluetoothDevice device) {
+        if (device == null || Utils.isInstrumentationTestMode()) {
+            return 0;
+        }
+        int quirks = 0;
+        if (DeviceWorkArounds.addressStartsWith(device.getAddress(),
+                DeviceWorkArounds.MERCEDES_BENZ_CARKIT)) {
+            quirks |= QUIRK_MERCEDES_BENZ;
+        }
+        if (DeviceWorkArounds.addressStartsWith(device.getAddress(),
+                DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
+            quirks |= QUIRK_UNESCAPED_ENTITIES;
+        }
+        return quirks;
+    }
+
     /**
      * Encode the list of BluetoothMapMessageListingElement(s) into a UTF-8
      * formatted XML-string in a trimmed byte array
@@ -90,20 +122,36 @@ public class BluetoothMapMessageListing {
     // TODO: Remove includeThreadId when MAP-IM is adopted
     public byte[] encode(boolean includeThreadId, String version)
             throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
-        boolean isBenzCarkit;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out, includeThreadId, version,
+                    getQuirks(BluetoothMapService.getRemoteDevice()));
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        return out.toByteArray();
+    }
 
-        if (Utils.isInstrumentationTestMode()) {
-            isBenzCarkit = false;
-        } else {
-            isBenzCarkit = DeviceWorkArounds.addressStartsWith(
-                    BluetoothMapService.getRemoteDevice().getAddress(),
-                    DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8 XML, straight into the
+     * given stream.
+     *
+     * @param out the stream to write to, flushed once the listing is complete
+     * @param version the listing version, see {@link #encode(boolean, String)}
+     * @param quirks the quirks of the remote device, see {@link #getQuirks}
+     * @throws IOException if writing to the stream failed
+     */
+    // TODO: Remove includeThreadId when MAP-IM is adopted
+    public void encode(OutputStream out, boolean includeThreadId, String version, int quirks)
+            throws IOException {
+        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
+        if ((quirks & QUIRK_UNESCAPED_ENTITIES) != 0) {
+            out = new UnescapingOutputStream(out);
         }
         try {
             XmlSerializer xmlMsgElement = Xml.newSerializer();
-            xmlMsgElement.setOutput(sw);
-            if (isBenzCarkit) {
+            xmlMsgElement.setOutput(out, "UTF-8");
+            if ((quirks & QUIRK_MERCEDES_BENZ) != 0) {
                 Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
                         + "using Xml Workaround.");
                 xmlMsgElement.text("\n");
@@ -116,7 +164,8 @@ public class BluetoothMapMessageListing {
             xmlMsgElement.attribute(null, "version", version);
             // Do the XML encoding of list
             for (BluetoothMapMessageListingElement element : mList) {
-                element.encode(xmlMsgElement, includeThreadId); // Append the list element
+                // Append the list element
+                element.encode(xmlMsgElement, includeThreadId, quirks);
             }
             xmlMsgElement.endTag(null, "MAP-msg-listing");
             xmlMsgElement.endDocument();
@@ -124,20 +173,8 @@ public class BluetoothMapMessageListing {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
             Log.w(TAG, e);
-        } catch (IOException e) {
-            Log.w(TAG, e);
         }
-        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
-        if (!Utils.isInstrumentationTestMode() && DeviceWorkArounds.addressStartsWith(
-                BluetoothMapService.getRemoteDevice().getAddress(),
-                DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
-            return sw.toString()
-                    .replaceAll("&amp;", "&")
-                    .replaceAll("&lt;", "<")
-                    .replaceAll("&gt;", ">")
-                    .getBytes("UTF-8");
-        }
-        return sw.toString().getBytes("UTF-8");
+        out.flush();
     }
 
     public void sort() {
@@ -160,4 +197,90 @@ public class BluetoothMapMessageListing {
             }
         }
     }
+
+    /** Undoes the escaping of '&', '<' and '>' on the fly */
+    private static class UnescapingOutputStream extends FilterOutputStream {
+        private static final byte[][] ENTITIES = {
+                "&amp;".getBytes(StandardCharsets.US_ASCII),
+                "&lt;".getBytes(StandardCharsets.US_ASCII),
+                "&gt;".getBytes(StandardCharsets.US_ASCII)};
+        private static final byte[] CHARS = {'&', '<', '>'};
+        private static final int MAX_ENTITY_LENGTH = 5;
+
+        private final byte[] mPending = new byte[MAX_ENTITY_LENGTH];
+        private int mPendingLength = 0;
+
+        UnescapingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mPendingLength == 0 && b != '&') {
+                out.write(b);
+                return;
+            }
+            if (b == '&') {
+                // What is pending was not an entity
+                writePending();
+            }
+            mPending[mPendingLength++] = (byte) b;
+            for (int i = 0; i < ENTITIES.length; i++) {
+                byte[] entity = ENTITIES[i];
+                if (isPendingPrefixOf(entity)) {
+                    if (mPendingLength == entity.length) {
+                        out.write(CHARS[i]);
+                        mPendingLength = 0;
+                    }
+                    return;
+                }
+            }
+            writePending();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                if (mPendingLength > 0) {
+                    write(b[off++]);
+                    continue;
+                }
+                // Write everything up to the next '&' at once
+                int next = off;
+                while (next < end && b[next] != '&') {
+                    next++;
+                }
+                out.write(b, off, next - off);
+                if (next < end) {
+                    write(b[next]);
+                    next++;
+                }
+                off = next;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writePending();
+            out.flush();
+        }
+
+        private boolean isPendingPrefixOf(byte[] entity) {
+            if (mPendingLength > entity.length) {
+                return false;
+            }
+            for (int i = 0; i < mPendingLength; i++) {
+                if (mPending[i] != entity[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void writePending() throws IOException {
+            out.write(mPending, 0, mPendingLength);
+            mPendingLength = 0;
+        }
+    }
 }
@@ -14,7 +14,6 @@
 */
 package com.android.bluetooth.map;
 
-import com.android.bluetooth.DeviceWorkArounds;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 
 import org.xmlpull.v1.XmlSerializer;
@@ -22,6 +21,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.regex.Pattern;
 
 public class BluetoothMapMessageListingElement
         implements Comparable<BluetoothMapMessageListingElement> {
@@ -30,6 +30,9 @@ public class BluetoothMapMessageListingElement
     private static final boolean D = false;
     private static final boolean V = false;
 
+    private static final Pattern MERCEDES_BENZ_INVALID_CHARS =
+            Pattern.compile("[\\P{ASCII}&\"><]");
+
     private long mCpHandle = 0; /* The content provider handle - without type information */
     private String mSubject = null;
     private long mDateTime = 0;
@@ -268,16 +271,23 @@ public class BluetoothMapMessageListingElement
      * */
     public void encode(XmlSerializer xmlMsgElement, boolean includeThreadId)
             throws IllegalArgumentException, IllegalStateException, IOException {
+        encode(xmlMsgElement, includeThreadId,
+                BluetoothMapMessageListing.getQuirks(BluetoothMapService.getRemoteDevice()));
+    }
+
+    /* Encode the MapMessageListingElement, applying the quirks of the remote device resolved
+     * by BluetoothMapMessageListing.getQuirks().
+     * */
+    public void encode(XmlSerializer xmlMsgElement, boolean includeThreadId, int quirks)
+            throws IllegalArgumentException, IllegalStateException, IOException {
         // contruct the XML tag for a single msg in the msglisting
         xmlMsgElement.startTag(null, "msg");
         xmlMsgElement.attribute(null, "handle", BluetoothMapUtils.getMapHandle(mCpHandle, mType));
         if (mSubject != null) {
             String stripped = BluetoothMapUtils.stripInvalidChars(mSubject);
 
-            if (DeviceWorkArounds.addressStartsWith(BluetoothMapService
-                    .getRemoteDevice().getAddress(), DeviceWorkArounds
-                    .MERCEDES_BENZ_CARKIT)) {
-                stripped = stripped.replaceAll("[\\P{ASCII}&\"><]", "");
+            if ((quirks & BluetoothMapMessageListing.QUIRK_MERCEDES_BENZ) != 0) {
+                stripped = MERCEDES_BENZ_INVALID_CHARS.matcher(stripped).replaceAll("");
                 if (stripped.isEmpty()) {
                     stripped = "---";
                 }
@@ -118,6 +118,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int mRemoteFeatureMask = BluetoothMapUtils.MAP_FEATURE_DEFAULT_BITMASK;
     private boolean mEnableSmsMms = false;
     private boolean mThreadIdSupport = false; // true if peer supports threadId in msg listing
+    // Message listing quirks of the peer, see BluetoothMapMessageListing.getQuirks()
+    private int mListingQuirks = 0;
     // Defaults message version is 1.0 but 1.1+ if feature bit is set
     private String mMessageVersion = BluetoothMapUtils.MAP_V10_STR;
     private String mAuthority;
@@ -340,6 +342,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             logHeader(request);
         }
         mThreadIdSupport = false; // Always assume not supported at new connect.
+        mListingQuirks =
+                BluetoothMapMessageListing.getQuirks(BluetoothMapService.getRemoteDevice());
         //always assume version 1.0 to start with
         mMessageVersion = BluetoothMapUtils.MAP_V10_STR;
         notifyUpdateWakeLock();
@@ -1139,12 +1143,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams,
             String folderName) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
+        String version = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1193,7 +1197,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 outList = mOutContent.msgListing(folderToList, appParams);
                 // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if (0 < (mRemoteFeatureMask
                         & BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
                     version = BluetoothMapUtils.MAP_V11_STR;
@@ -1201,8 +1204,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
                 /* This will only set the version, the bit must also be checked before adding any
-                 * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
+                 * 1.1 bits to the listing. The listing is encoded once the body stream is open. */
                 hasUnread = outList.hasUnread();
             } else {
                 listSize = mOutContent.msgListingSize(folderToList, appParams);
@@ -1264,30 +1266,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
-            try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
-            } catch (IOException e) {
-                if (D) {
-                    Log.w(TAG, e);
-                }
-                // We were probably aborted or disconnected
-            } finally {
-                if (outStream != null) {
-                    try {
-                        outStream.close();
-                    } catch (IOException e) {
-                        if (D) Log.d(TAG, "", e);
-                    }
-                }
-            }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG, "sendMessageListingRsp: bytesWritten != outBytes.length"
+        if (outList != null) {
+            final BluetoothMapMessageListing listing = outList;
+            final String listingVersion = version;
+            if (!writeListing(op, outStream, out -> listing.encode(out, mThreadIdSupport,
+                    listingVersion, mListingQuirks))) {
+                Log.w(TAG, "sendMessageListingRsp: listing not sent completely"
                         + " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -1358,12 +1342,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendConvoListingRsp(Operation op, BluetoothMapAppParams appParams) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
         //boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
         BluetoothMapConvoListing outList;
+        BluetoothMapConvoListing listing = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1386,11 +1369,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             if (appParams.getMaxListCount() != 0) {
                 outList = mOutContent.convoListing(appParams, false);
                 outAppParams.setConvoListingSize(outList.getCount());
-                // Generate the byte stream
-                outBytes = outList.encode(); // Include thread ID for clients that supports it.
-                if (D) {
-                    Log.d(TAG, "outBytes size:" + outBytes.length);
-                }
+                // The listing is encoded once the body stream is open
+                listing = outList;
             } else {
                 outList = mOutContent.convoListing(appParams, true);
                 outAppParams.setConvoListingSize(outList.getCount());
@@ -1413,7 +1393,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 Log.d(TAG, "outList size:" + outList.getCount() + " MaxListCount: "
                         + appParams.getMaxListCount());
             }
-            outList = null; // We don't need it anymore - we might as well give it up for GC
             outAppParams.setDatabaseIdentifier(0, mMasInstance.getDbIdentifier());
 
             // Build the application parameter header
@@ -1454,30 +1433,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
-            try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
-            } catch (IOException e) {
-                if (D) {
-                    Log.w(TAG, e);
-                }
-                // We were probably aborted or disconnected
-            } finally {
-                if (outStream != null) {
-                    try {
-                        outStream.close();
-                    } catch (IOException e) {
-                        if (D) Log.d(TAG, "", e);
-                    }
-                }
-            }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG, "sendConvoListingRsp: bytesWritten != outBytes.length"
+        if (listing != null) {
+            if (!writeListing(op, outStream, listing::encode)) {
+                Log.w(TAG, "sendConvoListingRsp: listing not sent completely"
                         + " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -1508,11 +1466,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendFolderListingRsp(Operation op, BluetoothMapAppParams appParams) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        int maxChunkSize, bytesWritten = 0;
         HeaderSet replyHeaders = new HeaderSet();
-        int bytesToWrite, maxListCount, listStartOffset;
+        int maxListCount, listStartOffset;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1535,7 +1491,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             }
 
             if (maxListCount != 0) {
-                outBytes = mCurrentFolder.encode(listStartOffset, maxListCount);
+                // The listing is encoded once the body stream is open, check it can be first
+                if (listStartOffset > mCurrentFolder.getSubFolderCount()) {
+                    throw new IllegalArgumentException(
+                            "FolderListingEncode: offset > subFolders.size()");
+                }
             } else {
                 // ESR08 specified that this shall only be included for MaxListCount=0
                 outAppParams.setFolderListingSize(mCurrentFolder.getSubFolderCount());
@@ -1580,33 +1540,10 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-
-        if (outBytes != null) {
-            try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
-            } catch (IOException e) {
-                // We were probably aborted or disconnected
-            } finally {
-                if (outStream != null) {
-                    try {
-                        outStream.close();
-                    } catch (IOException e) {
-                        if (D) Log.d(TAG, "", e);
-                    }
-                }
-            }
-            if (V) {
-                Log.v(TAG,
-                        "sendFolderList sent " + bytesWritten + " bytes out of " + outBytes.length);
-            }
-            if (bytesWritten == outBytes.length || mIsAborted) {
-                return ResponseCodes.OBEX_HTTP_OK;
-            } else {
+        if (outStream != null) {
+            final int offset = listStartOffset;
+            final int count = maxListCount;
+            if (!writeListing(op, outStream, out -> mCurrentFolder.encode(out, offset, count))) {
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
         }
@@ -1614,6 +1551,46 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /** Encodes a listing into an OBEX body stream */
+    private interface ListingEncoder {
+        void encode(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a listing to the body of the operation while it is encoded, one OBEX packet at a
+     * time, then closes the body stream.
+     *
+     * @return true if the listing was sent completely or the operation was aborted
+     */
+    private boolean writeListing(Operation op, OutputStream outStream, ListingEncoder encoder) {
+        // This must be called after setting the headers.
+        BluetoothMapListingOutputStream listingStream = new BluetoothMapListingOutputStream(
+                outStream, op.getMaxPacketSize(), () -> mIsAborted);
+        boolean complete = false;
+        try {
+            encoder.encode(listingStream);
+            listingStream.flush();
+            complete = true;
+        } catch (IOException e) {
+            if (D) {
+                Log.w(TAG, e);
+            }
+            // We were probably aborted or disconnected
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "writeListing: error encoding listing", e);
+        } finally {
+            try {
+                outStream.close();
+            } catch (IOException e) {
+                if (D) Log.d(TAG, "", e);
+            }
+        }
+        if (V) {
+            Log.v(TAG, "writeListing: sent " + listingStream.getBytesWritten() + " bytes");
+        }
+        return complete || mIsAborted;
+    }
+
     /**
      * Generate and send the get MAS Instance Information response based on an MAS Instance
      *
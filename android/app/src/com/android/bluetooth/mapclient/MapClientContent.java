@@ -18,12 +18,19 @@ package com.android.bluetooth.mapclient;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothMapClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -39,15 +46,18 @@ import android.util.Log;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.map.BluetoothMapbMessageMime;
 import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.vcard.VCardConstants;
 import com.android.vcard.VCardEntry;
 import com.android.vcard.VCardProperty;
 
 import com.google.android.mms.pdu.PduHeaders;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 class MapClientContent {
@@ -57,11 +67,23 @@ class MapClientContent {
     private static final int DEFAULT_CHARSET = 106;
     private static final int ORIGINATOR_ADDRESS_TYPE = 137;
     private static final int RECIPIENT_ADDRESS_TYPE = 151;
+    // Provider changes are reconciled at most once per this delay, to absorb observer storms
+    @VisibleForTesting
+    static final int FIND_CHANGE_DELAY_MS = 200;
+    // Number of stored messages looked up per query, below the SQLite host parameter limit
+    @VisibleForTesting
+    static final int FIND_CHANGE_BATCH_SIZE = 500;
+    private static final String[] FIND_CHANGE_PROJECTION = new String[] {Sms._ID, Sms.READ};
+    // Maximum number of SMS inserted with a single applyBatch call
+    @VisibleForTesting
+    static final int MAX_BATCH_OPERATIONS = 100;
 
     final BluetoothDevice mDevice;
     private final Context mContext;
     private final Callbacks mCallbacks;
     private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Runnable mFindChangeRunnable = this::findChangeInDatabase;
     ContentObserver mContentObserver;
     String mPhoneNumber = null;
     private int mSubscriptionId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
@@ -69,6 +91,11 @@ class MapClientContent {
     private TelephonyManager mTelephonyManager;
     private HashMap<String, Uri> mHandleToUriMap = new HashMap<>();
     private HashMap<Uri, MessageStatus> mUriToHandleMap = new HashMap<>();
+    // Thread IDs by set of participants, cleared when messages are deleted since the provider
+    // removes the threads left empty
+    private final HashMap<Set<String>, Long> mThreadIdCache = new HashMap<>();
+    // SMS queued between startBatch() and finishBatch(), null when not batching
+    private ArrayList<BatchedMessage> mBatchedMessages;
 
     /**
      * Callbacks
@@ -93,10 +120,20 @@ class MapClientContent {
      */
     MapClientContent(Context context, Callbacks callbacks,
             BluetoothDevice device) {
+        this(context, callbacks, device, Looper.getMainLooper());
+    }
+
+    /**
+     * looper: the looper provider changes are reconciled on, the same as the one calling the other
+     * methods so that the stored message maps are not accessed concurrently
+     */
+    MapClientContent(Context context, Callbacks callbacks,
+            BluetoothDevice device, Looper looper) {
         mContext = context;
         mDevice = device;
         mCallbacks = callbacks;
         mResolver = mContext.getContentResolver();
+        mHandler = new Handler(looper);
 
         mSubscriptionManager = mContext.getSystemService(SubscriptionManager.class);
         mTelephonyManager = mContext.getSystemService(TelephonyManager.class);
@@ -118,13 +155,13 @@ class MapClientContent {
             @Override
             public void onChange(boolean selfChange) {
                 logV("onChange(self=" + selfChange + ")");
-                findChangeInDatabase();
+                scheduleFindChangeInDatabase();
             }
 
             @Override
             public void onChange(boolean selfChange, Uri uri) {
                 logV("onChange(self=" + selfChange + ", uri=" + uri.toString() + ")");
-                findChangeInDatabase();
+                scheduleFindChangeInDatabase();
             }
         };
 
@@ -235,21 +272,143 @@ class MapClientContent {
         values.put(Sms.READ, readStatus);
         values.put(Sms.SEEN, seen);
 
+        if (mBatchedMessages != null) {
+            mBatchedMessages.add(new BatchedMessage(contentUri, values,
+                    new MessageStatus(handle, readStatus)));
+            if (mBatchedMessages.size() >= MAX_BATCH_OPERATIONS) {
+                applyBatch();
+            }
+            return;
+        }
         Uri results = mResolver.insert(contentUri, values);
         mHandleToUriMap.put(handle, results);
         mUriToHandleMap.put(results, new MessageStatus(handle, readStatus));
         logD("Map InsertedThread" + results);
     }
 
+    /**
+     * startBatch
+     * queue the SMS stored from now on, and insert them together once finishBatch() is called or
+     * enough of them are queued. Used when storing many messages at once, e.g. on initial sync.
+     */
+    void startBatch() {
+        logD("startBatch");
+        if (mBatchedMessages == null) {
+            mBatchedMessages = new ArrayList<>();
+        }
+    }
+
+    /**
+     * finishBatch
+     * insert the queued SMS and go back to inserting messages as they are stored
+     */
+    void finishBatch() {
+        logD("finishBatch");
+        if (mBatchedMessages == null) {
+            return;
+        }
+        applyBatch();
+        mBatchedMessages = null;
+    }
+
+    /**
+     * flushBatch
+     * insert the queued SMS without ending the batch, so that events about their handles can be
+     * applied to them
+     */
+    private void flushBatch() {
+        if (mBatchedMessages != null) {
+            applyBatch();
+        }
+    }
+
+    private void applyBatch() {
+        if (mBatchedMessages.isEmpty()) {
+            return;
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (BatchedMessage message : mBatchedMessages) {
+            operations.add(ContentProviderOperation.newInsert(message.mContentUri)
+                    .withValues(message.mValues).build());
+        }
+        ContentProviderResult[] results = null;
+        try {
+            results = mResolver.applyBatch(Sms.CONTENT_URI.getAuthority(), operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.w(TAG, "applyBatch failed, inserting the missing messages one by one", e);
+        }
+        for (int i = 0; i < mBatchedMessages.size(); i++) {
+            BatchedMessage message = mBatchedMessages.get(i);
+            Uri uri;
+            if (results != null && i < results.length) {
+                uri = results[i].uri;
+            } else {
+                // applyBatch is not atomic, the operations before the failure may be applied
+                uri = findStoredSms(message);
+                if (uri == null) {
+                    uri = mResolver.insert(message.mContentUri, message.mValues);
+                }
+            }
+            if (uri == null) {
+                continue;
+            }
+            mHandleToUriMap.put(message.mStatus.mHandle, uri);
+            mUriToHandleMap.put(uri, message.mStatus);
+        }
+        logD("Inserted " + mBatchedMessages.size() + " messages");
+        mBatchedMessages.clear();
+    }
+
+    /**
+     * findStoredSms
+     * look up an SMS stored with the same values as a batched one and not tracked yet, as
+     * inserted by a batch which failed part way
+     */
+    private Uri findStoredSms(BatchedMessage message) {
+        StringBuilder selection = new StringBuilder();
+        List<String> selectionArgs = new ArrayList<>();
+        for (String column : new String[] {Sms.THREAD_ID, Sms.ADDRESS, Sms.BODY,
+                Sms.SUBSCRIPTION_ID, Sms.DATE}) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            String value = message.mValues.getAsString(column);
+            if (value == null) {
+                selection.append(column).append(" IS NULL");
+            } else {
+                selection.append(column).append("=?");
+                selectionArgs.add(value);
+            }
+        }
+        Cursor cursor = mResolver.query(message.mContentUri, new String[] {Sms._ID},
+                selection.toString(), selectionArgs.toArray(new String[0]), null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                Uri uri = ContentUris.withAppendedId(Sms.CONTENT_URI, cursor.getLong(0));
+                if (!mUriToHandleMap.containsKey(uri)) {
+                    return uri;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
     /**
      * deleteMessage
      * remove a message from the local provider based on a remote change
      */
     void deleteMessage(String handle) {
         logD("deleting handle" + handle);
+        flushBatch();
         Uri messageToChange = mHandleToUriMap.get(handle);
         if (messageToChange != null) {
             mResolver.delete(messageToChange, null);
+            mThreadIdCache.clear();
         }
     }
 
@@ -260,6 +419,7 @@ class MapClientContent {
      */
     void markRead(String handle) {
         logD("marking read " + handle);
+        flushBatch();
         Uri messageToChange = mHandleToUriMap.get(handle);
         if (messageToChange != null) {
             ContentValues values = new ContentValues();
@@ -268,36 +428,82 @@ class MapClientContent {
         }
     }
 
+    /**
+     * scheduleFindChangeInDatabase
+     * reconcile the local content provider after a short delay, so that a burst of changes is
+     * handled in a single pass.
+     */
+    private void scheduleFindChangeInDatabase() {
+        if (!mHandler.hasCallbacks(mFindChangeRunnable)) {
+            mHandler.postDelayed(mFindChangeRunnable, FIND_CHANGE_DELAY_MS);
+        }
+    }
+
     /**
      * findChangeInDatabase
-     * compare the current state of the local content provider to the expected state and propagate
-     * changes to the remote.
+     * compare the current state of the messages stored by this client in the local content
+     * provider to the expected state and propagate changes to the remote.
      */
     private void findChangeInDatabase() {
-        HashMap<Uri, MessageStatus> originalUriToHandleMap;
-        HashMap<Uri, MessageStatus> duplicateUriToHandleMap;
-
-        originalUriToHandleMap = mUriToHandleMap;
-        duplicateUriToHandleMap = new HashMap<>(originalUriToHandleMap);
         for (Uri uri : new Uri[]{Mms.CONTENT_URI, Sms.CONTENT_URI}) {
-            Cursor cursor = mResolver.query(uri, null, null, null, null);
+            // Only look up the messages this client stored, rather than the whole table
+            List<Uri> stored = new ArrayList<>();
+            for (Uri message : mUriToHandleMap.keySet()) {
+                if (uri.getAuthority().equals(message.getAuthority())) {
+                    stored.add(message);
+                }
+            }
+            for (int start = 0; start < stored.size(); start += FIND_CHANGE_BATCH_SIZE) {
+                findChangeInBatch(uri, stored.subList(start,
+                        Math.min(start + FIND_CHANGE_BATCH_SIZE, stored.size())));
+            }
+        }
+    }
+
+    private void findChangeInBatch(Uri uri, List<Uri> messages) {
+        Map<String, Uri> missing = new HashMap<>();
+        StringBuilder selection = new StringBuilder(Sms._ID).append(" IN (");
+        for (Uri message : messages) {
+            if (missing.put(message.getLastPathSegment(), message) == null) {
+                selection.append(missing.size() == 1 ? "?" : ",?");
+            }
+        }
+        selection.append(")");
+
+        Cursor cursor = mResolver.query(uri, FIND_CHANGE_PROJECTION, selection.toString(),
+                missing.keySet().toArray(new String[0]), null);
+        if (cursor == null) {
+            Log.w(TAG, "findChangeInBatch: query failed for " + uri);
+            return;
+        }
+        try {
+            int idIndex = cursor.getColumnIndex(Sms._ID);
+            int readIndex = cursor.getColumnIndex(Sms.READ);
             while (cursor.moveToNext()) {
-                Uri index = Uri
-                        .withAppendedPath(uri, cursor.getString(cursor.getColumnIndex("_id")));
-                int readStatus = cursor.getInt(cursor.getColumnIndex(Sms.READ));
-                MessageStatus currentMessage = duplicateUriToHandleMap.remove(index);
-                if (currentMessage != null && currentMessage.mRead != readStatus) {
+                Uri message = missing.remove(cursor.getString(idIndex));
+                if (message == null) {
+                    continue;
+                }
+                int readStatus = cursor.getInt(readIndex);
+                MessageStatus currentMessage = mUriToHandleMap.get(message);
+                if (currentMessage.mRead != readStatus) {
                     logV(currentMessage.mHandle);
                     currentMessage.mRead = readStatus;
                     mCallbacks.onMessageStatusChanged(currentMessage.mHandle,
                             BluetoothMapClient.READ);
                 }
             }
+        } finally {
+            cursor.close();
+        }
+        if (!missing.isEmpty()) {
+            mThreadIdCache.clear();
         }
-        for (HashMap.Entry record : duplicateUriToHandleMap.entrySet()) {
-            logV("Deleted " + ((MessageStatus) record.getValue()).mHandle);
-            originalUriToHandleMap.remove(record.getKey());
-            mCallbacks.onMessageStatusChanged(((MessageStatus) record.getValue()).mHandle,
+        for (Uri message : missing.values()) {
+            MessageStatus deletedMessage = mUriToHandleMap.remove(message);
+            logV("Deleted " + deletedMessage.mHandle);
+            mHandleToUriMap.remove(deletedMessage.mHandle);
+            mCallbacks.onMessageStatusChanged(deletedMessage.mHandle,
                     BluetoothMapClient.DELETED);
         }
     }
@@ -412,6 +618,9 @@ class MapClientContent {
         logD("cleanUp(device=" + Utils.getLoggableAddress(mDevice)
                 + "subscriptionId=" + mSubscriptionId);
         mResolver.unregisterContentObserver(mContentObserver);
+        mHandler.removeCallbacks(mFindChangeRunnable);
+        mBatchedMessages = null;
+        mThreadIdCache.clear();
         clearMessages(mContext, mSubscriptionId);
         try {
             mSubscriptionManager.removeSubscriptionInfoRecord(mDevice.getAddress(),
@@ -472,7 +681,12 @@ class MapClientContent {
         }
 
         logV("Contacts = " + messageContacts.toString());
-        return Telephony.Threads.getOrCreateThreadId(mContext, messageContacts);
+        Long threadId = mThreadIdCache.get(messageContacts);
+        if (threadId == null) {
+            threadId = Telephony.Threads.getOrCreateThreadId(mContext, messageContacts);
+            mThreadIdCache.put(messageContacts, threadId);
+        }
+        return threadId;
     }
 
     private void getRecipientsFromMessage(Bmessage message, Set<String> messageContacts) {
@@ -617,6 +831,23 @@ class MapClientContent {
         sb.append("\n");
     }
 
+    /**
+     * BatchedMessage
+     *
+     * SMS queued for insertion, along with the status to track once inserted
+     */
+    private static class BatchedMessage {
+        final Uri mContentUri;
+        final ContentValues mValues;
+        final MessageStatus mStatus;
+
+        BatchedMessage(Uri contentUri, ContentValues values, MessageStatus status) {
+            mContentUri = contentUri;
+            mValues = values;
+            mStatus = status;
+        }
+    }
+
     /**
      * MessageStatus
      *
@@ -113,6 +113,9 @@ class MceStateMachine extends StateMachine {
     private static final int DISCONNECT_TIMEOUT = 3000;
     private static final int CONNECT_TIMEOUT = 10000;
     private static final int MAX_MESSAGES = 20;
+    // Messages downloaded from a listing are stored and announced by batches of this size
+    @VisibleForTesting
+    static final int INBOUND_BATCH_SIZE = 50;
     private static final int MSG_CONNECT = 1;
     private static final int MSG_DISCONNECT = 2;
     private static final int MSG_CONNECTING_TIMEOUT = 3;
@@ -207,6 +210,10 @@ class MceStateMachine extends StateMachine {
     @VisibleForTesting
     ConcurrentHashMap<String, MessageMetadata> mMessages =
             new ConcurrentHashMap<String, MessageMetadata>();
+    // Handles of the listed messages being downloaded
+    private final Set<String> mListingDownloads = new HashSet<>();
+    // Listed messages stored in the current batch, announced once the batch is written
+    private final List<RequestGetMessage> mBatchedInboundMessages = new ArrayList<>();
 
     MceStateMachine(MapClientService service, BluetoothDevice device) {
         this(service, device, null, null);
@@ -576,7 +583,8 @@ class MceStateMachine extends StateMachine {
             };
             // Keeps mock database from being overwritten in tests
             if (mDatabase == null) {
-                mDatabase = new MapClientContent(mService, callbacks, mDevice);
+                mDatabase = new MapClientContent(mService, callbacks, mDevice,
+                        getHandler().getLooper());
             }
             onConnectionStateChanged(mPreviousState, BluetoothProfile.STATE_CONNECTED);
             if (Utils.isPtsTestMode()) return;
@@ -724,6 +732,8 @@ class MceStateMachine extends StateMachine {
 
         @Override
         public void exit() {
+            mListingDownloads.clear();
+            mBatchedInboundMessages.clear();
             mDatabase.cleanUp();
             mDatabase = null;
             mPreviousState = BluetoothProfile.STATE_CONNECTED;
@@ -809,6 +819,8 @@ class MceStateMachine extends StateMachine {
 
             ArrayList<com.android.bluetooth.mapclient.Message> messageListing = request.getList();
             if (messageListing != null) {
+                // Listed messages are stored by batches, see processInboundMessage()
+                mDatabase.startBatch();
                 // Message listings by spec arrive ordered newest first but we wish to broadcast as
                 // oldest first. Iterate in reverse order so we initiate requests oldest first.
                 for (int i = messageListing.size() - 1; i >= 0; i--) {
@@ -825,8 +837,13 @@ class MceStateMachine extends StateMachine {
                     }
                     mMessages.put(msg.getHandle(), new MessageMetadata(msg.getHandle(),
                             msg.getDateTime().getTime(), msg.isRead(), MESSAGE_SEEN));
-                    getMessage(msg.getHandle());
+                    // Queue the download right away rather than going through
+                    // MSG_INBOUND_MESSAGE, so that the requests are sent back to back
+                    mListingDownloads.add(msg.getHandle());
+                    mMasClient.makeRequest(new RequestGetMessage(msg.getHandle(),
+                            MasClient.CharsetType.UTF_8, false));
                 }
+                flushInboundBatchIfDone();
             }
         }
 
@@ -933,13 +950,58 @@ class MceStateMachine extends StateMachine {
             if (DBG) {
                 Log.d(TAG, "Notify inbound Message" + message);
             }
+            boolean listed = mListingDownloads.remove(request.getHandle());
 
             if (message == null) {
+                flushInboundBatchIfDone();
                 return;
             }
             mDatabase.storeMessage(message, request.getHandle(),
                     mMessages.get(request.getHandle()).getTimestamp(),
                     mMessages.get(request.getHandle()).getSeen());
+            if (!listed && mListingDownloads.isEmpty()) {
+                // Not batched, the message is already written
+                notifyInboundMessage(request);
+                return;
+            }
+            // Announce the message once written, with the rest of the batch it is queued in
+            mBatchedInboundMessages.add(request);
+            if (mBatchedInboundMessages.size() >= INBOUND_BATCH_SIZE) {
+                flushInboundBatch();
+            } else {
+                flushInboundBatchIfDone();
+            }
+        }
+
+        private void flushInboundBatchIfDone() {
+            if (mListingDownloads.isEmpty()) {
+                flushInboundBatch();
+            }
+        }
+
+        /**
+         * Writes the listed messages stored so far and announces them. Batching goes on while
+         * listed messages are still being downloaded.
+         */
+        private void flushInboundBatch() {
+            mDatabase.finishBatch();
+            if (!mListingDownloads.isEmpty()) {
+                mDatabase.startBatch();
+            }
+            List<RequestGetMessage> requests = new ArrayList<>(mBatchedInboundMessages);
+            mBatchedInboundMessages.clear();
+            for (RequestGetMessage request : requests) {
+                notifyInboundMessage(request);
+            }
+        }
+
+        /**
+         * Broadcasts a stored inbound message to the registered applications.
+         *
+         * @param request - A request object that has been resolved and returned with message data
+         */
+        private void notifyInboundMessage(RequestGetMessage request) {
+            Bmessage message = request.getMessage();
             if (!INBOX_PATH.equalsIgnoreCase(message.getFolder())) {
                 if (DBG) {
                     Log.d(TAG, "Ignoring message received in " + message.getFolder() + ".");
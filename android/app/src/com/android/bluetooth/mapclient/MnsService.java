@@ -60,7 +60,7 @@ public class MnsService {
         }
         sContext = context;
         sAcceptThread = new SocketAcceptor();
-        sServerSockets = ObexServerSockets.create(sAcceptThread);
+        sServerSockets = ObexServerSockets.create(sAcceptThread, "MNS");
         SdpManager sdpManager = SdpManager.getDefaultManager();
         if (sdpManager == null) {
             Log.e(TAG, "SdpManager is null");
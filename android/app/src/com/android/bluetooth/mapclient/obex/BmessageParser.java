@@ -18,7 +18,6 @@ package com.android.bluetooth.mapclient;
 
 import android.util.Log;
 
-import com.android.bluetooth.mapclient.BmsgTokenizer.Property;
 import com.android.vcard.VCardEntry;
 import com.android.vcard.VCardEntryConstructor;
 import com.android.vcard.VCardEntryHandler;
@@ -32,123 +31,323 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.Arrays;
 
-/* BMessage as defined by MAP_SPEC_V101 Section 3.1.3 Message format (x-bt/message) */
+/*
+ * BMessage as defined by MAP_SPEC_V101 Section 3.1.3 Message format (x-bt/message)
+ *
+ * The bMessage is parsed straight from the bytes received, as they arrive: lines are matched
+ * byte-wise against the expected properties, only the property values kept are decoded, and the
+ * 'message' is copied once, using its LENGTH, then decoded when complete.
+ */
 class BmessageParser {
     private static final String TAG = "BmessageParser";
     private static final boolean DBG = MapClientService.DBG;
 
-    private static final String CRLF = "\r\n";
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte COLON = ':';
+    private static final byte[] CRLF = {CR, LF};
 
-    private static final Property BEGIN_BMSG = new Property("BEGIN", "BMSG");
-    private static final Property END_BMSG = new Property("END", "BMSG");
+    private static final byte[] BEGIN_BMSG = bytes("BEGIN:BMSG");
+    private static final byte[] END_BMSG = bytes("END:BMSG");
 
-    private static final Property BEGIN_VCARD = new Property("BEGIN", "VCARD");
-    private static final Property END_VCARD = new Property("END", "VCARD");
+    private static final byte[] BEGIN_VCARD = bytes("BEGIN:VCARD");
+    private static final byte[] END_VCARD = bytes("END:VCARD");
 
-    private static final Property BEGIN_BENV = new Property("BEGIN", "BENV");
-    private static final Property END_BENV = new Property("END", "BENV");
+    private static final byte[] BEGIN_BENV = bytes("BEGIN:BENV");
+    private static final byte[] END_BENV = bytes("END:BENV");
 
-    private static final Property BEGIN_BBODY = new Property("BEGIN", "BBODY");
-    private static final Property END_BBODY = new Property("END", "BBODY");
+    private static final byte[] BEGIN_BBODY = bytes("BEGIN:BBODY");
+    private static final byte[] END_BBODY = bytes("END:BBODY");
 
-    private static final Property BEGIN_MSG = new Property("BEGIN", "MSG");
-    private static final Property END_MSG = new Property("END", "MSG");
+    private static final byte[] BEGIN_MSG = bytes("BEGIN:MSG");
+    private static final byte[] END_MSG = bytes("END:MSG");
 
-    private static final int CRLF_LEN = 2;
+    private static final byte[] VERSION = bytes("VERSION:");
+    private static final byte[] STATUS = bytes("STATUS:");
+    private static final byte[] TYPE = bytes("TYPE:");
+    private static final byte[] FOLDER = bytes("FOLDER:");
+    private static final byte[] ENCODING = bytes("ENCODING:");
+    private static final byte[] CHARSET = bytes("CHARSET:");
+    private static final byte[] LANGUAGE = bytes("LANGUAGE:");
+    private static final byte[] LENGTH = bytes("LENGTH:");
 
     /**
      * length of "container" for 'message' in bmessage-body-content:
      * BEGIN:MSG<CRLF> + <CRLF> + END:MSG<CRFL>
      */
     private static final int MSG_CONTAINER_LEN = 22;
-    private final Bmessage mBmsg;
-    private BmsgTokenizer mParser;
 
-    private BmessageParser() {
-        mBmsg = new Bmessage();
+    /** LENGTH comes from the MSE, don't allocate more than this upfront for the 'message' */
+    private static final int MAX_INITIAL_MESSAGE_CAPACITY = 64 * 1024;
+
+    /** Expecting BEGIN:BMSG */
+    private static final int STATE_BMSG = 0;
+    /** In <bmessage-property>, up to the first originator or bEnvelope */
+    private static final int STATE_PROPERTIES = 1;
+    /** After an originator vCard */
+    private static final int STATE_ORIGINATORS = 2;
+    /** In a vCard, of an originator or recipient */
+    private static final int STATE_VCARD = 3;
+    /** In a bEnvelope, before its nested bEnvelope or bBody */
+    private static final int STATE_ENVELOPE = 4;
+    /** In <bmessage-body-property>, up to BEGIN:MSG */
+    private static final int STATE_BODY_PROPERTIES = 5;
+    /** In 'message', as long as its LENGTH */
+    private static final int STATE_MESSAGE = 6;
+    /** Rest of the line ending 'message' */
+    private static final int STATE_MESSAGE_END = 7;
+    /** In 'message' with an invalid LENGTH, up to END:MSG */
+    private static final int STATE_MESSAGE_BY_LINE = 8;
+    /** Expecting END:MSG */
+    private static final int STATE_END_MSG = 9;
+    /** Expecting END:BBODY */
+    private static final int STATE_END_BBODY = 10;
+    /** Expecting END:BENV, as many times as bEnvelopes were nested */
+    private static final int STATE_END_BENV = 11;
+    /** Expecting END:BMSG */
+    private static final int STATE_END_BMSG = 12;
+    /** After END:BMSG, whatever is left is ignored */
+    private static final int STATE_DONE = 13;
+
+    private final Bmessage mBmsg = new Bmessage();
+    private final ByteBuilder mLine = new ByteBuilder(128);
+    private final ByteBuilder mVcard = new ByteBuilder(256);
+    private ByteBuilder mMessage;
+
+    private int mState = STATE_BMSG;
+    private int mEnvelopeLevel = 0;
+    private int mMessageRemaining;
+    private int mPos = 0;
+    private int mLineStart = 0;
+    private ParseException mError;
+
+    BmessageParser() {
     }
 
     public static Bmessage createBmessage(String str) {
-        BmessageParser p = new BmessageParser();
-
         if (DBG) {
             Log.d(TAG, "actual wired contents: " + str);
         }
 
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        BmessageParser p = new BmessageParser();
         try {
-            p.parse(str);
-        } catch (IOException e) {
-            Log.e(TAG, "I/O exception when parsing bMessage", e);
-            return null;
+            p.parse(data, 0, data.length);
+            return p.finish();
         } catch (ParseException e) {
             Log.e(TAG, "Cannot parse bMessage", e);
             return null;
         }
+    }
+
+    /**
+     * Parses the next bytes of the bMessage. Can be called as many times as needed, e.g. for each
+     * chunk read from the OBEX stream, before {@link #finish}.
+     *
+     * @throws ParseException if the bMessage is invalid, further calls then throw it again
+     */
+    void parse(byte[] data, int offset, int length) throws ParseException {
+        if (mError != null) {
+            throw mError;
+        }
+
+        int end = offset + length;
+        int i = offset;
+        try {
+            while (i < end && mState != STATE_DONE) {
+                if (mState == STATE_MESSAGE) {
+                    int count = Math.min(mMessageRemaining, end - i);
+                    mMessage.append(data, i, count);
+                    mMessageRemaining -= count;
+                    mPos += count;
+                    i += count;
+                    if (mMessageRemaining == 0) {
+                        mState = STATE_MESSAGE_END;
+                        mLineStart = mPos;
+                    }
+                    continue;
+                }
 
-        return p.mBmsg;
+                int lf = indexOf(data, LF, i, end);
+                if (lf < 0) {
+                    mLine.append(data, i, end - i);
+                    mPos += end - i;
+                    break;
+                }
+                mLine.append(data, i, lf - i);
+                mPos += lf + 1 - i;
+                i = lf + 1;
+                onLine();
+                mLine.clear();
+                mLineStart = mPos;
+            }
+        } catch (ParseException e) {
+            mError = e;
+            throw e;
+        }
     }
 
-    private ParseException expected(Property... props) {
-        boolean first = true;
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Ends parsing, once all the bytes were passed to {@link #parse}.
+     *
+     * @return the bMessage parsed
+     * @throws ParseException if the bMessage is invalid or incomplete
+     */
+    Bmessage finish() throws ParseException {
+        if (mError != null) {
+            throw mError;
+        }
 
-        for (Property prop : props) {
-            if (!first) {
-                sb.append(" or ");
+        try {
+            // The last line does not have to be terminated
+            if (mState != STATE_DONE && mLine.mLength > 0) {
+                onLine();
+                mLine.clear();
             }
-            sb.append(prop);
-            first = false;
+            if (mState != STATE_DONE) {
+                throw new ParseException("Unexpected end of bMessage", mPos);
+            }
+        } catch (ParseException e) {
+            mError = e;
+            throw e;
         }
 
-        return new ParseException("Expected: " + sb.toString(), mParser.pos());
+        return mBmsg;
     }
 
-    private void parse(String str) throws IOException, ParseException {
-        Property prop;
-
-        /*
-         * <bmessage-object>::= { "BEGIN:BMSG" <CRLF> <bmessage-property>
-         * [<bmessage-originator>]* <bmessage-envelope> "END:BMSG" <CRLF> }
-         */
-        mParser = new BmsgTokenizer(str + CRLF);
+    private void onLine() throws ParseException {
+        int length = mLine.mLength;
+        if (length > 0 && mLine.mData[length - 1] == CR) {
+            length--;
+        }
 
-        prop = mParser.next();
-        if (!prop.equals(BEGIN_BMSG)) {
-            throw expected(BEGIN_BMSG);
+        if (mState == STATE_MESSAGE_END) {
+            onMessageEnd(length);
+            return;
+        } else if (mState == STATE_MESSAGE_BY_LINE) {
+            onMessageLine(length);
+            return;
         }
 
-        prop = parseProperties();
+        // Empty lines are skipped anywhere else
+        if (length == 0) {
+            return;
+        }
+        if (indexOf(mLine.mData, COLON, 0, length) < 0) {
+            throw new ParseException("Property or empty line expected", mLineStart);
+        }
 
-        while (prop.equals(BEGIN_VCARD)) {
-            /* <bmessage-originator>::= <vcard> <CRLF> */
+        switch (mState) {
+            case STATE_BMSG:
+                /*
+                 * <bmessage-object>::= { "BEGIN:BMSG" <CRLF> <bmessage-property>
+                 * [<bmessage-originator>]* <bmessage-envelope> "END:BMSG" <CRLF> }
+                 */
+                if (!lineEquals(BEGIN_BMSG, length)) {
+                    throw expected(BEGIN_BMSG);
+                }
+                mState = STATE_PROPERTIES;
+                break;
+
+            case STATE_PROPERTIES:
+                if (lineEquals(BEGIN_VCARD, length)) {
+                    beginVcard();
+                } else if (lineEquals(BEGIN_BENV, length)) {
+                    beginEnvelope();
+                } else {
+                    parseProperty(length);
+                }
+                break;
+
+            case STATE_ORIGINATORS:
+                /* <bmessage-originator>::= <vcard> <CRLF> */
+                if (lineEquals(BEGIN_VCARD, length)) {
+                    beginVcard();
+                } else if (lineEquals(BEGIN_BENV, length)) {
+                    beginEnvelope();
+                } else {
+                    throw expected(BEGIN_BENV);
+                }
+                break;
 
-            StringBuilder vcard = new StringBuilder();
-            prop = extractVcard(vcard);
+            case STATE_VCARD:
+                mVcard.append(mLine.mData, 0, length);
+                mVcard.append(CRLF);
+                if (lineEquals(END_VCARD, length)) {
+                    endVcard();
+                }
+                break;
+
+            case STATE_ENVELOPE:
+                /*
+                 * <bmessage-envelope> ::= { "BEGIN:BENV" <CRLF> [<bmessage-recipient>]*
+                 * <bmessage-envelope> | <bmessage-content> "END:BENV" <CRLF> }
+                 */
+                if (lineEquals(BEGIN_VCARD, length)) {
+                    beginVcard();
+                } else if (lineEquals(BEGIN_BENV, length)) {
+                    beginEnvelope();
+                } else if (lineEquals(BEGIN_BBODY, length)) {
+                    mState = STATE_BODY_PROPERTIES;
+                } else {
+                    throw expected(BEGIN_BENV, BEGIN_BBODY);
+                }
+                break;
 
-            VCardEntry entry = parseVcard(vcard.toString());
-            mBmsg.mOriginators.add(entry);
-        }
+            case STATE_BODY_PROPERTIES:
+                if (lineEquals(BEGIN_MSG, length)) {
+                    beginMessage();
+                } else {
+                    parseBodyProperty(length);
+                }
+                break;
+
+            case STATE_END_MSG:
+                if (!lineEquals(END_MSG, length)) {
+                    /* Handle possible exception for incorrect LENGTH value
+                     * from MSE while parsing  GET Message response */
+                    Log.e(TAG, "Possible Invalid LENGTH value");
+                    throw expected(END_MSG);
+                }
+                endMessage();
+                break;
 
-        if (!prop.equals(BEGIN_BENV)) {
-            throw expected(BEGIN_BENV);
-        }
+            case STATE_END_BBODY:
+                if (!lineEquals(END_BBODY, length)) {
+                    throw expected(END_BBODY);
+                }
+                mState = STATE_END_BENV;
+                break;
 
-        prop = parseEnvelope(1);
+            case STATE_END_BENV:
+                if (!lineEquals(END_BENV, length)) {
+                    throw expected(END_BENV);
+                }
+                mEnvelopeLevel--;
+                if (mEnvelopeLevel == 0) {
+                    mState = STATE_END_BMSG;
+                }
+                break;
 
-        if (!prop.equals(END_BMSG)) {
-            throw expected(END_BENV);
+            case STATE_END_BMSG:
+                if (!lineEquals(END_BMSG, length)) {
+                    throw expected(END_BMSG);
+                }
+                /*
+                 * there should be no meaningful data left in stream here so we just
+                 * ignore whatever is left
+                 */
+                mState = STATE_DONE;
+                break;
+
+            default:
+                throw new IllegalStateException("Unexpected state " + mState);
         }
-
-        /*
-         * there should be no meaningful data left in stream here so we just
-         * ignore whatever is left
-         */
-        mParser = null;
     }
 
-    private Property parseProperties() throws ParseException {
-        Property prop;
+    private void parseProperty(int length) {
         /*
          * <bmessage-property>::=<bmessage-version-property>
          * <bmessage-readstatus-property> <bmessage-type-property>
@@ -158,91 +357,34 @@ class BmessageParser {
          * <bmessage-type-property>::="TYPE:" 'type' <CRLF>
          * <bmessage-folder-property>::="FOLDER:" 'foldername' <CRLF>
          */
-        do {
-            prop = mParser.next();
-
-            if (prop.name.equals("VERSION")) {
-                mBmsg.mBmsgVersion = prop.value;
-
-            } else if (prop.name.equals("STATUS")) {
-                for (Bmessage.Status s : Bmessage.Status.values()) {
-                    if (prop.value.equals(s.toString())) {
-                        mBmsg.mBmsgStatus = s;
-                        break;
-                    }
+        if (lineStartsWith(VERSION, length)) {
+            mBmsg.mBmsgVersion = value(VERSION, length);
+
+        } else if (lineStartsWith(STATUS, length)) {
+            String value = value(STATUS, length);
+            for (Bmessage.Status s : Bmessage.Status.values()) {
+                if (value.equals(s.toString())) {
+                    mBmsg.mBmsgStatus = s;
+                    break;
                 }
-
-            } else if (prop.name.equals("TYPE")) {
-                for (Bmessage.Type t : Bmessage.Type.values()) {
-                    if (prop.value.equals(t.toString())) {
-                        mBmsg.mBmsgType = t;
-                        break;
-                    }
-                }
-
-            } else if (prop.name.equals("FOLDER")) {
-                mBmsg.mBmsgFolder = prop.value;
-
             }
 
-        } while (!prop.equals(BEGIN_VCARD) && !prop.equals(BEGIN_BENV));
-
-        return prop;
-    }
-
-    private Property parseEnvelope(int level) throws IOException, ParseException {
-        Property prop;
-
-        /*
-         * we can support as many nesting level as we want, but MAP spec clearly
-         * defines that there should be no more than 3 levels. so we verify it
-         * here.
-         */
-
-        if (level > 3) {
-            throw new ParseException("bEnvelope is nested more than 3 times", mParser.pos());
-        }
-
-        /*
-         * <bmessage-envelope> ::= { "BEGIN:BENV" <CRLF> [<bmessage-recipient>]*
-         * <bmessage-envelope> | <bmessage-content> "END:BENV" <CRLF> }
-         */
-
-        prop = mParser.next();
-
-        while (prop.equals(BEGIN_VCARD)) {
-
-            /* <bmessage-originator>::= <vcard> <CRLF> */
-
-            StringBuilder vcard = new StringBuilder();
-            prop = extractVcard(vcard);
-
-            if (level == 1) {
-                VCardEntry entry = parseVcard(vcard.toString());
-                mBmsg.mRecipients.add(entry);
+        } else if (lineStartsWith(TYPE, length)) {
+            String value = value(TYPE, length);
+            for (Bmessage.Type t : Bmessage.Type.values()) {
+                if (value.equals(t.toString())) {
+                    mBmsg.mBmsgType = t;
+                    break;
+                }
             }
-        }
-
-        if (prop.equals(BEGIN_BENV)) {
-            prop = parseEnvelope(level + 1);
-
-        } else if (prop.equals(BEGIN_BBODY)) {
-            prop = parseBody();
 
-        } else {
-            throw expected(BEGIN_BENV, BEGIN_BBODY);
-        }
+        } else if (lineStartsWith(FOLDER, length)) {
+            mBmsg.mBmsgFolder = value(FOLDER, length);
 
-        if (!prop.equals(END_BENV)) {
-            throw expected(END_BENV);
         }
-
-        return mParser.next();
     }
 
-    private Property parseBody() throws IOException, ParseException {
-        Property prop;
-
+    private void parseBodyProperty(int length) throws ParseException {
         /*
          * <bmessage-content>::= { "BEGIN:BBODY"<CRLF> [<bmessage-body-part-ID>
          * <CRLF>] <bmessage-body-property> <bmessage-body-content>* <CRLF>
@@ -257,32 +399,70 @@ class BmessageParser {
          * <bmessage-body-content-length-property>::= "LENGTH:" <common-digit>*
          * <CRLF>
          */
+        if (lineStartsWith(ENCODING, length)) {
+            mBmsg.mBbodyEncoding = value(ENCODING, length);
 
-        do {
-            prop = mParser.next();
+        } else if (lineStartsWith(CHARSET, length)) {
+            mBmsg.mBbodyCharset = value(CHARSET, length);
 
-            if (prop.name.equals("PARTID")) {
-                // Do nothing
-            } else if (prop.name.equals("ENCODING")) {
-                mBmsg.mBbodyEncoding = prop.value;
+        } else if (lineStartsWith(LANGUAGE, length)) {
+            mBmsg.mBbodyLanguage = value(LANGUAGE, length);
 
-            } else if (prop.name.equals("CHARSET")) {
-                mBmsg.mBbodyCharset = prop.value;
+        } else if (lineStartsWith(LENGTH, length)) {
+            mBmsg.mBbodyLength = parseLength(length);
 
-            } else if (prop.name.equals("LANGUAGE")) {
-                mBmsg.mBbodyLanguage = prop.value;
+        }
+    }
 
-            } else if (prop.name.equals("LENGTH")) {
-                try {
-                    mBmsg.mBbodyLength = Integer.parseInt(prop.value);
-                } catch (NumberFormatException e) {
-                    throw new ParseException("Invalid LENGTH value", mParser.pos());
-                }
+    private int parseLength(int length) throws ParseException {
+        if (length == LENGTH.length) {
+            throw new ParseException("Invalid LENGTH value", mLineStart);
+        }
+        int value = 0;
+        for (int i = LENGTH.length; i < length; i++) {
+            int digit = mLine.mData[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new ParseException("Invalid LENGTH value", mLineStart);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
 
+    private void beginVcard() {
+        mVcard.clear();
+        mVcard.append(BEGIN_VCARD);
+        mVcard.append(CRLF);
+        mState = STATE_VCARD;
+    }
+
+    private void endVcard() throws ParseException {
+        // Only the originators and the recipients of the outer bEnvelope are kept
+        if (mEnvelopeLevel == 0) {
+            mBmsg.mOriginators.add(parseVcard());
+            mState = STATE_ORIGINATORS;
+        } else {
+            if (mEnvelopeLevel == 1) {
+                mBmsg.mRecipients.add(parseVcard());
             }
+            mState = STATE_ENVELOPE;
+        }
+    }
 
-        } while (!prop.equals(BEGIN_MSG));
+    private void beginEnvelope() throws ParseException {
+        /*
+         * we can support as many nesting level as we want, but MAP spec clearly
+         * defines that there should be no more than 3 levels. so we verify it
+         * here.
+         */
+        mEnvelopeLevel++;
+        if (mEnvelopeLevel > 3) {
+            throw new ParseException("bEnvelope is nested more than 3 times", mLineStart);
+        }
+        mState = STATE_ENVELOPE;
+    }
 
+    private void beginMessage() throws ParseException {
         /*
          * check that the charset is always set to UTF-8. We expect only text transfer (in lieu with
          * the MAPv12 specifying only RFC2822 (text only) for MMS/EMAIL and SMS do not support
@@ -300,96 +480,95 @@ class BmessageParser {
         /*
          * <bmessage-body-content>::={ "BEGIN:MSG"<CRLF> 'message'<CRLF>
          * "END:MSG"<CRLF> }
+         *
+         * length is specified in bytes, which is what we count here
          */
-
         int messageLen = mBmsg.mBbodyLength - MSG_CONTAINER_LEN;
-        int offset = messageLen + CRLF_LEN;
-        int restartPos = mParser.pos() + offset;
-        /*
-         * length is specified in bytes so we need to convert from unicode
-         * string back to bytes array
-         */
-        String remng = mParser.remaining();
-        byte[] data = remng.getBytes();
-
-        if (offset < 0 || offset > data.length) {
-            /* Handle possible exception for incorrect LENGTH value
-             * from MSE while parsing end of props */
-            throw new ParseException("Invalid LENGTH value", mParser.pos());
+        if (messageLen < 0) {
+            throw new ParseException("Invalid LENGTH value", mLineStart);
         }
 
-        /* restart parsing from after 'message'<CRLF> */
-        mParser = new BmsgTokenizer(new String(data, offset, data.length - offset), restartPos);
-
-        prop = mParser.next(true);
-
-        if (prop != null) {
-            if (prop.equals(END_MSG)) {
-                if ("UTF-8".equals(mBmsg.mBbodyCharset)) {
-                    mBmsg.mMessage = new String(data, 0, messageLen, StandardCharsets.UTF_8);
-                } else {
-                    mBmsg.mMessage = new String(data, 0, messageLen);
-                }
-            } else {
-                /* Handle possible exception for incorrect LENGTH value
-                 * from MSE while parsing  GET Message response */
-                Log.e(TAG, "Prop Invalid: " + prop.toString());
-                Log.e(TAG, "Possible Invalid LENGTH value");
-                throw expected(END_MSG);
-            }
-        } else {
-            data = null;
-
-            /*
-             * now we check if bMessage can be parsed if LENGTH is handled as
-             * number of characters instead of number of bytes
-             */
-            if (offset < 0 || offset > remng.length()) {
-                /* Handle possible exception for incorrect LENGTH value
-                 * from MSE while parsing  GET Message response */
-                throw new ParseException("Invalid LENGTH value", mParser.pos());
-            }
-
-            Log.w(TAG, "byte LENGTH seems to be invalid, trying with char length");
+        mMessage = new ByteBuilder(Math.min(messageLen, MAX_INITIAL_MESSAGE_CAPACITY));
+        mMessageRemaining = messageLen;
+        mState = messageLen > 0 ? STATE_MESSAGE : STATE_MESSAGE_END;
+    }
 
-            mParser = new BmsgTokenizer(remng.substring(offset));
+    private void onMessageEnd(int length) {
+        if (length == 0) {
+            mState = STATE_END_MSG;
+            return;
+        }
 
-            prop = mParser.next();
+        /*
+         * 'message' is not followed by <CRLF> "END:MSG", check if bMessage can be parsed if
+         * LENGTH is handled as number of characters instead of number of bytes, by taking
+         * everything up to END:MSG as the message
+         */
+        Log.w(TAG, "byte LENGTH seems to be invalid, looking for END:MSG");
+        mState = STATE_MESSAGE_BY_LINE;
+        onMessageLine(length);
+    }
 
-            if (!prop.equals(END_MSG)) {
-                throw expected(END_MSG);
-            }
+    private void onMessageLine(int length) {
+        if (lineEquals(END_MSG, length)) {
+            mMessage.removeTrailing(CRLF);
+            endMessage();
+            return;
+        }
+        // Keep the line as received, with its own line ending
+        mMessage.append(mLine.mData, 0, mLine.mLength);
+        mMessage.append(CRLF, 1, 1);
+    }
 
-            if ("UTF-8".equals(mBmsg.mBbodyCharset)) {
-                mBmsg.mMessage = remng.substring(0, messageLen);
-            } else {
-                mBmsg.mMessage = null;
-            }
+    private void endMessage() {
+        if ("UTF-8".equals(mBmsg.mBbodyCharset)) {
+            mBmsg.mMessage =
+                    new String(mMessage.mData, 0, mMessage.mLength, StandardCharsets.UTF_8);
+        } else {
+            mBmsg.mMessage = new String(mMessage.mData, 0, mMessage.mLength);
         }
+        mMessage = null;
+        mState = STATE_END_BBODY;
+    }
 
-        prop = mParser.next();
+    private ParseException expected(byte[]... lines) {
+        boolean first = true;
+        StringBuilder sb = new StringBuilder();
 
-        if (!prop.equals(END_BBODY)) {
-            throw expected(END_BBODY);
+        for (byte[] line : lines) {
+            if (!first) {
+                sb.append(" or ");
+            }
+            sb.append(new String(line, StandardCharsets.UTF_8));
+            first = false;
         }
 
-        return mParser.next();
+        return new ParseException("Expected: " + sb.toString(), mLineStart);
     }
 
-    private Property extractVcard(StringBuilder out) throws IOException, ParseException {
-        Property prop;
-
-        out.append(BEGIN_VCARD).append(CRLF);
+    private boolean lineEquals(byte[] expected, int length) {
+        return length == expected.length && lineStartsWith(expected, length);
+    }
 
-        do {
-            prop = mParser.next();
-            out.append(prop).append(CRLF);
-        } while (!prop.equals(END_VCARD));
+    private boolean lineStartsWith(byte[] prefix, int length) {
+        if (length < prefix.length) {
+            return false;
+        }
+        byte[] line = mLine.mData;
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return mParser.next();
+    private String value(byte[] prefix, int length) {
+        return new String(mLine.mData, prefix.length, length - prefix.length,
+                StandardCharsets.UTF_8);
     }
 
-    private VCardEntry parseVcard(String str) throws IOException, ParseException {
+    private VCardEntry parseVcard() throws ParseException {
         VCardEntry vcard = null;
 
         try {
@@ -398,7 +577,7 @@ class BmessageParser {
             VcardHandler handler = new VcardHandler();
             c.addEntryHandler(handler);
             p.addInterpreter(c);
-            p.parse(new ByteArrayInputStream(str.getBytes()));
+            p.parse(new ByteArrayInputStream(mVcard.mData, 0, mVcard.mLength));
 
             vcard = handler.vcard;
 
@@ -409,28 +588,78 @@ class BmessageParser {
                 VcardHandler handler = new VcardHandler();
                 c.addEntryHandler(handler);
                 p.addInterpreter(c);
-                p.parse(new ByteArrayInputStream(str.getBytes()));
+                p.parse(new ByteArrayInputStream(mVcard.mData, 0, mVcard.mLength));
 
                 vcard = handler.vcard;
 
-            } catch (VCardVersionException e2) {
-                // will throw below
-            } catch (VCardException e2) {
+            } catch (IOException | VCardException e2) {
                 // will throw below
             }
 
-        } catch (VCardException e1) {
+        } catch (IOException | VCardException e1) {
             // will throw below
         }
 
         if (vcard == null) {
             throw new ParseException("Cannot parse vCard object (neither 2.1 nor 3.0?)",
-                    mParser.pos());
+                    mLineStart);
         }
 
         return vcard;
     }
 
+    private static int indexOf(byte[] data, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Growable byte array, so that lines and 'message' are accumulated without extra copies */
+    private static final class ByteBuilder {
+        byte[] mData;
+        int mLength;
+
+        ByteBuilder(int capacity) {
+            mData = new byte[capacity];
+        }
+
+        void append(byte[] data) {
+            append(data, 0, data.length);
+        }
+
+        void append(byte[] data, int offset, int length) {
+            int capacity = mLength + length;
+            if (capacity > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(capacity, mData.length * 2));
+            }
+            System.arraycopy(data, offset, mData, mLength, length);
+            mLength += length;
+        }
+
+        void removeTrailing(byte[] suffix) {
+            if (mLength < suffix.length) {
+                return;
+            }
+            for (int i = 0; i < suffix.length; i++) {
+                if (mData[mLength - suffix.length + i] != suffix[i]) {
+                    return;
+                }
+            }
+            mLength -= suffix.length;
+        }
+
+        void clear() {
+            mLength = 0;
+        }
+    }
+
     private class VcardHandler implements VCardEntryHandler {
         public VCardEntry vcard;
 
@@ -37,12 +37,15 @@ import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
 import android.bluetooth.IBluetoothManager;
 import android.bluetooth.IBluetoothStateChangeCallback;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.util.Log;
 import android.util.Pair;
@@ -52,6 +55,8 @@ import com.android.bluetooth.a2dp.A2dpService;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.hearingaid.HearingAidService;
 import com.android.bluetooth.le_audio.LeAudioService;
+import com.android.bluetooth.util.GattCccStore;
+import com.android.bluetooth.util.GattNotificationScheduler;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
@@ -132,14 +137,22 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
 
     private static final int INTERVAL_UNAVAILABLE = 0xFFFFFFFF;
 
+    // Minimum interval between notifications of the fast changing player state characteristics
+    @VisibleForTesting
+    static final long PLAYER_STATE_NOTIFICATION_MIN_INTERVAL_MS = 500;
+
     private final int mCcid;
-    private HashMap<String, HashMap<UUID, Short>> mCccDescriptorValues;
+    private GattCccStore mCccStore;
+    private BroadcastReceiver mBondStateChangedReceiver;
     private long mFeatures;
     private Context mContext;
     private MediaControlServiceCallbacks mCallbacks;
     private BluetoothGattServerProxy mBluetoothGattServer;
     private BluetoothGattService mGattService = null;
     private Handler mHandler = new Handler(Looper.getMainLooper());
+    private final GattNotificationScheduler mNotificationScheduler =
+            new GattNotificationScheduler(Looper.getMainLooper(),
+                    this::sendNotification);
     private Map<Integer, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
     private MediaState mCurrentMediaState = MediaState.INACTIVE;
     private Map<BluetoothDevice, List<GattOpContext>> mPendingGattOperations = new HashMap<>();
@@ -578,21 +591,7 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
     }
 
     private void restoreCccValuesForStoredDevices() {
-        for (BluetoothDevice device : mAdapterService.getBondedDevices()) {
-            byte[] gmcs_cccd = device.getMetadata(METADATA_GMCS_CCCD);
-
-            if ((gmcs_cccd == null) || (gmcs_cccd.length == 0)) {
-                return;
-            }
-
-            List<ParcelUuid> uuidList = Arrays.asList(Utils.byteArrayToUuid(gmcs_cccd));
-
-            /* Restore CCCD values for device */
-            for (ParcelUuid uuid : uuidList) {
-                setCcc(device, uuid.getUuid(), 0,
-                        BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, false);
-            }
-        }
+        mCccStore.restore(Arrays.asList(mAdapterService.getBondedDevices()), null);
     }
 
     private final IBluetoothStateChangeCallback mBluetoothStateChangeCallback =
@@ -615,9 +614,16 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
             }
             if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 ClearUnauthorizedGattOperations(device);
+                mNotificationScheduler.removeDevice(device);
             }
         }
 
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            super.onNotificationSent(device, status);
+            mNotificationScheduler.onNotificationSent(device, status);
+        }
+
         @Override
         public void onServiceAdded(int status, BluetoothGattService service) {
             super.onServiceAdded(status, service);
@@ -866,11 +872,34 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
                     device, characteristic, confirm);
         }
 
+        public int notifyCharacteristicChanged(BluetoothDevice device,
+                BluetoothGattCharacteristic characteristic, boolean confirm, byte[] value) {
+            return mBluetoothGattServer.notifyCharacteristicChanged(
+                    device, characteristic, confirm, value);
+        }
+
         public List<BluetoothDevice> getConnectedDevices() {
             return mBluetoothManager.getConnectedDevices(BluetoothProfile.GATT_SERVER);
         }
     }
 
+    /** Forgets the subscriptions of the devices whose bond is removed */
+    private class BondStateChangedReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(intent.getAction())) {
+                return;
+            }
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                    BluetoothDevice.ERROR);
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            Objects.requireNonNull(device, "ACTION_BOND_STATE_CHANGED with no EXTRA_DEVICE");
+            if (state == BluetoothDevice.BOND_NONE && mCccStore != null) {
+                mCccStore.removeDevice(device);
+            }
+        }
+    }
+
     protected MediaControlGattService(McpService mcpService,
             @NonNull MediaControlServiceCallbacks callbacks, int ccid) {
         mContext = mcpService;
@@ -892,7 +921,21 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
     }
 
     protected boolean init(UUID scvUuid) {
-        mCccDescriptorValues = new HashMap<>();
+        mCccStore = new GattCccStore(METADATA_GMCS_CCCD);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        mBondStateChangedReceiver = new BondStateChangedReceiver();
+        mContext.registerReceiver(mBondStateChangedReceiver, filter);
+
+        mNotificationScheduler.setMinInterval(UUID_TRACK_POSITION,
+                PLAYER_STATE_NOTIFICATION_MIN_INTERVAL_MS);
+        mNotificationScheduler.setMinInterval(UUID_PLAYBACK_SPEED,
+                PLAYER_STATE_NOTIFICATION_MIN_INTERVAL_MS);
+        mNotificationScheduler.setMinInterval(UUID_SEEKING_SPEED,
+                PLAYER_STATE_NOTIFICATION_MIN_INTERVAL_MS);
+        // Control point results answer individual requests and must all be delivered
+        mNotificationScheduler.setCoalescing(UUID_MEDIA_CONTROL_POINT, false);
+        mNotificationScheduler.setCoalescing(UUID_SEARCH_CONTROL_POINT, false);
 
         mFeatures = mCallbacks.onGetFeatureFlags();
 
@@ -1081,90 +1124,17 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
         return mBluetoothGattServer.addService(mGattService);
     }
 
-    private void removeUuidFromMetadata(ParcelUuid charUuid, BluetoothDevice device) {
-        List<ParcelUuid> uuidList;
-        byte[] gmcs_cccd = device.getMetadata(METADATA_GMCS_CCCD);
-
-        if ((gmcs_cccd == null) || (gmcs_cccd.length == 0)) {
-            uuidList = new ArrayList<ParcelUuid>();
-        } else {
-            uuidList = new ArrayList<>(Arrays.asList(Utils.byteArrayToUuid(gmcs_cccd)));
-
-            if (!uuidList.contains(charUuid)) {
-                Log.d(TAG, "Characteristic CCCD can't be removed (not cached): "
-                        + charUuid.toString());
-                return;
-            }
-        }
-
-        uuidList.remove(charUuid);
-
-        if (!device.setMetadata(METADATA_GMCS_CCCD,
-                Utils.uuidsToByteArray(uuidList.toArray(new ParcelUuid[0])))) {
-            Log.e(TAG, "Can't set CCCD for GMCS characteristic UUID: " + charUuid.toString()
-                    + ", (remove)");
-        }
-    }
-
-    private void addUuidToMetadata(ParcelUuid charUuid, BluetoothDevice device) {
-        List<ParcelUuid> uuidList;
-        byte[] gmcs_cccd = device.getMetadata(METADATA_GMCS_CCCD);
-
-        if ((gmcs_cccd == null) || (gmcs_cccd.length == 0)) {
-            uuidList = new ArrayList<ParcelUuid>();
-        } else {
-            uuidList = new ArrayList<>(Arrays.asList(Utils.byteArrayToUuid(gmcs_cccd)));
-
-            if (uuidList.contains(charUuid)) {
-                Log.d(TAG, "Characteristic CCCD already added: " + charUuid.toString());
-                return;
-            }
-        }
-
-        uuidList.add(charUuid);
-
-        if (!device.setMetadata(METADATA_GMCS_CCCD,
-                Utils.uuidsToByteArray(uuidList.toArray(new ParcelUuid[0])))) {
-            Log.e(TAG, "Can't set CCCD for GMCS characteristic UUID: " + charUuid.toString()
-                    + ", (add)");
-        }
-    }
-
     @VisibleForTesting
     void setCcc(BluetoothDevice device, UUID charUuid, int offset, byte[] value, boolean store) {
-        HashMap<UUID, Short> characteristicCcc = mCccDescriptorValues.get(device.getAddress());
-        if (characteristicCcc == null) {
-            characteristicCcc = new HashMap<>();
-            mCccDescriptorValues.put(device.getAddress(), characteristicCcc);
-        }
-
-        characteristicCcc.put(charUuid,
-                ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getShort());
-
-        if (!store) {
-            return;
-        }
-
-        if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
-            addUuidToMetadata(new ParcelUuid(charUuid), device);
-        } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
-            removeUuidFromMetadata(new ParcelUuid(charUuid), device);
-        } else {
+        if (value.length != 2) {
             Log.e(TAG, "Not handled CCC value: " + Arrays.toString(value));
+            return;
         }
+        mCccStore.setCcc(device, charUuid, value, store);
     }
 
     private byte[] getCccBytes(BluetoothDevice device, UUID charUuid) {
-        Map<UUID, Short> characteristicCcc = mCccDescriptorValues.get(device.getAddress());
-        if (characteristicCcc != null) {
-            ByteBuffer bb = ByteBuffer.allocate(Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-            Short ccc = characteristicCcc.get(charUuid);
-            if (ccc != null) {
-                bb.putShort(characteristicCcc.get(charUuid));
-                return bb.array();
-            }
-        }
-        return BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        return mCccStore.getCcc(device, charUuid);
     }
 
     @Override
@@ -1429,6 +1399,15 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
             Log.d(TAG, "Destroy");
         }
 
+        mNotificationScheduler.clear();
+        if (mBondStateChangedReceiver != null) {
+            mContext.unregisterReceiver(mBondStateChangedReceiver);
+            mBondStateChangedReceiver = null;
+        }
+        if (mCccStore != null) {
+            mCccStore.cleanup();
+        }
+
         if (mBluetoothGattServer == null) {
             return;
         }
@@ -1472,22 +1451,29 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
                 continue;
             }
 
-            HashMap<UUID, Short> charCccMap = mCccDescriptorValues.get(device.getAddress());
-            if (charCccMap == null) continue;
+            if (!mCccStore.hasDevice(device)) continue;
 
-            byte[] ccc = getCccBytes(device, characteristic.getUuid());
             if (VDBG) {
                 Log.d(TAG, "notifyCharacteristic char= " + characteristic.getUuid().toString()
                         + " cccVal= "
-                        + ByteBuffer.wrap(ccc).order(ByteOrder.LITTLE_ENDIAN).getShort());
+                        + mCccStore.getCccValue(device, characteristic.getUuid()));
             }
 
-            if (!Arrays.equals(ccc, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) continue;
+            if (!mCccStore.isNotificationEnabled(device, characteristic.getUuid())) continue;
 
-            if (VDBG) Log.d(TAG, "notifyCharacteristic sending notification");
+            if (VDBG) Log.d(TAG, "notifyCharacteristic scheduling notification");
+
+            mNotificationScheduler.schedule(device, characteristic, null);
+        }
+    }
 
-            mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
+    private boolean sendNotification(BluetoothDevice device,
+            BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (value != null) {
+            return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false,
+                    value) == BluetoothStatusCodes.SUCCESS;
         }
+        return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
     }
 
     private static int SpeedFloatToCharacteristicIntValue(float speed) {
@@ -2013,14 +1999,15 @@ public class MediaControlGattService implements MediaControlGattServiceInterface
         }
 
         sb.append("\n\t\tCurrentPlaybackState = " + mCurrentMediaState);
-        for (Map.Entry<String, HashMap<UUID, Short>> deviceEntry
-                : mCccDescriptorValues.entrySet()) {
+        for (BluetoothDevice device : mCccStore.getDevices()) {
             sb.append("\n\t\tCCC states for device: " + "xx:xx:xx:xx:"
-                    + deviceEntry.getKey().substring(12));
-            for (Map.Entry<UUID, Short> entry : deviceEntry.getValue().entrySet()) {
+                    + device.getAddress().substring(12));
+            for (Map.Entry<UUID, Short> entry : mCccStore.getCccValues(device).entrySet()) {
                 sb.append("\n\t\t\tCharacteristic: " + mcsUuidToString(entry.getKey()) + ", value: "
                         + Utils.cccIntToStr(entry.getValue()));
             }
         }
+        sb.append("\n\t\tNotifications:");
+        mNotificationScheduler.dump(sb);
     }
 }
@@ -504,7 +504,7 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
             Log.d(TAG, "start Socket Listeners");
         }
         stopListeners();
-        mServerSocket = ObexServerSockets.createInsecure(this);
+        mServerSocket = ObexServerSockets.createInsecure(this, "OPP");
         acceptNewConnections();
         SdpManager sdpManager = SdpManager.getDefaultManager();
         if (sdpManager == null || mServerSocket == null) {
@@ -209,6 +209,7 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
         @Override
         public void onChange(boolean selfChange) {
             Log.d(TAG, " onChange on contact uri ");
+            mVcardCache.onContactsChanged();
             sendUpdateRequest();
         }
     }
@@ -224,6 +225,9 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
 
     private BluetoothPbapContentObserver mContactChangeObserver;
 
+    // vCards composed for the contacts, shared by the sessions of all the devices
+    private final BluetoothPbapVcardCache mVcardCache = new BluetoothPbapVcardCache();
+
     private void parseIntent(final Intent intent) {
         String action = intent.getAction();
         if (DEBUG) {
@@ -447,7 +451,7 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
 
             switch (msg.what) {
                 case START_LISTENER:
-                    mServerSockets = ObexServerSockets.create(BluetoothPbapService.this);
+                    mServerSockets = ObexServerSockets.create(BluetoothPbapService.this, "PBAP");
                     if (mServerSockets == null) {
                         Log.w(TAG, "ObexServerSockets.create() returned null");
                         break;
@@ -717,6 +721,7 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
             mHandlerThread.quitSafely();
         }
         mContactsLoaded = false;
+        mVcardCache.clear();
         if (mContactChangeObserver == null) {
             Log.i(TAG, "Avoid unregister when receiver it is not registered");
             return true;
@@ -747,6 +752,10 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
         return sBluetoothPbapService;
     }
 
+    BluetoothPbapVcardCache getVcardCache() {
+        return mVcardCache;
+    }
+
     private static synchronized void setBluetoothPbapService(BluetoothPbapService instance) {
         if (DEBUG) {
             Log.d(TAG, "setBluetoothPbapService(): set to: " + instance);
@@ -766,6 +775,7 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
     @Override
     protected void setUserUnlocked(int userId) {
         Log.i(TAG, "setUserUnlocked(" + userId + ")");
+        mVcardCache.clear();
         sendUpdateRequest();
     }
 
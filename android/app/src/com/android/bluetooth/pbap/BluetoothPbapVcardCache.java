@@ -0,0 +1,193 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * In memory cache of the vCards composed for the contacts, shared by all the PBAP sessions.
+ *
+ * <p>vCards are cached per contact and {@link com.android.vcard.VCardConfig} type, along with the
+ * {@link Contacts#CONTACT_LAST_UPDATED_TIMESTAMP} of the contact when it was composed. A cached
+ * vCard is only served while the contact still has that timestamp. The timestamps of all the
+ * contacts are loaded with a single query, which is only run again once
+ * {@link #onContactsChanged} reports a change to the contacts database.
+ *
+ * <p>The vCards are cached as produced by the composer, the PBAP filter and selector of the
+ * request are still applied to them for each pull.
+ */
+class BluetoothPbapVcardCache {
+    private static final String TAG = "BluetoothPbapVcardCache";
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    // About 4MB of vCard text
+    @VisibleForTesting
+    static final int MAX_CACHE_CHARS = 2 * 1024 * 1024;
+    // vCards larger than this, e.g. with a photo, are composed each time
+    @VisibleForTesting
+    static final int MAX_VCARD_CHARS = 32 * 1024;
+
+    private static final String[] VERSION_PROJECTION = new String[] {
+            Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP
+    };
+
+    private static final class Key {
+        final long mContactId;
+        final int mVcardType;
+
+        Key(long contactId, int vcardType) {
+            mContactId = contactId;
+            mVcardType = vcardType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mContactId == other.mContactId && mVcardType == other.mVcardType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mContactId, mVcardType);
+        }
+    }
+
+    private static final class Entry {
+        final long mVersion;
+        final String mVcard;
+
+        Entry(long version, String vcard) {
+            mVersion = version;
+            mVcard = vcard;
+        }
+    }
+
+    private final LruCache<Key, Entry> mVcards;
+
+    // Last updated timestamp of each contact, null until loaded
+    @GuardedBy("this")
+    private Map<Long, Long> mVersions;
+
+    BluetoothPbapVcardCache() {
+        this(MAX_CACHE_CHARS);
+    }
+
+    @VisibleForTesting
+    BluetoothPbapVcardCache(int maxChars) {
+        mVcards = new LruCache<Key, Entry>(maxChars) {
+            @Override
+            protected int sizeOf(Key key, Entry entry) {
+                return entry.mVcard.length();
+            }
+        };
+    }
+
+    /**
+     * Returns the vCard cached for the contact and type, or null if there is none or the contact
+     * changed since it was composed.
+     */
+    synchronized String get(ContentResolver resolver, long contactId, int vcardType) {
+        Long version = getVersions(resolver).get(contactId);
+        Key key = new Key(contactId, vcardType);
+        Entry entry = mVcards.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (version == null || version != entry.mVersion) {
+            mVcards.remove(key);
+            return null;
+        }
+        return entry.mVcard;
+    }
+
+    /**
+     * Returns the version of the contact, to be read before composing its vCard and given to
+     * {@link #put}, or null if it is not known, e.g. for a work profile contact.
+     */
+    synchronized Long getVersion(ContentResolver resolver, long contactId) {
+        return getVersions(resolver).get(contactId);
+    }
+
+    /**
+     * Caches the vCard composed for the contact and type. It is not cached if the version of the
+     * contact is not known, or if the contact changed since the version was read, as the vCard
+     * may have been composed from either version.
+     *
+     * @param version the version of the contact read with {@link #getVersion} before composing
+     */
+    synchronized void put(ContentResolver resolver, long contactId, int vcardType, Long version,
+            String vcard) {
+        if (vcard == null || vcard.isEmpty() || vcard.length() > MAX_VCARD_CHARS) {
+            return;
+        }
+        if (version == null || !version.equals(getVersions(resolver).get(contactId))) {
+            return;
+        }
+        mVcards.put(new Key(contactId, vcardType), new Entry(version, vcard));
+    }
+
+    /** Reloads the contact versions before serving the next vCard */
+    synchronized void onContactsChanged() {
+        mVersions = null;
+    }
+
+    /** Drops everything cached */
+    synchronized void clear() {
+        mVersions = null;
+        mVcards.evictAll();
+    }
+
+    @GuardedBy("this")
+    private Map<Long, Long> getVersions(ContentResolver resolver) {
+        if (mVersions != null) {
+            return mVersions;
+        }
+        Map<Long, Long> versions = new HashMap<>();
+        try (Cursor cursor = BluetoothMethodProxy.getInstance().contentResolverQuery(resolver,
+                Contacts.CONTENT_URI, VERSION_PROJECTION, null, null, null)) {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    versions.put(cursor.getLong(0), cursor.getLong(1));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep composing every vCard, and retry on the next lookup
+            Log.w(TAG, "Can't load contact versions", e);
+            return versions;
+        }
+        if (V) {
+            Log.v(TAG, "Loaded versions of " + versions.size() + " contacts");
+        }
+        mVersions = versions;
+        return mVersions;
+    }
+}
@@ -75,6 +75,8 @@ public class BluetoothPbapVcardManager {
 
     private Context mContext;
 
+    private final BluetoothPbapVcardCache mVcardCache;
+
     private static final int PHONE_NUMBER_COLUMN_INDEX = 3;
 
     static final String SORT_ORDER_PHONE_NUMBER = CommonDataKinds.Phone.NUMBER + " ASC";
@@ -103,11 +105,22 @@ public class BluetoothPbapVcardManager {
     private static final int NEED_SEND_BODY = -1;
 
     public BluetoothPbapVcardManager(final Context context) {
+        this(context, getServiceVcardCache());
+    }
+
+    @VisibleForTesting
+    BluetoothPbapVcardManager(final Context context, BluetoothPbapVcardCache vcardCache) {
         mContext = context;
         mResolver = mContext.getContentResolver();
+        mVcardCache = vcardCache;
         sLastFetchedTimeStamp = System.currentTimeMillis();
     }
 
+    private static BluetoothPbapVcardCache getServiceVcardCache() {
+        BluetoothPbapService service = BluetoothPbapService.getBluetoothPbapService();
+        return service != null ? service.getVcardCache() : null;
+    }
+
     /**
      * Create an owner vcard from the configured profile
      * @param vcardType21
@@ -702,6 +715,25 @@ public class BluetoothPbapVcardManager {
         }
     }
 
+    /** Returns the vCard of the contact, from the cache unless the contact changed */
+    private String buildVCard(VCardComposer composer, int vcardType, long contactId) {
+        Long version = null;
+        if (mVcardCache != null) {
+            // Read before composing, so that a change meanwhile is not cached as the new version
+            version = mVcardCache.getVersion(mResolver, contactId);
+            String vcard = mVcardCache.get(mResolver, contactId, vcardType);
+            if (vcard != null) {
+                return vcard;
+            }
+        }
+        String vcard = composer.buildVCard(
+                RawContactsEntity.queryRawContactEntity(mResolver, contactId));
+        if (mVcardCache != null) {
+            mVcardCache.put(mResolver, contactId, vcardType, version, vcard);
+        }
+        return vcard;
+    }
+
     private int composeContactsAndSendVCards(Operation op, final Cursor contactIdCursor,
             final boolean vcardType21, String ownerVCard, boolean ignorefilter, byte[] filter) {
         long timestamp = 0;
@@ -764,8 +796,7 @@ public class BluetoothPbapVcardManager {
                     BluetoothPbapObexServer.sIsAborted = false;
                     break;
                 }
-                String vcard = composer.buildVCard(RawContactsEntity.queryRawContactEntity(
-                            mResolver, contactIdCursor.getLong(idColumn)));
+                String vcard = buildVCard(composer, vcardType, contactIdCursor.getLong(idColumn));
                 if (!contactIdCursor.moveToNext()) {
                     Log.e(TAG, "Cursor#moveToNext() returned false");
                 }
@@ -869,8 +900,7 @@ public class BluetoothPbapVcardManager {
                     BluetoothPbapObexServer.sIsAborted = false;
                     break;
                 }
-                String vcard = composer.buildVCard(RawContactsEntity.queryRawContactEntity(
-                            mResolver, contactIdCursor.getLong(idColumn)));
+                String vcard = buildVCard(composer, vcardType, contactIdCursor.getLong(idColumn));
                 if (!contactIdCursor.moveToNext()) {
                     Log.e(TAG, "Cursor#moveToNext() returned false");
                 }
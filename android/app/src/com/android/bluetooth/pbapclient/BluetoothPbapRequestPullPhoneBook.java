@@ -23,8 +23,10 @@ import com.android.bluetooth.ObexAppParameters;
 import com.android.obex.HeaderSet;
 import com.android.vcard.VCardEntry;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 final class BluetoothPbapRequestPullPhoneBook extends BluetoothPbapRequest {
@@ -43,6 +45,8 @@ final class BluetoothPbapRequestPullPhoneBook extends BluetoothPbapRequest {
 
     private final byte mFormat;
 
+    private OutputStream mRawResponseSink;
+
     BluetoothPbapRequestPullPhoneBook(String pbName, Account account, long filter, byte format,
             int maxListCount, int listStartOffset) {
         mAccount = account;
@@ -95,7 +99,18 @@ final class BluetoothPbapRequestPullPhoneBook extends BluetoothPbapRequest {
     protected void readResponse(InputStream stream) throws IOException {
         if (VDBG) Log.v(TAG, "readResponse");
 
+        if (mRawResponseSink != null) {
+            // Copy the vCards to the sink while they are parsed, without buffering them
+            stream = new TeeInputStream(stream, mRawResponseSink);
+        }
         mResponse = new BluetoothPbapVcardList(mAccount, stream, mFormat);
+        if (mRawResponseSink != null) {
+            // The parser can stop before the end, the sink still gets the whole response
+            byte[] buffer = new byte[4096];
+            while (stream.read(buffer) != -1) {
+                // Copied by the read
+            }
+        }
         if (VDBG) {
             Log.d(TAG, "Read " + mResponse.getCount() + " entries.");
         }
@@ -112,6 +127,11 @@ final class BluetoothPbapRequestPullPhoneBook extends BluetoothPbapRequest {
         }
     }
 
+    /** Copies the vCards received, as is, to the given stream in addition to parsing them */
+    public void setRawResponseSink(OutputStream sink) {
+        mRawResponseSink = sink;
+    }
+
     public ArrayList<VCardEntry> getList() {
         return mResponse.getList();
     }
@@ -119,4 +139,64 @@ final class BluetoothPbapRequestPullPhoneBook extends BluetoothPbapRequest {
     public int getNewMissedCalls() {
         return mNewMissedCalls;
     }
+
+    /** Writes the bytes read from the wrapped stream to a sink */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream mSink;
+
+        TeeInputStream(InputStream in, OutputStream sink) {
+            super(in);
+            mSink = sink;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mSink.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                mSink.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must reach the sink too
+            if (n <= 0) {
+                return 0;
+            }
+            byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read <= 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            // A reset would copy the same bytes twice
+            return false;
+        }
+
+        @Override
+        public void mark(int readlimit) {}
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+    }
 }
@@ -31,6 +31,8 @@ final class BluetoothPbapRequestPullPhoneBookSize extends BluetoothPbapRequest {
 
     private int mSize;
 
+    private PbapPhonebookCache.FolderVersion mFolderVersion;
+
     BluetoothPbapRequestPullPhoneBookSize(String pbName, long filter) {
         mHeaderSet.setHeader(HeaderSet.NAME, pbName);
 
@@ -59,9 +61,24 @@ final class BluetoothPbapRequestPullPhoneBookSize extends BluetoothPbapRequest {
         if (oap.exists(OAP_TAGID_PHONEBOOK_SIZE)) {
             mSize = oap.getShort(OAP_TAGID_PHONEBOOK_SIZE);
         }
+
+        // PBAP 1.2 PSEs supporting folder version counters and database identifier report them
+        // along with the size, see PBAP v1.2.3 Sec. 5.1.4.5.
+        if (oap.exists(OAP_TAGID_PRIMARY_VERSION_COUNTER)
+                && oap.exists(OAP_TAGID_DATABASE_IDENTIFIER)) {
+            mFolderVersion = new PbapPhonebookCache.FolderVersion(
+                    oap.getByteArray(OAP_TAGID_DATABASE_IDENTIFIER),
+                    oap.getByteArray(OAP_TAGID_PRIMARY_VERSION_COUNTER),
+                    oap.getByteArray(OAP_TAGID_SECONDARY_VERSION_COUNTER));
+        }
     }
 
     public int getSize() {
         return mSize;
     }
+
+    /** Returns the version of the folder, or null if the PSE did not report it */
+    public PbapPhonebookCache.FolderVersion getFolderVersion() {
+        return mFolderVersion;
+    }
 }
@@ -39,6 +39,8 @@ import com.android.obex.ResponseCodes;
 import com.android.vcard.VCardEntry;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -86,6 +88,8 @@ class PbapClientConnectionHandler extends Handler {
     };
 
     private static final int PBAP_FEATURE_DEFAULT_IMAGE_FORMAT = 0x00000200;
+    private static final int PBAP_FEATURE_FOLDER_VERSION_COUNTERS = 0x00000008;
+    private static final int PBAP_FEATURE_DATABASE_IDENTIFIER = 0x00000004;
     private static final int PBAP_FEATURE_BROWSING = 0x00000002;
     private static final int PBAP_FEATURE_DOWNLOADING = 0x00000001;
 
@@ -98,8 +102,12 @@ class PbapClientConnectionHandler extends Handler {
     private static final long PBAP_FILTER_EMAIL = 1 << 8;
     private static final long PBAP_FILTER_NICKNAME = 1 << 23;
 
+    private static final int PBAP_FEATURE_PHONEBOOK_VERSIONS =
+            PBAP_FEATURE_FOLDER_VERSION_COUNTERS | PBAP_FEATURE_DATABASE_IDENTIFIER;
+
     private static final int PBAP_SUPPORTED_FEATURE =
-            PBAP_FEATURE_DEFAULT_IMAGE_FORMAT | PBAP_FEATURE_DOWNLOADING;
+            PBAP_FEATURE_DEFAULT_IMAGE_FORMAT | PBAP_FEATURE_PHONEBOOK_VERSIONS
+                    | PBAP_FEATURE_DOWNLOADING;
     private static final long PBAP_REQUESTED_FIELDS =
             PBAP_FILTER_VERSION | PBAP_FILTER_FN | PBAP_FILTER_N | PBAP_FILTER_PHOTO
                     | PBAP_FILTER_ADR | PBAP_FILTER_EMAIL | PBAP_FILTER_TEL | PBAP_FILTER_NICKNAME;
@@ -137,6 +145,7 @@ class PbapClientConnectionHandler extends Handler {
     private BluetoothPbapObexAuthenticator mAuth = null;
     private final PbapClientStateMachine mPbapClientStateMachine;
     private boolean mAccountCreated;
+    private final PbapPhonebookCache mPhonebookCache;
 
     /**
      * Constructs PCEConnectionHandler object
@@ -152,6 +161,7 @@ class PbapClientConnectionHandler extends Handler {
         mAccountManager = AccountManager.get(mPbapClientStateMachine.getContext());
         mAccount =
                 new Account(mDevice.getAddress(), mContext.getString(R.string.pbap_account_type));
+        mPhonebookCache = PbapPhonebookCache.forDevice(mContext, mDevice);
     }
 
     public static class Builder {
@@ -387,6 +397,7 @@ class PbapClientConnectionHandler extends Handler {
 
     @VisibleForTesting
     void downloadContacts(String path) {
+        OutputStream cacheStream = null;
         try {
             PhonebookPullRequest processor =
                     new PhonebookPullRequest(mPbapClientStateMachine.getContext(),
@@ -398,6 +409,21 @@ class PbapClientConnectionHandler extends Handler {
                             PBAP_REQUESTED_FIELDS);
             requestPbSize.execute(mObexSession);
 
+            // If the PSE reports the folder did not change since it was cached, restore it from
+            // the cache instead of pulling every vCard again.
+            PbapPhonebookCache.FolderVersion version = null;
+            if (isPhonebookVersionSupported()) {
+                version = requestPbSize.getFolderVersion();
+            }
+            if (mPhonebookCache.isUpToDate(path, version) && restoreContacts(path, processor)) {
+                return;
+            }
+            if (version != null) {
+                cacheStream = mPhonebookCache.beginUpdate(path);
+            } else {
+                mPhonebookCache.invalidate(path);
+            }
+
             int numberOfContactsRemaining = requestPbSize.getSize();
             int startOffset = 0;
             if (PB_PATH.equals(path)) {
@@ -417,7 +443,14 @@ class PbapClientConnectionHandler extends Handler {
                         new BluetoothPbapRequestPullPhoneBook(path, mAccount,
                                 PBAP_REQUESTED_FIELDS, VCARD_TYPE_30,
                                 numberOfContactsToDownload, startOffset);
+                request.setRawResponseSink(cacheStream);
                 request.execute(mObexSession);
+                if (cacheStream != null && !request.isSuccess()) {
+                    // Don't cache a partial folder
+                    cacheStream.close();
+                    cacheStream = null;
+                    mPhonebookCache.abortUpdate(path);
+                }
                 ArrayList<VCardEntry> vcards = request.getList();
                 if (path == FAV_PATH) {
                     // mark each vcard as a favorite
@@ -434,11 +467,53 @@ class PbapClientConnectionHandler extends Handler {
             if ((startOffset > UPPER_LIMIT) && (numberOfContactsRemaining > 0)) {
                 Log.w(TAG, "Download contacts incomplete, index exceeded upper limit.");
             }
+            if (cacheStream != null) {
+                cacheStream.close();
+                cacheStream = null;
+                mPhonebookCache.commitUpdate(path, version);
+            }
         } catch (IOException e) {
             Log.w(TAG, "Download contacts failure" + e.toString());
+        } finally {
+            if (cacheStream != null) {
+                try {
+                    cacheStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Can't close phonebook cache", e);
+                }
+                mPhonebookCache.abortUpdate(path);
+            }
         }
     }
 
+    /**
+     * Adds the contacts cached for the path to the account.
+     *
+     * @return true on success, false if the folder must be downloaded again
+     */
+    @VisibleForTesting
+    boolean restoreContacts(String path, PhonebookPullRequest processor) {
+        ArrayList<VCardEntry> vcards;
+        try (InputStream in = mPhonebookCache.openVcards(path)) {
+            vcards = new BluetoothPbapVcardList(mAccount, in, VCARD_TYPE_30).getList();
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read cached contacts of " + path, e);
+            mPhonebookCache.invalidate(path);
+            return false;
+        }
+        if (DBG) {
+            Log.d(TAG, "Restoring " + vcards.size() + " cached contacts of " + path);
+        }
+        if (FAV_PATH.equals(path)) {
+            for (VCardEntry v : vcards) {
+                v.setStarred(true);
+            }
+        }
+        processor.setResults(vcards);
+        processor.onPullComplete();
+        return true;
+    }
+
     @VisibleForTesting
     void downloadCallLog(String path, HashMap<String, Integer> callCounter) {
         try {
@@ -494,6 +569,13 @@ class PbapClientConnectionHandler extends Handler {
         }
     }
 
+    @VisibleForTesting
+    boolean isPhonebookVersionSupported() {
+        return mPseRec != null && mPseRec.getProfileVersion() >= PBAP_V1_2
+                && (mPseRec.getSupportedFeatures() & PBAP_FEATURE_PHONEBOOK_VERSIONS)
+                        == PBAP_FEATURE_PHONEBOOK_VERSIONS;
+    }
+
     @VisibleForTesting
     boolean isRepositorySupported(int mask) {
         if (mPseRec == null) {
@@ -143,6 +143,8 @@ public class PbapClientService extends ProfileService {
         // To remove call logs when PBAP was never connected while calls were made,
         // we also listen for HFP to become disconnected.
         filter.addAction(BluetoothHeadsetClient.ACTION_CONNECTION_STATE_CHANGED);
+        // Cached phonebooks are kept until the device is unbonded.
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         try {
             registerReceiver(mPbapBroadcastReceiver, filter);
         } catch (Exception e) {
@@ -325,6 +327,14 @@ public class PbapClientService extends ProfileService {
                     // HFP client stores entries in calllog.db by BD_ADDR and component name
                     removeHfpCallLog(device.getAddress(), context);
                 }
+            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                        BluetoothDevice.ERROR);
+                if (bondState == BluetoothDevice.BOND_NONE) {
+                    if (DBG) Log.d(TAG, "Removing cached phonebook of " + device);
+                    PbapPhonebookCache.removeDevice(PbapClientService.this, device);
+                }
             }
         }
     }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Persistent per-device copy of the phonebook folders downloaded from a PSE.
+ *
+ * <p>Each folder is stored as the raw vCard objects received, along with the PBAP 1.2 database
+ * identifier and folder version counters reported by the PSE when it was downloaded. As long as
+ * the PSE reports the same database identifier and primary version counter, the folder did not
+ * change and can be restored from here instead of being pulled again.
+ *
+ * <p>The cache is kept in the app private storage, across disconnections, until the device is
+ * unbonded.
+ */
+class PbapPhonebookCache {
+    private static final String TAG = "PbapPhonebookCache";
+    private static final boolean DBG = Utils.DBG;
+
+    private static final String CACHE_DIR_NAME = "pbapclient_cache";
+    private static final String VCARD_SUFFIX = ".vcf";
+    private static final String VERSION_SUFFIX = ".version";
+    private static final String PENDING_SUFFIX = ".pending";
+
+    // Bump when the requested vCard format or properties change, so that entries cached with the
+    // previous ones are downloaded again.
+    private static final int CACHE_FORMAT_VERSION = 1;
+
+    /** Version of a PSE phonebook folder, see PBAP v1.2.3 Sec. 5.1.4.5 */
+    static final class FolderVersion {
+        final byte[] mDatabaseIdentifier;
+        final byte[] mPrimaryVersionCounter;
+        final byte[] mSecondaryVersionCounter;
+
+        FolderVersion(byte[] databaseIdentifier, byte[] primaryVersionCounter,
+                byte[] secondaryVersionCounter) {
+            mDatabaseIdentifier = databaseIdentifier;
+            mPrimaryVersionCounter = primaryVersionCounter;
+            mSecondaryVersionCounter = secondaryVersionCounter;
+        }
+
+        /**
+         * Returns true if the folder content is the same. The secondary counter is not compared,
+         * as the primary counter is updated by any change, including the ones to properties the
+         * secondary counter does not track.
+         */
+        boolean isSameContent(FolderVersion other) {
+            return other != null
+                    && Arrays.equals(mDatabaseIdentifier, other.mDatabaseIdentifier)
+                    && Arrays.equals(mPrimaryVersionCounter, other.mPrimaryVersionCounter);
+        }
+
+        @Override
+        public String toString() {
+            return "FolderVersion[db=" + toHex(mDatabaseIdentifier)
+                    + ", primary=" + toHex(mPrimaryVersionCounter)
+                    + ", secondary=" + toHex(mSecondaryVersionCounter) + "]";
+        }
+    }
+
+    private final File mDirectory;
+
+    PbapPhonebookCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /** Returns the cache of the given device */
+    static PbapPhonebookCache forDevice(Context context, BluetoothDevice device) {
+        return new PbapPhonebookCache(getDeviceDirectory(context, device));
+    }
+
+    /** Deletes everything cached for the given device, e.g. once it is unbonded */
+    static void removeDevice(Context context, BluetoothDevice device) {
+        new PbapPhonebookCache(getDeviceDirectory(context, device)).clear();
+    }
+
+    private static File getDeviceDirectory(Context context, BluetoothDevice device) {
+        return new File(context.getDir(CACHE_DIR_NAME, Context.MODE_PRIVATE),
+                device.getAddress().replace(":", ""));
+    }
+
+    /** Returns true if the folder cached for the path has the given version */
+    synchronized boolean isUpToDate(String path, FolderVersion version) {
+        if (version == null) {
+            return false;
+        }
+        FolderVersion cached = readVersion(path);
+        if (DBG) {
+            Log.d(TAG, "isUpToDate " + path + ": cached=" + cached + ", current=" + version);
+        }
+        return version.isSameContent(cached) && getFile(path, VCARD_SUFFIX).exists();
+    }
+
+    /** Opens the vCards cached for the path */
+    synchronized InputStream openVcards(String path) throws IOException {
+        return new BufferedInputStream(new FileInputStream(getFile(path, VCARD_SUFFIX)));
+    }
+
+    /**
+     * Starts replacing the folder cached for the path. The vCards written to the returned stream
+     * only replace the cached ones once {@link #commitUpdate} is called.
+     */
+    synchronized OutputStream beginUpdate(String path) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        return new BufferedOutputStream(new FileOutputStream(getFile(path, PENDING_SUFFIX)));
+    }
+
+    /** Replaces the folder cached for the path with the vCards written since beginUpdate */
+    synchronized boolean commitUpdate(String path, FolderVersion version) {
+        File pending = getFile(path, PENDING_SUFFIX);
+        // Drop the version first, an interrupted commit then leaves the folder out of date
+        getFile(path, VERSION_SUFFIX).delete();
+        if (!pending.renameTo(getFile(path, VCARD_SUFFIX))) {
+            Log.w(TAG, "commitUpdate: can't rename " + pending);
+            pending.delete();
+            return false;
+        }
+        return writeVersion(path, version);
+    }
+
+    /** Discards the vCards written since beginUpdate */
+    synchronized void abortUpdate(String path) {
+        getFile(path, PENDING_SUFFIX).delete();
+    }
+
+    /** Deletes the folder cached for the path */
+    synchronized void invalidate(String path) {
+        getFile(path, VERSION_SUFFIX).delete();
+        getFile(path, VCARD_SUFFIX).delete();
+        getFile(path, PENDING_SUFFIX).delete();
+    }
+
+    /** Deletes every folder cached */
+    synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private File getFile(String path, String suffix) {
+        return new File(mDirectory, path.replace('/', '_') + suffix);
+    }
+
+    private FolderVersion readVersion(String path) {
+        File file = getFile(path, VERSION_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != CACHE_FORMAT_VERSION) {
+                return null;
+            }
+            return new FolderVersion(readBytes(in), readBytes(in), readBytes(in));
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read version of " + path, e);
+            return null;
+        }
+    }
+
+    private boolean writeVersion(String path, FolderVersion version) {
+        File file = getFile(path, VERSION_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(CACHE_FORMAT_VERSION);
+            writeBytes(out, version.mDatabaseIdentifier);
+            writeBytes(out, version.mPrimaryVersionCounter);
+            writeBytes(out, version.mSecondaryVersionCounter);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write version of " + path, e);
+            file.delete();
+            return false;
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String toHex(byte[] bytes) {
+        if (bytes == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -27,29 +27,34 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
 import android.bluetooth.IBluetoothManager;
 import android.bluetooth.IBluetoothStateChangeCallback;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.util.GattCccStore;
+import com.android.bluetooth.util.GattNotificationScheduler;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 public class TbsGatt {
@@ -155,8 +160,11 @@ public class TbsGatt {
     private Handler mHandler;
     private Callback mCallback;
     private AdapterService mAdapterService;
-    private HashMap<BluetoothDevice, HashMap<UUID, Short>> mCccDescriptorValues;
+    private GattCccStore mCccStore;
+    private BroadcastReceiver mBondStateChangedReceiver;
     private TbsService mTbsService;
+    private final GattNotificationScheduler mNotificationScheduler =
+            new GattNotificationScheduler(Looper.getMainLooper(), this::sendNotification);
 
     private static String tbsUuidToString(UUID uuid) {
         if (uuid.equals(UUID_BEARER_PROVIDER_NAME)) {
@@ -313,6 +321,8 @@ public class TbsGatt {
 
         mTbsService = tbsService;
         mBluetoothGattServer = null;
+        // Control point results answer individual requests and must all be delivered
+        mNotificationScheduler.setCoalescing(UUID_CALL_CONTROL_POINT, false);
     }
 
     @VisibleForTesting
@@ -323,7 +333,11 @@ public class TbsGatt {
     public boolean init(int ccid, String uci, List<String> uriSchemes,
             boolean isLocalHoldOpcodeSupported, boolean isJoinOpcodeSupported, String providerName,
             int technology, Callback callback) {
-        mCccDescriptorValues = new HashMap<>();
+        mCccStore = new GattCccStore(METADATA_GTBS_CCCD);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        mBondStateChangedReceiver = new BondStateChangedReceiver();
+        mContext.registerReceiver(mBondStateChangedReceiver, filter);
         mBearerProviderNameCharacteristic.setValue(providerName);
         mBearerTechnologyCharacteristic.setValue(new byte[] {(byte) (technology & 0xFF)});
         mBearerUciCharacteristic.setValue(uci);
@@ -363,6 +377,14 @@ public class TbsGatt {
     }
 
     public void cleanup() {
+        mNotificationScheduler.clear();
+        if (mBondStateChangedReceiver != null) {
+            mContext.unregisterReceiver(mBondStateChangedReceiver);
+            mBondStateChangedReceiver = null;
+        }
+        if (mCccStore != null) {
+            mCccStore.cleanup();
+        }
         if (mBluetoothGattServer == null) {
             return;
         }
@@ -374,87 +396,39 @@ public class TbsGatt {
         return mContext;
     }
 
-    private void removeUuidFromMetadata(ParcelUuid charUuid, BluetoothDevice device) {
-        List<ParcelUuid> uuidList;
-        byte[] gtbs_cccd = device.getMetadata(METADATA_GTBS_CCCD);
-
-        if ((gtbs_cccd == null) || (gtbs_cccd.length == 0)) {
-            uuidList = new ArrayList<ParcelUuid>();
-        } else {
-            uuidList = new ArrayList<>(Arrays.asList(Utils.byteArrayToUuid(gtbs_cccd)));
-
-            if (!uuidList.contains(charUuid)) {
-                Log.d(TAG, "Characteristic CCCD can't be removed (not cached): "
-                        + charUuid.toString());
-                return;
-            }
-        }
-
-        uuidList.remove(charUuid);
-
-        if (!device.setMetadata(METADATA_GTBS_CCCD,
-                Utils.uuidsToByteArray(uuidList.toArray(new ParcelUuid[0])))) {
-            Log.e(TAG, "Can't set CCCD for GTBS characteristic UUID: " + charUuid + ", (remove)");
-        }
-    }
-
-    private void addUuidToMetadata(ParcelUuid charUuid, BluetoothDevice device) {
-        List<ParcelUuid> uuidList;
-        byte[] gtbs_cccd = device.getMetadata(METADATA_GTBS_CCCD);
-
-        if ((gtbs_cccd == null) || (gtbs_cccd.length == 0)) {
-            uuidList = new ArrayList<ParcelUuid>();
-        } else {
-            uuidList = new ArrayList<>(Arrays.asList(Utils.byteArrayToUuid(gtbs_cccd)));
-
-            if (uuidList.contains(charUuid)) {
-                Log.d(TAG, "Characteristic CCCD already add: " + charUuid.toString());
-                return;
-            }
-        }
-
-        uuidList.add(charUuid);
-
-        if (!device.setMetadata(METADATA_GTBS_CCCD,
-                Utils.uuidsToByteArray(uuidList.toArray(new ParcelUuid[0])))) {
-            Log.e(TAG, "Can't set CCCD for GTBS characteristic UUID: " + charUuid + ", (add)");
-        }
-    }
-
     @VisibleForTesting
     void setCcc(BluetoothDevice device, UUID charUuid, byte[] value) {
-        HashMap<UUID, Short> characteristicCcc = mCccDescriptorValues.get(device);
-        if (characteristicCcc == null) {
-            characteristicCcc = new HashMap<>();
-            mCccDescriptorValues.put(device, characteristicCcc);
-        }
+        setCcc(device, charUuid, value, false);
+    }
 
-        characteristicCcc.put(charUuid,
-                ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getShort());
+    private void setCcc(BluetoothDevice device, UUID charUuid, byte[] value, boolean store) {
+        mCccStore.setCcc(device, charUuid, value, store);
 
         Log.d(TAG, "setCcc, device: " + device.getAddress() + ", UUID: " + charUuid + ", value: "
-                + characteristicCcc.get(charUuid));
+                + mCccStore.getCccValue(device, charUuid));
     }
 
     private byte[] getCccBytes(BluetoothDevice device, UUID charUuid) {
-        Map<UUID, Short> characteristicCcc = mCccDescriptorValues.get(device);
-        if (characteristicCcc != null) {
-            ByteBuffer bb = ByteBuffer.allocate(Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-            Short ccc = characteristicCcc.get(charUuid);
-            if (ccc != null) {
-                bb.putShort(characteristicCcc.get(charUuid));
-                return bb.array();
-            }
-        }
+        return mCccStore.getCcc(device, charUuid);
+    }
 
-        return BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+    private boolean sendNotification(BluetoothDevice device,
+            BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (mBluetoothGattServer == null) {
+            return false;
+        }
+        if (value != null) {
+            return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false,
+                    value) == BluetoothStatusCodes.SUCCESS;
+        }
+        return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
     }
 
     /** Class that handles GATT characteristic notifications */
     private class BluetoothGattCharacteristicNotifier {
         public int setSubscriptionConfiguration(BluetoothDevice device, UUID uuid,
                 byte[] configuration) {
-            setCcc(device, uuid, configuration);
+            setCcc(device, uuid, configuration, true);
 
             return BluetoothGatt.GATT_SUCCESS;
         }
@@ -464,45 +438,46 @@ public class TbsGatt {
         }
 
         public boolean isSubscribed(BluetoothDevice device, UUID uuid) {
-            return Arrays.equals(getCccBytes(device, uuid),
-                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        }
-
-        private void notifyCharacteristicChanged(BluetoothDevice device,
-                BluetoothGattCharacteristic characteristic, byte[] value) {
-            if (mBluetoothGattServer != null) {
-                mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false,
-                                                                 value);
-            }
-        }
-
-        private void notifyCharacteristicChanged(BluetoothDevice device,
-                BluetoothGattCharacteristic characteristic) {
-            if (mBluetoothGattServer != null) {
-                mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
-            }
+            return mCccStore.isNotificationEnabled(device, uuid);
         }
 
         public void notifyWithValue(BluetoothDevice device,
                 BluetoothGattCharacteristic characteristic, byte[] value) {
             if (isSubscribed(device, characteristic.getUuid())) {
-                notifyCharacteristicChanged(device, characteristic, value);
+                mNotificationScheduler.schedule(device, characteristic, value);
             }
         }
 
         public void notify(BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
             if (isSubscribed(device, characteristic.getUuid())) {
-                notifyCharacteristicChanged(device, characteristic);
+                mNotificationScheduler.schedule(device, characteristic, null);
             }
         }
 
         public void notifyAll(BluetoothGattCharacteristic characteristic) {
-            for (BluetoothDevice device : mCccDescriptorValues.keySet()) {
+            for (BluetoothDevice device : mCccStore.getDevices()) {
                 notify(device, characteristic);
             }
         }
     }
 
+    /** Forgets the subscriptions of the devices whose bond is removed */
+    private class BondStateChangedReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(intent.getAction())) {
+                return;
+            }
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                    BluetoothDevice.ERROR);
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            Objects.requireNonNull(device, "ACTION_BOND_STATE_CHANGED with no EXTRA_DEVICE");
+            if (state == BluetoothDevice.BOND_NONE && mCccStore != null) {
+                mCccStore.removeDevice(device);
+            }
+        }
+    }
+
     /** Wrapper class for BluetoothGattCharacteristic */
     private class GattCharacteristic extends BluetoothGattCharacteristic {
 
@@ -627,7 +602,7 @@ public class TbsGatt {
             super.setValueNoNotify(value);
 
             // to avoid sending control point notification before write response
-            mHandler.post(() -> mNotifier.notify(device, this));
+            mHandler.post(() -> mNotifier.notifyWithValue(device, this, value));
         }
     }
 
@@ -666,14 +641,6 @@ public class TbsGatt {
                 return BluetoothGatt.GATT_FAILURE;
             }
 
-            if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
-                addUuidToMetadata(new ParcelUuid(characteristic.getUuid()), device);
-            } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
-                removeUuidFromMetadata(new ParcelUuid(characteristic.getUuid()), device);
-            } else {
-                Log.e(TAG, "Not handled CCC value: " + Arrays.toString(value));
-            }
-
             return characteristic.setSubscriptionConfiguration(device, characteristic.getUuid(),
                     value);
         }
@@ -771,7 +738,7 @@ public class TbsGatt {
 
     private boolean updateStatusFlagsSilentMode(boolean set) {
         mSilentMode = set;
-        for (BluetoothDevice device: mCccDescriptorValues.keySet()) {
+        for (BluetoothDevice device : mCccStore.getDevices()) {
             boolean entryExist = mStatusFlagValue.containsKey(device);
             if (entryExist
                     && (((mStatusFlagValue.get(device)
@@ -932,35 +899,14 @@ public class TbsGatt {
 
     private void restoreCccValuesForStoredDevices() {
         BluetoothGattService gattService = mBluetoothGattServer.getService(UUID_GTBS);
-
-        for (BluetoothDevice device : mAdapterService.getBondedDevices()) {
-            byte[] gtbs_cccd = device.getMetadata(METADATA_GTBS_CCCD);
-
-            if ((gtbs_cccd == null) || (gtbs_cccd.length == 0)) {
-                return;
-            }
-
-            List<ParcelUuid> uuidList = Arrays.asList(Utils.byteArrayToUuid(gtbs_cccd));
-
-            /* Restore CCCD values for device */
-            for (ParcelUuid uuid : uuidList) {
-                BluetoothGattCharacteristic characteristic =
-                        gattService.getCharacteristic(uuid.getUuid());
-                if (characteristic == null) {
-                    Log.e(TAG, "Invalid UUID stored in metadata: " + uuid.toString());
-                    continue;
-                }
-
-                BluetoothGattDescriptor descriptor =
-                        characteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIGURATION);
-                if (descriptor == null) {
-                    Log.e(TAG, "Invalid characteristic, does not include CCCD");
-                    continue;
-                }
-
-                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        Set<UUID> notifiableUuids = new HashSet<>();
+        for (BluetoothGattCharacteristic characteristic : gattService.getCharacteristics()) {
+            if (characteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIGURATION) != null) {
+                notifiableUuids.add(characteristic.getUuid());
             }
         }
+
+        mCccStore.restore(Arrays.asList(mAdapterService.getBondedDevices()), notifiableUuids);
     }
 
     private final IBluetoothStateChangeCallback mBluetoothStateChangeCallback =
@@ -1214,9 +1160,16 @@ public class TbsGatt {
             }
             if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 clearUnauthorizedGattOperationss(device);
+                mNotificationScheduler.removeDevice(device);
             }
         }
 
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            super.onNotificationSent(device, status);
+            mNotificationScheduler.onNotificationSent(device, status);
+        }
+
         @Override
         public void onServiceAdded(int status, BluetoothGattService service) {
             if (DBG) {
@@ -1363,13 +1316,14 @@ public class TbsGatt {
     public void dump(StringBuilder sb) {
         sb.append("\n\tSilent mode: " + mSilentMode);
 
-        for (Map.Entry<BluetoothDevice, HashMap<UUID, Short>> deviceEntry
-                : mCccDescriptorValues.entrySet()) {
-            sb.append("\n\tCCC states for device: " + deviceEntry.getKey());
-            for (Map.Entry<UUID, Short> entry : deviceEntry.getValue().entrySet()) {
+        for (BluetoothDevice device : mCccStore.getDevices()) {
+            sb.append("\n\tCCC states for device: " + device);
+            for (Map.Entry<UUID, Short> entry : mCccStore.getCccValues(device).entrySet()) {
                 sb.append("\n\t\tCharacteristic: " + tbsUuidToString(entry.getKey()) + ", value: "
                         + Utils.cccIntToStr(entry.getValue()));
             }
         }
+        sb.append("\n\tNotifications:");
+        mNotificationScheduler.dump(sb);
     }
 }
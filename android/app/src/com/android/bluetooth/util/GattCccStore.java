@@ -0,0 +1,312 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import com.android.bluetooth.Utils;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Client Characteristic Configuration store shared by the GATT server profiles.
+ *
+ * <p>Subscriptions are kept in memory as a per-device bitset, two bits (notification and
+ * indication) per characteristic. Notification subscriptions are persisted in the device metadata
+ * under the given key as a list of characteristic UUIDs; writes are deferred to a background
+ * thread and coalesced so that a client subscribing to many characteristics in a row results in a
+ * single metadata write per device. The background thread is shared by the stores, and quit once
+ * all of them are cleaned up.
+ */
+public class GattCccStore {
+    private static final String TAG = "GattCccStore";
+    private static final boolean DBG = false;
+
+    @VisibleForTesting
+    static final long PERSIST_DELAY_MS = 500;
+
+    private static final int CCC_NOTIFICATION_BIT = 0;
+    private static final int CCC_INDICATION_BIT = 1;
+    private static final int BITS_PER_CHARACTERISTIC = 2;
+
+    @GuardedBy("GattCccStore.class")
+    private static HandlerThread sPersistThread;
+    @GuardedBy("GattCccStore.class")
+    private static int sPersistThreadUsers;
+
+    private final int mMetadataKey;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final List<UUID> mUuids = new ArrayList<>();
+    @GuardedBy("mLock")
+    private final Map<UUID, Integer> mUuidIndex = new HashMap<>();
+    @GuardedBy("mLock")
+    private final Map<BluetoothDevice, BitSet> mCcc = new LinkedHashMap<>();
+    @GuardedBy("mLock")
+    private final Set<BluetoothDevice> mDirtyDevices = new HashSet<>();
+
+    // Whether this store holds a reference on sPersistThread, released by cleanup()
+    private final boolean mUsesPersistThread;
+    @GuardedBy("mLock")
+    private boolean mCleanedUp;
+
+    private final Runnable mPersistRunnable = this::persistPending;
+
+    /**
+     * Creates a store persisting on the shared background thread. {@link #cleanup()} must be called
+     * when the store is not used anymore.
+     *
+     * @param metadataKey {@link BluetoothDevice} metadata key the subscriptions are persisted to
+     */
+    public GattCccStore(int metadataKey) {
+        this(metadataKey, acquirePersistLooper(), true);
+    }
+
+    @VisibleForTesting
+    GattCccStore(int metadataKey, Looper looper) {
+        this(metadataKey, looper, false);
+    }
+
+    private GattCccStore(int metadataKey, Looper looper, boolean usesPersistThread) {
+        mMetadataKey = metadataKey;
+        mHandler = new Handler(looper);
+        mUsesPersistThread = usesPersistThread;
+    }
+
+    private static synchronized Looper acquirePersistLooper() {
+        if (sPersistThread == null) {
+            sPersistThread = new HandlerThread(TAG);
+            sPersistThread.start();
+        }
+        sPersistThreadUsers++;
+        return sPersistThread.getLooper();
+    }
+
+    @VisibleForTesting
+    static synchronized HandlerThread getPersistThreadForTesting() {
+        return sPersistThread;
+    }
+
+    private static synchronized void releasePersistLooper() {
+        if (--sPersistThreadUsers == 0) {
+            sPersistThread.quitSafely();
+            sPersistThread = null;
+        }
+    }
+
+    /**
+     * Sets the CCC value of a characteristic for a device.
+     *
+     * @param persist whether the change should be written back to the device metadata
+     */
+    public void setCcc(BluetoothDevice device, UUID charUuid, byte[] value, boolean persist) {
+        if (value == null || value.length < 2) {
+            Log.e(TAG, "setCcc: invalid value for " + charUuid);
+            return;
+        }
+        boolean notify = (value[0] & (1 << CCC_NOTIFICATION_BIT)) != 0;
+        boolean indicate = (value[0] & (1 << CCC_INDICATION_BIT)) != 0;
+        synchronized (mLock) {
+            int base = indexOfLocked(charUuid) * BITS_PER_CHARACTERISTIC;
+            BitSet bits = mCcc.computeIfAbsent(device, d -> new BitSet());
+            boolean wasNotify = bits.get(base + CCC_NOTIFICATION_BIT);
+            bits.set(base + CCC_NOTIFICATION_BIT, notify);
+            bits.set(base + CCC_INDICATION_BIT, indicate);
+            if (!persist || wasNotify == notify) {
+                return;
+            }
+            if (mDirtyDevices.add(device) && mDirtyDevices.size() == 1) {
+                mHandler.postDelayed(mPersistRunnable, PERSIST_DELAY_MS);
+            }
+        }
+    }
+
+    /** Returns the CCC value of a characteristic, disabled if the device never wrote it */
+    public byte[] getCcc(BluetoothDevice device, UUID charUuid) {
+        return new byte[] {(byte) getCccValue(device, charUuid), 0x00};
+    }
+
+    /** Returns the CCC value of a characteristic as an integer */
+    public short getCccValue(BluetoothDevice device, UUID charUuid) {
+        synchronized (mLock) {
+            BitSet bits = mCcc.get(device);
+            Integer index = mUuidIndex.get(charUuid);
+            if (bits == null || index == null) {
+                return 0;
+            }
+            int base = index * BITS_PER_CHARACTERISTIC;
+            int value = 0;
+            if (bits.get(base + CCC_NOTIFICATION_BIT)) {
+                value |= 1 << CCC_NOTIFICATION_BIT;
+            }
+            if (bits.get(base + CCC_INDICATION_BIT)) {
+                value |= 1 << CCC_INDICATION_BIT;
+            }
+            return (short) value;
+        }
+    }
+
+    /** Returns true if the device subscribed to notifications, and only notifications */
+    public boolean isNotificationEnabled(BluetoothDevice device, UUID charUuid) {
+        return getCccValue(device, charUuid) == (1 << CCC_NOTIFICATION_BIT);
+    }
+
+    /** Returns true if the device ever configured a CCC descriptor */
+    public boolean hasDevice(BluetoothDevice device) {
+        synchronized (mLock) {
+            return mCcc.containsKey(device);
+        }
+    }
+
+    /** Returns the devices which configured at least one CCC descriptor */
+    public List<BluetoothDevice> getDevices() {
+        synchronized (mLock) {
+            return new ArrayList<>(mCcc.keySet());
+        }
+    }
+
+    /** Returns a snapshot of the non-default CCC values of the device */
+    public Map<UUID, Short> getCccValues(BluetoothDevice device) {
+        Map<UUID, Short> values = new LinkedHashMap<>();
+        synchronized (mLock) {
+            BitSet bits = mCcc.get(device);
+            if (bits == null) {
+                return values;
+            }
+            for (int i = 0; i < mUuids.size(); i++) {
+                short value = (short) ((bits.get(i * BITS_PER_CHARACTERISTIC) ? 1 : 0)
+                        | (bits.get(i * BITS_PER_CHARACTERISTIC + 1) ? 2 : 0));
+                if (value != 0) {
+                    values.put(mUuids.get(i), value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Restores the notification subscriptions persisted for the given devices.
+     *
+     * @param validUuids characteristics which can be restored, or null to accept any
+     */
+    public void restore(Iterable<BluetoothDevice> devices, Set<UUID> validUuids) {
+        for (BluetoothDevice device : devices) {
+            byte[] stored = device.getMetadata(mMetadataKey);
+            if (stored == null || stored.length == 0) {
+                continue;
+            }
+            for (ParcelUuid uuid : Utils.byteArrayToUuid(stored)) {
+                if (validUuids != null && !validUuids.contains(uuid.getUuid())) {
+                    Log.e(TAG, "Invalid UUID stored in metadata: " + uuid);
+                    continue;
+                }
+                setCcc(device, uuid.getUuid(), BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE,
+                        false);
+            }
+        }
+    }
+
+    /**
+     * Forgets the subscriptions of a device which is not bonded anymore. Its pending changes are
+     * dropped, as its metadata is removed with the bond.
+     */
+    public void removeDevice(BluetoothDevice device) {
+        synchronized (mLock) {
+            mCcc.remove(device);
+            mDirtyDevices.remove(device);
+        }
+    }
+
+    /** Writes all pending changes back immediately, on the calling thread */
+    public void flush() {
+        mHandler.removeCallbacks(mPersistRunnable);
+        persistPending();
+    }
+
+    /**
+     * Writes all pending changes back and releases the background thread. The store must not be
+     * used anymore.
+     */
+    public void cleanup() {
+        flush();
+        synchronized (mLock) {
+            if (mCleanedUp) {
+                return;
+            }
+            mCleanedUp = true;
+        }
+        if (mUsesPersistThread) {
+            releasePersistLooper();
+        }
+    }
+
+    private void persistPending() {
+        Map<BluetoothDevice, ParcelUuid[]> writes = new HashMap<>();
+        synchronized (mLock) {
+            for (BluetoothDevice device : mDirtyDevices) {
+                BitSet bits = mCcc.get(device);
+                List<ParcelUuid> uuids = new ArrayList<>();
+                if (bits != null) {
+                    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                        if (i % BITS_PER_CHARACTERISTIC == CCC_NOTIFICATION_BIT) {
+                            uuids.add(new ParcelUuid(mUuids.get(i / BITS_PER_CHARACTERISTIC)));
+                        }
+                    }
+                }
+                writes.put(device, uuids.toArray(new ParcelUuid[0]));
+            }
+            mDirtyDevices.clear();
+        }
+        for (Map.Entry<BluetoothDevice, ParcelUuid[]> write : writes.entrySet()) {
+            if (DBG) {
+                Log.d(TAG, "persist " + write.getValue().length + " subscriptions for "
+                        + write.getKey());
+            }
+            if (!write.getKey().setMetadata(mMetadataKey,
+                    Utils.uuidsToByteArray(write.getValue()))) {
+                Log.e(TAG, "Can't persist CCC values for " + write.getKey());
+            }
+        }
+    }
+
+    private int indexOfLocked(UUID uuid) {
+        Integer index = mUuidIndex.get(uuid);
+        if (index == null) {
+            index = mUuids.size();
+            mUuids.add(uuid);
+            mUuidIndex.put(uuid, index);
+        }
+        return index;
+    }
+}
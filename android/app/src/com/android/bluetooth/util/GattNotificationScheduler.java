@@ -0,0 +1,276 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.annotation.Nullable;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Per-device, per-characteristic notification scheduler for GATT server profiles.
+ *
+ * <p>Only one notification per device is handed to the stack at a time; the next one is sent once
+ * {@link #onNotificationSent} is called for that device, as required by
+ * {@link android.bluetooth.BluetoothGattServerCallback#onNotificationSent}. While a notification is
+ * in flight, updates of the same characteristic are coalesced so that only the latest value is
+ * sent, and characteristics with a minimum interval are not notified more often than that.
+ *
+ * <p>Characteristics which carry request results, such as control points, should be excluded from
+ * coalescing with {@link #setCoalescing}. Their value is copied when the notification is
+ * scheduled, so that each queued result is sent as it was set.
+ */
+public class GattNotificationScheduler {
+    private static final String TAG = "GattNotificationScheduler";
+    private static final boolean DBG = false;
+
+    /** Safety net for a stack that never reports a notification as sent */
+    @VisibleForTesting
+    static final long NOTIFICATION_SENT_TIMEOUT_MS = 1000;
+
+    /** Sends one notification to the stack */
+    public interface Sender {
+        /**
+         * @param value value to notify, or null to notify the current characteristic value
+         * @return true if the notification was queued and {@link #onNotificationSent} will follow
+         */
+        boolean sendNotification(BluetoothDevice device,
+                BluetoothGattCharacteristic characteristic, @Nullable byte[] value);
+    }
+
+    private static class PendingNotification {
+        final BluetoothGattCharacteristic mCharacteristic;
+        byte[] mValue;
+
+        PendingNotification(BluetoothGattCharacteristic characteristic, byte[] value) {
+            mCharacteristic = characteristic;
+            mValue = value;
+        }
+    }
+
+    private static class DeviceQueue {
+        final List<PendingNotification> mPending = new ArrayList<>();
+        final Map<UUID, Long> mLastSentMs = new HashMap<>();
+        boolean mInFlight = false;
+        int mInFlightSeq = 0;
+        int mSent = 0;
+        int mCoalesced = 0;
+    }
+
+    private final Sender mSender;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Map<BluetoothDevice, DeviceQueue> mQueues = new HashMap<>();
+    @GuardedBy("mLock")
+    private final Map<UUID, Long> mMinIntervalMs = new HashMap<>();
+    @GuardedBy("mLock")
+    private final Set<UUID> mNotCoalesced = new HashSet<>();
+
+    public GattNotificationScheduler(Looper looper, Sender sender) {
+        mHandler = new Handler(looper);
+        mSender = sender;
+    }
+
+    /** Sets the minimum interval between two notifications of the given characteristic */
+    public void setMinInterval(UUID uuid, long minIntervalMs) {
+        synchronized (mLock) {
+            if (minIntervalMs > 0) {
+                mMinIntervalMs.put(uuid, minIntervalMs);
+            } else {
+                mMinIntervalMs.remove(uuid);
+            }
+        }
+    }
+
+    /** Enables or disables coalescing of pending notifications of the given characteristic */
+    public void setCoalescing(UUID uuid, boolean enabled) {
+        synchronized (mLock) {
+            if (enabled) {
+                mNotCoalesced.remove(uuid);
+            } else {
+                mNotCoalesced.add(uuid);
+            }
+        }
+    }
+
+    /**
+     * Schedules a notification of the characteristic to the device.
+     *
+     * @param value value to notify, or null to notify the characteristic value at sending time,
+     * or at scheduling time for characteristics which are not coalesced
+     */
+    public void schedule(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+            @Nullable byte[] value) {
+        synchronized (mLock) {
+            DeviceQueue queue = mQueues.computeIfAbsent(device, d -> new DeviceQueue());
+            PendingNotification pending = null;
+            if (mNotCoalesced.contains(characteristic.getUuid())) {
+                // Later results would overwrite the value before this one is sent
+                if (value == null && characteristic.getValue() != null) {
+                    value = characteristic.getValue().clone();
+                }
+            } else {
+                for (PendingNotification p : queue.mPending) {
+                    if (p.mCharacteristic == characteristic) {
+                        pending = p;
+                        break;
+                    }
+                }
+            }
+            if (pending != null) {
+                pending.mValue = value;
+                queue.mCoalesced++;
+            } else {
+                queue.mPending.add(new PendingNotification(characteristic, value));
+            }
+        }
+        drain(device);
+    }
+
+    /** To be called from {@link android.bluetooth.BluetoothGattServerCallback#onNotificationSent} */
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        if (DBG) {
+            Log.d(TAG, "onNotificationSent: device=" + device + ", status=" + status);
+        }
+        synchronized (mLock) {
+            DeviceQueue queue = mQueues.get(device);
+            if (queue == null) {
+                return;
+            }
+            queue.mInFlight = false;
+        }
+        mHandler.removeCallbacksAndMessages(device);
+        drain(device);
+    }
+
+    /** Drops everything scheduled for the device, e.g. on disconnection */
+    public void removeDevice(BluetoothDevice device) {
+        synchronized (mLock) {
+            mQueues.remove(device);
+        }
+        mHandler.removeCallbacksAndMessages(device);
+    }
+
+    /** Drops everything scheduled for all devices */
+    public void clear() {
+        synchronized (mLock) {
+            mQueues.clear();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void drain(BluetoothDevice device) {
+        while (true) {
+            PendingNotification next = null;
+            int seq;
+            synchronized (mLock) {
+                DeviceQueue queue = mQueues.get(device);
+                if (queue == null || queue.mInFlight) {
+                    return;
+                }
+                long now = SystemClock.uptimeMillis();
+                long nextEligibleMs = Long.MAX_VALUE;
+                Iterator<PendingNotification> it = queue.mPending.iterator();
+                while (it.hasNext()) {
+                    PendingNotification p = it.next();
+                    UUID uuid = p.mCharacteristic.getUuid();
+                    Long lastSent = queue.mLastSentMs.get(uuid);
+                    Long minInterval = mMinIntervalMs.get(uuid);
+                    long eligibleMs = (lastSent == null || minInterval == null)
+                            ? now : lastSent + minInterval;
+                    if (eligibleMs <= now) {
+                        it.remove();
+                        next = p;
+                        break;
+                    }
+                    nextEligibleMs = Math.min(nextEligibleMs, eligibleMs);
+                }
+                if (next == null) {
+                    if (nextEligibleMs != Long.MAX_VALUE) {
+                        mHandler.removeCallbacksAndMessages(device);
+                        mHandler.postDelayed(() -> drain(device), device, nextEligibleMs - now);
+                    }
+                    return;
+                }
+                queue.mInFlight = true;
+                seq = ++queue.mInFlightSeq;
+                queue.mLastSentMs.put(next.mCharacteristic.getUuid(), now);
+            }
+
+            boolean queued = mSender.sendNotification(device, next.mCharacteristic, next.mValue);
+
+            synchronized (mLock) {
+                DeviceQueue queue = mQueues.get(device);
+                if (queue == null) {
+                    return;
+                }
+                if (queued) {
+                    queue.mSent++;
+                    if (queue.mInFlight && queue.mInFlightSeq == seq) {
+                        mHandler.postDelayed(() -> onNotificationSentTimeout(device), device,
+                                NOTIFICATION_SENT_TIMEOUT_MS);
+                    }
+                    return;
+                }
+                // Nothing will be reported as sent, move on with the next one
+                queue.mInFlight = false;
+            }
+        }
+    }
+
+    private void onNotificationSentTimeout(BluetoothDevice device) {
+        Log.w(TAG, "onNotificationSent not received in time for " + device);
+        synchronized (mLock) {
+            DeviceQueue queue = mQueues.get(device);
+            if (queue == null) {
+                return;
+            }
+            queue.mInFlight = false;
+        }
+        drain(device);
+    }
+
+    /** Dumps the scheduler state */
+    public void dump(StringBuilder sb) {
+        synchronized (mLock) {
+            for (Map.Entry<BluetoothDevice, DeviceQueue> entry : mQueues.entrySet()) {
+                DeviceQueue queue = entry.getValue();
+                sb.append("\n    ").append(entry.getKey())
+                        .append(": sent=").append(queue.mSent)
+                        .append(", coalesced=").append(queue.mCoalesced)
+                        .append(", pending=").append(queue.mPending.size())
+                        .append(", inFlight=").append(queue.mInFlight);
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@ import android.util.Log;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileDeviceRegistry;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ServiceFactory;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
@@ -58,6 +59,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class VolumeControlService extends ProfileService {
     private static final boolean DBG = false;
@@ -187,11 +189,13 @@ public class VolumeControlService extends ProfileService {
     @VisibleForTesting
     AudioManager mAudioManager;
 
-    private final Map<BluetoothDevice, VolumeControlStateMachine> mStateMachines = new HashMap<>();
+    private final ProfileDeviceRegistry<VolumeControlStateMachine> mStateMachines =
+            new ProfileDeviceRegistry<>();
     private final Map<BluetoothDevice, VolumeControlOffsetDescriptor> mAudioOffsets =
                                                                             new HashMap<>();
-    private final Map<Integer, Integer> mGroupVolumeCache = new HashMap<>();
-    private final Map<Integer, Boolean> mGroupMuteCache = new HashMap<>();
+    // Read from binder threads and written from the native callbacks, by group
+    private final Map<Integer, Integer> mGroupVolumeCache = new ConcurrentHashMap<>();
+    private final Map<Integer, Boolean> mGroupMuteCache = new ConcurrentHashMap<>();
 
     private BroadcastReceiver mBondStateChangedReceiver;
     private BroadcastReceiver mConnectionStateChangedReceiver;
@@ -238,7 +242,7 @@ public class VolumeControlService extends ProfileService {
                 "AudioManager cannot be null when VolumeControlService starts");
 
         // Start handler thread for state machines
-        mStateMachines.clear();
+        mStateMachines.clear(sm -> {});
         mStateMachinesThread = new HandlerThread("VolumeControlService.StateMachines");
         mStateMachinesThread.start();
 
@@ -288,13 +292,10 @@ public class VolumeControlService extends ProfileService {
         mConnectionStateChangedReceiver = null;
 
         // Destroy state machines and stop handler thread
-        synchronized (mStateMachines) {
-            for (VolumeControlStateMachine sm : mStateMachines.values()) {
-                sm.doQuit();
-                sm.cleanup();
-            }
-            mStateMachines.clear();
-        }
+        mStateMachines.clear(sm -> {
+            sm.doQuit();
+            sm.cleanup();
+        });
 
         if (mStateMachinesThread != null) {
             try {
@@ -380,15 +381,16 @@ public class VolumeControlService extends ProfileService {
         }
 
 
-        synchronized (mStateMachines) {
+        // Under the device lock, so that the state machine is not removed before it is told
+        return mStateMachines.withDeviceLock(device, () -> {
             VolumeControlStateMachine smConnect = getOrCreateStateMachine(device);
             if (smConnect == null) {
                 Log.e(TAG, "Cannot connect to " + device + " : no state machine");
+                return false;
             }
             smConnect.sendMessage(VolumeControlStateMachine.CONNECT);
-        }
-
-        return true;
+            return true;
+        });
     }
 
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_PRIVILEGED)
@@ -401,12 +403,12 @@ public class VolumeControlService extends ProfileService {
         if (device == null) {
             return false;
         }
-        synchronized (mStateMachines) {
+        mStateMachines.runWithDeviceLock(device, () -> {
             VolumeControlStateMachine sm = getOrCreateStateMachine(device);
             if (sm != null) {
                 sm.sendMessage(VolumeControlStateMachine.DISCONNECT);
             }
-        }
+        });
 
         return true;
     }
@@ -415,15 +417,13 @@ public class VolumeControlService extends ProfileService {
     public List<BluetoothDevice> getConnectedDevices() {
         enforceCallingOrSelfPermission(BLUETOOTH_PRIVILEGED,
                 "Need BLUETOOTH_PRIVILEGED permission");
-        synchronized (mStateMachines) {
-            List<BluetoothDevice> devices = new ArrayList<>();
-            for (VolumeControlStateMachine sm : mStateMachines.values()) {
-                if (sm.isConnected()) {
-                    devices.add(sm.getDevice());
-                }
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (VolumeControlStateMachine sm : mStateMachines.values()) {
+            if (sm.isConnected()) {
+                devices.add(sm.getDevice());
             }
-            return devices;
         }
+        return devices;
     }
 
     /**
@@ -474,26 +474,38 @@ public class VolumeControlService extends ProfileService {
         if (bondedDevices == null) {
             return devices;
         }
-        synchronized (mStateMachines) {
-            for (BluetoothDevice device : bondedDevices) {
-                final ParcelUuid[] featureUuids = device.getUuids();
-                if (!Utils.arrayContains(featureUuids, BluetoothUuid.VOLUME_CONTROL)) {
-                    continue;
-                }
-                int connectionState = BluetoothProfile.STATE_DISCONNECTED;
-                VolumeControlStateMachine sm = mStateMachines.get(device);
-                if (sm != null) {
-                    connectionState = sm.getConnectionState();
-                }
-                for (int state : states) {
-                    if (connectionState == state) {
-                        devices.add(device);
-                        break;
-                    }
+        for (BluetoothDevice device : bondedDevices) {
+            final ParcelUuid[] featureUuids = device.getUuids();
+            if (!Utils.arrayContains(featureUuids, BluetoothUuid.VOLUME_CONTROL)) {
+                continue;
+            }
+            int connectionState = BluetoothProfile.STATE_DISCONNECTED;
+            VolumeControlStateMachine sm = mStateMachines.get(device);
+            if (sm != null) {
+                connectionState = sm.getConnectionState();
+            }
+            for (int state : states) {
+                if (connectionState == state) {
+                    devices.add(device);
+                    break;
                 }
             }
-            return devices;
         }
+        return devices;
+    }
+
+    /**
+     * Get the state machines of the members of a CSIP group, without locking.
+     *
+     * @param groupId the CSIP group identifier
+     * @return the state machines of the group members which have one, in CSIP rank order
+     */
+    List<VolumeControlStateMachine> getGroupStateMachines(int groupId) {
+        CsipSetCoordinatorService csipClient = mFactory.getCsipSetCoordinatorService();
+        if (csipClient == null) {
+            return new ArrayList<>();
+        }
+        return mStateMachines.getAll(csipClient.getGroupDevicesOrdered(groupId));
     }
 
     /**
@@ -504,25 +516,21 @@ public class VolumeControlService extends ProfileService {
     @VisibleForTesting
     List<BluetoothDevice> getDevices() {
         List<BluetoothDevice> devices = new ArrayList<>();
-        synchronized (mStateMachines) {
-            for (VolumeControlStateMachine sm : mStateMachines.values()) {
-                devices.add(sm.getDevice());
-            }
-            return devices;
+        for (VolumeControlStateMachine sm : mStateMachines.values()) {
+            devices.add(sm.getDevice());
         }
+        return devices;
     }
 
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
     public int getConnectionState(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_CONNECT,
                 "Need BLUETOOTH_CONNECT permission");
-        synchronized (mStateMachines) {
-            VolumeControlStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return BluetoothProfile.STATE_DISCONNECTED;
-            }
-            return sm.getConnectionState();
+        VolumeControlStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
         }
+        return sm.getConnectionState();
     }
 
     /**
@@ -681,25 +689,17 @@ public class VolumeControlService extends ProfileService {
      */
     public void handleGroupNodeAdded(int groupId, BluetoothDevice device) {
         // Ignore disconnected device, its volume will be set once it connects
-        synchronized (mStateMachines) {
-            VolumeControlStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                return;
-            }
-            if (sm.getConnectionState() != BluetoothProfile.STATE_CONNECTED) {
-                return;
-            }
+        VolumeControlStateMachine sm = mStateMachines.get(device);
+        if (sm == null) {
+            return;
+        }
+        if (sm.getConnectionState() != BluetoothProfile.STATE_CONNECTED) {
+            return;
         }
 
         // Correct the volume level only if device was already reported as connected.
-        boolean can_change_volume = false;
-        synchronized (mStateMachines) {
-            VolumeControlStateMachine sm = mStateMachines.get(device);
-            if (sm != null) {
-                can_change_volume =
-                        (sm.getConnectionState() == BluetoothProfile.STATE_CONNECTED);
-            }
-        }
+        boolean can_change_volume =
+                (sm.getConnectionState() == BluetoothProfile.STATE_CONNECTED);
 
         // If group volume has already changed, the new group member should set it
         if (can_change_volume) {
@@ -760,12 +760,10 @@ public class VolumeControlService extends ProfileService {
             if (device != null) {
                 // Correct the volume level only if device was already reported as connected.
                 boolean can_change_volume = false;
-                synchronized (mStateMachines) {
-                    VolumeControlStateMachine sm = mStateMachines.get(device);
-                    if (sm != null) {
-                        can_change_volume =
-                                (sm.getConnectionState() == BluetoothProfile.STATE_CONNECTED);
-                    }
+                VolumeControlStateMachine sm = mStateMachines.get(device);
+                if (sm != null) {
+                    can_change_volume =
+                            (sm.getConnectionState() == BluetoothProfile.STATE_CONNECTED);
                 }
 
                 if (can_change_volume && (groupVolume != volume) && (groupVolume
@@ -965,7 +963,7 @@ public class VolumeControlService extends ProfileService {
             return;
         }
 
-        synchronized (mStateMachines) {
+        mStateMachines.runWithDeviceLock(device, () -> {
             VolumeControlStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
                 if (stackEvent.type
@@ -985,7 +983,7 @@ public class VolumeControlService extends ProfileService {
                 return;
             }
             sm.sendMessage(VolumeControlStateMachine.STACK_EVENT, stackEvent);
-        }
+        });
     }
 
     private VolumeControlStateMachine getOrCreateStateMachine(BluetoothDevice device) {
@@ -993,11 +991,7 @@ public class VolumeControlService extends ProfileService {
             Log.e(TAG, "getOrCreateStateMachine failed: device cannot be null");
             return null;
         }
-        synchronized (mStateMachines) {
-            VolumeControlStateMachine sm = mStateMachines.get(device);
-            if (sm != null) {
-                return sm;
-            }
+        return mStateMachines.getOrCreate(device, d -> {
             // Limit the maximum number of state machines to avoid DoS attack
             if (mStateMachines.size() >= MAX_VC_STATE_MACHINES) {
                 Log.e(TAG, "Maximum number of VolumeControl state machines reached: "
@@ -1005,13 +999,11 @@ public class VolumeControlService extends ProfileService {
                 return null;
             }
             if (DBG) {
-                Log.d(TAG, "Creating a new state machine for " + device);
+                Log.d(TAG, "Creating a new state machine for " + d);
             }
-            sm = VolumeControlStateMachine.make(device, this,
+            return VolumeControlStateMachine.make(d, this,
                     mVolumeControlNativeInterface, mStateMachinesThread.getLooper());
-            mStateMachines.put(device, sm);
-            return sm;
-        }
+        });
     }
 
     // Remove state machine if the bonding for a device is removed
@@ -1048,7 +1040,7 @@ public class VolumeControlService extends ProfileService {
             return;
         }
 
-        synchronized (mStateMachines) {
+        mStateMachines.runWithDeviceLock(device, () -> {
             VolumeControlStateMachine sm = mStateMachines.get(device);
             if (sm == null) {
                 return;
@@ -1059,21 +1051,18 @@ public class VolumeControlService extends ProfileService {
                 return;
             }
             removeStateMachine(device);
-        }
+        });
     }
 
     private void removeStateMachine(BluetoothDevice device) {
-        synchronized (mStateMachines) {
-            VolumeControlStateMachine sm = mStateMachines.get(device);
-            if (sm == null) {
-                Log.w(TAG, "removeStateMachine: device " + device
-                        + " does not have a state machine");
-                return;
-            }
+        boolean removed = mStateMachines.remove(device, sm -> {
             Log.i(TAG, "removeStateMachine: removing state machine for device: " + device);
             sm.doQuit();
             sm.cleanup();
-            mStateMachines.remove(device);
+        });
+        if (!removed) {
+            Log.w(TAG, "removeStateMachine: device " + device
+                    + " does not have a state machine");
         }
     }
 
@@ -1484,6 +1473,7 @@ public class VolumeControlService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
+        mStateMachines.dump(sb);
         for (VolumeControlStateMachine sm : mStateMachines.values()) {
             sm.dump(sb);
         }
@@ -1498,8 +1488,15 @@ public class VolumeControlService extends ProfileService {
         }
         for (Map.Entry<Integer, Integer> entry : mGroupVolumeCache.entrySet()) {
             Boolean isMute = mGroupMuteCache.getOrDefault(entry.getKey(), false);
+            int connected = 0;
+            for (VolumeControlStateMachine sm : getGroupStateMachines(entry.getKey())) {
+                if (sm.isConnected()) {
+                    connected++;
+                }
+            }
             ProfileService.println(sb, "    GroupId: " + entry.getKey() + " volume: "
-                            + entry.getValue() + ", mute: " + isMute);
+                            + entry.getValue() + ", mute: " + isMute
+                            + ", connected members: " + connected);
         }
     }
 }
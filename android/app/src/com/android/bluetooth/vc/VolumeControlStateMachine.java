@@ -27,6 +27,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
@@ -512,7 +513,8 @@ public class VolumeControlStateMachine extends StateMachine {
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mDevice);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
                 | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-        mService.sendBroadcast(intent, BLUETOOTH_CONNECT);
+        ProfileBroadcastDispatcher.getInstance().dispatchConnectionState(mDevice, intent,
+                i -> mService.sendBroadcast(i, BLUETOOTH_CONNECT));
     }
 
     private static String messageWhatToString(int what) {
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class UtilsBenchmark {
+    private static final byte[] ADDRESS =
+            new byte[] {0x00, 0x11, 0x22, (byte) 0xAA, (byte) 0xBB, (byte) 0xCC};
+
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void getAddressStringFromByte() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Utils.getAddressStringFromByte(ADDRESS);
+        }
+    }
+
+    @Test
+    public void getBytesFromAddress() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Utils.getBytesFromAddress("00:11:22:AA:BB:CC");
+        }
+    }
+}
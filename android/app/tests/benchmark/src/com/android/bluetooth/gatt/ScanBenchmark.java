@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ScanBenchmark {
+    // Flags, 16-bit service UUIDs, service data, manufacturer data, TX power and local name
+    private static final byte[] ADVERTISING_DATA = new byte[] {
+            0x02, 0x01, 0x1a,
+            0x05, 0x03, 0x0b, 0x11, 0x0a, 0x11,
+            0x06, 0x16, 0x0b, 0x11, 0x50, 0x64, 0x00,
+            0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15,
+            0x02, 0x0a, (byte) 0xec,
+            0x09, 0x09, 0x42, 0x65, 0x6e, 0x63, 0x68, 0x6d, 0x61, 0x72};
+
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private ScanResult mScanResult;
+    private ScanFilter mAddressFilter;
+    private ScanFilter mServiceDataFilter;
+
+    @Before
+    public void setUp() {
+        BluetoothDevice device =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:AA:BB:CC");
+        mScanResult = new ScanResult(device, ScanRecord.parseFromBytes(ADVERTISING_DATA), -60, 0);
+        mAddressFilter = new ScanFilter.Builder().setDeviceAddress("00:11:22:AA:BB:CC").build();
+        mServiceDataFilter = new ScanFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString("0000110A-0000-1000-8000-00805F9B34FB"))
+                .setManufacturerData(0x00e0, new byte[] {0x02, 0x15})
+                .build();
+    }
+
+    @Test
+    public void scanRecordParseFromBytes() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            ScanRecord.parseFromBytes(ADVERTISING_DATA);
+        }
+    }
+
+    @Test
+    public void scanFilterMatches_address() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mAddressFilter.matches(mScanResult);
+        }
+    }
+
+    @Test
+    public void scanFilterMatches_serviceAndManufacturerData() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mServiceDataFilter.matches(mScanResult);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class MapBenchmark {
+    private static final int LISTING_SIZE = 100;
+
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private BluetoothMapMessageListing mListing;
+    private byte[] mEncodedAppParams;
+
+    @Before
+    public void setUp() throws Exception {
+        mListing = new BluetoothMapMessageListing();
+        for (int i = 0; i < LISTING_SIZE; i++) {
+            BluetoothMapMessageListingElement element = new BluetoothMapMessageListingElement();
+            element.setHandle(i);
+            element.setDateTime(1700000000000L + i * 60000L);
+            element.setSubject("Subject of message number " + i);
+            element.setSenderName("Sender " + i);
+            element.setSenderAddressing("+1555000" + i);
+            element.setRecipientAddressing("+15551234567");
+            element.setType(BluetoothMapUtils.TYPE.SMS_GSM, true);
+            element.setSize(128);
+            element.setReceptionStatus("complete");
+            element.setAttachmentSize(0);
+            element.setRead(i % 2 == 0, true);
+            element.setSent("no");
+            element.setProtect("no");
+            mListing.add(element);
+        }
+
+        BluetoothMapAppParams appParams = new BluetoothMapAppParams();
+        appParams.setMaxListCount(LISTING_SIZE);
+        appParams.setStartOffset(0);
+        appParams.setFilterMessageType(0);
+        appParams.setFilterReadStatus(0);
+        appParams.setFilterRecipient("+15551234567");
+        appParams.setFilterPriority(0);
+        appParams.setFilterPeriodBegin(1700000000000L);
+        appParams.setFilterPeriodEnd(1800000000000L);
+        mEncodedAppParams = appParams.encodeParams();
+    }
+
+    @Test
+    public void messageListingEncode() throws Exception {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mListing.encode(true, BluetoothMapUtils.MAP_V11_STR);
+        }
+    }
+
+    @Test
+    public void appParamsEncode() throws Exception {
+        BluetoothMapAppParams appParams = new BluetoothMapAppParams(mEncodedAppParams);
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            appParams.encodeParams();
+        }
+    }
+
+    @Test
+    public void appParamsDecode() throws Exception {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new BluetoothMapAppParams(mEncodedAppParams);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.mapclient;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class BmessageParserBenchmark {
+    private static final String SMS_MESSAGE =
+            "BEGIN:BMSG\r\nVERSION:1.0\r\nSTATUS:READ\r\nTYPE:SMS_GSM\r\nFOLDER:telecom/msg/inbox"
+            + "\r\nBEGIN:VCARD\r\nVERSION:2.1\r\nN:Doe;John;;;\r\nTEL:+15551234567\r\nEND:VCARD\r\n"
+            + "BEGIN:BENV\r\nBEGIN:VCARD\r\nVERSION:2.1\r\nN:null;;;;\r\nTEL:555-5555\r\nEND:VCARD"
+            + "\r\nBEGIN:BBODY\r\nCHARSET:UTF-8\r\nLENGTH:39\r\nBEGIN:MSG\r\nThis is a new msg\r\n"
+            + "END:MSG\r\nEND:BBODY\r\nEND:BENV\r\nEND:BMSG\r\n";
+
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private String mLongMessage;
+
+    @Before
+    public void setUp() {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 4000) {
+            body.append("The quick brown fox jumps over the lazy dog.\r\n");
+        }
+        String msg = "BEGIN:MSG\r\n" + body + "END:MSG\r\n";
+        mLongMessage = "BEGIN:BMSG\r\nVERSION:1.0\r\nSTATUS:READ\r\nTYPE:MMS\r\nFOLDER:null\r\n"
+                + "BEGIN:BENV\r\nBEGIN:VCARD\r\nVERSION:2.1\r\nN:null;;;;\r\nTEL:555-5555\r\n"
+                + "END:VCARD\r\nBEGIN:BBODY\r\nLENGTH:" + msg.length() + "\r\n" + msg
+                + "END:BBODY\r\nEND:BENV\r\nEND:BMSG\r\n";
+    }
+
+    @Test
+    public void createBmessage_sms() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            BmessageParser.createBmessage(SMS_MESSAGE);
+        }
+    }
+
+    @Test
+    public void createBmessage_longBody() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            BmessageParser.createBmessage(mLongMessage);
+        }
+    }
+}
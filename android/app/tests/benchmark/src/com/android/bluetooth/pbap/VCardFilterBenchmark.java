@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager.VCardFilter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class VCardFilterBenchmark {
+    private static final String SEPARATOR = System.getProperty("line.separator");
+    private static final String VCARD = "BEGIN:VCARD" + SEPARATOR
+            + "VERSION:3.0" + SEPARATOR
+            + "FN:John Doe" + SEPARATOR
+            + "N:Doe;John;;;" + SEPARATOR
+            + "NICKNAME:Johnny" + SEPARATOR
+            + "TEL;TYPE=CELL:+15551234567" + SEPARATOR
+            + "TEL;TYPE=WORK:+15557654321" + SEPARATOR
+            + "EMAIL;TYPE=WORK:john.doe@example.com" + SEPARATOR
+            + "ADR;TYPE=HOME:;;1600 Amphitheatre Pkwy;Mountain View;CA;94043;US" + SEPARATOR
+            + "ORG:Example" + SEPARATOR
+            + "TITLE:Engineer" + SEPARATOR
+            + "BDAY:1970-01-01" + SEPARATOR
+            + "NOTE:Met at the conference" + SEPARATOR
+            + "URL:https://example.com" + SEPARATOR
+            + "X-IRMC-CALL-DATETIME;RECEIVED:20230314T173942" + SEPARATOR
+            + "END:VCARD" + SEPARATOR;
+
+    // Excludes EMAIL, ADR, NOTE and URL
+    private static final byte[] FILTER = new byte[] {
+            0x00, 0x00, 0x00, 0x00, 0x10, (byte) 0xed, (byte) 0xfe, (byte) 0xdf};
+
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void apply_v30() {
+        VCardFilter filter = new VCardFilter(FILTER);
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            filter.apply(VCARD, false);
+        }
+    }
+
+    @Test
+    public void apply_v21() {
+        VCardFilter filter = new VCardFilter(FILTER);
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            filter.apply(VCARD, true);
+        }
+    }
+}
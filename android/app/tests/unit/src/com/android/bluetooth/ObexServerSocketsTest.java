@@ -0,0 +1,91 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ObexServerSocketsTest {
+    private final List<Long> mDelays = new ArrayList<>();
+    private int mAttempts;
+
+    @Test
+    public void openWithRetry_succeedsAfterFailures() {
+        boolean opened = ObexServerSockets.openWithRetry(() -> {
+            if (++mAttempts <= 3) {
+                throw new IOException("Attempt " + mAttempts);
+            }
+        }, () -> true, mDelays::add);
+
+        assertThat(opened).isTrue();
+        assertThat(mAttempts).isEqualTo(4);
+        assertThat(mDelays).containsExactly(20L, 40L, 80L).inOrder();
+    }
+
+    @Test
+    public void openWithRetry_retriesForTheWholeRetryTime() {
+        boolean opened = ObexServerSockets.openWithRetry(() -> {
+            mAttempts++;
+            throw new IOException("Attempt " + mAttempts);
+        }, () -> true, mDelays::add);
+
+        assertThat(opened).isFalse();
+        assertThat(mAttempts).isEqualTo(mDelays.size() + 1);
+        long waitedMs = 0;
+        for (long delayMs : mDelays) {
+            assertThat(delayMs).isAtMost(ObexServerSockets.CREATE_RETRY_MAX_DELAY_MS);
+            waitedMs += delayMs;
+        }
+        assertThat(waitedMs).isAtLeast(ObexServerSockets.CREATE_RETRY_TIMEOUT_MS);
+        assertThat(waitedMs).isLessThan(ObexServerSockets.CREATE_RETRY_TIMEOUT_MS
+                + ObexServerSockets.CREATE_RETRY_MAX_DELAY_MS);
+    }
+
+    @Test
+    public void openWithRetry_adapterTurnedOff_doesNotRetry() {
+        boolean opened = ObexServerSockets.openWithRetry(() -> {
+            mAttempts++;
+            throw new IOException("Attempt " + mAttempts);
+        }, () -> false, mDelays::add);
+
+        assertThat(opened).isFalse();
+        assertThat(mAttempts).isEqualTo(1);
+        assertThat(mDelays).isEmpty();
+    }
+
+    @Test
+    public void openWithRetry_securityException_doesNotRetry() {
+        boolean opened = ObexServerSockets.openWithRetry(() -> {
+            mAttempts++;
+            throw new SecurityException("Attempt " + mAttempts);
+        }, () -> true, mDelays::add);
+
+        assertThat(opened).isFalse();
+        assertThat(mAttempts).isEqualTo(1);
+        assertThat(mDelays).isEmpty();
+    }
+}
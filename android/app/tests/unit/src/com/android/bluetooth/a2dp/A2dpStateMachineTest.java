@@ -36,6 +36,7 @@ import androidx.test.runner.AndroidJUnit4;
 import com.android.bluetooth.R;
 import com.android.bluetooth.TestUtils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.After;
@@ -119,6 +120,9 @@ public class A2dpStateMachineTest {
         // Set up thread and looper
         mHandlerThread = new HandlerThread("A2dpStateMachineTestHandlerThread");
         mHandlerThread.start();
+        // Send the broadcasts from the state machine thread, in order with its messages
+        ProfileBroadcastDispatcher.setInstanceForTesting(
+                new ProfileBroadcastDispatcher(mHandlerThread.getLooper()));
         mA2dpStateMachine = new A2dpStateMachine(mTestDevice, mA2dpService,
                                                  mA2dpNativeInterface, mHandlerThread.getLooper());
         // Override the timeout value to speed up the test
@@ -130,6 +134,7 @@ public class A2dpStateMachineTest {
     public void tearDown() throws Exception {
         mA2dpStateMachine.doQuit();
         mHandlerThread.quit();
+        ProfileBroadcastDispatcher.setInstanceForTesting(null);
         mHandlerThread.join(TIMEOUT_MS);
         TestUtils.clearAdapterService(mAdapterService);
     }
@@ -483,7 +483,7 @@ public class BassClientStateMachineTest {
         assertThat(data.getServiceUuids()).contains(BassConstants.BASIC_AUDIO_UUID);
         assertThat(data.getServiceData(BassConstants.BASIC_AUDIO_UUID)).isNotNull();
         mBassClientStateMachine.parseScanRecord(0, data);
-        verify(mBassClientService).updateBase(anyInt(), any());
+        verify(mBassClientService).updateBase(anyInt(), any(), any());
     }
 
     @Test
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.bass_client;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.bluetooth.le.ScanResult;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class BroadcastSourceCacheTest {
+    private static final long TIMEOUT_MS = 1000;
+
+    private final List<Integer> mEvicted = new ArrayList<>();
+    private BroadcastSourceCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new BroadcastSourceCache(2, TIMEOUT_MS,
+                (broadcastId, result) -> mEvicted.add(broadcastId));
+    }
+
+    private static ScanResult result(int rssi) {
+        return new ScanResult(null, null, rssi, 0);
+    }
+
+    @Test
+    public void invalidCapacity() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new BroadcastSourceCache(0, TIMEOUT_MS, null));
+    }
+
+    @Test
+    public void update_reportsOnlyNewSources() {
+        ScanResult first = result(-50);
+        ScanResult second = result(-40);
+
+        assertThat(mCache.update(1, first, 0)).isTrue();
+        assertThat(mCache.update(1, second, 10)).isFalse();
+        assertThat(mCache.get(1)).isSameInstanceAs(second);
+        assertThat(mCache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void update_whenFull_evictsWeakestSource() {
+        mCache.update(1, result(-80), 0);
+        mCache.update(2, result(-40), 0);
+
+        assertThat(mCache.update(3, result(-60), 10)).isTrue();
+        assertThat(mCache.get(1)).isNull();
+        assertThat(mEvicted).containsExactly(1);
+    }
+
+    @Test
+    public void update_whenFull_dropsWeakerNewSource() {
+        mCache.update(1, result(-50), 0);
+        mCache.update(2, result(-40), 0);
+
+        assertThat(mCache.update(3, result(-90), 10)).isFalse();
+        assertThat(mCache.get(3)).isNull();
+        assertThat(mEvicted).isEmpty();
+    }
+
+    @Test
+    public void update_whenFull_evictsStaleSourcesFirst() {
+        mCache.update(1, result(-40), 0);
+        mCache.update(2, result(-50), TIMEOUT_MS);
+
+        assertThat(mCache.update(3, result(-90), TIMEOUT_MS + 10)).isTrue();
+        assertThat(mCache.get(1)).isNull();
+        assertThat(mCache.get(2)).isNotNull();
+        assertThat(mEvicted).containsExactly(1);
+    }
+
+    @Test
+    public void clear_doesNotNotify() {
+        mCache.update(1, result(-40), 0);
+        mCache.clear();
+
+        assertThat(mCache.size()).isEqualTo(0);
+        assertThat(mEvicted).isEmpty();
+    }
+}
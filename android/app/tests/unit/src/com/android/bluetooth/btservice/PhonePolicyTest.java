@@ -478,6 +478,49 @@ public class PhonePolicyTest {
                 eq(bondedDevices[0]));
     }
 
+    /**
+     * Test that the profiles which connected in the previous connections of a device are
+     * connected as soon as a first profile connects, without waiting for the timeout
+     */
+    @Test
+    public void testReconnectTrustedProfilesImmediately() {
+        BluetoothDevice device = getTestDevice(mAdapter, 0);
+        when(mHeadsetService.getConnectionPolicy(device)).thenReturn(
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        when(mA2dpService.getConnectionPolicy(device)).thenReturn(
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        when(mAdapterService.getState()).thenReturn(BluetoothAdapter.STATE_ON);
+        when(mA2dpService.getConnectionState(device)).thenReturn(
+                BluetoothProfile.STATE_DISCONNECTED);
+        when(mDatabaseManager.getProfileConnectionHistory(device)).thenReturn(
+                BluetoothProfile.HEADSET + ":2:0;" + BluetoothProfile.A2DP + ":2:800");
+
+        updateProfileConnectionStateHelper(device, BluetoothProfile.HEADSET,
+                BluetoothProfile.STATE_CONNECTED, BluetoothProfile.STATE_DISCONNECTED);
+
+        verify(mA2dpService, timeout(ASYNC_CALL_TIMEOUT_MILLIS)).connect(eq(device));
+    }
+
+    /**
+     * Test that the profiles connected to a device are saved in its history once all of them
+     * are disconnected
+     */
+    @Test
+    public void testSaveProfileConnectionHistory() {
+        BluetoothDevice device = getTestDevice(mAdapter, 0);
+        when(mAdapterService.getState()).thenReturn(BluetoothAdapter.STATE_ON);
+        when(mHeadsetService.getConnectedDevices()).thenReturn(Collections.emptyList());
+        when(mA2dpService.getConnectedDevices()).thenReturn(Collections.emptyList());
+
+        updateProfileConnectionStateHelper(device, BluetoothProfile.HEADSET,
+                BluetoothProfile.STATE_CONNECTED, BluetoothProfile.STATE_DISCONNECTED);
+        updateProfileConnectionStateHelper(device, BluetoothProfile.HEADSET,
+                BluetoothProfile.STATE_DISCONNECTED, BluetoothProfile.STATE_CONNECTED);
+
+        verify(mDatabaseManager, timeout(ASYNC_CALL_TIMEOUT_MILLIS))
+                .setProfileConnectionHistory(device, BluetoothProfile.HEADSET + ":1:0");
+    }
+
     /**
      * Test that we will try to re-connect to a profile on a device next time if a previous attempt
      * failed partially. This will make sure the connection mechanism still works at next try while
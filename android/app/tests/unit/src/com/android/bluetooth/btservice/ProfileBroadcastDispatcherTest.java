@@ -0,0 +1,145 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothA2dp;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.content.Intent;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.TestLooperManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class ProfileBroadcastDispatcherTest {
+    private BluetoothDevice mDevice1;
+    private BluetoothDevice mDevice2;
+    private HandlerThread mHandlerThread;
+    private TestLooperManager mTestLooperManager;
+    private ProfileBroadcastDispatcher mDispatcher;
+    private final List<Intent> mSentIntents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mDevice1 = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+        mDevice2 = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:06");
+        mHandlerThread = new HandlerThread("ProfileBroadcastDispatcherTest");
+        mHandlerThread.start();
+        mTestLooperManager = InstrumentationRegistry.getInstrumentation()
+                .acquireLooperManager(mHandlerThread.getLooper());
+        mDispatcher = new ProfileBroadcastDispatcher(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mTestLooperManager.release();
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void dispatchConnectionState_mergesPendingTransitionalState() {
+        dispatchConnectionState(mDevice1, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTING);
+        dispatchConnectionState(mDevice1, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED);
+
+        sendPendingBroadcasts();
+
+        assertThat(mSentIntents).hasSize(1);
+        assertConnectionState(mSentIntents.get(0), mDevice1, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTED);
+    }
+
+    @Test
+    public void dispatchConnectionState_doesNotMergeBackToPreviousState() {
+        dispatchConnectionState(mDevice1, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTING);
+        dispatchConnectionState(mDevice1, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_DISCONNECTED);
+
+        sendPendingBroadcasts();
+
+        assertThat(mSentIntents).hasSize(2);
+        assertConnectionState(mSentIntents.get(1), mDevice1, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    @Test
+    public void dispatch_keepsOrder() {
+        Intent audioState = new Intent(BluetoothA2dp.ACTION_PLAYING_STATE_CHANGED);
+        dispatchConnectionState(mDevice1, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTING);
+        dispatchConnectionState(mDevice2, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTING);
+        mDispatcher.dispatch(mDevice1, audioState, mSentIntents::add);
+        // Not merged, as another broadcast of the device is pending after the connecting one
+        dispatchConnectionState(mDevice1, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED);
+
+        sendPendingBroadcasts();
+
+        assertThat(mSentIntents).hasSize(4);
+        assertConnectionState(mSentIntents.get(0), mDevice1, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTING);
+        assertConnectionState(mSentIntents.get(1), mDevice2, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTING);
+        assertThat(mSentIntents.get(2)).isSameInstanceAs(audioState);
+        assertConnectionState(mSentIntents.get(3), mDevice1, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED);
+    }
+
+    private void dispatchConnectionState(BluetoothDevice device, int prevState, int state) {
+        Intent intent = new Intent(BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED);
+        intent.putExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, prevState);
+        intent.putExtra(BluetoothProfile.EXTRA_STATE, state);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        mDispatcher.dispatchConnectionState(device, intent, mSentIntents::add);
+    }
+
+    private void sendPendingBroadcasts() {
+        Message msg;
+        while ((msg = mTestLooperManager.poll()) != null) {
+            mTestLooperManager.execute(msg);
+        }
+    }
+
+    private static void assertConnectionState(Intent intent, BluetoothDevice device,
+            int prevState, int state) {
+        assertThat(intent.getAction()).isEqualTo(BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED);
+        assertThat(intent.<BluetoothDevice>getParcelableExtra(BluetoothDevice.EXTRA_DEVICE))
+                .isEqualTo(device);
+        assertThat(intent.getIntExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, -1))
+                .isEqualTo(prevState);
+        assertThat(intent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1)).isEqualTo(state);
+    }
+}
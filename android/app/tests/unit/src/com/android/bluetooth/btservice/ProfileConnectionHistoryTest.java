@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothProfile;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProfileConnectionHistoryTest {
+    private static final int HFP = BluetoothProfile.HEADSET;
+    private static final int A2DP = BluetoothProfile.A2DP;
+    private static final int LE_AUDIO = BluetoothProfile.LE_AUDIO;
+
+    @Test
+    public void fromString_roundTrip() {
+        String serialized = HFP + ":2:0;" + A2DP + ":3:500";
+
+        ProfileConnectionHistory history = ProfileConnectionHistory.fromString(serialized);
+
+        assertThat(history.toString()).isEqualTo(serialized);
+    }
+
+    @Test
+    public void fromString_ignoresMalformedEntries() {
+        ProfileConnectionHistory history =
+                ProfileConnectionHistory.fromString("x;" + A2DP + ":2;" + HFP + ":2:100");
+
+        assertThat(history.toString()).isEqualTo(HFP + ":2:100");
+        assertThat(ProfileConnectionHistory.fromString(null).toString()).isEmpty();
+    }
+
+    @Test
+    public void getTrustedProfiles_fastestFirst() {
+        ProfileConnectionHistory history = ProfileConnectionHistory.fromString(
+                A2DP + ":2:900;" + LE_AUDIO + ":1:10;" + HFP + ":5:20");
+
+        assertThat(history.getTrustedProfiles()).containsExactly(HFP, A2DP).inOrder();
+    }
+
+    @Test
+    public void update_countsConnectionsAndForgetsMissingProfiles() {
+        ProfileConnectionHistory history = new ProfileConnectionHistory();
+        Map<Integer, Long> connected = new LinkedHashMap<>();
+        connected.put(HFP, 0L);
+        connected.put(A2DP, 300L);
+
+        history.update(connected);
+        assertThat(history.getTrustedProfiles()).isEmpty();
+
+        history.update(connected);
+        assertThat(history.getTrustedProfiles()).containsExactly(HFP, A2DP).inOrder();
+
+        connected.remove(A2DP);
+        history.update(connected);
+        assertThat(history.toString()).isEqualTo(HFP + ":3:0");
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProfileDeviceRegistryTest {
+    private final BluetoothDevice mDevice1 =
+            BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+    private final BluetoothDevice mDevice2 =
+            BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:06");
+    private final ProfileDeviceRegistry<String> mRegistry = new ProfileDeviceRegistry<>();
+
+    @Test
+    public void getOrCreate_createsOnce() {
+        assertThat(mRegistry.getOrCreate(mDevice1, d -> "first")).isEqualTo("first");
+        assertThat(mRegistry.getOrCreate(mDevice1, d -> "second")).isEqualTo("first");
+        assertThat(mRegistry.getOrCreate(mDevice2, d -> null)).isNull();
+
+        assertThat(mRegistry.get(mDevice1)).isEqualTo("first");
+        assertThat(mRegistry.get(mDevice2)).isNull();
+        assertThat(mRegistry.get(null)).isNull();
+        assertThat(mRegistry.values()).containsExactly("first");
+    }
+
+    @Test
+    public void remove_callsBackWithRemovedState() {
+        mRegistry.getOrCreate(mDevice1, d -> "state1");
+        mRegistry.getOrCreate(mDevice2, d -> "state2");
+        List<String> removed = new ArrayList<>();
+
+        assertThat(mRegistry.remove(mDevice1, removed::add)).isTrue();
+        assertThat(mRegistry.remove(mDevice1, removed::add)).isFalse();
+        assertThat(removed).containsExactly("state1");
+
+        mRegistry.clear(removed::add);
+        assertThat(removed).containsExactly("state1", "state2");
+        assertThat(mRegistry.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void getAll_returnsStatesOfGroupMembers() {
+        BluetoothDevice device3 =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:07");
+        mRegistry.getOrCreate(mDevice1, d -> "state1");
+        mRegistry.getOrCreate(mDevice2, d -> "state2");
+
+        assertThat(mRegistry.getAll(List.of(mDevice2, device3, mDevice1)))
+                .containsExactly("state2", "state1").inOrder();
+        assertThat(mRegistry.getAll(List.of(device3))).isEmpty();
+    }
+
+    @Test
+    public void get_doesNotWaitForDeviceLock() throws Exception {
+        mRegistry.getOrCreate(mDevice1, d -> "state1");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> mRegistry.runWithDeviceLock(mDevice1, () -> {
+            locked.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        holder.start();
+        assertThat(locked.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(mRegistry.get(mDevice1)).isEqualTo("state1");
+        assertThat(mRegistry.values()).containsExactly("state1");
+
+        release.countDown();
+        holder.join();
+        StringBuilder sb = new StringBuilder();
+        mRegistry.dump(sb);
+        assertThat(sb.toString()).contains("locked 2 times");
+    }
+
+    @Test
+    public void withDeviceLock_nestedHoldCountedOnce() {
+        String state = mRegistry.withDeviceLock(mDevice1,
+                () -> mRegistry.getOrCreate(mDevice1, d -> "state1"));
+
+        assertThat(state).isEqualTo("state1");
+        StringBuilder sb = new StringBuilder();
+        mRegistry.dump(sb);
+        assertThat(sb.toString()).contains("locked 1 times");
+    }
+
+    @Test
+    public void withGroupLock_holdsDeviceLocksInside() {
+        List<String> states = mRegistry.withGroupLock(1, () -> {
+            List<String> created = new ArrayList<>();
+            created.add(mRegistry.getOrCreate(mDevice1, d -> "state1"));
+            created.add(mRegistry.getOrCreate(mDevice2, d -> "state2"));
+            return created;
+        });
+
+        assertThat(states).containsExactly("state1", "state2").inOrder();
+        StringBuilder sb = new StringBuilder();
+        mRegistry.dump(sb);
+        assertThat(sb.toString()).contains("locked 2 times");
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.bluetooth.csip.CsipSetCoordinatorService;
+import com.android.bluetooth.le_audio.LeAudioService;
+import com.android.bluetooth.vc.VolumeControlService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ProfileStartupTraceTest {
+    private ProfileStartupTrace mTrace;
+
+    @Before
+    public void setUp() {
+        mTrace = new ProfileStartupTrace();
+    }
+
+    @Test
+    public void dump_neverStarted() {
+        StringBuilder sb = new StringBuilder();
+        mTrace.dump(sb);
+
+        assertThat(sb.toString()).contains("Profiles never started");
+    }
+
+    @Test
+    public void dump_containsStartupTrace() {
+        mTrace.begin(100);
+        mTrace.onProfileRequested(LeAudioService.class, 100);
+        mTrace.onProfileRequested(CsipSetCoordinatorService.class, 110);
+        mTrace.onProfileStarted(LeAudioService.class, 150);
+
+        StringBuilder sb = new StringBuilder();
+        mTrace.dump(sb);
+
+        assertThat(sb.toString()).contains("LeAudioService: requested=+0, started=+50 (took 50)");
+        assertThat(sb.toString()).contains("CsipSetCoordinatorService: requested=+10, not started");
+    }
+
+    @Test
+    public void onProfileStarted_unknownOrDuplicateIsIgnored() {
+        mTrace.begin(0);
+        mTrace.onProfileRequested(LeAudioService.class, 0);
+        mTrace.onProfileStarted(VolumeControlService.class, 5);
+        mTrace.onProfileStarted(LeAudioService.class, 10);
+        mTrace.onProfileStarted(LeAudioService.class, 20);
+
+        StringBuilder sb = new StringBuilder();
+        mTrace.dump(sb);
+
+        assertThat(sb.toString()).contains("LeAudioService: requested=+0, started=+10 (took 10)");
+        assertThat(sb.toString()).doesNotContain("VolumeControlService");
+    }
+
+    @Test
+    public void begin_dropsPreviousTrace() {
+        mTrace.begin(0);
+        mTrace.onProfileRequested(LeAudioService.class, 0);
+        mTrace.begin(1000);
+
+        StringBuilder sb = new StringBuilder();
+        mTrace.dump(sb);
+
+        assertThat(sb.toString()).doesNotContain("LeAudioService");
+    }
+}
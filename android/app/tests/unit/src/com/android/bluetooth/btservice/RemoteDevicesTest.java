@@ -4,6 +4,7 @@ import static android.Manifest.permission.BLUETOOTH_CONNECT;
 
 import static org.mockito.Mockito.*;
 
+import android.app.BroadcastOptions;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothAssignedNumbers;
 import android.bluetooth.BluetoothDevice;
@@ -39,6 +40,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 @MediumTest
 @RunWith(AndroidJUnit4.class)
@@ -635,6 +637,128 @@ public class RemoteDevicesTest {
                 .getHfAudioPolicyForRemoteAg());
     }
 
+    @Test
+    public void testAddDeviceProperties_evictsLeastRecentlyUsedDevice() {
+        mRemoteDevices.addDeviceProperties(getTestAddress(0));
+        for (int i = 1; i < RemoteDevices.MAX_DEVICE_CACHE_SIZE_DEFAULT; i++) {
+            mRemoteDevices.addDeviceProperties(getTestAddress(i));
+        }
+        // Using the first device makes the second one the least recently used
+        Assert.assertNotNull(mRemoteDevices.getDevice(getTestAddress(0)));
+
+        mRemoteDevices.addDeviceProperties(
+                getTestAddress(RemoteDevices.MAX_DEVICE_CACHE_SIZE_DEFAULT));
+
+        Assert.assertNotNull(mRemoteDevices.getDevice(getTestAddress(0)));
+        Assert.assertNull(mRemoteDevices.getDevice(getTestAddress(1)));
+        Assert.assertNotNull(mRemoteDevices.getDevice(getTestAddress(2)));
+        Assert.assertNotNull(mRemoteDevices.getDevice(
+                getTestAddress(RemoteDevices.MAX_DEVICE_CACHE_SIZE_DEFAULT)));
+    }
+
+    @Test
+    public void testAddDeviceProperties_keepsBondedAndConnectedDevices() {
+        mRemoteDevices.addDeviceProperties(getTestAddress(0))
+                .setBondState(BluetoothDevice.BOND_BONDED);
+        mRemoteDevices.addDeviceProperties(getTestAddress(1))
+                .setConnectionHandle(1, BluetoothDevice.TRANSPORT_LE);
+        for (int i = 2; i < RemoteDevices.MAX_DEVICE_CACHE_SIZE_DEFAULT + 3; i++) {
+            mRemoteDevices.addDeviceProperties(getTestAddress(i));
+        }
+
+        Assert.assertNotNull(mRemoteDevices.getDevice(getTestAddress(0)));
+        Assert.assertNotNull(mRemoteDevices.getDevice(getTestAddress(1)));
+        Assert.assertNull(mRemoteDevices.getDevice(getTestAddress(2)));
+        Assert.assertNotNull(mRemoteDevices.getDevice(getTestAddress(3)));
+    }
+
+    @Test
+    public void testDeviceFoundCallback_coalescesAndSkipsUnchangedDevices() {
+        ArrayList<DiscoveringPackage> packages = new ArrayList<>();
+        packages.add(new DiscoveringPackage("com.test.discovery", null, false));
+        doReturn(packages).when(mAdapterService).getDiscoveringPackages();
+        byte[] address = Utils.getBytesFromAddress(TEST_BT_ADDR_1);
+        DeviceProperties deviceProp = mRemoteDevices.addDeviceProperties(address);
+        deviceProp.setRssi((short) -61);
+
+        mRemoteDevices.deviceFoundCallback(address);
+        deviceProp.setRssi((short) -65);
+        mRemoteDevices.deviceFoundCallback(address);
+
+        // Verify that the device is delivered once, with its latest properties
+        Message msg = mTestLooperManager.next();
+        mTestLooperManager.execute(msg);
+        verify(mAdapterService).sendBroadcastMultiplePermissions(mIntentArgument.capture(),
+                any(String[].class), any(BroadcastOptions.class));
+        Intent intent = mIntentArgument.getValue();
+        Assert.assertEquals(BluetoothDevice.ACTION_FOUND, intent.getAction());
+        Assert.assertEquals(mDevice1, intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE));
+        Assert.assertEquals(-65, intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) 0));
+
+        // Verify that the device is not delivered again while its RSSI stays in the same bucket
+        mRemoteDevices.deviceFoundCallback(address);
+        Assert.assertNull(mTestLooperManager.poll());
+
+        deviceProp.setRssi((short) -80);
+        mRemoteDevices.deviceFoundCallback(address);
+        mTestLooperManager.execute(mTestLooperManager.next());
+        verify(mAdapterService, times(2)).sendBroadcastMultiplePermissions(any(Intent.class),
+                any(String[].class), any(BroadcastOptions.class));
+    }
+
+    @Test
+    public void testDeviceFoundCallback_batchedPackageGetsOneIntent() {
+        ArrayList<DiscoveringPackage> packages = new ArrayList<>();
+        packages.add(new DiscoveringPackage("com.test.discovery", null, false, true));
+        doReturn(packages).when(mAdapterService).getDiscoveringPackages();
+        mRemoteDevices.addDeviceProperties(getTestAddress(0));
+        mRemoteDevices.addDeviceProperties(getTestAddress(1));
+
+        mRemoteDevices.deviceFoundCallback(getTestAddress(0));
+        mRemoteDevices.deviceFoundCallback(getTestAddress(1));
+        mRemoteDevices.discoveryStoppedCallback();
+
+        verify(mAdapterService).sendBroadcastMultiplePermissions(mIntentArgument.capture(),
+                any(String[].class), any(BroadcastOptions.class));
+        Intent intent = mIntentArgument.getValue();
+        Assert.assertEquals(BluetoothDevice.ACTION_FOUND_BATCH, intent.getAction());
+        ArrayList<Bundle> batch =
+                intent.getParcelableArrayListExtra(BluetoothDevice.EXTRA_FOUND_DEVICES);
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals(mRemoteDevices.getDevice(getTestAddress(1)),
+                batch.get(1).getParcelable(BluetoothDevice.EXTRA_DEVICE));
+        Assert.assertNull(mTestLooperManager.poll());
+    }
+
+    @Test
+    public void testDeviceFoundCallback_batchKeepsPackagePermissionAndNewPackageGetsDevice() {
+        ArrayList<DiscoveringPackage> packages = new ArrayList<>();
+        packages.add(new DiscoveringPackage("com.test.discovery",
+                android.Manifest.permission.ACCESS_FINE_LOCATION, false, true));
+        doReturn(packages).when(mAdapterService).getDiscoveringPackages();
+        mRemoteDevices.addDeviceProperties(getTestAddress(0));
+
+        mRemoteDevices.deviceFoundCallback(getTestAddress(0));
+        mTestLooperManager.execute(mTestLooperManager.next());
+
+        ArgumentCaptor<String[]> permissions = ArgumentCaptor.forClass(String[].class);
+        verify(mAdapterService).sendBroadcastMultiplePermissions(any(Intent.class),
+                permissions.capture(), any(BroadcastOptions.class));
+        Assert.assertTrue(Arrays.asList(permissions.getValue())
+                .contains(android.Manifest.permission.ACCESS_FINE_LOCATION));
+
+        // Verify that a package joining the discovery is delivered the device already found
+        mRemoteDevices.discoveryStartedCallback();
+        mRemoteDevices.deviceFoundCallback(getTestAddress(0));
+        mTestLooperManager.execute(mTestLooperManager.next());
+        verify(mAdapterService, times(2)).sendBroadcastMultiplePermissions(any(Intent.class),
+                any(String[].class), any(BroadcastOptions.class));
+    }
+
+    private static byte[] getTestAddress(int index) {
+        return new byte[] {0x00, 0x11, 0x22, 0x33, (byte) (index >> 8), (byte) index};
+    }
+
     private static void verifyBatteryLevelChangedIntent(BluetoothDevice device, int batteryLevel,
             ArgumentCaptor<Intent> intentArgument) {
         verifyBatteryLevelChangedIntent(device, batteryLevel, intentArgument.getValue());
@@ -257,6 +257,23 @@ public final class BluetoothKeystoreServiceTest {
                 mBluetoothKeystoreService.getNameDecryptKey()));
     }
 
+    @Test
+    public void testDecryptCompletesBeforeLoadReturns() {
+        testEncrypt();
+        mBluetoothKeystoreService.saveEncryptedKey();
+        mBluetoothKeystoreService.cleanupMemory();
+
+        // Decryption is joined in loadEncryptionFile, no need to wait for a thread
+        Assert.assertTrue(loadEncryptionFile(CONFIG_FILE_ENCRYPTION_PATH, true));
+
+        Assert.assertTrue(doCompareMap(mNameDecryptKeyResult,
+                mBluetoothKeystoreService.getNameDecryptKey()));
+        StringBuilder sb = new StringBuilder();
+        mBluetoothKeystoreService.dump(sb);
+        Assert.assertTrue(sb.toString().contains(
+                mNameDecryptKeyResult.size() + " entries decrypted"));
+    }
+
     @Test
     public void testCompareHashFile() {
         // save config checksum.
@@ -22,13 +22,20 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
 import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.IAdvertisingSetCallback;
 import android.bluetooth.le.PeriodicAdvertisingParameters;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.ParcelUuid;
 
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
@@ -43,6 +50,9 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Test cases for {@link AdvertiseManager}.
  */
@@ -67,6 +77,7 @@ public class AdvertiseManagerTest {
 
     private AdvertiseManager mAdvertiseManager;
     private int mAdvertiserId;
+    private HandlerThread mHandlerThread;
 
     @Before
     public void setUp() throws Exception {
@@ -75,6 +86,9 @@ public class AdvertiseManagerTest {
         TestUtils.setAdapterService(mAdapterService);
 
         mAdvertiseManager = new AdvertiseManager(mService, mAdapterService, mAdvertiserMap);
+        mHandlerThread = new HandlerThread("AdvertiseManagerTest");
+        mHandlerThread.start();
+        mAdvertiseManager.mHandler = new Handler(mHandlerThread.getLooper());
         AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder().build();
         AdvertiseData advertiseData = new AdvertiseData.Builder().build();
         AdvertiseData scanResponse = new AdvertiseData.Builder().build();
@@ -95,6 +109,7 @@ public class AdvertiseManagerTest {
 
     @After
     public void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
         TestUtils.clearAdapterService(mAdapterService);
     }
 
@@ -155,4 +170,143 @@ public class AdvertiseManagerTest {
 
         verify(mAdvertiserMap).setPeriodicAdvertisingData(mAdvertiserId, periodicData);
     }
+
+    @Test
+    public void advertisingDataRotation_reportsFirstResultOnly() throws Exception {
+        List<AdvertiseData> data = rotationData();
+
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, data, 5000);
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+        // Results of the first update and of the next rotated one
+        mAdvertiseManager.onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+        mAdvertiseManager.onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+
+        verify(mAdvertiserMap).setAdvertisingData(mAdvertiserId, data.get(0));
+        verify(mCallback).onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+        assertThat(mAdvertiseManager.mDataRotations).containsKey(mAdvertiserId);
+    }
+
+    @Test
+    public void advertisingDataRotation_failure_stopsRotation() throws Exception {
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, rotationData(), 5000);
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+        AdvertiseManager.DataRotation rotation =
+                mAdvertiseManager.mDataRotations.get(mAdvertiserId);
+
+        mAdvertiseManager.onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+
+        verify(mCallback).onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+        assertThat(mAdvertiseManager.mDataRotations).isEmpty();
+        assertThat(mAdvertiseManager.mHandler.hasCallbacks(rotation)).isFalse();
+    }
+
+    @Test
+    public void advertisingData_stopsRotation() throws Exception {
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, rotationData(), 5000);
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+
+        mAdvertiseManager.setAdvertisingData(mAdvertiserId, new AdvertiseData.Builder().build());
+        mAdvertiseManager.onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+        mAdvertiseManager.onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+
+        assertThat(mAdvertiseManager.mDataRotations).isEmpty();
+        verify(mCallback, times(2)).onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+    }
+
+    @Test
+    public void advertisingData_dropsLateResultOfStoppedRotation() throws Exception {
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, rotationData(), 5000);
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+        mAdvertiseManager.mDataRotations.get(mAdvertiserId).run();
+        mAdvertiseManager.onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+
+        mAdvertiseManager.setAdvertisingData(mAdvertiserId, new AdvertiseData.Builder().build());
+        // Result of the second rotated update, then of the data set by the app
+        mAdvertiseManager.onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+        mAdvertiseManager.onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+
+        verify(mCallback).onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_SUCCESS);
+        verify(mCallback).onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+    }
+
+    @Test
+    public void advertisingDataRotation_tooManyPayloads_fails() throws Exception {
+        List<AdvertiseData> data = new ArrayList<>();
+        for (int i = 0; i <= AdvertisingSet.MAX_DATA_ROTATION_PAYLOADS; i++) {
+            data.add(new AdvertiseData.Builder().build());
+        }
+
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, data, 5000);
+
+        verify(mCallback).onAdvertisingDataSet(mAdvertiserId,
+                AdvertisingSetCallback.ADVERTISE_FAILED_DATA_TOO_LARGE);
+        assertThat(mAdvertiseManager.mDataRotations).isEmpty();
+    }
+
+    @Test
+    public void advertisingDataRotation_recordsRotatedData() throws Exception {
+        List<AdvertiseData> data = rotationData();
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, data, 5000);
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+
+        mAdvertiseManager.mDataRotations.get(mAdvertiserId).run();
+
+        verify(mAdvertiserMap).setAdvertisingData(mAdvertiserId, data.get(0));
+        verify(mAdvertiserMap).setAdvertisingData(mAdvertiserId, data.get(1));
+    }
+
+    @Test
+    public void advertisingData_stoppedRotationDoesNotOverwriteData() throws Exception {
+        List<AdvertiseData> data = rotationData();
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, data, 5000);
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+        AdvertiseManager.DataRotation rotation =
+                mAdvertiseManager.mDataRotations.get(mAdvertiserId);
+
+        AdvertiseData advertiseData = new AdvertiseData.Builder().build();
+        mAdvertiseManager.setAdvertisingData(mAdvertiserId, advertiseData);
+        // A rotation already dequeued by the handler when the data was set
+        rotation.run();
+
+        verify(mAdvertiserMap, never()).setAdvertisingData(mAdvertiserId, data.get(1));
+        assertThat(mAdvertiseManager.mHandler.hasCallbacks(rotation)).isFalse();
+    }
+
+    @Test
+    public void advertisingDataRotation_emptyList_stopsRotation() throws Exception {
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, rotationData(), 5000);
+        TestUtils.waitForLooperToFinishScheduledTask(mHandlerThread.getLooper());
+
+        AdvertiseManager.DataRotation rotation =
+                mAdvertiseManager.mDataRotations.get(mAdvertiserId);
+        mAdvertiseManager.setAdvertisingDataRotation(mAdvertiserId, List.of(), 5000);
+
+        assertThat(mAdvertiseManager.mDataRotations).isEmpty();
+        assertThat(mAdvertiseManager.mHandler.hasCallbacks(rotation)).isFalse();
+    }
+
+    private static List<AdvertiseData> rotationData() {
+        return List.of(
+                new AdvertiseData.Builder()
+                        .addServiceData(ParcelUuid.fromString(
+                                "0000FEAA-0000-1000-8000-00805F9B34FB"), new byte[] {0x01})
+                        .build(),
+                new AdvertiseData.Builder()
+                        .addServiceData(ParcelUuid.fromString(
+                                "0000FEAA-0000-1000-8000-00805F9B34FB"), new byte[] {0x02})
+                        .build());
+    }
 }
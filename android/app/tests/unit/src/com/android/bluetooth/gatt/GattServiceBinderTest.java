@@ -643,6 +643,19 @@ public class GattServiceBinderTest {
         verify(mService).setAdvertisingData(advertiserId, data, mAttributionSource);
     }
 
+    @Test
+    public void setAdvertisingDataRotation() throws Exception {
+        int advertiserId = 1;
+        List<AdvertiseData> data = List.of(new AdvertiseData.Builder().build());
+        long intervalMillis = 5000;
+
+        mBinder.setAdvertisingDataRotation(advertiserId, data, intervalMillis,
+                mAttributionSource, SynchronousResultReceiver.get());
+
+        verify(mService).setAdvertisingDataRotation(advertiserId, data, intervalMillis,
+                mAttributionSource);
+    }
+
     @Test
     public void setScanResponseData() throws Exception {
         int advertiserId = 1;
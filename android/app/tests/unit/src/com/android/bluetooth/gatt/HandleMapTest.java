@@ -0,0 +1,123 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link HandleMap}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HandleMapTest {
+    private static final int SERVER_IF = 1;
+    private static final int OTHER_SERVER_IF = 2;
+    private static final UUID SERVICE_UUID = UUID.randomUUID();
+    private static final UUID CHAR_UUID = UUID.randomUUID();
+    private static final UUID DESC_UUID = UUID.randomUUID();
+
+    private HandleMap mHandleMap;
+
+    @Before
+    public void setUp() {
+        mHandleMap = new HandleMap();
+    }
+
+    @Test
+    public void getByHandle() {
+        addService(SERVER_IF, 40);
+
+        HandleMap.Entry service = mHandleMap.getByHandle(40);
+        HandleMap.Entry characteristic = mHandleMap.getByHandle(41);
+        HandleMap.Entry descriptor = mHandleMap.getByHandle(42);
+
+        assertThat(service.type).isEqualTo(HandleMap.TYPE_SERVICE);
+        assertThat(service.uuid).isEqualTo(SERVICE_UUID);
+        assertThat(characteristic.type).isEqualTo(HandleMap.TYPE_CHARACTERISTIC);
+        assertThat(characteristic.serviceHandle).isEqualTo(40);
+        assertThat(descriptor.type).isEqualTo(HandleMap.TYPE_DESCRIPTOR);
+        assertThat(descriptor.charHandle).isEqualTo(41);
+        assertThat(mHandleMap.getByHandle(39)).isNull();
+        assertThat(mHandleMap.getByHandle(43)).isNull();
+        assertThat(mHandleMap.getByHandle(-1)).isNull();
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 40)).isTrue();
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 41)).isFalse();
+    }
+
+    @Test
+    public void deleteService_keepsOtherServices() {
+        addService(SERVER_IF, 1);
+        addService(OTHER_SERVER_IF, 4);
+
+        mHandleMap.deleteService(SERVER_IF, 1);
+
+        assertThat(mHandleMap.getByHandle(1)).isNull();
+        assertThat(mHandleMap.getByHandle(2)).isNull();
+        assertThat(mHandleMap.getByHandle(3)).isNull();
+        assertThat(mHandleMap.getByHandle(5).serverIf).isEqualTo(OTHER_SERVER_IF);
+        assertThat(mHandleMap.getEntries()).hasSize(3);
+    }
+
+    @Test
+    public void setStarted() {
+        addService(SERVER_IF, 1);
+
+        mHandleMap.setStarted(OTHER_SERVER_IF, 1, true);
+        assertThat(mHandleMap.getByHandle(1).started).isFalse();
+
+        mHandleMap.setStarted(SERVER_IF, 1, true);
+        assertThat(mHandleMap.getByHandle(1).started).isTrue();
+    }
+
+    @Test
+    public void getByRequestId() {
+        addService(SERVER_IF, 1);
+
+        mHandleMap.addRequest(7, 2);
+        assertThat(mHandleMap.getByRequestId(7).uuid).isEqualTo(CHAR_UUID);
+
+        mHandleMap.deleteRequest(7);
+        assertThat(mHandleMap.getByRequestId(7)).isNull();
+    }
+
+    @Test
+    public void clear() {
+        addService(SERVER_IF, 1);
+        mHandleMap.addRequest(7, 2);
+
+        mHandleMap.clear();
+
+        assertThat(mHandleMap.getByHandle(1)).isNull();
+        assertThat(mHandleMap.getByRequestId(7)).isNull();
+        assertThat(mHandleMap.getEntries()).isEmpty();
+    }
+
+    private void addService(int serverIf, int handle) {
+        mHandleMap.addService(serverIf, handle, SERVICE_UUID, 0, 0, false);
+        mHandleMap.addCharacteristic(serverIf, handle + 1, CHAR_UUID, handle);
+        mHandleMap.addDescriptor(serverIf, handle + 2, DESC_UUID, handle);
+    }
+}
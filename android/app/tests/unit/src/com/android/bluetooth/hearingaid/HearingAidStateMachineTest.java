@@ -34,6 +34,7 @@ import androidx.test.runner.AndroidJUnit4;
 import com.android.bluetooth.TestUtils;
 import com.android.bluetooth.R;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.After;
@@ -75,6 +76,9 @@ public class HearingAidStateMachineTest {
         // Set up thread and looper
         mHandlerThread = new HandlerThread("HearingAidStateMachineTestHandlerThread");
         mHandlerThread.start();
+        // Send the broadcasts from the state machine thread, in order with its messages
+        ProfileBroadcastDispatcher.setInstanceForTesting(
+                new ProfileBroadcastDispatcher(mHandlerThread.getLooper()));
         mHearingAidStateMachine = new HearingAidStateMachine(mTestDevice, mHearingAidService,
                 mHearingAidNativeInterface, mHandlerThread.getLooper());
         // Override the timeout value to speed up the test
@@ -86,6 +90,7 @@ public class HearingAidStateMachineTest {
     public void tearDown() throws Exception {
         mHearingAidStateMachine.doQuit();
         mHandlerThread.quit();
+        ProfileBroadcastDispatcher.setInstanceForTesting(null);
         TestUtils.clearAdapterService(mAdapterService);
     }
 
@@ -21,8 +21,10 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -30,8 +32,11 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
 import android.provider.CallLog;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 
 import androidx.test.InstrumentationRegistry;
@@ -41,6 +46,7 @@ import com.android.bluetooth.BluetoothMethodProxy;
 import com.android.bluetooth.R;
 import com.android.bluetooth.TestUtils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.util.DevicePolicyUtils;
 import com.android.internal.telephony.GsmAlphabet;
 
 import org.junit.After;
@@ -76,11 +82,12 @@ public class AtPhonebookTest {
         mTestDevice = mAdapter.getRemoteDevice("00:01:02:03:04:05");
         // Spy on native interface
         mNativeInterface = spy(HeadsetNativeInterface.getInstance());
-        mAtPhonebook = new AtPhonebook(mTargetContext, mNativeInterface);
+        mAtPhonebook = new AtPhonebook(mTargetContext, mNativeInterface, Looper.getMainLooper());
     }
 
     @After
     public void tearDown() throws Exception {
+        mAtPhonebook.cleanup();
         TestUtils.clearAdapterService(mAdapterService);
         BluetoothMethodProxy.setInstanceForTesting(null);
     }
@@ -286,6 +293,62 @@ public class AtPhonebookTest {
         verify(mNativeInterface).atResponseString(mTestDevice, expected);
     }
 
+    @Test
+    public void resolveCallerIds_batchesNumbersAndCachesResults() {
+        final String knownNumber = "5551234";
+        final String unknownNumber = "+15557654321";
+        Cursor callLogCursor = mock(Cursor.class);
+        when(callLogCursor.getString(1)).thenReturn(knownNumber, knownNumber, unknownNumber);
+        when(callLogCursor.moveToNext()).thenReturn(true, true, false);
+
+        Cursor contactsCursor = mock(Cursor.class);
+        when(contactsCursor.moveToNext()).thenReturn(true, false);
+        when(contactsCursor.getString(0)).thenReturn(knownNumber);
+        when(contactsCursor.getString(1)).thenReturn("+15551234");
+        when(contactsCursor.getString(2)).thenReturn("Alice");
+        when(contactsCursor.getInt(3)).thenReturn(Phone.TYPE_MOBILE);
+        Uri phoneUri = DevicePolicyUtils.getEnterprisePhoneUri(mTargetContext);
+        doReturn(contactsCursor).when(mHfpMethodProxy).contentResolverQuery(any(), eq(phoneUri),
+                any(), any(String.class), any(), any());
+
+        Cursor lookupCursor = mock(Cursor.class);
+        when(lookupCursor.moveToFirst()).thenReturn(false);
+        Uri lookupUri = Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI,
+                unknownNumber);
+        doReturn(lookupCursor).when(mHfpMethodProxy).contentResolverQuery(any(), eq(lookupUri),
+                any(), any(), any(), any());
+
+        AtPhonebook.PhonebookResult pbr = mAtPhonebook.new PhonebookResult();
+        pbr.cursor = callLogCursor;
+        pbr.numberColumn = 1;
+        mAtPhonebook.resolveCallerIds(pbr, 1, 3);
+
+        assertThat(pbr.callerIds.get(knownNumber).name).isEqualTo("Alice");
+        assertThat(pbr.callerIds.get(knownNumber).type).isEqualTo(Phone.TYPE_MOBILE);
+        assertThat(pbr.callerIds.get(unknownNumber).name).isNull();
+        verify(mHfpMethodProxy, times(1)).contentResolverQuery(any(), eq(phoneUri), any(),
+                any(String.class), any(), any());
+        verify(mHfpMethodProxy, times(1)).contentResolverQuery(any(), eq(lookupUri), any(),
+                any(), any(), any());
+
+        // Cached numbers are not looked up again
+        when(callLogCursor.getString(1)).thenReturn(knownNumber, unknownNumber);
+        when(callLogCursor.moveToNext()).thenReturn(true, false);
+        mAtPhonebook.resolveCallerIds(pbr, 1, 2);
+        verify(mHfpMethodProxy, times(1)).contentResolverQuery(any(), eq(phoneUri), any(),
+                any(String.class), any(), any());
+    }
+
+    @Test
+    public void contactsChange_clearsCachedCallerIds() {
+        AtPhonebook.PhonebookResult pbr = mAtPhonebook.mPhonebooks.get("MC");
+        pbr.callerIds.put("5551234", new AtPhonebook.CallerId("Alice", Phone.TYPE_MOBILE));
+
+        mAtPhonebook.mContactsObserver.onChange(false);
+
+        assertThat(pbr.callerIds).isEmpty();
+    }
+
     @Test
     public void setCpbrIndex() {
         int index = 1;
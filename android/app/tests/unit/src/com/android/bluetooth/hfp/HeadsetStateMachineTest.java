@@ -50,6 +50,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.bluetooth.TestUtils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 import com.android.bluetooth.btservice.storage.DatabaseManager;
 
 import org.hamcrest.core.IsInstanceOf;
@@ -138,6 +139,9 @@ public class HeadsetStateMachineTest {
         // Setup thread and looper
         mHandlerThread = new HandlerThread("HeadsetStateMachineTestHandlerThread");
         mHandlerThread.start();
+        // Send the broadcasts from the state machine thread, in order with its messages
+        ProfileBroadcastDispatcher.setInstanceForTesting(
+                new ProfileBroadcastDispatcher(mHandlerThread.getLooper()));
         // Modify CONNECT timeout to a smaller value for test only
         HeadsetStateMachine.sConnectTimeoutMs = CONNECT_TIMEOUT_TEST_MILLIS;
         mHeadsetStateMachine = HeadsetObjectsFactory.getInstance()
@@ -149,6 +153,7 @@ public class HeadsetStateMachineTest {
     public void tearDown() throws Exception {
         HeadsetObjectsFactory.getInstance().destroyStateMachine(mHeadsetStateMachine);
         mHandlerThread.quit();
+        ProfileBroadcastDispatcher.setInstanceForTesting(null);
         TestUtils.clearAdapterService(mAdapterService);
     }
 
@@ -922,6 +927,51 @@ public class HeadsetStateMachineTest {
                 PhoneStateListener.LISTEN_NONE);
     }
 
+    /**
+     * A test to verify that device state changes received in a burst are merged into a single
+     * update carrying the latest state
+     */
+    @Test
+    public void testDeviceStateChanged_coalescesUpdates() {
+        setUpConnectedState();
+        HeadsetDeviceState first = new HeadsetDeviceState(1, 0, 1, 5);
+        HeadsetDeviceState second = new HeadsetDeviceState(1, 0, 2, 5);
+        HeadsetDeviceState third = new HeadsetDeviceState(1, 0, 3, 5);
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.DEVICE_STATE_CHANGED, first);
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.DEVICE_STATE_CHANGED, second);
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.DEVICE_STATE_CHANGED, third);
+        verify(mNativeInterface, timeout(HeadsetStateMachine.DEVICE_STATE_COALESCE_MS
+                + ASYNC_CALL_TIMEOUT_MILLIS)).notifyDeviceStatus(mTestDevice, third);
+        verify(mNativeInterface, times(1)).notifyDeviceStatus(eq(mTestDevice),
+                any(HeadsetDeviceState.class));
+    }
+
+    /**
+     * A test to verify that a device state update is not sent when only indicators disabled by
+     * AT+BIA changed
+     */
+    @Test
+    public void testDeviceStateChanged_skipsDisabledIndicators() {
+        setUpConnectedState();
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.STACK_EVENT,
+                new HeadsetStackEvent(HeadsetStackEvent.EVENT_TYPE_BIA,
+                        new HeadsetAgIndicatorEnableState(true, true, false, true), mTestDevice));
+        HeadsetDeviceState first = new HeadsetDeviceState(1, 0, 1, 5);
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.DEVICE_STATE_CHANGED, first);
+        verify(mNativeInterface, timeout(HeadsetStateMachine.DEVICE_STATE_COALESCE_MS
+                + ASYNC_CALL_TIMEOUT_MILLIS)).notifyDeviceStatus(mTestDevice, first);
+
+        HeadsetDeviceState signalOnly = new HeadsetDeviceState(1, 0, 4, 5);
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.DEVICE_STATE_CHANGED, signalOnly);
+        verify(mNativeInterface, after(HeadsetStateMachine.DEVICE_STATE_MIN_INTERVAL_MS
+                + ASYNC_CALL_TIMEOUT_MILLIS).never()).notifyDeviceStatus(mTestDevice, signalOnly);
+
+        HeadsetDeviceState battery = new HeadsetDeviceState(1, 0, 4, 3);
+        mHeadsetStateMachine.sendMessage(HeadsetStateMachine.DEVICE_STATE_CHANGED, battery);
+        verify(mNativeInterface, timeout(HeadsetStateMachine.DEVICE_STATE_COALESCE_MS
+                + ASYNC_CALL_TIMEOUT_MILLIS)).notifyDeviceStatus(mTestDevice, battery);
+    }
+
     /**
      * A test to verify that we correctly handles key pressed event from a HSP headset
      */
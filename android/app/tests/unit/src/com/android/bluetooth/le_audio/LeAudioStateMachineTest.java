@@ -40,6 +40,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.bluetooth.TestUtils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 
 import org.junit.After;
 import org.junit.Before;
@@ -78,6 +79,9 @@ public class LeAudioStateMachineTest {
         // Set up thread and looper
         mHandlerThread = new HandlerThread("LeAudioStateMachineTestHandlerThread");
         mHandlerThread.start();
+        // Send the broadcasts from the state machine thread, in order with its messages
+        ProfileBroadcastDispatcher.setInstanceForTesting(
+                new ProfileBroadcastDispatcher(mHandlerThread.getLooper()));
         mLeAudioStateMachine = new LeAudioStateMachine(mTestDevice, mLeAudioService,
                 mLeAudioNativeInterface, mHandlerThread.getLooper());
         // Override the timeout value to speed up the test
@@ -89,6 +93,7 @@ public class LeAudioStateMachineTest {
     public void tearDown() throws Exception {
         mLeAudioStateMachine.doQuit();
         mHandlerThread.quit();
+        ProfileBroadcastDispatcher.setInstanceForTesting(null);
         TestUtils.clearAdapterService(mAdapterService);
     }
 
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapListingOutputStreamTest {
+    private static final int PACKET_SIZE = 4;
+
+    /** Records the size of each write */
+    private static class RecordingOutputStream extends ByteArrayOutputStream {
+        final List<Integer> mWrites = new ArrayList<>();
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            mWrites.add(len);
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void write_isSentInPackets() throws IOException {
+        RecordingOutputStream obexStream = new RecordingOutputStream();
+        BluetoothMapListingOutputStream out =
+                new BluetoothMapListingOutputStream(obexStream, PACKET_SIZE, () -> false);
+
+        out.write(new byte[] {1, 2, 3});
+        out.write(4);
+        out.write(new byte[] {5, 6, 7, 8, 9, 10});
+        assertThat(obexStream.mWrites).containsExactly(4, 4).inOrder();
+
+        out.flush();
+        assertThat(obexStream.mWrites).containsExactly(4, 4, 2).inOrder();
+        assertThat(obexStream.toByteArray())
+                .isEqualTo(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+        assertThat(out.getBytesWritten()).isEqualTo(10);
+    }
+
+    @Test
+    public void write_whenAborted_throws() throws IOException {
+        boolean[] aborted = new boolean[] {false};
+        RecordingOutputStream obexStream = new RecordingOutputStream();
+        OutputStream out =
+                new BluetoothMapListingOutputStream(obexStream, PACKET_SIZE, () -> aborted[0]);
+
+        out.write(new byte[] {1, 2, 3, 4});
+        aborted[0] = true;
+
+        assertThrows(IOException.class, () -> out.write(new byte[] {5, 6}));
+        assertThat(obexStream.size()).isEqualTo(0);
+    }
+}
@@ -31,6 +31,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
@@ -136,6 +137,37 @@ public class BluetoothMapMessageListingTest {
         assertThat(listing.getList().get(1).getReadBool()).isTrue();
     }
 
+    @Test
+    public void encode_withUnescapedEntitiesQuirk() throws Exception {
+        final BluetoothMapMessageListing listing = new BluetoothMapMessageListing();
+        final BluetoothMapMessageListingElement element = new BluetoothMapMessageListingElement();
+        element.setSubject("Fish & <chips>");
+        listing.add(element);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        listing.encode(out, false, TEST_VERSION,
+                BluetoothMapMessageListing.QUIRK_UNESCAPED_ENTITIES);
+
+        final String xml = out.toString("UTF-8");
+        assertThat(xml).contains("subject=\"Fish & <chips>\"");
+        assertThat(xml).doesNotContain("&amp;");
+    }
+
+    @Test
+    public void encode_withMercedesBenzQuirk() throws Exception {
+        final BluetoothMapMessageListing listing = new BluetoothMapMessageListing();
+        final BluetoothMapMessageListingElement element = new BluetoothMapMessageListingElement();
+        element.setSubject("\u00e9\u00e8");
+        listing.add(element);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        listing.encode(out, false, TEST_VERSION, BluetoothMapMessageListing.QUIRK_MERCEDES_BENZ);
+
+        final String xml = out.toString("UTF-8");
+        assertThat(xml).doesNotContain("<?xml");
+        assertThat(xml).contains("subject=\"---\"");
+    }
+
     /**
      * Decodes the encoded xml document then append the BluetoothMapMessageListingElements to the
      * given BluetoothMapMessageListing object.
@@ -25,6 +25,9 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class BmessageTest {
@@ -57,12 +60,68 @@ public class BmessageTest {
             + "BEGIN:BBODY\r\nLENGTH:-1\r\nBEGIN:MSG\r\nThis is a new msg\r\nEND:MSG\r\n"
             + "END:BBODY\r\nEND:BENV\r\nEND:BMSG\r\n";
 
+    private static final String UTF8_MESSAGE_BODY = "Caf\u00e9 \u2615";
+
+    // LENGTH counts the 6 characters of the message instead of its 9 bytes
+    private static final String CHAR_LENGTH_MESSAGE =
+            "BEGIN:BMSG\r\nVERSION:1.0\r\nSTATUS:READ\r\nTYPE:MMS\r\nFOLDER:null\r\nBEGIN:BENV\r\n"
+            + "BEGIN:VCARD\r\nVERSION:2.1\r\nN:null;;;;\r\nTEL:555-5555\r\nEND:VCARD\r\n"
+            + "BEGIN:BBODY\r\nCHARSET:UTF-8\r\nLENGTH:28\r\nBEGIN:MSG\r\n" + UTF8_MESSAGE_BODY
+            + "\r\nEND:MSG\r\nEND:BBODY\r\nEND:BENV\r\nEND:BMSG\r\n";
+
+    private static final String UTF8_MESSAGE =
+            CHAR_LENGTH_MESSAGE.replace("LENGTH:28", "LENGTH:31");
+
     @Test
     public void testNormalMessages() {
         Bmessage message = BmessageParser.createBmessage(SIMPLE_MMS_MESSAGE);
         Assert.assertNotNull(message);
     }
 
+    @Test
+    public void testParseMessageFields() {
+        Bmessage message = BmessageParser.createBmessage(SIMPLE_MMS_MESSAGE);
+
+        Assert.assertEquals(Bmessage.Status.READ, message.getStatus());
+        Assert.assertEquals(Bmessage.Type.MMS, message.getType());
+        Assert.assertEquals("null", message.getFolder());
+        Assert.assertEquals(1, message.getRecipients().size());
+        Assert.assertEquals("This is a new msg", message.getBodyContent());
+    }
+
+    @Test
+    public void testParseIncrementally() throws Exception {
+        byte[] data = SIMPLE_MMS_MESSAGE.getBytes(StandardCharsets.UTF_8);
+        BmessageParser parser = new BmessageParser();
+        for (int i = 0; i < data.length; i++) {
+            parser.parse(data, i, 1);
+        }
+        Bmessage message = parser.finish();
+
+        Assert.assertEquals(1, message.getRecipients().size());
+        Assert.assertEquals("This is a new msg", message.getBodyContent());
+    }
+
+    @Test
+    public void testParseUtf8Message() {
+        Bmessage message = BmessageParser.createBmessage(UTF8_MESSAGE);
+        Assert.assertEquals(UTF8_MESSAGE_BODY, message.getBodyContent());
+    }
+
+    @Test
+    public void testParseCharLengthMessage() {
+        Bmessage message = BmessageParser.createBmessage(CHAR_LENGTH_MESSAGE);
+        Assert.assertEquals(UTF8_MESSAGE_BODY, message.getBodyContent());
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseIncompleteMessage() throws Exception {
+        byte[] data = NO_END_MESSAGE.getBytes(StandardCharsets.UTF_8);
+        BmessageParser parser = new BmessageParser();
+        parser.parse(data, 0, data.length);
+        parser.finish();
+    }
+
     @Test
     public void testParseWrongLengthMessage() {
         Bmessage message = BmessageParser.createBmessage(WRONG_LENGTH_MESSAGE);
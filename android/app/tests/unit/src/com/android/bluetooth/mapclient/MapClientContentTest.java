@@ -18,17 +18,22 @@ package com.android.bluetooth.mapclient;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothMapClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -65,8 +70,10 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @MediumTest
@@ -88,6 +95,8 @@ public class MapClientContentTest {
     private String mTestMessage2Handle = "0002";
     private static final boolean MESSAGE_SEEN = true;
     private static final boolean MESSAGE_NOT_SEEN = false;
+    private static final int FIND_CHANGE_TIMEOUT_MS =
+            MapClientContent.FIND_CHANGE_DELAY_MS * 5;
 
 
     private VCardEntry mOriginator;
@@ -202,6 +211,53 @@ public class MapClientContentTest {
         Assert.assertEquals(0, mMockThreadContentProvider.mContentValues.size());
     }
 
+    /**
+     * Test that SMS stored during a batch are inserted together once the batch is finished, and
+     * that the thread ID of their participants is only looked up once.
+     */
+    @Test
+    public void testStoreSmsBatch() {
+        mMapClientContent = new MapClientContent(mMockContext, mCallbacks, mTestDevice);
+        mMapClientContent.startBatch();
+        mMapClientContent.storeMessage(mTestMessage1, mTestMessage1Handle, mTestMessage1Timestamp,
+                MESSAGE_SEEN);
+        mMapClientContent.storeMessage(mTestMessage1, mTestMessage2Handle, mTestMessage1Timestamp,
+                MESSAGE_SEEN);
+        Assert.assertEquals(0, mMockSmsContentProvider.mContentValues.size());
+
+        mMapClientContent.finishBatch();
+        Assert.assertEquals(2, mMockSmsContentProvider.mContentValues.size());
+        assertThat(mMockSmsContentProvider.mBatches).containsExactly(2);
+        // Both messages have the same participants, the thread is only looked up once
+        assertThat(mMockThreadContentProvider.mQueries).hasSize(1);
+
+        // Stored messages are tracked once inserted
+        mMockSmsContentProvider.mContentValues.clear();
+        mMapClientContent.mContentObserver.onChange(false);
+        verify(mCallbacks, timeout(FIND_CHANGE_TIMEOUT_MS)).onMessageStatusChanged(
+                eq(mTestMessage1Handle), eq(BluetoothMapClient.DELETED));
+        verify(mCallbacks, timeout(FIND_CHANGE_TIMEOUT_MS)).onMessageStatusChanged(
+                eq(mTestMessage2Handle), eq(BluetoothMapClient.DELETED));
+    }
+
+    /**
+     * Test that a message deleted remotely while its SMS is queued in a batch is deleted locally.
+     */
+    @Test
+    public void testDeleteSmsDuringBatch() {
+        mMapClientContent = new MapClientContent(mMockContext, mCallbacks, mTestDevice);
+        mMapClientContent.startBatch();
+        mMapClientContent.storeMessage(mTestMessage1, mTestMessage1Handle, mTestMessage1Timestamp,
+                MESSAGE_SEEN);
+
+        mMapClientContent.deleteMessage(mTestMessage1Handle);
+        assertThat(mMockSmsContentProvider.mBatches).containsExactly(1);
+        Assert.assertEquals(0, mMockSmsContentProvider.mContentValues.size());
+
+        mMapClientContent.finishBatch();
+        assertThat(mMockSmsContentProvider.mBatches).containsExactly(1);
+    }
+
     /**
      * Test inserting 2 MMS messages and then clearing out the database.
      */
@@ -278,8 +334,8 @@ public class MapClientContentTest {
             MESSAGE_SEEN);
         Assert.assertEquals(1, mMockMmsContentProvider.mContentValues.size());
         mMapClientContent.mContentObserver.onChange(false);
-        verify(mCallbacks).onMessageStatusChanged(eq(mTestMessage1Handle),
-                eq(BluetoothMapClient.READ));
+        verify(mCallbacks, timeout(FIND_CHANGE_TIMEOUT_MS)).onMessageStatusChanged(
+                eq(mTestMessage1Handle), eq(BluetoothMapClient.READ));
     }
 
     /**
@@ -389,8 +445,27 @@ public class MapClientContentTest {
         Assert.assertEquals(1, mMockSmsContentProvider.mContentValues.size());
         mMockSmsContentProvider.mContentValues.clear();
         mMapClientContent.mContentObserver.onChange(false);
-        verify(mCallbacks).onMessageStatusChanged(eq(mTestMessage1Handle),
-                eq(BluetoothMapClient.DELETED));
+        verify(mCallbacks, timeout(FIND_CHANGE_TIMEOUT_MS)).onMessageStatusChanged(
+                eq(mTestMessage1Handle), eq(BluetoothMapClient.DELETED));
+    }
+
+    /**
+     * Test that a burst of provider changes is reconciled with a single lookup of the stored
+     * messages, and that tables without stored messages are not queried
+     */
+    @Test
+    public void testLocalChangesDebounced() {
+        mMapClientContent = new MapClientContent(mMockContext, mCallbacks, mTestDevice);
+        mMapClientContent.storeMessage(mTestMessage1, mTestMessage1Handle, mTestMessage1Timestamp,
+                MESSAGE_SEEN);
+        for (int i = 0; i < 5; i++) {
+            mMapClientContent.mContentObserver.onChange(false);
+        }
+        mMockSmsContentProvider.mContentValues.clear();
+        verify(mCallbacks, timeout(FIND_CHANGE_TIMEOUT_MS)).onMessageStatusChanged(
+                eq(mTestMessage1Handle), eq(BluetoothMapClient.DELETED));
+        assertThat(mMockSmsContentProvider.mQueries).containsExactly(Sms.CONTENT_URI);
+        assertThat(mMockMmsContentProvider.mQueries).isEmpty();
     }
 
     /**
@@ -496,6 +571,9 @@ public class MapClientContentTest {
     public class FakeContentProvider extends MockContentProvider {
 
         Map<Uri, ContentValues> mContentValues = new HashMap<>();
+        // Kept as shared lists rather than counters, so that they are visible through the spies
+        List<Uri> mQueries = new ArrayList<>();
+        List<Integer> mBatches = new ArrayList<>();
         FakeContentProvider(Context context) {
             super(context);
         }
@@ -528,6 +606,7 @@ public class MapClientContentTest {
         @Override
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                 String sortOrder) {
+            mQueries.add(uri);
             Cursor cursor = Mockito.mock(Cursor.class);
 
             when(cursor.moveToFirst()).thenReturn(true);
@@ -539,6 +618,18 @@ public class MapClientContentTest {
             return cursor;
         }
 
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
+            mBatches.add(operations.size());
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                results[i] = new ContentProviderResult(insert(operation.getUri(),
+                        operation.resolveValueBackReferences(results, i)));
+            }
+            return results;
+        }
+
         @Override
         public int update(Uri uri, ContentValues values, Bundle extras) {
             return 0;
@@ -70,6 +70,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -686,6 +687,60 @@ public class MapClientStateMachineTest {
                 eq(mTestMessageMmsHandle), any(), eq(MESSAGE_NOT_SEEN));
      }
 
+     /**
+     * Test that a new SMS stored while listed messages are batched is only announced once the
+     * batch is written
+     */
+     @Test
+     public void testReceivedNewSmsDuringBatch_broadcastAfterBatchWritten() {
+        setupSdpRecordReceipt();
+        Message msg = Message.obtain(mHandler, MceStateMachine.MSG_MAS_CONNECTED);
+        mMceStateMachine.sendMessage(msg);
+
+        verify(mMockMapClientService,
+                timeout(ASYNC_CALL_TIMEOUT_MILLIS).times(2)).sendBroadcastMultiplePermissions(
+                mIntentArgument.capture(), any(String[].class),
+                any(BroadcastOptions.class));
+        assertThat(mMceStateMachine.getState()).isEqualTo(BluetoothProfile.STATE_CONNECTED);
+
+        // A listed message is still being downloaded
+        String listedHandle = "0003";
+        ArrayList<com.android.bluetooth.mapclient.Message> messageListSms = new ArrayList<>();
+        messageListSms.add(createNewMessage("SMS_GSM", listedHandle));
+        when(mMockRequestGetMessagesListing.getList()).thenReturn(messageListSms);
+        msg = Message.obtain(mHandler, MceStateMachine.MSG_MAS_REQUEST_COMPLETED,
+                mMockRequestGetMessagesListing);
+        mMceStateMachine.sendMessage(msg);
+
+        // A new message arrives in the meantime
+        String dateTime = new ObexTime(Instant.now()).toString();
+        EventReport event = createNewEventReport("NewMessage", dateTime, mTestMessageSmsHandle,
+                "telecom/msg/inbox", null, "SMS_GSM");
+        mMceStateMachine.receiveEvent(event);
+        msg = Message.obtain(mHandler, MceStateMachine.MSG_MAS_REQUEST_COMPLETED,
+                mMockRequestGetMessage);
+        mMceStateMachine.sendMessage(msg);
+
+        TestUtils.waitForLooperToBeIdle(mMceStateMachine.getHandler().getLooper());
+        verify(mMockDatabase).storeMessage(eq(mTestIncomingSmsBmessage),
+                eq(mTestMessageSmsHandle), any(), eq(MESSAGE_NOT_SEEN));
+        verify(mMockDatabase, never()).finishBatch();
+        verify(mMockMapClientService, never()).sendBroadcast(any(Intent.class), anyString());
+
+        // The listed message completes the batch
+        RequestGetMessage listedRequest = mock(RequestGetMessage.class);
+        when(listedRequest.getMessage()).thenReturn(mTestIncomingSmsBmessage);
+        when(listedRequest.getHandle()).thenReturn(listedHandle);
+        msg = Message.obtain(mHandler, MceStateMachine.MSG_MAS_REQUEST_COMPLETED, listedRequest);
+        mMceStateMachine.sendMessage(msg);
+
+        TestUtils.waitForLooperToBeIdle(mMceStateMachine.getHandler().getLooper());
+        InOrder order = inOrder(mMockDatabase, mMockMapClientService);
+        order.verify(mMockDatabase).finishBatch();
+        order.verify(mMockMapClientService, atLeast(2)).sendBroadcast(any(Intent.class),
+                anyString());
+     }
+
      /**
      * Test seen status set in database on initial download
      */
@@ -17,6 +17,7 @@
 
 package com.android.bluetooth.mcp;
 
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 import android.bluetooth.BluetoothAdapter;
@@ -25,6 +26,7 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
 import android.content.Context;
 import android.os.Looper;
 
@@ -89,6 +91,9 @@ public class MediaControlGattServiceTest {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
 
         doReturn(true).when(mMockGattServer).addService(any(BluetoothGattService.class));
+        // Like notifications of the current value, do not wait for onNotificationSent
+        doReturn(BluetoothStatusCodes.ERROR_UNKNOWN).when(mMockGattServer)
+                .notifyCharacteristicChanged(any(), any(), anyBoolean(), any());
         doReturn(new BluetoothDevice[0]).when(mAdapterService).getBondedDevices();
 
         mMcpService = new MediaControlGattService(mMockMcpService, mMockMcsCallbacks, TEST_CCID);
@@ -776,7 +781,8 @@ public class MediaControlGattServiceTest {
                 new Request(media_control_request_opcode, 0),
                 Request.Results.SUCCESS);
         verify(mMockGattServer, times(times_cnt))
-                .notifyCharacteristicChanged(eq(mCurrentDevice), eq(characteristic), eq(false));
+                .notifyCharacteristicChanged(eq(mCurrentDevice), eq(characteristic), eq(false),
+                        aryEq(characteristic.getValue()));
 
         characteristic = service.getCharacteristic(
                 MediaControlGattService.UUID_MEDIA_CONTROL_POINT_OPCODES_SUPPORTED);
@@ -797,7 +803,37 @@ public class MediaControlGattServiceTest {
         prepareConnectedDevicesCccVal(characteristic, ccc_val);
         mMcpService.setSearchRequestResult(null, SearchRequest.Results.SUCCESS, obj_id);
         verify(mMockGattServer, times(times_cnt))
-                .notifyCharacteristicChanged(eq(mCurrentDevice), eq(characteristic), eq(false));
+                .notifyCharacteristicChanged(eq(mCurrentDevice), eq(characteristic), eq(false),
+                        aryEq(characteristic.getValue()));
+    }
+
+    @Test
+    public void testControlPointResultWaitsForNotificationSent() {
+        BluetoothGattService service = initAllFeaturesGattService();
+        doReturn(BluetoothStatusCodes.SUCCESS).when(mMockGattServer)
+                .notifyCharacteristicChanged(any(), any(), anyBoolean(), any());
+
+        BluetoothGattCharacteristic characteristic =
+                service.getCharacteristic(MediaControlGattService.UUID_MEDIA_CONTROL_POINT);
+        prepareConnectedDevicesCccVal(
+                characteristic, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE.clone());
+
+        mMcpService.setMediaControlRequestResult(
+                new Request(Request.Opcodes.PLAY, 0), Request.Results.SUCCESS);
+        byte[] playResult = characteristic.getValue().clone();
+        mMcpService.setMediaControlRequestResult(
+                new Request(Request.Opcodes.PAUSE, 0), Request.Results.SUCCESS);
+        byte[] pauseResult = characteristic.getValue().clone();
+
+        // The second result is held until the first notification is sent
+        verify(mMockGattServer).notifyCharacteristicChanged(eq(mCurrentDevice),
+                eq(characteristic), eq(false), aryEq(playResult));
+        verify(mMockGattServer, never()).notifyCharacteristicChanged(eq(mCurrentDevice),
+                eq(characteristic), eq(false), aryEq(pauseResult));
+
+        mMcpService.mServerCallback.onNotificationSent(mCurrentDevice, BluetoothGatt.GATT_SUCCESS);
+        verify(mMockGattServer).notifyCharacteristicChanged(eq(mCurrentDevice),
+                eq(characteristic), eq(false), aryEq(pauseResult));
     }
 
     @Test
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.Contacts;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.vcard.VCardConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothPbapVcardCacheTest {
+    private static final int TYPE_V21 = VCardConfig.VCARD_TYPE_V21_GENERIC;
+    private static final int TYPE_V30 = VCardConfig.VCARD_TYPE_V30_GENERIC;
+    private static final String VCARD = "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Foo\r\nEND:VCARD\r\n";
+
+    @Spy
+    BluetoothMethodProxy mMethodProxy = BluetoothMethodProxy.getInstance();
+
+    private final ContentResolver mResolver = mock(ContentResolver.class);
+    private final Map<Long, Long> mVersions = new HashMap<>();
+    private BluetoothPbapVcardCache mCache;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        BluetoothMethodProxy.setInstanceForTesting(mMethodProxy);
+        doAnswer(invocation -> {
+            MatrixCursor cursor = new MatrixCursor(new String[] {
+                    Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP});
+            for (Map.Entry<Long, Long> entry : mVersions.entrySet()) {
+                cursor.addRow(new Object[] {entry.getKey(), entry.getValue()});
+            }
+            return cursor;
+        }).when(mMethodProxy).contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mCache = new BluetoothPbapVcardCache();
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothMethodProxy.setInstanceForTesting(null);
+    }
+
+    @Test
+    public void get_afterPut_returnsVcardOfSameType() {
+        mVersions.put(1L, 100L);
+
+        mCache.put(mResolver, 1, TYPE_V21, mCache.getVersion(mResolver, 1), VCARD);
+
+        assertThat(mCache.get(mResolver, 1, TYPE_V21)).isEqualTo(VCARD);
+        assertThat(mCache.get(mResolver, 1, TYPE_V30)).isNull();
+        assertThat(mCache.get(mResolver, 2, TYPE_V21)).isNull();
+        // The versions are loaded once until the contacts change
+        verify(mMethodProxy).contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void get_contactUpdated_returnsNull() {
+        mVersions.put(1L, 100L);
+        mVersions.put(2L, 100L);
+        mCache.put(mResolver, 1, TYPE_V21, mCache.getVersion(mResolver, 1), VCARD);
+        mCache.put(mResolver, 2, TYPE_V21, mCache.getVersion(mResolver, 2), VCARD);
+
+        mVersions.put(1L, 200L);
+        mCache.onContactsChanged();
+
+        assertThat(mCache.get(mResolver, 1, TYPE_V21)).isNull();
+        assertThat(mCache.get(mResolver, 2, TYPE_V21)).isEqualTo(VCARD);
+        verify(mMethodProxy, times(2))
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void get_contactDeleted_returnsNull() {
+        mVersions.put(1L, 100L);
+        mCache.put(mResolver, 1, TYPE_V21, mCache.getVersion(mResolver, 1), VCARD);
+
+        mVersions.clear();
+        mCache.onContactsChanged();
+
+        assertThat(mCache.get(mResolver, 1, TYPE_V21)).isNull();
+    }
+
+    @Test
+    public void put_unknownContact_notCached() {
+        mCache.put(mResolver, 1, TYPE_V21, mCache.getVersion(mResolver, 1), VCARD);
+
+        assertThat(mCache.get(mResolver, 1, TYPE_V21)).isNull();
+    }
+
+    @Test
+    public void put_contactChangedWhileComposing_notCached() {
+        mVersions.put(1L, 100L);
+        Long version = mCache.getVersion(mResolver, 1);
+
+        mVersions.put(1L, 200L);
+        mCache.onContactsChanged();
+        mCache.put(mResolver, 1, TYPE_V21, version, VCARD);
+
+        assertThat(mCache.get(mResolver, 1, TYPE_V21)).isNull();
+    }
+
+    @Test
+    public void put_largeVcard_notCached() {
+        mVersions.put(1L, 100L);
+        String vcard = "x".repeat(BluetoothPbapVcardCache.MAX_VCARD_CHARS + 1);
+
+        mCache.put(mResolver, 1, TYPE_V21, mCache.getVersion(mResolver, 1), vcard);
+
+        assertThat(mCache.get(mResolver, 1, TYPE_V21)).isNull();
+    }
+
+    @Test
+    public void clear_dropsVcards() {
+        mVersions.put(1L, 100L);
+        mCache.put(mResolver, 1, TYPE_V21, mCache.getVersion(mResolver, 1), VCARD);
+
+        mCache.clear();
+
+        assertThat(mCache.get(mResolver, 1, TYPE_V21)).isNull();
+    }
+}
@@ -22,6 +22,7 @@ import static com.google.common.truth.Truth.assertWithMessage;
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.bluetooth.ObexAppParameters;
 import com.android.obex.HeaderSet;
 
 import org.junit.Before;
@@ -49,4 +50,37 @@ public class BluetoothPbapRequestPullPhoneBookSizeTest {
             assertWithMessage("Exception should not happen.").fail();
         }
     }
+
+    @Test
+    public void readResponseHeaders_withFolderVersion() {
+        byte[] databaseId = new byte[] {0x01, 0x02};
+        byte[] primary = new byte[] {0x03};
+        byte[] secondary = new byte[] {0x04};
+        ObexAppParameters oap = new ObexAppParameters();
+        oap.add(BluetoothPbapRequest.OAP_TAGID_PHONEBOOK_SIZE, (short) 12);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_DATABASE_IDENTIFIER, databaseId);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_PRIMARY_VERSION_COUNTER, primary);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_SECONDARY_VERSION_COUNTER, secondary);
+        HeaderSet headerSet = new HeaderSet();
+        oap.addToHeaderSet(headerSet);
+
+        mRequest.readResponseHeaders(headerSet);
+
+        assertThat(mRequest.getSize()).isEqualTo(12);
+        assertThat(mRequest.getFolderVersion()).isNotNull();
+        assertThat(mRequest.getFolderVersion().isSameContent(
+                new PbapPhonebookCache.FolderVersion(databaseId, primary, secondary))).isTrue();
+    }
+
+    @Test
+    public void readResponseHeaders_withoutFolderVersion() {
+        ObexAppParameters oap = new ObexAppParameters();
+        oap.add(BluetoothPbapRequest.OAP_TAGID_PHONEBOOK_SIZE, (short) 12);
+        HeaderSet headerSet = new HeaderSet();
+        oap.addToHeaderSet(headerSet);
+
+        mRequest.readResponseHeaders(headerSet);
+
+        assertThat(mRequest.getFolderVersion()).isNull();
+    }
 }
@@ -32,8 +32,11 @@ import com.android.obex.HeaderSet;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
 @SmallTest
 @RunWith(AndroidJUnit4.class)
@@ -81,6 +84,26 @@ public class BluetoothPbapRequestPullPhoneBookTest {
         assertThrows(IOException.class, () -> request.readResponse(is));
     }
 
+    @Test
+    public void readResponse_withRawResponseSink_copiesWholeResponse() throws Exception {
+        final long filter = 0;
+        final byte format = PbapClientConnectionHandler.VCARD_TYPE_30;
+        final int maxListCount = 2;
+        final int listStartOffset = 0;
+        BluetoothPbapRequestPullPhoneBook request = new BluetoothPbapRequestPullPhoneBook(
+                PB_NAME, ACCOUNT, filter, format, maxListCount, listStartOffset);
+        String vcards = "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Foo\r\nEND:VCARD\r\n"
+                + "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Bar\r\nEND:VCARD\r\n";
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+        request.setRawResponseSink(sink);
+        request.readResponse(
+                new ByteArrayInputStream(vcards.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(request.getList()).hasSize(2);
+        assertThat(sink.toString(StandardCharsets.UTF_8.name())).isEqualTo(vcards);
+    }
+
     @Test
     public void readResponseHeaders() {
         final long filter = 1;
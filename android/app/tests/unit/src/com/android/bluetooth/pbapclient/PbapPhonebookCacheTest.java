@@ -0,0 +1,122 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PbapPhonebookCacheTest {
+    private static final String PATH = PbapClientConnectionHandler.PB_PATH;
+    private static final byte[] DATABASE_ID = new byte[] {0x01, 0x02};
+    private static final String VCARDS = "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:Foo\r\nEND:VCARD\r\n";
+
+    private File mDirectory;
+    private PbapPhonebookCache mCache;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getCacheDir(), "PbapPhonebookCacheTest");
+        mCache = new PbapPhonebookCache(mDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.clear();
+    }
+
+    @Test
+    public void isUpToDate_emptyCache() {
+        assertThat(mCache.isUpToDate(PATH, version(DATABASE_ID, 1, 1))).isFalse();
+        assertThat(mCache.isUpToDate(PATH, null)).isFalse();
+    }
+
+    @Test
+    public void commitUpdate_thenRestore() throws IOException {
+        store(version(DATABASE_ID, 1, 1));
+
+        assertThat(mCache.isUpToDate(PATH, version(DATABASE_ID, 1, 1))).isTrue();
+        // Only the primary counter matters
+        assertThat(mCache.isUpToDate(PATH, version(DATABASE_ID, 1, 2))).isTrue();
+        assertThat(mCache.isUpToDate(PbapClientConnectionHandler.FAV_PATH,
+                version(DATABASE_ID, 1, 1))).isFalse();
+        try (InputStream in = mCache.openVcards(PATH)) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(VCARDS);
+        }
+    }
+
+    @Test
+    public void isUpToDate_folderChanged() throws IOException {
+        store(version(DATABASE_ID, 1, 1));
+
+        assertThat(mCache.isUpToDate(PATH, version(DATABASE_ID, 2, 1))).isFalse();
+        assertThat(mCache.isUpToDate(PATH, version(new byte[] {0x03}, 1, 1))).isFalse();
+    }
+
+    @Test
+    public void abortUpdate_keepsPreviousFolder() throws IOException {
+        store(version(DATABASE_ID, 1, 1));
+
+        try (OutputStream out = mCache.beginUpdate(PATH)) {
+            out.write(0x42);
+        }
+        mCache.abortUpdate(PATH);
+
+        assertThat(mCache.isUpToDate(PATH, version(DATABASE_ID, 1, 1))).isTrue();
+        try (InputStream in = mCache.openVcards(PATH)) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(VCARDS);
+        }
+    }
+
+    @Test
+    public void invalidate() throws IOException {
+        store(version(DATABASE_ID, 1, 1));
+
+        mCache.invalidate(PATH);
+
+        assertThat(mCache.isUpToDate(PATH, version(DATABASE_ID, 1, 1))).isFalse();
+    }
+
+    private void store(PbapPhonebookCache.FolderVersion version) throws IOException {
+        try (OutputStream out = mCache.beginUpdate(PATH)) {
+            out.write(VCARDS.getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(mCache.commitUpdate(PATH, version)).isTrue();
+    }
+
+    private static PbapPhonebookCache.FolderVersion version(byte[] databaseId, int primary,
+            int secondary) {
+        return new PbapPhonebookCache.FolderVersion(databaseId, new byte[] {(byte) primary},
+                new byte[] {(byte) secondary});
+    }
+}
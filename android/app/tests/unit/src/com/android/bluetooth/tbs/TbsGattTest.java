@@ -130,10 +130,18 @@ public class TbsGattTest {
     public void tearDown() throws Exception {
         mFirstDevice = null;
         mSecondDevice = null;
+        mTbsGatt.cleanup();
         mTbsGatt = null;
         TestUtils.clearAdapterService(mAdapterService);
     }
 
+    private void resetGattServerMock() {
+        // Let the notification scheduler move on as the stack would
+        mTbsGatt.mGattServerCallback.onNotificationSent(mFirstDevice, BluetoothGatt.GATT_SUCCESS);
+        mTbsGatt.mGattServerCallback.onNotificationSent(mSecondDevice, BluetoothGatt.GATT_SUCCESS);
+        reset(mMockGattServer);
+    }
+
     private void prepareDefaultService() {
         mCurrentCcid = 122;
         mCurrentUci = "un" + mCurrentCcid.toString();
@@ -168,7 +176,7 @@ public class TbsGattTest {
                         : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
         verify(mMockGattServer).sendResponse(eq(device), eq(1),
                 eq(BluetoothGatt.GATT_SUCCESS), eq(0), any());
-        reset(mMockGattServer);
+        resetGattServerMock();
     }
 
     private void verifySetValue(BluetoothGattCharacteristic characteristic, Object value,
@@ -296,7 +304,7 @@ public class TbsGattTest {
         }
 
         if (clearGattMock) {
-            reset(mMockGattServer);
+            resetGattServerMock();
         }
     }
 
@@ -477,8 +485,8 @@ public class TbsGattTest {
                 new byte[] {(byte) (requestedOpcode & 0xff), (byte) (callIndex & 0xff),
                         (byte) (result & 0xff)}));
         verify(mMockGattServer, after(2000)).notifyCharacteristicChanged(eq(mFirstDevice),
-                eq(characteristic), eq(false));
-        reset(mMockGattServer);
+                eq(characteristic), eq(false), aryEq(characteristic.getValue()));
+        resetGattServerMock();
 
         callIndex = 0x02;
 
@@ -489,7 +497,7 @@ public class TbsGattTest {
                 new byte[] {(byte) (requestedOpcode & 0xff), (byte) (callIndex & 0xff),
                         (byte) (result & 0xff)}));
         verify(mMockGattServer, after(2000).times(0)).notifyCharacteristicChanged(any(), any(),
-                anyBoolean());
+                anyBoolean(), any());
     }
 
     @Test
@@ -597,7 +605,7 @@ public class TbsGattTest {
         verify(mMockGattServer, times(1)).notifyCharacteristicChanged(eq(mFirstDevice),
                                 eq(characteristic), eq(false), eq(valueBytes));
 
-        reset(mMockGattServer);
+        resetGattServerMock();
         mTbsGatt.setInbandRingtoneFlag(mSecondDevice);
         mTbsGatt.setInbandRingtoneFlag(mSecondDevice);
 
@@ -623,13 +631,13 @@ public class TbsGattTest {
         verify(mMockGattServer, times(1)).notifyCharacteristicChanged(eq(mFirstDevice),
                                 eq(characteristic), eq(false), eq(valueBytes));
 
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         mTbsGatt.setInbandRingtoneFlag(mSecondDevice);
         verify(mMockGattServer, times(1)).notifyCharacteristicChanged(eq(mSecondDevice),
                                 eq(characteristic), eq(false), eq(valueBytes));
 
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         // clear flag
         statusFlagValue = 0;
@@ -641,7 +649,7 @@ public class TbsGattTest {
         verify(mMockGattServer, times(1)).notifyCharacteristicChanged(eq(mFirstDevice),
                                 eq(characteristic), eq(false), eq(valueBytes));
 
-        reset(mMockGattServer);
+        resetGattServerMock();
         mTbsGatt.clearInbandRingtoneFlag(mSecondDevice);
         mTbsGatt.clearInbandRingtoneFlag(mSecondDevice);
         verify(mMockGattServer, times(1)).notifyCharacteristicChanged(eq(mSecondDevice),
@@ -668,7 +676,7 @@ public class TbsGattTest {
         verify(mMockGattServer, times(2)).notifyCharacteristicChanged(any(),
                                 eq(characteristic), eq(false), eq(valueBytes));
 
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         statusFlagValue = TbsGatt.STATUS_FLAG_INBAND_RINGTONE_ENABLED
                                         | TbsGatt.STATUS_FLAG_SILENT_MODE_ENABLED;
@@ -680,12 +688,12 @@ public class TbsGattTest {
         verify(mMockGattServer, times(1)).notifyCharacteristicChanged(eq(mFirstDevice),
                                 eq(characteristic), eq(false), eq(valueBytes));
 
-        reset(mMockGattServer);
+        resetGattServerMock();
         mTbsGatt.setInbandRingtoneFlag(mSecondDevice);
 
         verify(mMockGattServer, times(1)).notifyCharacteristicChanged(eq(mSecondDevice),
                                 eq(characteristic), eq(false), eq(valueBytes));
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         statusFlagValue = TbsGatt.STATUS_FLAG_INBAND_RINGTONE_ENABLED;
         valueBytes[0] = (byte) (statusFlagValue & 0xFF);
@@ -725,7 +733,7 @@ public class TbsGattTest {
         verify(mMockGattServer).sendResponse(eq(mFirstDevice), eq(1),
                 eq(BluetoothGatt.GATT_SUCCESS), eq(0),
                 eq(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         // Check with notifications enabled
         configureNotifications(mFirstDevice, characteristic, true);
@@ -733,7 +741,7 @@ public class TbsGattTest {
         verify(mMockGattServer).sendResponse(eq(mFirstDevice), eq(1),
                 eq(BluetoothGatt.GATT_SUCCESS), eq(0),
                 eq(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         // Check with notifications disabled
         configureNotifications(mFirstDevice, characteristic, false);
@@ -762,7 +770,7 @@ public class TbsGattTest {
         verify(mMockGattServer).sendResponse(eq(mSecondDevice), eq(1),
                 eq(BluetoothGatt.GATT_SUCCESS), eq(0),
                 eq(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         // Check with notifications enabled for first device
         configureNotifications(mFirstDevice, characteristic, true);
@@ -771,7 +779,7 @@ public class TbsGattTest {
         verify(mMockGattServer).sendResponse(eq(mFirstDevice), eq(1),
                 eq(BluetoothGatt.GATT_SUCCESS), eq(0),
                 eq(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         // Check if second device is still not subscribed for notifications and will not get it
         verifySetValue(characteristic, 5, false, mSecondDevice, false);
@@ -781,7 +789,7 @@ public class TbsGattTest {
         verify(mMockGattServer).sendResponse(eq(mSecondDevice), eq(1),
                 eq(BluetoothGatt.GATT_SUCCESS), eq(0),
                 eq(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         // Check with notifications enabled for first and second device
         configureNotifications(mSecondDevice, characteristic, true);
@@ -792,7 +800,7 @@ public class TbsGattTest {
         verify(mMockGattServer).sendResponse(eq(mSecondDevice), eq(1),
                 eq(BluetoothGatt.GATT_SUCCESS), eq(0),
                 eq(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         // Disable notification for first device, check if second will get notification
         configureNotifications(mFirstDevice, characteristic, false);
@@ -803,7 +811,7 @@ public class TbsGattTest {
         verify(mMockGattServer).sendResponse(eq(mFirstDevice), eq(1),
                 eq(BluetoothGatt.GATT_SUCCESS), eq(0),
                 eq(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
-        reset(mMockGattServer);
+        resetGattServerMock();
 
         // Check with notifications disabled of both device
         configureNotifications(mSecondDevice, characteristic, false);
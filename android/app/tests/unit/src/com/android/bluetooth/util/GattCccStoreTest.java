@@ -0,0 +1,146 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.HandlerThread;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.TestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class GattCccStoreTest {
+    private static final int METADATA_KEY = BluetoothDevice.METADATA_GMCS_CCCD;
+    private static final UUID UUID_FIRST = UUID.fromString("00002b93-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_SECOND =
+            UUID.fromString("00002b97-0000-1000-8000-00805f9b34fb");
+
+    private HandlerThread mThread;
+    private GattCccStore mStore;
+    private BluetoothDevice mFirstDevice;
+    private BluetoothDevice mSecondDevice;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("GattCccStoreTest");
+        mThread.start();
+        mStore = new GattCccStore(METADATA_KEY, mThread.getLooper());
+
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mFirstDevice = TestUtils.getTestDevice(adapter, 0);
+        mSecondDevice = TestUtils.getTestDevice(adapter, 1);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void getCcc_defaultsToDisabled() {
+        assertThat(mStore.getCcc(mFirstDevice, UUID_FIRST))
+                .isEqualTo(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        assertThat(mStore.isNotificationEnabled(mFirstDevice, UUID_FIRST)).isFalse();
+        assertThat(mStore.hasDevice(mFirstDevice)).isFalse();
+    }
+
+    @Test
+    public void setCcc_isPerDeviceAndPerCharacteristic() {
+        mStore.setCcc(mFirstDevice, UUID_FIRST,
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, false);
+        mStore.setCcc(mSecondDevice, UUID_SECOND,
+                BluetoothGattDescriptor.ENABLE_INDICATION_VALUE, false);
+
+        assertThat(mStore.getCcc(mFirstDevice, UUID_FIRST))
+                .isEqualTo(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        assertThat(mStore.isNotificationEnabled(mFirstDevice, UUID_FIRST)).isTrue();
+        assertThat(mStore.isNotificationEnabled(mFirstDevice, UUID_SECOND)).isFalse();
+        assertThat(mStore.getCcc(mSecondDevice, UUID_SECOND))
+                .isEqualTo(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        assertThat(mStore.isNotificationEnabled(mSecondDevice, UUID_SECOND)).isFalse();
+        assertThat(mStore.getDevices()).containsExactly(mFirstDevice, mSecondDevice);
+    }
+
+    @Test
+    public void setCcc_disable() {
+        mStore.setCcc(mFirstDevice, UUID_FIRST,
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, false);
+        mStore.setCcc(mFirstDevice, UUID_FIRST,
+                BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, false);
+
+        assertThat(mStore.isNotificationEnabled(mFirstDevice, UUID_FIRST)).isFalse();
+        assertThat(mStore.getCccValues(mFirstDevice)).isEmpty();
+        assertThat(mStore.hasDevice(mFirstDevice)).isTrue();
+    }
+
+    @Test
+    public void getCccValues() {
+        mStore.setCcc(mFirstDevice, UUID_FIRST,
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, false);
+        mStore.setCcc(mFirstDevice, UUID_SECOND,
+                BluetoothGattDescriptor.ENABLE_INDICATION_VALUE, false);
+
+        assertThat(mStore.getCccValues(mFirstDevice))
+                .containsExactly(UUID_FIRST, (short) 1, UUID_SECOND, (short) 2);
+    }
+
+    @Test
+    public void setCcc_invalidValueIgnored() {
+        mStore.setCcc(mFirstDevice, UUID_FIRST, new byte[] {0x01}, false);
+
+        assertThat(mStore.hasDevice(mFirstDevice)).isFalse();
+    }
+
+    @Test
+    public void removeDevice() {
+        mStore.setCcc(mFirstDevice, UUID_FIRST,
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, false);
+        mStore.removeDevice(mFirstDevice);
+
+        assertThat(mStore.hasDevice(mFirstDevice)).isFalse();
+        assertThat(mStore.isNotificationEnabled(mFirstDevice, UUID_FIRST)).isFalse();
+    }
+
+    @Test
+    public void cleanup_quitsPersistThreadWithLastStore() {
+        GattCccStore first = new GattCccStore(METADATA_KEY);
+        GattCccStore second = new GattCccStore(METADATA_KEY);
+        HandlerThread thread = GattCccStore.getPersistThreadForTesting();
+        assertThat(thread).isNotNull();
+
+        first.cleanup();
+        first.cleanup();
+        assertThat(GattCccStore.getPersistThreadForTesting()).isSameInstanceAs(thread);
+
+        second.cleanup();
+        assertThat(GattCccStore.getPersistThreadForTesting()).isNull();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.HandlerThread;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.TestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.UUID;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class GattNotificationSchedulerTest {
+    private static final UUID UUID_STATE = UUID.fromString("00002ba3-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CONTROL =
+            UUID.fromString("00002ba4-0000-1000-8000-00805f9b34fb");
+
+    @Mock private GattNotificationScheduler.Sender mSender;
+
+    private HandlerThread mThread;
+    private GattNotificationScheduler mScheduler;
+    private BluetoothDevice mFirstDevice;
+    private BluetoothDevice mSecondDevice;
+    private BluetoothGattCharacteristic mState;
+    private BluetoothGattCharacteristic mControl;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mThread = new HandlerThread("GattNotificationSchedulerTest");
+        mThread.start();
+        mScheduler = new GattNotificationScheduler(mThread.getLooper(), mSender);
+        mScheduler.setCoalescing(UUID_CONTROL, false);
+
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mFirstDevice = TestUtils.getTestDevice(adapter, 0);
+        mSecondDevice = TestUtils.getTestDevice(adapter, 1);
+        mState = new BluetoothGattCharacteristic(UUID_STATE,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        mControl = new BluetoothGattCharacteristic(UUID_CONTROL,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+
+        doReturn(true).when(mSender).sendNotification(any(), any(), any());
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.clear();
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void schedule_sendsImmediatelyWhenIdle() {
+        mScheduler.schedule(mFirstDevice, mState, null);
+        mScheduler.schedule(mSecondDevice, mState, null);
+
+        verify(mSender).sendNotification(eq(mFirstDevice), eq(mState), isNull());
+        verify(mSender).sendNotification(eq(mSecondDevice), eq(mState), isNull());
+    }
+
+    @Test
+    public void schedule_waitsForNotificationSentAndCoalesces() {
+        byte[] first = new byte[] {0x01};
+        byte[] second = new byte[] {0x02};
+        byte[] third = new byte[] {0x03};
+
+        mScheduler.schedule(mFirstDevice, mState, first);
+        mScheduler.schedule(mFirstDevice, mState, second);
+        mScheduler.schedule(mFirstDevice, mState, third);
+        verify(mSender).sendNotification(mFirstDevice, mState, first);
+        verify(mSender, never()).sendNotification(mFirstDevice, mState, second);
+
+        mScheduler.onNotificationSent(mFirstDevice, BluetoothGatt.GATT_SUCCESS);
+        verify(mSender, never()).sendNotification(mFirstDevice, mState, second);
+        verify(mSender).sendNotification(mFirstDevice, mState, third);
+    }
+
+    @Test
+    public void schedule_doesNotCoalesceControlPoint() {
+        byte[] first = new byte[] {0x01};
+        byte[] second = new byte[] {0x02};
+        byte[] third = new byte[] {0x03};
+
+        mScheduler.schedule(mFirstDevice, mControl, first);
+        mScheduler.schedule(mFirstDevice, mControl, second);
+        mScheduler.schedule(mFirstDevice, mControl, third);
+
+        mScheduler.onNotificationSent(mFirstDevice, BluetoothGatt.GATT_SUCCESS);
+        mScheduler.onNotificationSent(mFirstDevice, BluetoothGatt.GATT_SUCCESS);
+        verify(mSender).sendNotification(mFirstDevice, mControl, first);
+        verify(mSender).sendNotification(mFirstDevice, mControl, second);
+        verify(mSender).sendNotification(mFirstDevice, mControl, third);
+    }
+
+    @Test
+    public void schedule_keepsControlPointValueOfEachResult() {
+        byte[] first = new byte[] {0x01};
+        byte[] second = new byte[] {0x02};
+        byte[] third = new byte[] {0x03};
+
+        mControl.setValue(first);
+        mScheduler.schedule(mFirstDevice, mControl, null);
+        mControl.setValue(second);
+        mScheduler.schedule(mFirstDevice, mControl, null);
+        mControl.setValue(third);
+        mScheduler.schedule(mFirstDevice, mControl, null);
+
+        mScheduler.onNotificationSent(mFirstDevice, BluetoothGatt.GATT_SUCCESS);
+        mScheduler.onNotificationSent(mFirstDevice, BluetoothGatt.GATT_SUCCESS);
+        verify(mSender).sendNotification(eq(mFirstDevice), eq(mControl), aryEq(first));
+        verify(mSender).sendNotification(eq(mFirstDevice), eq(mControl), aryEq(second));
+        verify(mSender).sendNotification(eq(mFirstDevice), eq(mControl), aryEq(third));
+    }
+
+    @Test
+    public void schedule_failedNotificationDoesNotBlockQueue() {
+        doReturn(false).when(mSender).sendNotification(any(), any(), any());
+
+        mScheduler.schedule(mFirstDevice, mState, null);
+        mScheduler.schedule(mFirstDevice, mControl, null);
+
+        verify(mSender).sendNotification(eq(mFirstDevice), eq(mState), isNull());
+        verify(mSender).sendNotification(eq(mFirstDevice), eq(mControl), isNull());
+    }
+
+    @Test
+    public void schedule_respectsMinInterval() {
+        mScheduler.setMinInterval(UUID_STATE, 200);
+
+        mScheduler.schedule(mFirstDevice, mState, null);
+        mScheduler.onNotificationSent(mFirstDevice, BluetoothGatt.GATT_SUCCESS);
+        mScheduler.schedule(mFirstDevice, mState, null);
+
+        verify(mSender, times(1)).sendNotification(eq(mFirstDevice), eq(mState), isNull());
+        verify(mSender, timeout(1000).times(2))
+                .sendNotification(eq(mFirstDevice), eq(mState), isNull());
+    }
+
+    @Test
+    public void removeDevice_dropsPendingNotifications() {
+        mScheduler.schedule(mFirstDevice, mState, null);
+        mScheduler.schedule(mFirstDevice, mControl, null);
+        mScheduler.removeDevice(mFirstDevice);
+        mScheduler.onNotificationSent(mFirstDevice, BluetoothGatt.GATT_SUCCESS);
+
+        verify(mSender, never()).sendNotification(eq(mFirstDevice), eq(mControl), any());
+    }
+}
@@ -812,6 +812,33 @@ public class VolumeControlServiceTest {
         verify(mNativeInterface, times(1)).setVolume(eq(mDeviceTwo), eq(groupVolume));
     }
 
+    /**
+     * Test that the group view only returns the state machines of the group members.
+     */
+    @Test
+    public void testGetGroupStateMachines() throws Exception {
+        int groupId = 1;
+        when(mCsipService.getGroupDevicesOrdered(groupId))
+                .thenReturn(List.of(mDeviceTwo, mDevice));
+
+        // Update the device policy so okToConnect() returns true
+        when(mAdapterService.getDatabase()).thenReturn(mDatabaseManager);
+        when(mDatabaseManager
+                .getProfileConnectionPolicy(any(BluetoothDevice.class),
+                        eq(BluetoothProfile.VOLUME_CONTROL)))
+                .thenReturn(BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        doReturn(true).when(mNativeInterface).connectVolumeControl(any(BluetoothDevice.class));
+        doReturn(true).when(mNativeInterface).disconnectVolumeControl(any(BluetoothDevice.class));
+
+        generateConnectionMessageFromNative(mDevice, BluetoothProfile.STATE_CONNECTED,
+                BluetoothProfile.STATE_DISCONNECTED);
+
+        List<VolumeControlStateMachine> stateMachines = mService.getGroupStateMachines(groupId);
+        Assert.assertEquals(1, stateMachines.size());
+        Assert.assertEquals(mDevice, stateMachines.get(0).getDevice());
+        Assert.assertTrue(mService.getGroupStateMachines(groupId + 1).isEmpty());
+    }
+
     /**
      * Test setting volume for a new group member who is discovered after the volume level
      * for a group was already changed and cached.
@@ -39,6 +39,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.bluetooth.TestUtils;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileBroadcastDispatcher;
 
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.After;
@@ -81,6 +82,9 @@ public class VolumeControlStateMachineTest {
         // Set up thread and looper
         mHandlerThread = new HandlerThread("VolumeControlStateMachineTestHandlerThread");
         mHandlerThread.start();
+        // Send the broadcasts from the state machine thread, in order with its messages
+        ProfileBroadcastDispatcher.setInstanceForTesting(
+                new ProfileBroadcastDispatcher(mHandlerThread.getLooper()));
         mVolumeControlStateMachine = new VolumeControlStateMachine(mTestDevice,
                 mVolumeControlService, mVolumeControlNativeInterface, mHandlerThread.getLooper());
         // Override the timeout value to speed up the test
@@ -91,6 +95,7 @@ public class VolumeControlStateMachineTest {
     @After
     public void tearDown() throws Exception {
         mHandlerThread.quit();
+        ProfileBroadcastDispatcher.setInstanceForTesting(null);
         TestUtils.clearAdapterService(mAdapterService);
     }
 
@@ -2186,6 +2186,41 @@ public final class BluetoothAdapter {
         return false;
     }
 
+    /**
+     * Start the remote device discovery process, with the devices found delivered in batches.
+     * <p>Works as {@link #startDiscovery()}, except that the devices found are delivered to the
+     * calling app by {@link BluetoothDevice#ACTION_FOUND_BATCH} intents, each one with the devices
+     * found during a short period of time, instead of an {@link BluetoothDevice#ACTION_FOUND}
+     * intent per device.
+     *
+     * @return true on success, false on error
+     * @hide
+     */
+    @SystemApi
+    @RequiresBluetoothScanPermission
+    @RequiresPermission(allOf = {
+            android.Manifest.permission.BLUETOOTH_SCAN,
+            android.Manifest.permission.BLUETOOTH_PRIVILEGED,
+    })
+    public boolean startBatchedDiscovery() {
+        if (getState() != STATE_ON) {
+            return false;
+        }
+        mServiceLock.readLock().lock();
+        try {
+            if (mService != null) {
+                final SynchronousResultReceiver<Boolean> recv = SynchronousResultReceiver.get();
+                mService.startBatchedDiscovery(mAttributionSource, recv);
+                return recv.awaitResultNoInterrupt(getSyncTimeout()).getValue(false);
+            }
+        } catch (RemoteException | TimeoutException e) {
+            Log.e(TAG, e.toString() + "\n" + Log.getStackTraceString(new Throwable()));
+        } finally {
+            mServiceLock.readLock().unlock();
+        }
+        return false;
+    }
+
     /**
      * Cancel the current device discovery process.
      * <p>Because discovery is a heavyweight procedure for the Bluetooth
@@ -166,6 +166,38 @@ public final class BluetoothDevice implements Parcelable, Attributable {
     public static final String ACTION_FOUND =
             "android.bluetooth.device.action.FOUND";
 
+    /**
+     * Broadcast Action: Remote devices discovered.
+     * <p>Sent instead of {@link #ACTION_FOUND} to an app that started the discovery with
+     * {@link BluetoothAdapter#startBatchedDiscovery()}, with the devices found during a short
+     * period of time.
+     * <p>Always contains the extra field {@link #EXTRA_FOUND_DEVICES}.
+     *
+     * @hide
+     */
+    @SystemApi
+    @RequiresBluetoothScanPermission
+    @RequiresPermission(allOf = {
+            android.Manifest.permission.BLUETOOTH_SCAN,
+            android.Manifest.permission.BLUETOOTH_PRIVILEGED,
+    })
+    @SdkConstant(SdkConstantType.BROADCAST_INTENT_ACTION)
+    @SuppressLint("ActionValue")
+    public static final String ACTION_FOUND_BATCH =
+            "android.bluetooth.device.action.FOUND_BATCH";
+
+    /**
+     * Used as an {@link java.util.ArrayList} of {@link android.os.Bundle} extra field in
+     * {@link #ACTION_FOUND_BATCH} intents. Each bundle holds the extra fields of the
+     * {@link #ACTION_FOUND} intent of one device.
+     *
+     * @hide
+     */
+    @SystemApi
+    @SuppressLint("ActionValue")
+    public static final String EXTRA_FOUND_DEVICES =
+            "android.bluetooth.device.extra.FOUND_DEVICES";
+
     /**
      * Broadcast Action: Indicates the Bluetooth current AFH map
      * <p>Always contains the extra fields {@link #EXTRA_AFH_MAP},
@@ -131,6 +131,8 @@ public final class BluetoothGatt implements BluetoothProfile {
     private static final int WRITE_CHARACTERISTIC_TIME_TO_WAIT = 10; // milliseconds
 
     private List<BluetoothGattService> mServices;
+    private volatile BluetoothGattAttributeIndex mAttributeIndex =
+            BluetoothGattAttributeIndex.EMPTY;
 
     /** A GATT operation completed successfully */
     public static final int GATT_SUCCESS = 0;
@@ -415,6 +417,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     mServices.addAll(services);
+                    updateAttributeIndex();
 
                     // Fix references to included services, as they doesn't point to right objects.
                     for (BluetoothGattService fixedService : mServices) {
@@ -915,12 +918,9 @@ public final class BluetoothGatt implements BluetoothProfile {
      */
     /*package*/ BluetoothGattService getService(BluetoothDevice device, UUID uuid,
             int instanceId) {
-        for (BluetoothGattService svc : mServices) {
-            if (svc.getDevice().equals(device)
-                    && svc.getInstanceId() == instanceId
-                    && svc.getUuid().equals(uuid)) {
-                return svc;
-            }
+        BluetoothGattService svc = mAttributeIndex.getService(instanceId);
+        if (svc != null && svc.getDevice().equals(device) && svc.getUuid().equals(uuid)) {
+            return svc;
         }
         return null;
     }
@@ -933,14 +933,7 @@ public final class BluetoothGatt implements BluetoothProfile {
      */
     /*package*/ BluetoothGattCharacteristic getCharacteristicById(BluetoothDevice device,
             int instanceId) {
-        for (BluetoothGattService svc : mServices) {
-            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
-                if (charac.getInstanceId() == instanceId) {
-                    return charac;
-                }
-            }
-        }
-        return null;
+        return mAttributeIndex.getCharacteristic(instanceId);
     }
 
     /**
@@ -949,16 +942,11 @@ public final class BluetoothGatt implements BluetoothProfile {
      * @hide
      */
     /*package*/ BluetoothGattDescriptor getDescriptorById(BluetoothDevice device, int instanceId) {
-        for (BluetoothGattService svc : mServices) {
-            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
-                for (BluetoothGattDescriptor desc : charac.getDescriptors()) {
-                    if (desc.getInstanceId() == instanceId) {
-                        return desc;
-                    }
-                }
-            }
-        }
-        return null;
+        return mAttributeIndex.getDescriptor(instanceId);
+    }
+
+    private void updateAttributeIndex() {
+        mAttributeIndex = BluetoothGattAttributeIndex.of(mServices);
     }
 
     /**
@@ -1266,6 +1254,7 @@ public final class BluetoothGatt implements BluetoothProfile {
         if (mService == null || mClientIf == 0) return false;
 
         mServices.clear();
+        updateAttributeIndex();
 
         try {
             final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
@@ -1295,6 +1284,7 @@ public final class BluetoothGatt implements BluetoothProfile {
         if (mService == null || mClientIf == 0) return false;
 
         mServices.clear();
+        updateAttributeIndex();
 
         try {
             final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
@@ -1349,12 +1339,10 @@ public final class BluetoothGatt implements BluetoothProfile {
     @RequiresLegacyBluetoothPermission
     @RequiresNoPermission
     public BluetoothGattService getService(UUID uuid) {
-        for (BluetoothGattService service : mServices) {
-            if (service.getDevice().equals(mDevice) && service.getUuid().equals(uuid)) {
-                return service;
-            }
+        BluetoothGattService service = mAttributeIndex.getService(uuid);
+        if (service != null && service.getDevice().equals(mDevice)) {
+            return service;
         }
-
         return null;
     }
 
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Immutable index of the services, characteristics and descriptors of a GATT database.
+ *
+ * <p>Attributes are indexed by handle in a dense array starting at the lowest handle, as the
+ * handles of a database are allocated contiguously. Services are also indexed by UUID. When
+ * several attributes of a kind share a handle or a service UUID, the first one in the database
+ * order is returned, as a scan of the services would.
+ *
+ * @hide
+ */
+final class BluetoothGattAttributeIndex {
+    static final BluetoothGattAttributeIndex EMPTY =
+            new BluetoothGattAttributeIndex(0, new Object[0], new HashMap<>());
+
+    private final int mBaseHandle;
+    private final Object[] mAttributes;
+    private final Map<UUID, BluetoothGattService> mServicesByUuid;
+
+    private BluetoothGattAttributeIndex(int baseHandle, Object[] attributes,
+            Map<UUID, BluetoothGattService> servicesByUuid) {
+        mBaseHandle = baseHandle;
+        mAttributes = attributes;
+        mServicesByUuid = servicesByUuid;
+    }
+
+    /** Returns the service with the given handle */
+    BluetoothGattService getService(int handle) {
+        Object attribute = get(handle);
+        return attribute instanceof BluetoothGattService ? (BluetoothGattService) attribute : null;
+    }
+
+    /** Returns the first service with the given UUID */
+    BluetoothGattService getService(UUID uuid) {
+        return mServicesByUuid.get(uuid);
+    }
+
+    /** Returns the characteristic with the given handle */
+    BluetoothGattCharacteristic getCharacteristic(int handle) {
+        Object attribute = get(handle);
+        return attribute instanceof BluetoothGattCharacteristic
+                ? (BluetoothGattCharacteristic) attribute : null;
+    }
+
+    /** Returns the descriptor with the given handle */
+    BluetoothGattDescriptor getDescriptor(int handle) {
+        Object attribute = get(handle);
+        return attribute instanceof BluetoothGattDescriptor
+                ? (BluetoothGattDescriptor) attribute : null;
+    }
+
+    private Object get(int handle) {
+        int i = handle - mBaseHandle;
+        return i >= 0 && i < mAttributes.length ? mAttributes[i] : null;
+    }
+
+    /** Indexes the given services and their characteristics and descriptors */
+    static BluetoothGattAttributeIndex of(List<BluetoothGattService> services) {
+        if (services.isEmpty()) {
+            return EMPTY;
+        }
+        int minHandle = Integer.MAX_VALUE;
+        int maxHandle = Integer.MIN_VALUE;
+        Map<UUID, BluetoothGattService> servicesByUuid = new HashMap<>();
+        for (BluetoothGattService svc : services) {
+            servicesByUuid.putIfAbsent(svc.getUuid(), svc);
+            minHandle = Math.min(minHandle, svc.getInstanceId());
+            maxHandle = Math.max(maxHandle, svc.getInstanceId());
+            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
+                minHandle = Math.min(minHandle, charac.getInstanceId());
+                maxHandle = Math.max(maxHandle, charac.getInstanceId());
+                for (BluetoothGattDescriptor desc : charac.getDescriptors()) {
+                    minHandle = Math.min(minHandle, desc.getInstanceId());
+                    maxHandle = Math.max(maxHandle, desc.getInstanceId());
+                }
+            }
+        }
+
+        Object[] attributes = new Object[maxHandle - minHandle + 1];
+        for (BluetoothGattService svc : services) {
+            put(attributes, svc.getInstanceId() - minHandle, svc);
+        }
+        for (BluetoothGattService svc : services) {
+            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
+                put(attributes, charac.getInstanceId() - minHandle, charac);
+            }
+        }
+        for (BluetoothGattService svc : services) {
+            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
+                for (BluetoothGattDescriptor desc : charac.getDescriptors()) {
+                    put(attributes, desc.getInstanceId() - minHandle, desc);
+                }
+            }
+        }
+        return new BluetoothGattAttributeIndex(minHandle, attributes, servicesByUuid);
+    }
+
+    private static void put(Object[] attributes, int i, Object attribute) {
+        if (attributes[i] == null) {
+            attributes[i] = attribute;
+        }
+    }
+}
@@ -101,6 +101,8 @@ public final class BluetoothGattServer implements BluetoothProfile {
     private int mTransport;
     private BluetoothGattService mPendingService;
     private List<BluetoothGattService> mServices;
+    private volatile BluetoothGattAttributeIndex mAttributeIndex =
+            BluetoothGattAttributeIndex.EMPTY;
 
     private static final int CALLBACK_REG_TIMEOUT = 10000;
 
@@ -187,6 +189,7 @@ public final class BluetoothGattServer implements BluetoothProfile {
                     }
 
                     mServices.add(tmp);
+                    updateAttributeIndex();
 
                     try {
                         mCallback.onServiceAdded((int) status, tmp);
@@ -482,14 +485,7 @@ public final class BluetoothGattServer implements BluetoothProfile {
      * @hide
      */
     /*package*/ BluetoothGattCharacteristic getCharacteristicByHandle(int handle) {
-        for (BluetoothGattService svc : mServices) {
-            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
-                if (charac.getInstanceId() == handle) {
-                    return charac;
-                }
-            }
-        }
-        return null;
+        return mAttributeIndex.getCharacteristic(handle);
     }
 
     /**
@@ -498,16 +494,11 @@ public final class BluetoothGattServer implements BluetoothProfile {
      * @hide
      */
     /*package*/ BluetoothGattDescriptor getDescriptorByHandle(int handle) {
-        for (BluetoothGattService svc : mServices) {
-            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
-                for (BluetoothGattDescriptor desc : charac.getDescriptors()) {
-                    if (desc.getInstanceId() == handle) {
-                        return desc;
-                    }
-                }
-            }
-        }
-        return null;
+        return mAttributeIndex.getDescriptor(handle);
+    }
+
+    private void updateAttributeIndex() {
+        mAttributeIndex = BluetoothGattAttributeIndex.of(mServices);
     }
 
     /**
@@ -947,6 +938,7 @@ public final class BluetoothGattServer implements BluetoothProfile {
             mService.removeService(mServerIf, service.getInstanceId(), mAttributionSource, recv);
             recv.awaitResultNoInterrupt(getSyncTimeout()).getValue(null);
             mServices.remove(intService);
+            updateAttributeIndex();
         } catch (RemoteException | TimeoutException e) {
             Log.e(TAG, "", e);
             return false;
@@ -970,6 +962,7 @@ public final class BluetoothGattServer implements BluetoothProfile {
             mService.clearServices(mServerIf, mAttributionSource, recv);
             recv.awaitResultNoInterrupt(getSyncTimeout()).getValue(null);
             mServices.clear();
+            updateAttributeIndex();
         } catch (RemoteException | TimeoutException e) {
             Log.e(TAG, "", e);
         }
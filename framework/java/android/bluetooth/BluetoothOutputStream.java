@@ -31,6 +31,8 @@ import java.io.OutputStream;
 @SuppressLint("AndroidFrameworkBluetoothPermission")
 /*package*/ final class BluetoothOutputStream extends OutputStream {
     private BluetoothSocket mSocket;
+    // Reused by write(int), streams are not meant to be written from several threads at once
+    private final byte[] mScratch = new byte[1];
 
     /*package*/ BluetoothOutputStream(BluetoothSocket s) {
         mSocket = s;
@@ -52,9 +54,8 @@ import java.io.OutputStream;
      * @since Android 1.0
      */
     public void write(int oneByte) throws IOException {
-        byte[] b = new byte[1];
-        b[0] = (byte) oneByte;
-        mSocket.write(b, 0, 1);
+        mScratch[0] = (byte) oneByte;
+        mSocket.write(mScratch, 0, 1);
     }
 
     /**
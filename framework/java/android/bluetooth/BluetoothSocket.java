@@ -18,6 +18,7 @@ package android.bluetooth;
 
 import static android.bluetooth.BluetoothUtils.getSyncTimeout;
 
+import android.annotation.NonNull;
 import android.annotation.RequiresNoPermission;
 import android.annotation.RequiresPermission;
 import android.bluetooth.annotations.RequiresBluetoothConnectPermission;
@@ -27,6 +28,8 @@ import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import com.android.modules.utils.SynchronousResultReceiver;
@@ -40,6 +43,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.TimeoutException;
 
@@ -284,6 +288,34 @@ public final class BluetoothSocket implements Closeable {
         return bluetoothSocket;
     }
 
+    /**
+     * Creates a connected BluetoothSocket over a file descriptor, such as one end of a socket
+     * pair, so that tests can exchange data with it without the Bluetooth stack.
+     *
+     * @param type type of socket
+     * @param fd file descriptor of the connected socket
+     * @param device remote device that this socket is connected to
+     * @param maxTxPacketSize L2CAP maximum packet size supported by the peer
+     * @param maxRxPacketSize L2CAP maximum packet size that can be received
+     * @throws IOException if socket creation fails.
+     * @hide
+     */
+    public static BluetoothSocket createConnectedSocketForTesting(int type, FileDescriptor fd,
+            BluetoothDevice device, int maxTxPacketSize, int maxRxPacketSize)
+            throws IOException {
+        BluetoothSocket bluetoothSocket =
+                new BluetoothSocket(type, -1, false, false, device, -1, null);
+
+        bluetoothSocket.mSocket = new LocalSocket(fd);
+        bluetoothSocket.mSocketIS = bluetoothSocket.mSocket.getInputStream();
+        bluetoothSocket.mSocketOS = bluetoothSocket.mSocket.getOutputStream();
+        bluetoothSocket.mMaxTxPacketSize = maxTxPacketSize;
+        bluetoothSocket.mMaxRxPacketSize = maxRxPacketSize;
+        bluetoothSocket.mSocketState = SocketState.CONNECTED;
+
+        return bluetoothSocket;
+    }
+
     private BluetoothSocket(BluetoothSocket s) {
         if (VDBG) Log.d(TAG, "Creating new Private BluetoothSocket of type: " + s.mType);
         mUuid = s.mUuid;
@@ -655,6 +687,13 @@ public final class BluetoothSocket implements Closeable {
             if (mL2capBuffer == null) {
                 createL2capRxBuffer();
             }
+            if (mL2capBuffer.remaining() == 0 && length >= mL2capBuffer.capacity()) {
+                // The whole packet fits in the caller buffer, skip the intermediate copy
+                if (VDBG) Log.v(TAG, "l2cap buffer empty, reading packet directly...");
+                ret = mSocketIS.read(b, offset, length);
+                if (VDBG) Log.d(TAG, "read out:  " + mSocketIS + " ret: " + ret);
+                return ret;
+            }
             if (mL2capBuffer.remaining() == 0) {
                 if (VDBG) Log.v(TAG, "l2cap buffer empty, refilling...");
                 if (fillL2capRxBuffer() == -1) {
@@ -717,6 +756,221 @@ public final class BluetoothSocket implements Closeable {
         return length;
     }
 
+    /**
+     * Reads bytes from this socket into the given buffer.
+     *
+     * <p>Bytes are read into {@code dst} starting at its position, which is advanced by the
+     * number of bytes read. The buffer may be direct, in which case the bytes are read straight
+     * into it.
+     *
+     * <p>For {@link #TYPE_L2CAP} sockets, a call returns the bytes of at most one received
+     * packet, so packet boundaries are preserved. When {@code dst} has less room than
+     * {@link #getMaxReceivePacketSize()}, the rest of the packet is returned by the next reads.
+     *
+     * <p>This call blocks until at least one byte is available.
+     *
+     * @param dst the buffer to read bytes into
+     * @return the number of bytes read, or -1 if the end of the stream has been reached
+     * @throws IOException if the socket is not connected or the read fails
+     */
+    @RequiresNoPermission
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        return (int) read(new ByteBuffer[] {dst});
+    }
+
+    /**
+     * Reads bytes from this socket into the given buffers, filling each of them in order before
+     * moving to the next one.
+     *
+     * <p>For {@link #TYPE_L2CAP} sockets, a call returns the bytes of at most one received
+     * packet, so packet boundaries are preserved. When the buffers have less room in total than
+     * {@link #getMaxReceivePacketSize()}, the rest of the packet is returned by the next reads.
+     *
+     * <p>This call blocks until at least one byte is available.
+     *
+     * @param dsts the buffers to read bytes into
+     * @return the number of bytes read, or -1 if the end of the stream has been reached
+     * @throws IOException if the socket is not connected or the read fails
+     * @see #read(ByteBuffer)
+     */
+    @RequiresNoPermission
+    public long read(@NonNull ByteBuffer[] dsts) throws IOException {
+        Objects.requireNonNull(dsts, "dsts cannot be null");
+        long length = 0;
+        for (ByteBuffer dst : dsts) {
+            Objects.requireNonNull(dst, "dsts cannot contain null");
+            if (dst.isReadOnly()) {
+                throw new IllegalArgumentException("dsts cannot contain read only buffers");
+            }
+            length += dst.remaining();
+        }
+        FileDescriptor fd = getConnectedFileDescriptor();
+        if (length == 0) {
+            return 0;
+        }
+        if ((mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE)) {
+            if (mL2capBuffer == null) {
+                createL2capRxBuffer();
+            }
+            if (mL2capBuffer.remaining() == 0 && length < mL2capBuffer.capacity()) {
+                // A packet may not fit, read it whole and hand it out over several reads
+                if (fillL2capRxBuffer() == -1) {
+                    return -1;
+                }
+            }
+            if (mL2capBuffer.remaining() > 0) {
+                return drainL2capRxBuffer(dsts);
+            }
+        }
+        Object[] arrays = new Object[dsts.length];
+        int[] offsets = new int[dsts.length];
+        int[] counts = new int[dsts.length];
+        for (int i = 0; i < dsts.length; i++) {
+            setIoVec(dsts[i], dsts[i].remaining(), i, arrays, offsets, counts);
+        }
+        long ret;
+        try {
+            ret = Os.readv(fd, arrays, offsets, counts);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        if (VDBG) Log.d(TAG, "read out:  " + mSocketIS + " ret: " + ret);
+        if (ret == 0) {
+            // Nothing was read while there was room in the buffers, the peer closed the socket
+            return -1;
+        }
+        advance(dsts, ret);
+        return ret;
+    }
+
+    /**
+     * Writes the bytes remaining in the given buffer to this socket.
+     *
+     * <p>Bytes are written from {@code src} starting at its position, which is advanced by the
+     * number of bytes written. The buffer may be direct, in which case the bytes are written
+     * straight from it.
+     *
+     * <p>For {@link #TYPE_L2CAP} sockets, a call sends a single packet of at most
+     * {@link #getMaxTransmitPacketSize()} bytes, so packet boundaries are preserved, and returns
+     * the number of bytes sent. For other sockets, all the remaining bytes are written.
+     *
+     * @param src the buffer to write bytes from
+     * @return the number of bytes written
+     * @throws IOException if the socket is not connected or the write fails
+     */
+    @RequiresNoPermission
+    public int write(@NonNull ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src});
+    }
+
+    /**
+     * Writes the bytes remaining in the given buffers to this socket, in order.
+     *
+     * <p>For {@link #TYPE_L2CAP} sockets, a call gathers the buffers into a single packet of at
+     * most {@link #getMaxTransmitPacketSize()} bytes, so packet boundaries are preserved, and
+     * returns the number of bytes sent. For other sockets, all the remaining bytes are written.
+     *
+     * @param srcs the buffers to write bytes from
+     * @return the number of bytes written
+     * @throws IOException if the socket is not connected or the write fails
+     * @see #write(ByteBuffer)
+     */
+    @RequiresNoPermission
+    public long write(@NonNull ByteBuffer[] srcs) throws IOException {
+        Objects.requireNonNull(srcs, "srcs cannot be null");
+        long length = 0;
+        for (ByteBuffer src : srcs) {
+            Objects.requireNonNull(src, "srcs cannot contain null");
+            length += src.remaining();
+        }
+        FileDescriptor fd = getConnectedFileDescriptor();
+        boolean isL2cap = (mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE);
+        if (isL2cap && length > mMaxTxPacketSize) {
+            length = mMaxTxPacketSize;
+        }
+        long written = 0;
+        while (written < length) {
+            Object[] arrays = new Object[srcs.length];
+            int[] offsets = new int[srcs.length];
+            int[] counts = new int[srcs.length];
+            long left = length - written;
+            for (int i = 0; i < srcs.length; i++) {
+                int count = (int) Math.min(srcs[i].remaining(), left);
+                setIoVec(srcs[i], count, i, arrays, offsets, counts);
+                left -= count;
+            }
+            long ret;
+            try {
+                ret = Os.writev(fd, arrays, offsets, counts);
+            } catch (ErrnoException e) {
+                throw e.rethrowAsIOException();
+            }
+            advance(srcs, ret);
+            written += ret;
+            if (isL2cap) {
+                // A packet is sent whole, or not at all
+                break;
+            }
+        }
+        if (VDBG) Log.d(TAG, "write out: " + mSocketOS + " length: " + written);
+        return written;
+    }
+
+    private FileDescriptor getConnectedFileDescriptor() throws IOException {
+        LocalSocket socket = mSocket;
+        if (mSocketState != SocketState.CONNECTED || socket == null) {
+            throw new IOException("bt socket is not connected");
+        }
+        return socket.getFileDescriptor();
+    }
+
+    // Describes count bytes of the buffer, from its position, as the index-th element of an
+    // I/O vector for Os.readv and Os.writev, which only take arrays and direct buffers
+    private static void setIoVec(ByteBuffer buffer, int count, int index, Object[] arrays,
+            int[] offsets, int[] counts) {
+        if (buffer.hasArray()) {
+            arrays[index] = buffer.array();
+            offsets[index] = buffer.arrayOffset() + buffer.position();
+        } else if (buffer.isDirect()) {
+            arrays[index] = buffer;
+            offsets[index] = buffer.position();
+        } else {
+            // A read only heap buffer, only used for writes
+            byte[] copy = new byte[count];
+            buffer.duplicate().get(copy);
+            arrays[index] = copy;
+            offsets[index] = 0;
+        }
+        counts[index] = count;
+    }
+
+    private static void advance(ByteBuffer[] buffers, long count) {
+        for (ByteBuffer buffer : buffers) {
+            if (count == 0) {
+                return;
+            }
+            int n = (int) Math.min(buffer.remaining(), count);
+            buffer.position(buffer.position() + n);
+            count -= n;
+        }
+    }
+
+    private long drainL2capRxBuffer(ByteBuffer[] dsts) {
+        long ret = 0;
+        for (ByteBuffer dst : dsts) {
+            int n = Math.min(dst.remaining(), mL2capBuffer.remaining());
+            if (n == 0) {
+                continue;
+            }
+            ByteBuffer slice = mL2capBuffer.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            mL2capBuffer.position(mL2capBuffer.position() + n);
+            ret += n;
+        }
+        return ret;
+    }
+
     @Override
     public void close() throws IOException {
         Log.d(TAG, "close() this: " + this + ", channel: " + mPort + ", mSocketIS: " + mSocketIS
@@ -18,6 +18,7 @@ package android.bluetooth.le;
 
 import static android.bluetooth.le.BluetoothLeUtils.getSyncTimeout;
 
+import android.annotation.NonNull;
 import android.annotation.RequiresNoPermission;
 import android.annotation.RequiresPermission;
 import android.annotation.SystemApi;
@@ -32,6 +33,7 @@ import android.util.Log;
 
 import com.android.modules.utils.SynchronousResultReceiver;
 
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -45,6 +47,16 @@ import java.util.concurrent.TimeoutException;
 public final class AdvertisingSet {
     private static final String TAG = "AdvertisingSet";
 
+    /**
+     * Shortest interval between two payloads of {@link #setAdvertisingDataRotation}.
+     */
+    public static final long MIN_DATA_ROTATION_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Largest number of payloads of {@link #setAdvertisingDataRotation}.
+     */
+    public static final int MAX_DATA_ROTATION_PAYLOADS = 16;
+
     private final IBluetoothGatt mGatt;
     private int mAdvertiserId;
     private AttributionSource mAttributionSource;
@@ -116,6 +128,50 @@ public final class AdvertisingSet {
         }
     }
 
+    /**
+     * Rotates the data being Advertised through a sequence of payloads, switching to the next one
+     * every {@code intervalMillis}. The payloads are serialized once and pushed to the controller
+     * by the Bluetooth stack, so the app is not woken up for each update. The rotation starts from
+     * the first payload right away, and lasts until the advertising set is stopped, another
+     * rotation is requested or {@link #setAdvertisingData} is called.
+     * <p>
+     * Only the status of the first update is delivered through
+     * {@code callback.onAdvertisingDataSet()}. If an update fails, its status is delivered and the
+     * rotation stops.
+     * <p>
+     * The interval is measured while the device is awake: the rotation pauses while the device is
+     * suspended, and the controller keeps advertising the current payload until it resumes.
+     *
+     * @param advertiseData Advertisement data payloads to rotate through, with the same
+     * constraints as for {@link #setAdvertisingData}, and at most
+     * {@link #MAX_DATA_ROTATION_PAYLOADS} of them. An empty list stops the current rotation.
+     * @param intervalMillis time each payload is advertised for, in milliseconds. Intervals below
+     * {@link #MIN_DATA_ROTATION_INTERVAL_MILLIS} are raised to it.
+     * @throws IllegalArgumentException if advertiseData has more than
+     * {@link #MAX_DATA_ROTATION_PAYLOADS} payloads.
+     */
+    @RequiresLegacyBluetoothAdminPermission
+    @RequiresBluetoothAdvertisePermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_ADVERTISE)
+    public void setAdvertisingDataRotation(@NonNull List<AdvertiseData> advertiseData,
+            long intervalMillis) {
+        if (advertiseData == null) {
+            throw new IllegalArgumentException("advertiseData is null");
+        }
+        if (advertiseData.size() > MAX_DATA_ROTATION_PAYLOADS) {
+            throw new IllegalArgumentException("advertiseData has more than "
+                    + MAX_DATA_ROTATION_PAYLOADS + " payloads");
+        }
+        try {
+            final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
+            mGatt.setAdvertisingDataRotation(mAdvertiserId, advertiseData, intervalMillis,
+                    mAttributionSource, recv);
+            recv.awaitResultNoInterrupt(getSyncTimeout()).getValue(null);
+        } catch (TimeoutException | RemoteException e) {
+            Log.e(TAG, "remote exception - ", e);
+        }
+    }
+
     /**
      * Set/update scan response data. Make sure that data doesn't exceed the size limit for
      * specified AdvertisingSetParameters. This method returns immediately, the operation status
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.UUID;
+
+/**
+ * Unit test cases for {@link BluetoothGattService}.
+ */
+public class BluetoothGattServiceTest extends TestCase {
+    private static final UUID SERVICE_UUID = UUID.randomUUID();
+    private static final UUID CHAR_UUID_A = UUID.randomUUID();
+    private static final UUID CHAR_UUID_B = UUID.randomUUID();
+
+    @SmallTest
+    public void testGetCharacteristic_returnsFirstInstance() {
+        BluetoothGattService service =
+                new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        BluetoothGattCharacteristic first = new BluetoothGattCharacteristic(CHAR_UUID_A, 0, 0);
+        BluetoothGattCharacteristic second = new BluetoothGattCharacteristic(CHAR_UUID_A, 0, 0);
+        service.addCharacteristic(first);
+        service.addCharacteristic(second);
+
+        assertSame(first, service.getCharacteristic(CHAR_UUID_A));
+        assertNull(service.getCharacteristic(CHAR_UUID_B));
+    }
+
+    @SmallTest
+    public void testGetCharacteristic_afterCharacteristicAdded() {
+        BluetoothGattService service =
+                new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        service.addCharacteristic(new BluetoothGattCharacteristic(CHAR_UUID_A, 0, 0));
+        assertNull(service.getCharacteristic(CHAR_UUID_B));
+
+        BluetoothGattCharacteristic added = new BluetoothGattCharacteristic(CHAR_UUID_B, 0, 0);
+        service.addCharacteristic(added);
+        assertSame(added, service.getCharacteristic(CHAR_UUID_B));
+
+        BluetoothGattCharacteristic listed =
+                new BluetoothGattCharacteristic(UUID.randomUUID(), 0, 0);
+        service.getCharacteristics().add(listed);
+        assertSame(listed, service.getCharacteristic(listed.getUuid()));
+
+        BluetoothGattCharacteristic replaced =
+                new BluetoothGattCharacteristic(UUID.randomUUID(), 0, 0);
+        service.getCharacteristics().set(0, replaced);
+        assertSame(replaced, service.getCharacteristic(replaced.getUuid()));
+        assertNull(service.getCharacteristic(CHAR_UUID_A));
+    }
+}
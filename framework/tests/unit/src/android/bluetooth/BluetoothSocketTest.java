@@ -0,0 +1,282 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.system.Os;
+import android.system.OsConstants;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Unit test cases for the {@link ByteBuffer} reads and writes of {@link BluetoothSocket}, over
+ * a local socket pair: SOCK_SEQPACKET keeps the packet boundaries of an L2CAP channel and
+ * SOCK_STREAM stands for an RFCOMM channel.
+ */
+public class BluetoothSocketTest extends TestCase {
+    private static final int MAX_PACKET_SIZE = 16;
+
+    private final BluetoothDevice mDevice =
+            BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+    private BluetoothSocket mSocket;
+    private FileDescriptor mPeerFd;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        closePeer();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testL2capReadSpreadsPacketOverBuffers() throws Exception {
+        createSocket(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+        sendFromPeer("0123456789");
+        sendFromPeer("abc");
+
+        ByteBuffer[] dsts = {
+                ByteBuffer.allocate(4), ByteBuffer.allocateDirect(4), ByteBuffer.allocate(4)};
+        assertEquals(10, mSocket.read(dsts));
+        assertEquals("0123", readBytes(dsts[0]));
+        assertEquals("4567", readBytes(dsts[1]));
+        assertEquals("89", readBytes(dsts[2]));
+
+        // The next packet is not merged into the room left by the previous one
+        ByteBuffer next = ByteBuffer.allocate(12);
+        assertEquals(3, mSocket.read(next));
+        assertEquals("abc", readBytes(next));
+    }
+
+    @SmallTest
+    public void testL2capPartiallyDrainedPacketThenNewPacket() throws Exception {
+        createSocket(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+        sendFromPeer("0123456789");
+        sendFromPeer("abcdef");
+
+        ByteBuffer first = ByteBuffer.allocate(4);
+        assertEquals(4, mSocket.read(first));
+        assertEquals("0123", readBytes(first));
+
+        // The rest of the packet comes first, even with room for a whole packet
+        byte[] rest = new byte[MAX_PACKET_SIZE];
+        assertEquals(6, mSocket.getInputStream().read(rest));
+        assertEquals("456789", new String(rest, 0, 6, StandardCharsets.US_ASCII));
+
+        // Then the next packet is read straight into the buffer
+        ByteBuffer next = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        assertEquals(6, mSocket.read(next));
+        assertEquals("abcdef", readBytes(next));
+    }
+
+    @SmallTest
+    public void testL2capStreamReadsWholePacketDirectly() throws Exception {
+        createSocket(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+        sendFromPeer("0123456789");
+        sendFromPeer("abc");
+
+        InputStream is = mSocket.getInputStream();
+        byte[] b = new byte[MAX_PACKET_SIZE];
+        assertEquals(10, is.read(b));
+        assertEquals("0123456789", new String(b, 0, 10, StandardCharsets.US_ASCII));
+        assertEquals(3, is.read(b));
+        assertEquals("abc", new String(b, 0, 3, StandardCharsets.US_ASCII));
+    }
+
+    @SmallTest
+    public void testReadIntoHeapDirectAndSlicedBuffers() throws Exception {
+        createSocket(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+        sendFromPeer("0123456789");
+
+        ByteBuffer sliced = ByteBuffer.allocate(8);
+        sliced.position(3);
+        ByteBuffer[] dsts = {ByteBuffer.allocate(3), ByteBuffer.allocateDirect(3), sliced.slice()};
+        assertEquals(10, mSocket.read(dsts));
+        assertEquals("012", readBytes(dsts[0]));
+        assertEquals("345", readBytes(dsts[1]));
+        assertEquals("6789", readBytes(dsts[2]));
+    }
+
+    @SmallTest
+    public void testReadIntoReadOnlyBufferIsRejected() throws Exception {
+        createSocket(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+
+        try {
+            mSocket.read(ByteBuffer.allocate(4).asReadOnlyBuffer());
+            fail("Read into a read only buffer");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @SmallTest
+    public void testWriteFromHeapDirectAndReadOnlyBuffers() throws Exception {
+        createSocket(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+
+        ByteBuffer heap = ByteBuffer.wrap(bytes("012"));
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(bytes("345"));
+        direct.flip();
+        ByteBuffer readOnly = ByteBuffer.wrap(bytes("6789")).asReadOnlyBuffer();
+        assertEquals(10, mSocket.write(new ByteBuffer[] {heap, direct, readOnly}));
+
+        assertEquals(0, heap.remaining());
+        assertEquals(0, direct.remaining());
+        assertEquals(0, readOnly.remaining());
+        assertEquals("0123456789", receiveOnPeer(10));
+    }
+
+    @SmallTest
+    public void testL2capWriteIsCappedToOnePacket() throws Exception {
+        createSocket(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+
+        ByteBuffer first = ByteBuffer.wrap(bytes("0123456789"));
+        ByteBuffer second = ByteBuffer.wrap(bytes("abcdefghij")).asReadOnlyBuffer();
+        assertEquals(MAX_PACKET_SIZE, mSocket.write(new ByteBuffer[] {first, second}));
+        assertEquals(0, first.remaining());
+        assertEquals(4, second.remaining());
+        assertEquals("0123456789abcdef", receiveOnPeer(2 * MAX_PACKET_SIZE));
+
+        assertEquals(4, mSocket.write(second));
+        assertEquals("ghij", receiveOnPeer(2 * MAX_PACKET_SIZE));
+    }
+
+    @SmallTest
+    public void testWriteLargerThanSocketBuffer() throws Exception {
+        createSocket(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+        // Larger than the socket buffer, so the data goes out over several writev() calls
+        // while the peer drains it
+        int size = 256 * 1024;
+        byte[] data = new byte[3 * size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteBuffer heap = ByteBuffer.wrap(data, 0, size);
+        ByteBuffer direct = ByteBuffer.allocateDirect(size);
+        direct.put(data, size, size);
+        direct.flip();
+        ByteBuffer readOnly = ByteBuffer.wrap(data, 2 * size, size).asReadOnlyBuffer();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Thread reader = new Thread(() -> {
+            byte[] b = new byte[8192];
+            try {
+                while (received.size() < data.length) {
+                    int n = Os.read(mPeerFd, b, 0, b.length);
+                    if (n <= 0) {
+                        return;
+                    }
+                    received.write(b, 0, n);
+                }
+            } catch (Exception e) {
+                // The comparison below fails
+            }
+        });
+        reader.start();
+
+        assertEquals(data.length, mSocket.write(new ByteBuffer[] {heap, direct, readOnly}));
+        reader.join(5000);
+        assertEquals(0, heap.remaining());
+        assertEquals(0, direct.remaining());
+        assertEquals(0, readOnly.remaining());
+        assertTrue(Arrays.equals(data, received.toByteArray()));
+    }
+
+    @SmallTest
+    public void testL2capReadReturnsEndOfStream() throws Exception {
+        createSocket(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+        sendFromPeer("01");
+        closePeer();
+
+        ByteBuffer dst = ByteBuffer.allocate(4);
+        assertEquals(2, mSocket.read(dst));
+        assertEquals(-1, mSocket.read(dst));
+        assertEquals(-1, mSocket.read(ByteBuffer.allocateDirect(MAX_PACKET_SIZE)));
+    }
+
+    @SmallTest
+    public void testRfcommReadReturnsEndOfStream() throws Exception {
+        createSocket(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+        closePeer();
+
+        assertEquals(-1, mSocket.read(ByteBuffer.allocate(4)));
+    }
+
+    @SmallTest
+    public void testReadAndWriteFailOnClosedSocket() throws Exception {
+        createSocket(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+        mSocket.close();
+
+        try {
+            mSocket.read(ByteBuffer.allocate(4));
+            fail("Read from a closed socket");
+        } catch (IOException expected) {
+        }
+        try {
+            mSocket.write(ByteBuffer.wrap(bytes("0123")));
+            fail("Write to a closed socket");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void createSocket(int type, int socketType) throws Exception {
+        FileDescriptor fd = new FileDescriptor();
+        mPeerFd = new FileDescriptor();
+        Os.socketpair(OsConstants.AF_UNIX, socketType, 0, fd, mPeerFd);
+        mSocket = BluetoothSocket.createConnectedSocketForTesting(
+                type, fd, mDevice, MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+    }
+
+    private void closePeer() throws Exception {
+        if (mPeerFd != null) {
+            Os.close(mPeerFd);
+            mPeerFd = null;
+        }
+    }
+
+    private void sendFromPeer(String packet) throws Exception {
+        byte[] b = bytes(packet);
+        assertEquals(b.length, Os.write(mPeerFd, b, 0, b.length));
+    }
+
+    private String receiveOnPeer(int maxLength) throws Exception {
+        byte[] b = new byte[maxLength];
+        int n = Os.read(mPeerFd, b, 0, b.length);
+        return new String(b, 0, n, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Returns the bytes put into the buffer, from its start to its position
+    private static String readBytes(ByteBuffer buffer) {
+        ByteBuffer filled = buffer.duplicate();
+        filled.flip();
+        byte[] b = new byte[filled.remaining()];
+        filled.get(b);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+}
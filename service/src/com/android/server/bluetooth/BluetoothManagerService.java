@@ -112,7 +112,10 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -153,6 +156,10 @@ public class BluetoothManagerService extends IBluetoothManager.Stub {
     private static final int ENABLE_DISABLE_DELAY_MS = 300;
     private static final int DELAY_BEFORE_RESTART_DUE_TO_INIT_FLAGS_CHANGED_MS = 300;
     private static final int DELAY_FOR_RETRY_INIT_FLAG_CHECK_MS = 86400000;
+    // Maximum msec to wait for the adapter to reach a state
+    private static final int STATE_WAIT_TIMEOUT_MS = 4800;
+    // Interval in msec to poll the adapter state when no state change is reported
+    private static final int STATE_WAIT_POLL_INTERVAL_MS = 300;
 
     private static final int MESSAGE_ENABLE = 1;
     @VisibleForTesting
@@ -321,9 +328,13 @@ public class BluetoothManagerService extends IBluetoothManager.Stub {
     @GuardedBy("mProfileServices")
     private boolean mUnbindingAll = false;
 
+    private final BluetoothStateWaiter mStateWaiter = new BluetoothStateWaiter();
+
     private final IBluetoothCallback mBluetoothCallback = new IBluetoothCallback.Stub() {
         @Override
         public void onBluetoothStateChange(int prevState, int newState) throws RemoteException {
+            // Wake up state waits right away, the handler thread may be the one waiting
+            mStateWaiter.onStateChanged(newState);
             Message msg =
                     mHandler.obtainMessage(MESSAGE_BLUETOOTH_STATE_CHANGE, prevState, newState);
             mHandler.sendMessage(msg);
@@ -3516,26 +3527,48 @@ public class BluetoothManagerService extends IBluetoothManager.Stub {
         return waitForState(states, true);
     }
     private boolean waitForState(Set<Integer> states, boolean failIfUnbind) {
-        for (int i = 0; i < 16; i++) {
-            mBluetoothLock.readLock().lock();
-            try {
-                if (mBluetooth == null && failIfUnbind) {
-                    Log.e(TAG, "waitForState " + states + " Bluetooth is not unbind");
-                    return false;
+        final long deadline = SystemClock.elapsedRealtime() + STATE_WAIT_TIMEOUT_MS;
+        // Registered before checking the state, so that a change in between is not missed
+        final CompletableFuture<Integer> stateReached = mStateWaiter.register(states);
+        try {
+            while (true) {
+                mBluetoothLock.readLock().lock();
+                try {
+                    if (mBluetooth == null && failIfUnbind) {
+                        Log.e(TAG, "waitForState " + states + " Bluetooth is not unbind");
+                        return false;
+                    }
+                    if (mBluetooth == null && states.contains(BluetoothAdapter.STATE_OFF)) {
+                        return true; // We are so OFF that the bluetooth is not bind
+                    }
+                    if (mBluetooth != null && states.contains(synchronousGetState())) {
+                        return true;
+                    }
+                } catch (RemoteException | TimeoutException e) {
+                    Log.e(TAG, "getState()", e);
+                    break;
+                } finally {
+                    mBluetoothLock.readLock().unlock();
                 }
-                if (mBluetooth == null && states.contains(BluetoothAdapter.STATE_OFF)) {
-                    return true; // We are so OFF that the bluetooth is not bind
+                final long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    break;
                 }
-                if (mBluetooth != null && states.contains(synchronousGetState())) {
+                // The state is polled again in case no state change callback is registered,
+                // e.g. while restarting or before the callback is registered on bind.
+                try {
+                    stateReached.get(Math.min(remaining, STATE_WAIT_POLL_INTERVAL_MS),
+                            TimeUnit.MILLISECONDS);
                     return true;
+                } catch (TimeoutException e) {
+                    // Poll again
+                } catch (ExecutionException | InterruptedException e) {
+                    Log.e(TAG, "waitForState " + states + " interrupted", e);
+                    break;
                 }
-            } catch (RemoteException | TimeoutException e) {
-                Log.e(TAG, "getState()", e);
-                break;
-            } finally {
-                mBluetoothLock.readLock().unlock();
             }
-            SystemClock.sleep(300);
+        } finally {
+            mStateWaiter.unregister(stateReached);
         }
         Log.e(TAG, "waitForState " + states + " time out");
         return false;
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.bluetooth;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Completes pending adapter state waits as soon as the adapter reports one of the awaited states.
+ *
+ * <p>{@link #onStateChanged} is meant to be called straight from the binder thread delivering
+ * {@link android.bluetooth.IBluetoothCallback#onBluetoothStateChange}, since the thread waiting
+ * is usually the handler thread which would otherwise process the state change.
+ */
+class BluetoothStateWaiter {
+    private static class Waiter {
+        final Set<Integer> mStates;
+        final CompletableFuture<Integer> mFuture = new CompletableFuture<>();
+
+        Waiter(Set<Integer> states) {
+            mStates = states;
+        }
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final List<Waiter> mWaiters = new ArrayList<>();
+
+    /**
+     * Registers a wait for any of the given states. The caller must check the current state after
+     * registering, so that a transition happening in between is not missed, and must call
+     * {@link #unregister} once done waiting.
+     *
+     * @return a future completed with the state reached
+     */
+    CompletableFuture<Integer> register(Set<Integer> states) {
+        Waiter waiter = new Waiter(states);
+        synchronized (mLock) {
+            mWaiters.add(waiter);
+        }
+        return waiter.mFuture;
+    }
+
+    void unregister(CompletableFuture<Integer> future) {
+        synchronized (mLock) {
+            mWaiters.removeIf(waiter -> waiter.mFuture == future);
+        }
+    }
+
+    /** Completes the waits for the new state */
+    void onStateChanged(int newState) {
+        List<Waiter> reached = new ArrayList<>();
+        synchronized (mLock) {
+            Iterator<Waiter> it = mWaiters.iterator();
+            while (it.hasNext()) {
+                Waiter waiter = it.next();
+                if (waiter.mStates.contains(newState)) {
+                    it.remove();
+                    reached.add(waiter);
+                }
+            }
+        }
+        for (Waiter waiter : reached) {
+            waiter.mFuture.complete(newState);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothStateWaiterTest {
+    private final BluetoothStateWaiter mWaiter = new BluetoothStateWaiter();
+
+    @Test
+    public void onStateChanged_completesMatchingWaits() throws Exception {
+        CompletableFuture<Integer> on = mWaiter.register(
+                Set.of(BluetoothAdapter.STATE_BLE_ON, BluetoothAdapter.STATE_ON));
+        CompletableFuture<Integer> off = mWaiter.register(Set.of(BluetoothAdapter.STATE_OFF));
+
+        mWaiter.onStateChanged(BluetoothAdapter.STATE_BLE_TURNING_ON);
+        assertThat(on.isDone()).isFalse();
+
+        mWaiter.onStateChanged(BluetoothAdapter.STATE_BLE_ON);
+        assertThat(on.get()).isEqualTo(BluetoothAdapter.STATE_BLE_ON);
+        assertThat(off.isDone()).isFalse();
+    }
+
+    @Test
+    public void unregister_waitIsNotCompleted() {
+        CompletableFuture<Integer> off = mWaiter.register(Set.of(BluetoothAdapter.STATE_OFF));
+
+        mWaiter.unregister(off);
+        mWaiter.onStateChanged(BluetoothAdapter.STATE_OFF);
+
+        assertThat(off.isDone()).isFalse();
+    }
+
+    @Test
+    public void onStateChanged_completesWaitOnlyOnce() throws Exception {
+        CompletableFuture<Integer> on = mWaiter.register(
+                Set.of(BluetoothAdapter.STATE_BLE_ON, BluetoothAdapter.STATE_ON));
+
+        mWaiter.onStateChanged(BluetoothAdapter.STATE_BLE_ON);
+        mWaiter.onStateChanged(BluetoothAdapter.STATE_ON);
+
+        assertThat(on.get()).isEqualTo(BluetoothAdapter.STATE_BLE_ON);
+    }
+}